@@ -0,0 +1,186 @@
+package netlab.pete.indoor.russianblue;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Background thread that drains the sensor and WiFi collectors while recording, so the memory
+ * stays bounded. The session is written block by block to one indexed trace "prefix.rbt", which
+ * {@link TraceArchive} reads by time range; stopping only writes the last blocks and the block
+ * directory. The text logs, in segmented files, are optional and written along with the trace.
+ * A crash loses the records of the last trace flush period, the directory is rebuilt by scanning.
+ * Streams which are not selected for saving are drained too, their data is discarded.
+ */
+
+public class LogFlusher extends Thread {
+    public final static String FLUSHTAG = "logflusher";
+    // Period between two drains, this is the most data we lose on a crash.
+    private final static long FLUSH_PERIOD = 1000;     // ms
+    // Drains between two trace flushes, the most a trace block of a stream covers.
+    private final static int TRACE_FLUSHDRAINS = 10;
+
+    private final SensorCollector m_sensorCollector;
+    private final WifiScanner m_wifiScanner;
+    private final String m_filePrefix;
+    private boolean m_wifiSaveFlag = true;
+    private boolean [] m_sensorSaveFlags = {true, true, true};
+    private final boolean m_textLogs;
+
+    private TraceWriter m_traceWriter;
+    private int m_drainCount;
+    private SegmentedLogWriter m_wifiWriter;
+    private SegmentedLogWriter [] m_sensorWriters;
+    private volatile boolean m_running;
+    private volatile boolean m_saveFlag;
+
+    /**
+     * @param filePrefix Directory and date part of the log file names, such as "/sdcard/RussianBlue/20161027120000"
+     * @param saveFlags Which streams to save: wifi, acce, gyro, magn
+     * @param textLogs Whether the saved streams are written to text logs too
+     * */
+    public LogFlusher(SensorCollector sensorCollector, WifiScanner wifiScanner,
+                      String filePrefix, boolean [] saveFlags, boolean textLogs) {
+        super(FLUSHTAG);
+        m_sensorCollector = sensorCollector;
+        m_wifiScanner = wifiScanner;
+        m_filePrefix = filePrefix;
+        if (saveFlags.length >= 4) {
+            m_wifiSaveFlag = saveFlags[0];
+            m_sensorSaveFlags[0] = saveFlags[1];
+            m_sensorSaveFlags[1] = saveFlags[2];
+            m_sensorSaveFlags[2] = saveFlags[3];
+        }
+        m_textLogs = textLogs;
+        m_sensorWriters = new SegmentedLogWriter[SensorCollector.SENSOR_IDS.length];
+        m_drainCount = 0;
+        m_running = true;
+        m_saveFlag = true;
+    }
+
+    @Override
+    public void run() {
+        super.run();
+        m_saveFlag = openWriters();
+        while (m_running) {
+            drainAll();
+            try {
+                Thread.sleep(FLUSH_PERIOD);
+            } catch (InterruptedException ex) {
+                // Woken up by finish()
+            }
+        }
+        // Whatever was recorded before the listeners were unregistered.
+        drainAll();
+        closeWriters();
+    }
+
+    /**
+     * Stop flushing, write the remaining data and wait for the files to be closed.
+     * @return Whether all the selected streams were saved successfully
+     * */
+    public boolean finish() {
+        m_running = false;
+        interrupt();
+        try {
+            join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return m_saveFlag;
+    }
+
+    private boolean openWriters() {
+        File appExternalDirectory = new File(m_filePrefix).getParentFile();
+        boolean hasParentDirectory = appExternalDirectory.exists();
+        if (!hasParentDirectory) {
+            hasParentDirectory = appExternalDirectory.mkdirs();
+        }
+        if (!hasParentDirectory) {
+            Log.d(FLUSHTAG, "Failed to create the application directory in external storage");
+            return false;
+        }
+        try {
+            m_traceWriter = new TraceWriter(new File(m_filePrefix + TraceFormat.FILE_SUFFIX));
+            if (m_wifiSaveFlag && m_textLogs) {
+                m_wifiWriter = new SegmentedLogWriter(m_filePrefix + "_" + WifiScanner.SENSOR_ID);
+            }
+            for (int i = 0; i < SensorCollector.SENSOR_IDS.length; i++) {
+                if (m_sensorSaveFlags[i] && m_textLogs) {
+                    m_sensorWriters[i] = new SegmentedLogWriter(m_filePrefix + "_" + SensorCollector.SENSOR_IDS[i]);
+                }
+            }
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            Log.d(FLUSHTAG, "Failed to open log files in external storage");
+            closeWriters();
+            return false;
+        }
+        return true;
+    }
+
+    private void drainAll() {
+        try {
+            TraceWriter trace = m_traceWriter;
+            m_wifiScanner.drainTo(m_wifiWriter, m_wifiSaveFlag ? trace : null);
+            for (int i = 0; i < SensorCollector.SENSOR_IDS.length; i++) {
+                m_sensorCollector.drainTo(m_sensorWriters[i], m_sensorSaveFlags[i] ? trace : null,
+                        SensorCollector.SENSORTYPE_SEQUENCE[i]);
+            }
+            m_drainCount = m_drainCount + 1;
+            if (trace != null && m_drainCount % TRACE_FLUSHDRAINS == 0) {
+                trace.flush();
+            }
+            if (m_wifiWriter != null) {
+                m_wifiWriter.flush();
+            }
+            for (SegmentedLogWriter writer : m_sensorWriters) {
+                if (writer != null) {
+                    writer.flush();
+                }
+            }
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            Log.d(FLUSHTAG, "Exception throwed from flushing log files, the rest will be discarded");
+            m_saveFlag = false;
+            closeWriters();
+        }
+    }
+
+    private void closeWriters() {
+        if (m_traceWriter != null) {
+            try {
+                // Writes the last blocks and the block directory.
+                m_traceWriter.close();
+            } catch (IOException ex) {
+                m_saveFlag = false;
+                ex.printStackTrace();
+            }
+            m_traceWriter = null;
+        }
+        if (m_wifiWriter != null) {
+            try {
+                m_wifiWriter.close();
+            } catch (IOException ex) {
+                m_saveFlag = false;
+                ex.printStackTrace();
+            }
+            m_wifiWriter = null;
+        }
+        for (int i = 0; i < m_sensorWriters.length; i++) {
+            if (m_sensorWriters[i] != null) {
+                try {
+                    m_sensorWriters[i].close();
+                } catch (IOException ex) {
+                    m_saveFlag = false;
+                    ex.printStackTrace();
+                }
+                m_sensorWriters[i] = null;
+            }
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package netlab.pete.indoor.russianblue;
 
 import android.app.Activity;
+import android.content.ComponentName;
 import android.content.Context;
-import android.hardware.SensorManager;
-import android.net.wifi.WifiManager;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -12,10 +14,6 @@ import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.Toast;
 
-import java.io.File;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
 public class PedometerActivity extends Activity {
     public final static String PDTAG = "pedometer";
     public final static String EXTERNAL_DIRECTORYPATH = "/sdcard/RussianBlue/";
@@ -23,20 +21,32 @@ public class PedometerActivity extends Activity {
 
     private Context m_appContext;
     private EditText m_edtStepLength;
+    private EditText m_edtDistance;
     private CheckBox m_cbWiFi;
     private CheckBox m_cbAcce;
     private CheckBox m_cbGyro;
     private CheckBox m_cbMagn;
+    private CheckBox m_cbDebug;
     private boolean [] saveFlags;
     private Button m_btnControl;
     private boolean m_controlFlag;  // false : waiting to start, true : waiting to stop
     private WalkingTrackView m_walkingTV;
-    private StepCounter m_stepCounter;
 
-    private WifiManager m_wifiManager;
-    private WifiScanner m_wifiScanner;
-    private SensorManager m_sensorManager;
-    private SensorCollector m_sensorCollector;
+    // The recording runs in the service, bound while the activity is visible.
+    private RecordingService m_service;
+    private final ServiceConnection m_serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            m_service = ((RecordingService.RecordingBinder) binder).getService();
+            m_service.setTrackView(m_walkingTV);
+            updateControls(m_service.isRecording());
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            m_service = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -47,10 +57,12 @@ public class PedometerActivity extends Activity {
         m_appContext = getApplicationContext();
 
         m_edtStepLength = (EditText) findViewById(R.id.edtLength);
+        m_edtDistance = (EditText) findViewById(R.id.edtDistance);
         m_cbWiFi = (CheckBox) findViewById(R.id.cbWiFi);
         m_cbAcce = (CheckBox) findViewById(R.id.cbAcce);
         m_cbGyro = (CheckBox) findViewById(R.id.cbGyro);
         m_cbMagn = (CheckBox) findViewById(R.id.cbMagn);
+        m_cbDebug = (CheckBox) findViewById(R.id.cbDebug);
         saveFlags = new boolean[TARGETDATA_TYPECOUNT];
         for (int i = 0; i < TARGETDATA_TYPECOUNT; i++) {
             saveFlags[i] = true;
@@ -58,59 +70,48 @@ public class PedometerActivity extends Activity {
         m_btnControl = (Button) findViewById(R.id.btnControl);
         m_controlFlag = false;
         m_walkingTV = (WalkingTrackView) findViewById(R.id.walkingTV);
-        String stepLengthTxt = m_edtStepLength.getText().toString();
-        m_stepCounter = new StepCounter(m_walkingTV, Float.valueOf(stepLengthTxt));
-
-        m_wifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
-        m_wifiScanner = new WifiScanner(m_appContext, m_wifiManager);
-        m_sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
-        m_sensorCollector = new SensorCollector(m_sensorManager, m_stepCounter);
 
         // To start or stop the data sensing process.
         m_btnControl.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                if (m_service == null) {
+                    return;
+                }
                 if (m_controlFlag) {    // stop -> start, program will stop listening the sensors
-                    m_controlFlag = false;
-                    m_btnControl.setText(R.string.btn_titlestart);
-                    // Stop to scan WiFi signals
-                    m_wifiScanner.stopScan();
-                    // Stop to monitor sensor values
-                    m_sensorCollector.unregisterEventListener();
-                    m_stepCounter.stop();
-
-                    m_cbWiFi.setEnabled(true);
-                    m_cbAcce.setEnabled(true);
-                    m_cbGyro.setEnabled(true);
-                    m_cbMagn.setEnabled(true);
-
-
-                    // Save the collected values to external storage file.
-                    SaveFileThread sft = new SaveFileThread(saveFlags);
-                    sft.start();
-
-
+                    updateControls(false);
+                    // A known walked distance calibrates the step length of the user once the session is saved.
+                    final String distanceTxt = m_edtDistance.getText().toString();
+                    m_service.stopRecording(new RecordingService.OnStoppedListener() {
+                        @Override
+                        public void onStopped(RecordingService service, boolean saveFlag) {
+                            if (saveFlag) {
+                                showToast(getString(R.string.file_ok));
+                            }
+                            else {
+                                showToast(getString(R.string.file_error));
+                            }
+                            if (distanceTxt.length() > 0 && service.calibrateLastSession(Double.valueOf(distanceTxt))) {
+                                showToast(getString(R.string.calibration_ok));
+                            }
+                        }
+                    });
                 }
                 else {      // start -> stop, program will start listening the sensors
-                    m_controlFlag = true;
-                    m_btnControl.setText(R.string.btn_titlestop);
-                    m_cbWiFi.setEnabled(false);
-                    m_cbAcce.setEnabled(false);
-                    m_cbGyro.setEnabled(false);
-                    m_cbMagn.setEnabled(false);
-
+                    if (m_service.isStopping()) {
+                        showToast(getString(R.string.stop_pending));
+                        return;
+                    }
+                    updateControls(true);
                     saveFlags[0] = m_cbWiFi.isChecked();
                     saveFlags[1] = m_cbAcce.isChecked();
                     saveFlags[2] = m_cbGyro.isChecked();
                     saveFlags[3] = m_cbMagn.isChecked();
 
-                    // Start to scan WiFi signals
-                    WifiScanThread wst = new WifiScanThread();
-                    wst.start();
-                    // Start to monitor sensor values
+                    String stepLengthTxt = m_edtStepLength.getText().toString();
                     m_walkingTV.initWalkingPath();
-                    m_sensorCollector.registerEventListener();
-                    m_stepCounter.start();
+                    m_service.startRecording(Float.valueOf(stepLengthTxt), saveFlags, m_cbDebug.isChecked(),
+                            EXTERNAL_DIRECTORYPATH);
                 }
             }
         });
@@ -121,15 +122,37 @@ public class PedometerActivity extends Activity {
     @Override
     protected void onStart() {
         super.onStart();
+        bindService(new Intent(this, RecordingService.class), m_serviceConnection, Context.BIND_AUTO_CREATE);
         Log.d(PDTAG, "onStart");
     }
 
     @Override
     protected void onStop() {
+        // A running session goes on in the service, without the view.
+        if (m_service != null) {
+            m_service.setTrackView(null);
+            m_service = null;
+        }
+        unbindService(m_serviceConnection);
         super.onStop();
         Log.d(PDTAG, "onStop");
     }
 
+    /**
+     * Show the controls of a recording or of an idle session.
+     * */
+    private void updateControls(boolean recording) {
+        m_controlFlag = recording;
+        m_btnControl.setText(recording ? R.string.btn_titlestop : R.string.btn_titlestart);
+        m_edtStepLength.setEnabled(!recording);
+        m_edtDistance.setEnabled(!recording);
+        m_cbWiFi.setEnabled(!recording);
+        m_cbAcce.setEnabled(!recording);
+        m_cbGyro.setEnabled(!recording);
+        m_cbMagn.setEnabled(!recording);
+        m_cbDebug.setEnabled(!recording);
+    }
+
     /**
      * Show toast message despite of non-UI threads.
      * */
@@ -143,93 +166,4 @@ public class PedometerActivity extends Activity {
         });
     }
 
-    class WifiScanThread extends Thread {
-        @Override
-        public void run() {
-            super.run();
-            m_wifiScanner.startScan();
-        }
-    }
-
-    class SaveFileThread extends Thread {
-        private boolean m_wifiSaveFlag = true;
-        private boolean [] m_sensorSaveFlags = {true, true, true};
-
-        public SaveFileThread(boolean [] saveFlags) {
-            super();
-            if (saveFlags.length >= 4) {
-                m_wifiSaveFlag = saveFlags[0];
-                m_sensorSaveFlags[0] = saveFlags[1];
-                m_sensorSaveFlags[1] = saveFlags[2];
-                m_sensorSaveFlags[2] = saveFlags[3];
-            }
-
-        }
-
-        @Override
-        public void run() {
-            super.run();
-            boolean saveFlag = saveValueToExternalStorage();
-            if (saveFlag) {
-                showToast(getString(R.string.file_ok));
-            }
-            else {
-                showToast(getString(R.string.file_error));
-            }
-        }
-
-        /**
-         * Save the collected data to external storage.
-         * */
-        private boolean saveValueToExternalStorage() {
-            boolean saveFlag = false;
-            SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
-            String currentDateStr = format.format(new Date());
-            try {
-                File appExternalDirectory = new File(PedometerActivity.EXTERNAL_DIRECTORYPATH);
-                boolean hasParentDirectory = appExternalDirectory.exists();
-                if (!hasParentDirectory) {
-                    hasParentDirectory = appExternalDirectory.mkdirs();
-                }
-                if (hasParentDirectory)
-                    Log.d(PDTAG, "Now we have the application directory in external storage");
-                else {
-                    Log.d(PDTAG, "Failed to create the application directory in external storage");
-                    return saveFlag;
-                }
-
-                if (m_wifiSaveFlag) {
-                    String wifiFilePath = PedometerActivity.EXTERNAL_DIRECTORYPATH
-                            + currentDateStr + "_" + WifiScanner.SENSOR_ID + ".txt";
-                    saveFlag = m_wifiScanner.toExternalStorage(wifiFilePath);
-                    if (!saveFlag) {
-                        Log.d(PDTAG, "Failed to save WiFi RSS values to external storage");
-                        return saveFlag;
-                    }
-                }
-
-                String sensorFilePath = null;
-                SensorCollector.Sensor_Type [] sensors = {SensorCollector.Sensor_Type.ACCE,
-                        SensorCollector.Sensor_Type.GYRO, SensorCollector.Sensor_Type.MAGN};
-                for (int i = 0; i < SensorCollector.SENSOR_IDS.length; i++) {
-                    if (m_sensorSaveFlags[i]) {
-                        sensorFilePath = PedometerActivity.EXTERNAL_DIRECTORYPATH
-                                + currentDateStr + "_" + SensorCollector.SENSOR_IDS[i] + ".txt";
-                        saveFlag = m_sensorCollector.toExternalStorage(sensorFilePath, sensors[i]);
-                        if (!saveFlag) {
-                            Log.d(PDTAG, "Failed to save sensor values to external storage");
-                            return saveFlag;
-                        }
-                    }
-                }
-
-            }
-            catch (Exception ex) {
-                saveFlag = false;
-                ex.printStackTrace();
-            }
-            return saveFlag;
-        }
-    }
-
 }
@@ -0,0 +1,283 @@
+package netlab.pete.indoor.russianblue;
+
+import android.app.Notification;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.hardware.SensorManager;
+import android.net.wifi.WifiManager;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Foreground service owning the recording session, so a walk goes on being recorded with the
+ * screen off or once the activity is gone. The wake-up sensors batch their events in the hardware
+ * FIFO and wake the CPU once per batch, a short partial wake lock after each batch lets the step
+ * engine, the scan thread and the log flusher catch up before it sleeps again. Devices without
+ * wake-up sensor batching keep the wake lock for the whole session, or the sensors would stop.
+ * A fingerprint map "map.rbf" in the log directory turns on the WiFi fusion of the sessions.
+ * The activity binds to the service to start and stop the sessions and to attach its track view.
+ * All the methods are called on the main thread, the blocking end of a session runs on a teardown thread.
+ */
+
+public class RecordingService extends Service {
+    public final static String SERVICETAG = "recording";
+    private final static int NOTIFICATION_ID = 1;
+    private final static String FINGERPRINTMAP_NAME = "map";
+
+    public final class RecordingBinder extends Binder {
+        public RecordingService getService() {
+            return RecordingService.this;
+        }
+    }
+
+    /**
+     * Called on the main thread once a stopped session has been saved, before the service is let go.
+     * */
+    public interface OnStoppedListener {
+        void onStopped(RecordingService service, boolean saveFlag);
+    }
+
+    private final IBinder m_binder = new RecordingBinder();
+    private SensorManager m_sensorManager;
+    private WifiScanner m_wifiScanner;
+    private PowerManager.WakeLock m_wakeLock;
+    private StepLengthStore m_stepLengthStore;
+    // Step length model of the current or last session
+    private StepLengthModel m_stepLengthModel;
+    // Session components, null while not recording
+    private StepCounter m_stepCounter;
+    private SensorCollector m_sensorCollector;
+    private LogFlusher m_logFlusher;
+    private WalkingTrackView m_trackView;
+    // Acceleration filter of the next sessions, tuned per device
+    private long m_filterWindowDuration = SlidingWindowFilter.DEFAULT_WINDOWDURATION;
+    private float m_filterGravity = SlidingWindowFilter.DEFAULT_GRAVITY;
+    private float m_filterGain = SlidingWindowFilter.DEFAULT_GAIN;
+    // Ends the last session, null once it is saved
+    private Thread m_teardownThread;
+    private Handler m_mainHandler;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        m_sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+        WifiManager wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        m_wifiScanner = new WifiScanner(getApplicationContext(), wifiManager);
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        m_wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "russianblue:recording");
+        m_wakeLock.setReferenceCounted(false);
+        m_stepLengthStore = new StepLengthStore(this);
+        m_mainHandler = new Handler(Looper.getMainLooper());
+        Log.d(SERVICETAG, "onCreate");
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // A killed session is not restarted, a new one would silently start in another file.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return m_binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        // The teardown thread goes on saving the session, the main thread is not blocked.
+        if (isRecording()) {
+            stopRecording(null);
+        }
+        Log.d(SERVICETAG, "onDestroy");
+        super.onDestroy();
+    }
+
+    public boolean isRecording() {
+        return m_stepCounter != null;
+    }
+
+    /**
+     * @return Whether the last session is still being saved, a new one cannot start before.
+     * */
+    public boolean isStopping() {
+        return m_teardownThread != null;
+    }
+
+    /**
+     * @return The number of sensor samples waiting for the step engine, 0 while not recording.
+     * */
+    public int getPendingSampleCount() {
+        return m_stepCounter != null ? m_stepCounter.getPendingSampleCount() : 0;
+    }
+
+    /**
+     * @return The number of sensor samples the step engine dropped in the session, 0 while not recording.
+     * */
+    public long getDroppedSampleCount() {
+        return m_stepCounter != null ? m_stepCounter.getDroppedSampleCount() : 0;
+    }
+
+    /**
+     * Attach the view showing the track, or detach it with null.
+     * */
+    public void setTrackView(WalkingTrackView view) {
+        m_trackView = view;
+        if (m_stepCounter != null) {
+            m_stepCounter.setTrackView(view);
+        }
+    }
+
+    /**
+     * Tune the acceleration filter of the device, applies from the next session on.
+     * @param windowDuration Duration averaged by the sliding window, in ms
+     * @param gravity The value around which the averaged magnitude is amplified
+     * @param gain The amplification factor
+     * */
+    public void setAcceFilter(long windowDuration, float gravity, float gain) {
+        m_filterWindowDuration = windowDuration;
+        m_filterGravity = gravity;
+        m_filterGain = gain;
+    }
+
+    /**
+     * Start a session, the service keeps running until stopRecording(...) even when unbound.
+     * @param stepLength Initial step length of a user without a calibrated step length model
+     * @param saveFlags Which streams to save: wifi, acce, gyro, magn
+     * @param debugExport Whether the text logs and the StepCounter debug files are written along with the trace
+     * @param directory Directory of the log files and of the fingerprint map, with a trailing separator
+     * @return The session prefix of the log files
+     * */
+    public String startRecording(float stepLength, boolean [] saveFlags, boolean debugExport, String directory) {
+        if (isRecording() || isStopping()) {
+            throw new IllegalStateException("already recording");
+        }
+        startService(new Intent(this, RecordingService.class));
+        startForeground(NOTIFICATION_ID, new Notification.Builder(this)
+                .setContentTitle(getString(R.string.recording_title))
+                .setContentText(getString(R.string.recording_text))
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setOngoing(true)
+                .build());
+
+        m_stepCounter = new StepCounter(m_trackView, stepLength);
+        m_stepLengthModel = m_stepLengthStore.load(StepLengthStore.DEFAULT_USER, stepLength);
+        m_stepCounter.setStepLengthModel(m_stepLengthModel);
+        m_stepCounter.configureFilter(m_filterWindowDuration, m_filterGravity, m_filterGain);
+        m_stepCounter.setFingerprintMap(loadFingerprintMap(directory));
+        m_wifiScanner.setStepCounter(m_stepCounter);
+        // The scan interval follows the walking activity.
+        m_stepCounter.addStepListener(m_wifiScanner);
+        m_sensorCollector = new SensorCollector(m_sensorManager, m_stepCounter);
+        m_sensorCollector.setBatchWakeLock(m_wakeLock);
+        // One time base for all the recorded streams of the session.
+        SessionClock clock = new SessionClock(System.currentTimeMillis(), SystemClock.elapsedRealtimeNanos());
+        // Start to scan WiFi signals
+        m_wifiScanner.startScan(clock);
+        // Start to monitor sensor values
+        m_sensorCollector.registerEventListener(clock, SensorCollector.DEFAULT_MAXREPORTLATENCY);
+        if (!m_sensorCollector.isWakeUpBatching()) {
+            m_wakeLock.acquire();
+        }
+        // Write the collected values to external storage file while recording.
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+        String prefix = directory + format.format(new Date(clock.getStartMillis()));
+        m_stepCounter.setFilePrefix(prefix);
+        m_stepCounter.setDebugExport(debugExport);
+        m_stepCounter.start();
+        m_logFlusher = new LogFlusher(m_sensorCollector, m_wifiScanner, prefix, saveFlags, debugExport);
+        m_logFlusher.start();
+        return prefix;
+    }
+
+    /**
+     * Stop the session and let the service go once unbound. The sensors, the step engine and the log
+     * flusher are waited for on a teardown thread, so this returns at once.
+     * @param listener Called when the session is saved, may be null
+     * */
+    public void stopRecording(final OnStoppedListener listener) {
+        if (!isRecording()) {
+            throw new IllegalStateException("not recording");
+        }
+        // Stop to scan WiFi signals
+        m_wifiScanner.stopScan();
+        m_wifiScanner.setStepCounter(null);
+        final SensorCollector sensorCollector = m_sensorCollector;
+        final StepCounter stepCounter = m_stepCounter;
+        final LogFlusher flusher = m_logFlusher;
+        m_stepCounter = null;
+        m_sensorCollector = null;
+        m_logFlusher = null;
+
+        m_teardownThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Stop to monitor sensor values, the last sensor batch is delivered first.
+                sensorCollector.unregisterEventListener();
+                // Held until the session is saved, no batch times it out any more.
+                m_wakeLock.acquire();
+                stepCounter.stop();
+                stepCounter.removeStepListener(m_wifiScanner);
+                // The flusher has been writing while recording, only the last batch and the trace directory are left.
+                final boolean saveFlag = flusher.finish();
+                m_mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        m_teardownThread = null;
+                        if (listener != null) {
+                            listener.onStopped(RecordingService.this, saveFlag);
+                        }
+                        m_wakeLock.release();
+                        stopForeground(true);
+                        stopSelf();
+                    }
+                });
+            }
+        }, "teardown");
+        m_teardownThread.start();
+    }
+
+    /**
+     * @return The fingerprint map of the directory, null if there is none or it cannot be read.
+     * */
+    private static FingerprintMap loadFingerprintMap(String directory) {
+        File file = new File(directory + FINGERPRINTMAP_NAME + FingerprintMap.FILE_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return FingerprintMap.load(file);
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            Log.d(SERVICETAG, "Failed to load the fingerprint map, the WiFi fusion is off");
+            return null;
+        }
+    }
+
+    /**
+     * Calibrate the step length model of the user with the last session and save it.
+     * @param distance Distance walked in the last session, in meters
+     * @return False if there is no saved session with steps
+     * */
+    public boolean calibrateLastSession(double distance) {
+        if (isRecording() || isStopping() || m_stepLengthModel == null || !m_stepLengthModel.calibrate(distance)) {
+            return false;
+        }
+        m_stepLengthStore.save(StepLengthStore.DEFAULT_USER, m_stepLengthModel);
+        Log.d(SERVICETAG, "step length model: " + m_stepLengthModel);
+        // A session is calibrated once.
+        m_stepLengthModel = null;
+        return true;
+    }
+}
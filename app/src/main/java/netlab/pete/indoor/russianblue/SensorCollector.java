@@ -3,41 +3,71 @@ package netlab.pete.indoor.russianblue;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
-import android.util.Log;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.util.ArrayList;
-import java.util.Calendar;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by wenping on 2016/10/27.
+ * <p>
+ * Events are delivered on a "sensors" handler thread, never on the UI thread. From KitKat on, a
+ * max report latency lets the sensor hub batch the events in its FIFO, the whole batch is then
+ * delivered at once and goes to the step engine ring and the sample stores in one go. The last
+ * batch is flushed before the listeners are unregistered.
+ * <p>
+ * A batch holds the events of the three sensors in no particular order across them, they are
+ * merged by timestamp before the step engine ring. From Lollipop on the wake-up variants of the
+ * sensors are batched, so the sensor hub wakes the CPU when a batch is due instead of losing the
+ * events of a full FIFO, and a short wake lock lets the batch be handled before it sleeps again.
  */
 
 public class SensorCollector implements SensorEventListener {
     public static final String [] SENSOR_IDS = {"acce", "gyro", "magn"};
+    // The ordinals are the TraceFormat.STREAM_* types of the sensors.
     public enum Sensor_Type {
         ACCE, GYRO, MAGN
     }
     public static final Sensor_Type [] SENSORTYPE_SEQUENCE = {Sensor_Type.ACCE, Sensor_Type.GYRO, Sensor_Type.MAGN};
-    public static final float ORIENTATION_DISABLE = -100f;
+    // Batching latency asked from the sensor hub, the FIFO may be smaller and report sooner.
+    public static final int DEFAULT_MAXREPORTLATENCY = 1000000;    // us
+    // Time allowed to the sensor hub to deliver the last batch on unregister.
+    private static final long FLUSH_TIMEOUT = 2000;     // ms
+    // Pending samples per sensor while merging, a few seconds of samples at the game rate.
+    private static final int MERGE_CAPACITY = 1024;
+    // Longest a sample waits for the other sensors, unbatched events come a few ms apart.
+    private static final long MERGE_MINLAG = 200;   // ms
+    // CPU time left to the step engine and the log flusher after each batch.
+    private static final long BATCH_WAKETIME = 500;     // ms
 
     private final SensorManager m_sensorManager;
     private Sensor [] m_sensors;    // 0 Accelerometer, 1 Gyroscope, 2 Magnetometer
 
-    private ArrayList<String> [] m_sensorValueLists;
+    private SensorSampleStore [] m_sampleStores;
 
-    // For orientation calculation, we keep the last sensor values.
-    private float [] m_lastAcceValue;
-    private float [] m_lastMagnValue;
-    private float [][] m_lastSensorValues;
+    // Maps SensorEvent.timestamp, elapsed realtime in ns, to the session wall time.
+    private SessionClock m_clock;
 
     private StepCounter m_stepCounter;
-
-
-
-
+    private HandlerThread m_sensorThread;
+    private Handler m_sensorHandler;
+    // The listener registered to the sensor manager, this or a FlushListener
+    private SensorEventListener m_listener;
+    private volatile CountDownLatch m_flushLatch;
+    // Orders the events of a batch by timestamp on their way to the step engine, sensor thread only.
+    private SampleMerger m_merger;
+    private final SpscSampleRing.Consumer m_engineFeed;
+    private PowerManager.WakeLock m_batchWakeLock;
+    private boolean m_wakeUpBatching;
+    private boolean m_batchPending;
+    private final Runnable m_batchEnd;
 
     public SensorCollector(SensorManager sensorManager, StepCounter stepCounter) {
         m_sensorManager = sensorManager;
@@ -45,15 +75,44 @@ public class SensorCollector implements SensorEventListener {
         m_sensors[Sensor_Type.ACCE.ordinal()] = m_sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
         m_sensors[Sensor_Type.GYRO.ordinal()] = m_sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
         m_sensors[Sensor_Type.MAGN.ordinal()] = m_sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
-        m_sensorValueLists = new ArrayList[SENSOR_IDS.length];
+        m_sampleStores = new SensorSampleStore[SENSOR_IDS.length];
         for (int i = 0; i < SENSOR_IDS.length; i++) {
-            m_sensorValueLists[i] = new ArrayList<String>();
+            m_sampleStores[i] = new SensorSampleStore();
         }
-        m_lastAcceValue = new float[3];
-        m_lastMagnValue = new float[3];
-        m_lastSensorValues = new float[SENSOR_IDS.length][3];
 
         m_stepCounter = stepCounter;
+        m_engineFeed = new SpscSampleRing.Consumer() {
+            @Override
+            public void onSample(int type, long timeStamp, float x, float y, float z) {
+                m_stepCounter.addSample(type, timeStamp, x, y, z);
+            }
+        };
+        // Posted on the first event of a batch, so it runs once the whole batch is delivered.
+        m_batchEnd = new Runnable() {
+            @Override
+            public void run() {
+                m_batchPending = false;
+                m_batchWakeLock.acquire(BATCH_WAKETIME);
+            }
+        };
+        m_wakeUpBatching = false;
+    }
+
+    /**
+     * Keep the CPU awake a moment after each batch of the wake-up sensors, should be called before
+     * registerEventListener(...).
+     * @param wakeLock A partial wake lock which is not reference counted, null for none
+     * */
+    public void setBatchWakeLock(PowerManager.WakeLock wakeLock) {
+        m_batchWakeLock = wakeLock;
+    }
+
+    /**
+     * @return Whether the registered sensors are batched and wake the CPU for each batch,
+     * otherwise they deliver nothing while the CPU sleeps.
+     * */
+    public boolean isWakeUpBatching() {
+        return m_wakeUpBatching;
     }
 
     /**
@@ -62,28 +121,133 @@ public class SensorCollector implements SensorEventListener {
     public void resetDataSpace() {
         synchronized (this) {
             for (int i = 0; i < SENSOR_IDS.length; i++) {
-                m_sensorValueLists[i].clear();
+                m_sampleStores[i].clear();
+            }
+        }
+    }
+
+    /**
+     * Listener receiving the flush completions, only created from KitKat on.
+     */
+    private final class FlushListener implements SensorEventListener2 {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            SensorCollector.this.onSensorChanged(event);
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            SensorCollector.this.onAccuracyChanged(sensor, accuracy);
+        }
+
+        @Override
+        public void onFlushCompleted(Sensor sensor) {
+            CountDownLatch latch = m_flushLatch;
+            if (latch != null) {
+                latch.countDown();
             }
         }
     }
 
-    public void registerEventListener() {
+    public void registerEventListener(SessionClock clock) {
+        registerEventListener(clock, 0);
+    }
+
+    /**
+     * @param clock Time base of the session, shared with the other recorded streams
+     * @param maxReportLatency Batching latency in us, 0 to deliver each event right away
+     * */
+    public void registerEventListener(SessionClock clock, int maxReportLatency) {
         resetDataSpace();
+        m_clock = clock;
+        m_merger = new SampleMerger(SENSOR_IDS.length, MERGE_CAPACITY,
+                Math.max(MERGE_MINLAG, 2 * maxReportLatency / 1000));
+        m_wakeUpBatching = false;
+        m_batchPending = false;
         if (m_sensorManager != null) {
+            m_sensorThread = new HandlerThread("sensors");
+            m_sensorThread.start();
+            m_sensorHandler = new Handler(m_sensorThread.getLooper());
+            Handler handler = m_sensorHandler;
+            boolean batched = maxReportLatency > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+            m_listener = batched ? new FlushListener() : this;
+            boolean wakeUp = batched && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+            for (int i = 0; i < SENSOR_IDS.length; i++) {
+                if (m_sensors[i] == null) {
+                    continue;
+                }
+                if (wakeUp) {
+                    Sensor wakeUpSensor = m_sensorManager.getDefaultSensor(m_sensors[i].getType(), true);
+                    if (wakeUpSensor != null) {
+                        m_sensors[i] = wakeUpSensor;
+                    }
+                    else {
+                        wakeUp = false;
+                    }
+                }
+            }
+            m_wakeUpBatching = wakeUp;
             for (int i = 0; i < SENSOR_IDS.length; i++) {
-                m_sensorManager.registerListener(this, m_sensors[i], SensorManager.SENSOR_DELAY_GAME);
+                if (m_sensors[i] == null) {
+                    continue;
+                }
+                m_merger.enableStream(SENSORTYPE_SEQUENCE[i].ordinal());
+                if (batched) {
+                    m_sensorManager.registerListener(m_listener, m_sensors[i], SensorManager.SENSOR_DELAY_GAME,
+                            maxReportLatency, handler);
+                }
+                else {
+                    m_sensorManager.registerListener(m_listener, m_sensors[i], SensorManager.SENSOR_DELAY_GAME, handler);
+                }
             }
         }
     }
 
+    /**
+     * Deliver the batched events and unregister, returns once the sensor thread has handled them.
+     * */
     public void unregisterEventListener() {
-        if (m_sensorManager != null) {
-            if (m_sensorManager != null) {
-                for (int i = 0; i < SENSOR_IDS.length; i++) {
-                    m_sensorManager.unregisterListener(this, m_sensors[i]);
+        if (m_sensorManager == null || m_listener == null) {
+            return;
+        }
+        if (m_listener != this) {
+            int sensorCount = 0;
+            for (int i = 0; i < SENSOR_IDS.length; i++) {
+                if (m_sensors[i] != null) {
+                    sensorCount = sensorCount + 1;
+                }
+            }
+            // One completion per registered sensor.
+            CountDownLatch latch = new CountDownLatch(sensorCount);
+            m_flushLatch = latch;
+            if (m_sensorManager.flush(m_listener)) {
+                try {
+                    latch.await(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
                 }
             }
+            m_flushLatch = null;
+        }
+        m_sensorManager.unregisterListener(m_listener);
+        m_listener = null;
+        // Events already queued on the sensor thread are handled before it quits.
+        final HandlerThread sensorThread = m_sensorThread;
+        m_sensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                sensorThread.quit();
+            }
+        });
+        m_sensorHandler = null;
+        try {
+            m_sensorThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
+        m_sensorThread = null;
+        // The sensor thread is gone, the samples still waiting for another sensor go out in order.
+        m_merger.flush(m_engineFeed);
     }
     /**
      * Called when there is a new sensor event.  Note that "on changed"
@@ -108,78 +272,35 @@ public class SensorCollector implements SensorEventListener {
         Sensor sensor = event.sensor;
         if (sensor == null)
             return;
-        Calendar calendar = Calendar.getInstance();
-        Long timeStamp = calendar.getTimeInMillis();
-        StringBuilder strBuf = new StringBuilder();
+        // Time of the measurement rather than of the delivery, in ms like the rest of the session.
+        long timeStamp = m_clock.toWallMillis(event.timestamp);
         int sensorType = sensor.getType();
 
         // Accelerometer - Oriention and Step Counter
+        int streamType;
         if (sensorType == sensor.TYPE_ACCELEROMETER) {
-            System.arraycopy(event.values, 0, m_lastAcceValue, 0, event.values.length);
-            strBuf.append(timeStamp);
-            strBuf.append(", ");
-            strBuf.append(event.values[0]);
-            strBuf.append(", ");
-            strBuf.append(event.values[1]);
-            strBuf.append(", ");
-            strBuf.append(event.values[2]);
-            strBuf.append('\n');
-            m_sensorValueLists[Sensor_Type.ACCE.ordinal()].add(strBuf.toString());
-            m_stepCounter.addAcceValue(timeStamp, event.values);
-
-            if (m_sensorValueLists[Sensor_Type.MAGN.ordinal()].size() > 0) {
-                float azimut = calculateOrientation();
-                if (azimut != ORIENTATION_DISABLE) {
-                    m_stepCounter.addDirectionValue(timeStamp, azimut);
-                }
-            }
-
+            streamType = TraceFormat.STREAM_ACCE;
         }
+        // Gyroscope and Magnetometer - Heading
         else if (sensorType == sensor.TYPE_GYROSCOPE) {
-            strBuf.append(timeStamp);
-            strBuf.append(", ");
-            strBuf.append(event.values[0]);
-            strBuf.append(", ");
-            strBuf.append(event.values[1]);
-            strBuf.append(", ");
-            strBuf.append(event.values[2]);
-            strBuf.append('\n');
-            m_sensorValueLists[Sensor_Type.GYRO.ordinal()].add(strBuf.toString());
+            streamType = TraceFormat.STREAM_GYRO;
         }
         else if (sensorType == sensor.TYPE_MAGNETIC_FIELD) {
-            System.arraycopy(event.values, 0, m_lastMagnValue, 0, event.values.length);
-            strBuf.append(timeStamp);
-            strBuf.append(", ");
-            strBuf.append(event.values[0]);
-            strBuf.append(", ");
-            strBuf.append(event.values[1]);
-            strBuf.append(", ");
-            strBuf.append(event.values[2]);
-            strBuf.append('\n');
-            m_sensorValueLists[Sensor_Type.MAGN.ordinal()].add(strBuf.toString());
-
-            if (m_sensorValueLists[Sensor_Type.ACCE.ordinal()].size() > 0) {
-                float azimut = calculateOrientation();
-                if (azimut != ORIENTATION_DISABLE) {
-                    m_stepCounter.addDirectionValue(timeStamp, azimut);
-                }
-            }
+            streamType = TraceFormat.STREAM_MAGN;
         }
-
-    }
-
-    private float calculateOrientation() {
-        float R[] = new float[9];
-        float I[] = new float[9];
-
-        float azimut = ORIENTATION_DISABLE;
-        boolean success = SensorManager.getRotationMatrix(R, I, m_lastAcceValue, m_lastMagnValue);
-        if (success) {
-            float orientation[] = new float[3];
-            SensorManager.getOrientation(R, orientation);
-            azimut = orientation[0];
+        else {
+            return;
+        }
+        // Each sensor log is in the order of its own events, the step engine needs all of them by time.
+        m_sampleStores[streamType].append(timeStamp, event.values);
+        m_merger.add(streamType, timeStamp, event.values[0], event.values[1], event.values[2], m_engineFeed);
+        if (m_wakeUpBatching && m_batchWakeLock != null && !m_batchPending) {
+            Handler handler = m_sensorHandler;
+            if (handler != null) {
+                m_batchPending = true;
+                handler.post(m_batchEnd);
+            }
         }
-        return azimut;
     }
 
     /**
@@ -199,13 +320,13 @@ public class SensorCollector implements SensorEventListener {
     }
 
     /**
-     * Save sensors' values to external storage file, before calling this method,
-     * we should promise the existence of parent directories.
-     * Notice: This should be called in non-UI thread.
-     * @param fileName The absolute file path of storage target
+     * Write the sensor values recorded since the last drain and release them.
+     * Notice: This should be called in non-UI thread, and by one thread only.
+     * @param writer The target of the text lines, null for none
+     * @param trace The session trace, null for none
+     * @return The number of drained values
      * */
-    public boolean toExternalStorage(String fileName, Sensor_Type type) {
-        boolean saveFlag = true;
+    public int drainTo(Writer writer, TraceWriter trace, Sensor_Type type) throws IOException {
         int sensorIndex = 0;
         for (int i = 0; i < SENSORTYPE_SEQUENCE.length; i++) {
             if (type == SENSORTYPE_SEQUENCE[i]) {
@@ -213,24 +334,6 @@ public class SensorCollector implements SensorEventListener {
                 break;
             }
         }
-        try {
-            File wifiFile = new File(fileName);
-            if (!wifiFile.exists()) {
-                wifiFile.createNewFile();
-            }
-
-            FileWriter fw = new FileWriter(wifiFile);
-            for (String sensorValue : m_sensorValueLists[sensorIndex]) {
-                fw.append(sensorValue);
-            }
-            fw.flush();
-            fw.close();
-        }
-        catch (Exception ex) {
-            saveFlag = false;
-            ex.printStackTrace();
-            Log.d(SENSOR_IDS[sensorIndex], "Exception throwed from saving sensor values method");
-        }
-        return saveFlag;
+        return m_sampleStores[sensorIndex].drainTo(writer, trace, type.ordinal());
     }
 }
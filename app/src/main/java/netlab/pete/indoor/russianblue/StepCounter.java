@@ -1,367 +1,452 @@
 package netlab.pete.indoor.russianblue;
 
-import android.graphics.PointF;
-import android.os.Bundle;
-import android.os.Message;
+import android.net.wifi.ScanResult;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by wenping on 2016/10/27.
  */
 
-public class StepCounter {
-    // Key values for bundle message data
-    public final static String FOOT_CURRENTX = "currentx";
-    public final static String FOOT_CURRENTY = "currenty";
-    public final static String STEP_COUNT = "stepcount";
-    // Parameters for step counting algorithm
-    private final static int SLIDINGWINDOW_SIZE = 7;
-    private final static float ACCE_MAXTHRESHOLD = 10.5f;
-    private final static long STEP_MINPERIOD = 300;
-    // Timer parameter for counting
+public class StepCounter implements StepDetector.OnStepListener, PdrPipeline.OnPositionListener,
+        PdrPipeline.OnDerivedSampleListener, SpscSampleRing.Consumer {
+    // Timer parameter for foot blinking
     private final static int FOOT_DURATION = 500;
-    private final static int STEP_DURATION = 150;
-    private final WalkingTrackView m_wtView;
+    // Null while no view is attached, the steps are still counted and logged.
+    private volatile WalkingTrackView m_wtView;
+
+    // Sensor thread to step engine handoff, about 10 seconds of samples from the three sensors.
+    private final static int SAMPLERING_CAPACITY = 4096;
+    private final static int ENGINE_DRAINBATCH = 256;
+    private final static long ENGINE_MAXWAIT = 100 * 1000 * 1000;   // ns
+
+    // Scan thread to step engine handoff, a scan takes one slot and one more per access point.
+    private final static int SCANRING_CAPACITY = 1024;
+
+    // The only channel from the sensor callback into the step engine thread.
+    private final SpscSampleRing m_sampleRing;
+    // The only channel from the scan thread, used while a fingerprint map is set.
+    private final SpscSampleRing m_scanRing;
+    private final SpscSampleRing.Consumer m_scanConsumer;
+    private Thread m_engineThread;
+    private volatile boolean m_engineRunning;
+    // Last position as two float bit patterns, so the foot timer reads a consistent pair.
+    private volatile long m_currentPosition;
+
+    private final PdrPipeline m_pipeline;
+    // Fuses the WiFi scans with the steps, null without a fingerprint map.
+    private ParticleLocalizer m_localizer;
+    // Step engine side, the scan read from the ring, -1 access points while waiting for one.
+    private long m_lastSampleTime;
+    private long m_scanTime;
+    private int m_scanApCount;
+    private int m_scanReadCount;
+    private int [] m_scanBssidIds;
+    private int [] m_scanLevels;
+    private boolean m_debugFlag;
+    // Session prefix of the debug files, they are named by the start time without it.
+    private String m_filePrefix;
+    // Debug export, the files are opened and closed on the step engine thread.
+    private SegmentedLogWriter m_filteredWriter;
+    private SegmentedLogWriter m_stepWriter;
+    private SegmentedLogWriter m_directionWriter;
+    // The last step may still be updated, it is written once the next one is detected.
+    private boolean m_hasPendingStep;
+    private long m_pendingStepTime;
+    private float m_pendingStepPeak;
 
-    public class AcceData {
-        private Long m_timeStamp;
-        private float m_acceValue;
-
-        public Long getTimeStamp() {
-            return m_timeStamp;
-        }
-        public void setTimeStamp(Long timeStamp) {
-            this.m_timeStamp = timeStamp;
-        }
+    private Timer m_footTimer;
 
-        public float getAcceValue() { return  m_acceValue; }
+    private TimerTask m_footTimerTask;
 
-        public AcceData(Long timeStamp, final float acceValue) {
-            this.m_timeStamp = timeStamp;
-            this.m_acceValue = acceValue;
-        }
-        public AcceData(Long timeStamp, final float [] acceValues) {
-            this.m_timeStamp = timeStamp;
-            float x = acceValues[0];
-            float y = acceValues[1];
-            float z = acceValues[2];
+    public StepCounter(WalkingTrackView view, float stepLength) {
+        m_wtView = view;
+        m_sampleRing = new SpscSampleRing(SAMPLERING_CAPACITY);
+        m_scanRing = new SpscSampleRing(SCANRING_CAPACITY);
+        m_scanConsumer = new SpscSampleRing.Consumer() {
+            @Override
+            public void onSample(int type, long timeStamp, float x, float y, float z) {
+                if (type == TraceFormat.STREAM_WIFI) {
+                    m_scanTime = timeStamp;
+                    m_scanApCount = (int) x;
+                    m_scanReadCount = 0;
+                    if (m_scanBssidIds.length < m_scanApCount) {
+                        m_scanBssidIds = new int[m_scanApCount];
+                        m_scanLevels = new int[m_scanApCount];
+                    }
+                    return;
+                }
+                m_scanBssidIds[m_scanReadCount] = (int) x;
+                m_scanLevels[m_scanReadCount] = (int) y;
+                m_scanReadCount = m_scanReadCount + 1;
+            }
+        };
+        m_scanBssidIds = new int[64];
+        m_scanLevels = new int[64];
+        m_localizer = null;
+        m_engineThread = null;
+        m_engineRunning = false;
+        m_pipeline = new PdrPipeline(stepLength);
+        m_pipeline.addStepListener(this);
+        m_pipeline.addPositionListener(this);
+        m_debugFlag = false;
+        m_filePrefix = null;
+        m_footTimer = new Timer();
+        m_footTimerTask = null;
 
-            this.m_acceValue = (float)Math.sqrt(x * x + y * y + z * z);
-        }
+        //m_stepLength = 0.65f;
 
-        public String toString() {
-            return Long.toString(m_timeStamp) + ", " + Float.toString(m_acceValue) + "\n";
-        }
     }
 
-    public class Direction {
-        private Long m_timeStamp;
-        private float m_azimut;
-
-        public Long getTimeStamp() {
-            return m_timeStamp;
-        }
-        public void setTimeStamp(Long timeStamp) {
-            this.m_timeStamp = timeStamp;
-        }
-        public float getDirection() { return  m_azimut; }
-
-        public  Direction(Long timeStamp, final float azimut) {
-            this.m_timeStamp = timeStamp;
-            this.m_azimut = azimut;
-        }
+    /**
+     * Attach the view showing the track, or detach it with null.
+     * */
+    public void setTrackView(WalkingTrackView view) {
+        m_wtView = view;
+    }
 
-        public String toString() {
-            return Long.toString(m_timeStamp) + ", " + Float.toString(m_azimut) + "\n";
-        }
+    /**
+     * Estimate the length of each step with a model instead of the fixed step length,
+     * should be called before start().
+     * @param model The model, null for the fixed step length
+     * */
+    public void setStepLengthModel(StepLengthModel model) {
+        m_pipeline.setStepLengthModel(model);
     }
 
-    public class StepData{
-        private Long m_timeStamp;
-        private float m_peakValue;
+    /**
+     * Tune the acceleration filter for a device, should be called before start().
+     * The samples are resampled first, so the window does not depend on the sensor rate.
+     * @param windowDuration Duration averaged by the sliding window, in ms
+     * @param gravity The value around which the averaged magnitude is amplified
+     * @param gain The amplification factor
+     * */
+    public void configureFilter(long windowDuration, float gravity, float gain) {
+        m_pipeline.setAcceFilter(SlidingWindowFilter.forDuration(windowDuration, AcceResampler.DEFAULT_PERIOD,
+                gravity, gain));
+    }
 
-        public Long getTimeStamp() {
-            return m_timeStamp;
-        }
-        public void setTimeStamp(Long timeStamp) {
-            this.m_timeStamp = timeStamp;
-        }
-        public float getPeakValue() {
-            return m_peakValue;
+    /**
+     * Fuse the WiFi scans with the steps in a particle filter, the track then shows the fused
+     * position. Should be called before start().
+     * @param map The fingerprint map of the place, null for the dead reckoning alone
+     * */
+    public void setFingerprintMap(FingerprintMap map) {
+        if (m_localizer != null) {
+            m_pipeline.removePositionListener(m_localizer);
+            m_pipeline.addPositionListener(this);
+            m_localizer = null;
         }
-        public void setPeakValue(float peakValue) {
-            this.m_peakValue = peakValue;
-        }
-
-        public StepData(Long timeStamp, float peakValue) {
-            this.m_timeStamp = timeStamp;
-            this.m_peakValue = peakValue;
+        if (map != null) {
+            m_localizer = new ParticleLocalizer(m_pipeline, map, ParticleLocalizer.DEFAULT_PARTICLECOUNT, null);
+            m_localizer.addPositionListener(this);
+            m_pipeline.removePositionListener(this);
+            m_pipeline.addPositionListener(m_localizer);
         }
     }
 
+    /**
+     * Whether the filtered acceleration, orientation and step values are written to external storage
+     * while recording, off by default. Should be called before start().
+     * */
+    public void setDebugExport(boolean debugFlag) {
+        m_debugFlag = debugFlag;
+    }
 
-    private ArrayList<AcceData> m_acceList;
-    private ArrayList<AcceData> m_filteredAcceList;
-    private int m_indexofFilterAcce;
-    private ArrayList<StepData> m_stepDataList;
-    private ArrayList<Direction> m_directionList;
-    private int m_indexofTime;
-
-    private Timer m_footTimer;
-    private Timer m_stepTimer;
-
-    private float m_stepLength;
-    private ArrayList<PointF> m_stepSequence;
-
-    private TimerTask m_footTimerTask;
-    private TimerTask m_stepTimerTask;
-
-    public StepCounter(WalkingTrackView view, float stepLength) {
-        m_wtView = view;
-        m_acceList = new ArrayList<>();
-        m_filteredAcceList = new ArrayList<>();
-        m_indexofFilterAcce = 0;
-        m_indexofTime = 0;
-        m_stepDataList = new ArrayList<>();
-        m_directionList = new ArrayList<>();
-        m_stepLength = stepLength;
-        m_stepSequence = new ArrayList<>();
-        m_footTimer = new Timer();
-        m_stepTimer = new Timer();
-        m_footTimerTask = null;
-        m_stepTimerTask = null;
+    /**
+     * Name the debug files after the session, so they are packed in its archive with the sensor logs.
+     * @param filePrefix Directory and date part of the session log files, such as "/sdcard/RussianBlue/20161027120000"
+     * */
+    public void setFilePrefix(String filePrefix) {
+        m_filePrefix = filePrefix;
+    }
 
-        //m_stepLength = 0.65f;
+    /**
+     * Listen to the detected steps, the listener is called on the step engine thread.
+     * */
+    public void addStepListener(StepDetector.OnStepListener listener) {
+        m_pipeline.addStepListener(listener);
+    }
 
+    public void removeStepListener(StepDetector.OnStepListener listener) {
+        m_pipeline.removeStepListener(listener);
     }
 
     public void start() {
-        m_acceList.clear();
-        m_filteredAcceList.clear();
-        m_indexofFilterAcce = 0;
-        m_stepDataList.clear();
-        m_directionList.clear();
-        m_indexofTime = 0;
-        m_stepSequence.clear();
+        m_pipeline.reset();
+        m_pipeline.setDerivedSampleListener(m_debugFlag ? this : null);
+        m_hasPendingStep = false;
+        m_sampleRing.clear();
+        m_scanRing.clear();
+        m_lastSampleTime = Long.MIN_VALUE;
+        m_scanApCount = -1;
 
         m_footTimerTask = new TimerTask() {
             @Override
             public void run() {
-                PointF currentPoint = m_stepSequence.get(m_stepSequence.size() - 1);
-                Message msg = new Message();
-                msg.what = WalkingTrackView.MSG_FOOT_UPDATE;
-                Bundle bundle = new Bundle();
-                bundle.putFloat(FOOT_CURRENTX, currentPoint.x);
-                bundle.putFloat(FOOT_CURRENTY, currentPoint.y);
-                msg.setData(bundle);
-                m_wtView.getWalkingViewHandler().sendMessage(msg);
+                long position = m_currentPosition;
+                WalkingTrackView view = m_wtView;
+                if (view == null) {
+                    return;
+                }
+                view.postFootLocation(Float.intBitsToFloat((int) (position >>> 32)),
+                        Float.intBitsToFloat((int) position));
             }
         };
-        m_stepTimerTask = new TimerTask() {
+        publishPosition(0.f, 0.f);
+        m_engineRunning = true;
+        m_engineThread = new Thread(new Runnable() {
             @Override
             public void run() {
-                if (exploreOneStep()) {
-                    PointF currentPoint = m_stepSequence.get(m_stepSequence.size() - 1);
-                    Message msg = new Message();
-                    msg.what = WalkingTrackView.MSG_STEP_UPDATE;
-                    Bundle bundle = new Bundle();
-                    bundle.putFloat(FOOT_CURRENTX, currentPoint.x);
-                    bundle.putFloat(FOOT_CURRENTY, currentPoint.y);
-                    bundle.putInt(STEP_COUNT, m_stepDataList.size());
-                    msg.setData(bundle);
-                    m_wtView.getWalkingViewHandler().sendMessage(msg);
+                if (m_debugFlag) {
+                    openDebugWriters();
+                }
+                while (m_engineRunning) {
+                    if (m_sampleRing.drain(StepCounter.this, ENGINE_DRAINBATCH) == 0) {
+                        m_sampleRing.await(ENGINE_MAXWAIT);
+                    }
+                    // The samples keep coming while recording, they wake the engine for the scans too.
+                    fuseScans();
                 }
+                // Samples published before the sensors were unregistered.
+                while (m_sampleRing.drain(StepCounter.this, ENGINE_DRAINBATCH) > 0) {
+                }
+                closeDebugWriters();
             }
-        };
-        // Add the starting location.
-        m_stepSequence.add(new PointF(0.f, 0.f));
+        }, "stepengine");
+        m_engineThread.start();
         m_footTimer = new Timer();
-        m_stepTimer = new Timer();
         m_footTimer.schedule(m_footTimerTask, 10, FOOT_DURATION);
-        m_stepTimer.schedule(m_stepTimerTask, 10, STEP_DURATION);
     }
 
+    /**
+     * Should be called after the sensor listeners have been unregistered.
+     * */
     public void stop() {
         m_footTimer.cancel();
-        m_stepTimer.cancel();
-
-        //Debug
-        boolean saveFlag = toExternalStorage();
-        if (saveFlag) {
-            Log.d("counterdebug", "save debug file success.");
+        m_engineRunning = false;
+        LockSupport.unpark(m_engineThread);
+        try {
+            m_engineThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
+        Log.d("counterdebug", "samples dropped by the step engine: " + m_sampleRing.getDropCount());
     }
 
-    public boolean toExternalStorage() {
-        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
-        String currentDateStr = format.format(new Date());
-        String fileName = "/sdcard/RussianBlue/" + currentDateStr + "debug_filtered.txt";
-        boolean saveFlag = true;
-        if (m_filteredAcceList.size() > 0) {
-            try {
-                File wifiFile = new File(fileName);
-                if (!wifiFile.exists()) {
-                    wifiFile.createNewFile();
-                }
-                FileWriter fw = new FileWriter(wifiFile);
-                for (AcceData acceValue : m_filteredAcceList) {
-                    fw.append(acceValue.toString());
-                }
-                fw.flush();
-                fw.close();
-            }
-            catch (Exception ex) {
-                saveFlag = false;
-                ex.printStackTrace();
-                Log.d("counterdebug", "Exception throwed from save filtered accelerometer values method");
+    /**
+     * Step engine thread, a failure only turns the debug export off.
+     * */
+    private void openDebugWriters() {
+        String prefix = m_filePrefix;
+        if (prefix == null) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+            prefix = "/sdcard/RussianBlue/" + format.format(new Date());
+        }
+        try {
+            File appExternalDirectory = new File(prefix).getParentFile();
+            if (!appExternalDirectory.exists()) {
+                appExternalDirectory.mkdirs();
             }
+            m_filteredWriter = new SegmentedLogWriter(TraceConverter.getTextFileName(prefix,
+                    TraceFormat.STREAM_FILTEREDACCE));
+            m_stepWriter = new SegmentedLogWriter(TraceConverter.getTextFileName(prefix, TraceFormat.STREAM_STEP));
+            m_directionWriter = new SegmentedLogWriter(TraceConverter.getTextFileName(prefix,
+                    TraceFormat.STREAM_DIRECTION));
         }
-        fileName = "/sdcard/RussianBlue/" + currentDateStr + "debug_orientation.txt";
-        if (m_directionList.size() > 0) {
-            try {
-                File wifiFile = new File(fileName);
-                if (!wifiFile.exists()) {
-                    wifiFile.createNewFile();
-                }
-                FileWriter fw = new FileWriter(wifiFile);
-                for (Direction orient : m_directionList) {
-                    fw.append(orient.toString());
+        catch (IOException ex) {
+            ex.printStackTrace();
+            Log.d("counterdebug", "Failed to open the debug files");
+            closeDebugWriters();
+        }
+    }
+
+    /**
+     * Step engine thread, writes the pending step before closing.
+     * */
+    private void closeDebugWriters() {
+        if (m_hasPendingStep) {
+            m_hasPendingStep = false;
+            writeDebugRecord(m_stepWriter, m_pendingStepTime, m_pendingStepPeak);
+        }
+        SegmentedLogWriter [] writers = {m_filteredWriter, m_stepWriter, m_directionWriter};
+        for (SegmentedLogWriter writer : writers) {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
                 }
-                fw.flush();
-                fw.close();
-            }
-            catch (Exception ex) {
-                saveFlag = false;
-                ex.printStackTrace();
-                Log.d("counterdebug", "Exception throwed from save orientation values method");
             }
         }
+        m_filteredWriter = null;
+        m_stepWriter = null;
+        m_directionWriter = null;
+    }
+
+    private void writeDebugRecord(SegmentedLogWriter writer, long timeStamp, float value) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.append(Long.toString(timeStamp));
+            writer.append(", ");
+            writer.append(Float.toString(value));
+            writer.append('\n');
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            Log.d("counterdebug", "Exception throwed from writing the debug files, the rest will be discarded");
+            closeDebugWriters();
+        }
+    }
 
-        return saveFlag;
+    /**
+     * @return The number of samples waiting for the step engine.
+     * */
+    public int getPendingSampleCount() {
+        return m_sampleRing.size();
     }
-    public void addDirectionValue(Long timeStamp, final float azimut) {
-        Direction direction = new Direction(timeStamp, azimut);
-        m_directionList.add(direction);
+
+    /**
+     * @return The number of samples dropped because the step engine fell behind.
+     * */
+    public long getDroppedSampleCount() {
+        return m_sampleRing.getDropCount();
     }
 
-    public void addAcceValue(Long timeStamp, final float [] acceValues) {
-        m_acceList.add(new AcceData(timeStamp, acceValues));
-        // Sliding window algorithm to filter the raw accelerometer data.
-        int num = m_acceList.size();
-        if (num < SLIDINGWINDOW_SIZE)
+    /**
+     * Called on the scan thread, hands a scan to the step engine when a fingerprint map is set.
+     * Never blocks, a scan which does not fit in the ring is dropped whole.
+     * */
+    public void addWifiScan(long timeStamp, List<ScanResult> result) {
+        ParticleLocalizer localizer = m_localizer;
+        int apCount = result.size();
+        if (localizer == null || m_scanRing.getCapacity() - m_scanRing.size() < apCount + 1) {
             return;
-        int end = m_acceList.size()-1;
-        float avgValue = 0.0f;
-        Long avgTime = 0L ;
-        for (int i = 0; i < SLIDINGWINDOW_SIZE; i ++) {
-            avgValue += m_acceList.get(end - i).getAcceValue();
         }
-        avgValue /= SLIDINGWINDOW_SIZE;
-        // Multiply a factor so the range will be larger between the bottom and the up
-        float  gravity = 9.45f;
-        avgValue = (avgValue - gravity) * (2.5f) + gravity;
-        avgTime = m_acceList.get(end - (SLIDINGWINDOW_SIZE / 2)).getTimeStamp();
-        AcceData filteredData = new AcceData(avgTime, avgValue);
-        m_filteredAcceList.add(filteredData);
-    }
-    public boolean exploreOneStep() {
-        int endIndex = m_filteredAcceList.size() - 1;
-        int currentIndex = m_indexofFilterAcce;
-        // The last 2 samples do not affect the step counting result
-        if (endIndex - currentIndex < 2) {
-            return false;
+        // The map is not modified any more, its dictionary may be read from this thread.
+        BssidDictionary dictionary = localizer.getMap().getBssidDictionary();
+        m_scanRing.offer(TraceFormat.STREAM_WIFI, timeStamp, apCount, 0.f, 0.f);
+        for (int i = 0; i < apCount; i++) {
+            ScanResult record = result.get(i);
+            m_scanRing.offer(TraceFormat.STREAM_BSSID, timeStamp, dictionary.find(record.BSSID), record.level, 0.f);
         }
-        // Get peak value
-        float value = m_filteredAcceList.get(currentIndex).getAcceValue();
-        float nextValue = m_filteredAcceList.get(currentIndex + 1).getAcceValue();
-        while (nextValue <= value) {
-            value = nextValue;
-            currentIndex = currentIndex + 1;
-            if (currentIndex >= endIndex) {
-                // Update the start position for next exploring
-                m_indexofFilterAcce = currentIndex;
-                return false;
+    }
+
+    /**
+     * Step engine thread, fuses the scans once the samples have reached their time. The sensor
+     * batches may come after the scans, and a fix must not move an older position.
+     * */
+    private void fuseScans() {
+        while (m_localizer != null) {
+            if (m_scanApCount < 0 || m_scanReadCount < m_scanApCount) {
+                // The header of the next scan, then its access points, as far as they are published.
+                int count = m_scanApCount < 0 ? 1 : m_scanApCount - m_scanReadCount;
+                if (m_scanRing.drain(m_scanConsumer, count) == 0) {
+                    return;
+                }
+                continue;
             }
-            nextValue = m_filteredAcceList.get(currentIndex + 1).getAcceValue();
-        }
-        while (nextValue >= value) {
-            value = nextValue;
-            currentIndex = currentIndex + 1;
-            if (currentIndex >= endIndex) {
-                // Go back to the last position so that we will not pass the peak value right in the end.
-                m_indexofFilterAcce = currentIndex - 1;
-                return false;
+            if (m_lastSampleTime < m_scanTime) {
+                return;
             }
-            nextValue = m_filteredAcceList.get(currentIndex + 1).getAcceValue();
-        }
-        // Update the start position for next step exploring
-        m_indexofFilterAcce = currentIndex + 1;
-        // Just the lower peak in the through
-        if (value  <= ACCE_MAXTHRESHOLD) {
-            return false;
+            m_localizer.onWifiScan(m_scanTime, m_scanApCount, m_scanBssidIds, m_scanLevels);
+            m_scanApCount = -1;
         }
-        // Step counter algorithm: threshold value and time frequency
-        Long timeStamp = m_filteredAcceList.get(currentIndex).getTimeStamp();
-        if (m_stepDataList.size() == 0) {
-            m_stepDataList.add(new StepData(timeStamp, value));
-            // Get orientation for this step
-            float azimut = getOrientation(timeStamp);
-            float preX = m_stepSequence.get(m_stepSequence.size() - 1).x;
-            float preY = m_stepSequence.get(m_stepSequence.size() - 1).y;
-            PointF currentLocation = new PointF();
-            currentLocation.set(preX + m_stepLength * (float)Math.sin(azimut),
-                    preY + m_stepLength * (float)Math.cos(azimut));
-            m_stepSequence.add(currentLocation);
-            return true;
+    }
+
+    /**
+     * Called on the sensor thread in timestamp order across the sensors, never blocks.
+     * @param streamType TraceFormat.STREAM_ACCE, STREAM_GYRO or STREAM_MAGN
+     * */
+    public void addSample(int streamType, long timeStamp, float x, float y, float z) {
+        m_sampleRing.offer(streamType, timeStamp, x, y, z);
+    }
+
+    /**
+     * Step engine thread, hands the samples from the sensor thread to the pipeline.
+     * */
+    @Override
+    public void onSample(int type, long timeStamp, float x, float y, float z) {
+        m_lastSampleTime = timeStamp;
+        switch (type) {
+            case TraceFormat.STREAM_ACCE:
+                m_pipeline.onAcceValue(timeStamp, x, y, z);
+                break;
+            case TraceFormat.STREAM_GYRO:
+                m_pipeline.onGyroValue(timeStamp, x, y, z);
+                break;
+            case TraceFormat.STREAM_MAGN:
+                m_pipeline.onMagnValue(timeStamp, x, y, z);
+                break;
+            default:
+                break;
         }
-        Long lastTimeStamp = m_stepDataList.get(m_stepDataList.size() - 1).getTimeStamp();
-        if (timeStamp - lastTimeStamp >= STEP_MINPERIOD) {
-            m_stepDataList.add(new StepData(timeStamp, value));
-            // Get orientation for this step
-            float azimut = getOrientation(timeStamp);
-            float preX = m_stepSequence.get(m_stepSequence.size() - 1).x;
-            float preY = m_stepSequence.get(m_stepSequence.size() - 1).y;
-            PointF currentLocation = new PointF();
-            currentLocation.set(preX + m_stepLength * (float)Math.sin(azimut),
-                    preY + m_stepLength * (float)Math.cos(azimut));
-            m_stepSequence.add(currentLocation);
-            return true;
+    }
+
+    /**
+     * Step engine thread, only called when debug export is on.
+     * */
+    @Override
+    public void onFilteredValue(long timeStamp, float value) {
+        writeDebugRecord(m_filteredWriter, timeStamp, value);
+    }
+
+    /**
+     * Step engine thread, only called when debug export is on.
+     * */
+    @Override
+    public void onDirectionValue(long timeStamp, float azimut) {
+        writeDebugRecord(m_directionWriter, timeStamp, azimut);
+    }
+
+    @Override
+    public void onStep(int stepCount, long timeStamp, float peakValue) {
+        if (m_stepWriter == null) {
+            return;
         }
-        else {
-            float lastPeakValue = m_stepDataList.get(m_stepDataList.size() - 1).getPeakValue();
-            if (value >= lastPeakValue) {
-                m_stepDataList.get(m_stepDataList.size() - 1).setTimeStamp(timeStamp);
-                m_stepDataList.get(m_stepDataList.size() - 1).setPeakValue(value);
-                // TODO: update the last step sequence data.
-            }
+        if (m_hasPendingStep) {
+            writeDebugRecord(m_stepWriter, m_pendingStepTime, m_pendingStepPeak);
         }
-        return false;
+        m_hasPendingStep = true;
+        m_pendingStepTime = timeStamp;
+        m_pendingStepPeak = peakValue;
     }
 
-    private float getOrientation(Long timeStamp) {
-        int index = m_indexofTime;
-        float azimut = m_directionList.get(index).getDirection();
-        while (index < m_directionList.size()) {
-            if (m_directionList.get(index).getTimeStamp() > timeStamp) {
-                int preIndex = Math.max(0, index - 1);
-                azimut = (m_directionList.get(index).getDirection() + m_directionList.get(preIndex).getDirection()) / 2;
-                break;
-            }
-            index = index + 1;
+    @Override
+    public void onStepUpdated(int stepCount, long timeStamp, float peakValue) {
+        m_pendingStepTime = timeStamp;
+        m_pendingStepPeak = peakValue;
+    }
+
+    @Override
+    public void onPosition(int stepCount, long timeStamp, float x, float y, float heading) {
+        publishPosition(x, y);
+        WalkingTrackView view = m_wtView;
+        if (view != null) {
+            view.postStep(stepCount, x, y);
         }
-        if (index == m_directionList.size()) {
-            index = index - 1;
-            azimut = m_directionList.get(index).getDirection();
+    }
+
+    @Override
+    public void onPositionUpdated(int stepCount, long timeStamp, float x, float y, float heading) {
+        publishPosition(x, y);
+        WalkingTrackView view = m_wtView;
+        if (view != null) {
+            view.postStepUpdate(stepCount, x, y);
         }
-        m_indexofTime = index;
-        return  azimut;
+    }
+
+    private void publishPosition(float x, float y) {
+        m_currentPosition = ((long) Float.floatToIntBits(x) << 32) | (Float.floatToIntBits(y) & 0xFFFFFFFFL);
     }
 }
@@ -0,0 +1,46 @@
+package netlab.pete.indoor.russianblue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Keeps the calibrated {@link StepLengthModel} of each user in the shared preferences, the state
+ * doubles are stored as the long values of their bits.
+ */
+
+public class StepLengthStore {
+    public final static String DEFAULT_USER = "default";
+    private final static String PREFERENCES_NAME = "steplength";
+
+    private final SharedPreferences m_preferences;
+
+    public StepLengthStore(Context context) {
+        m_preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param stepLength Initial step length of a user without a saved model, in meters
+     * */
+    public StepLengthModel load(String user, float stepLength) {
+        StepLengthModel model = new StepLengthModel(stepLength);
+        int size = m_preferences.getInt(user + "_size", 0);
+        if (size == model.getState().length) {
+            double [] state = new double[size];
+            for (int i = 0; i < size; i++) {
+                state[i] = Double.longBitsToDouble(m_preferences.getLong(user + "_" + i, 0));
+            }
+            model.setState(state);
+        }
+        return model;
+    }
+
+    public void save(String user, StepLengthModel model) {
+        double [] state = model.getState();
+        SharedPreferences.Editor editor = m_preferences.edit();
+        for (int i = 0; i < state.length; i++) {
+            editor.putLong(user + "_" + i, Double.doubleToRawLongBits(state[i]));
+        }
+        editor.putInt(user + "_size", state.length);
+        editor.apply();
+    }
+}
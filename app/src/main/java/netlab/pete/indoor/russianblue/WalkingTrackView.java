@@ -1,21 +1,38 @@
 package netlab.pete.indoor.russianblue;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.PointF;
 import android.graphics.Rect;
 import android.os.Handler;
 import android.os.Message;
 import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.ImageView;
 
+import java.util.Arrays;
+
 /**
  * Created by wenping on 2016/10/26.
+ * <p>
+ * The track is kept as a point array and rendered into an offscreen layer for the current scale
+ * and translation. New steps are appended to the layer, and while dragging or zooming the layer is
+ * only transformed, so a frame costs the same whatever the length of the walk. The layer is
+ * rebuilt once the gesture ends, dropping the points closer than LOD_MINPIXELS on screen to the
+ * previous one, which bounds the segment count when zoomed out. The segment to the last step is
+ * drawn on each frame rather than in the layer: the step detector may still move that step, and
+ * postStepUpdate() then only changes the last point.
+ * <p>
+ * Other threads post the foot location and the steps through postFootLocation() and postStep():
+ * the foot location is a packed volatile snapshot and the steps go through a ring, each side only
+ * sends a pooled payload-less message when none is pending. The UI thread applies the updates and
+ * invalidates once per display frame, so nothing is allocated per update nor per frame.
  */
 
 public class WalkingTrackView extends ImageView {
@@ -28,6 +45,15 @@ public class WalkingTrackView extends ImageView {
     private final static float TRACK_MINSCALE = 0.3f;
     private final static float TRACK_MAXSCALE = 3.f;
     private final static float MAP_SCALE = 20 / 0.65f;  // (pt/m)
+    // Track points closer than this on screen to the previous drawn point are skipped.
+    private final static float LOD_MINPIXELS = 2.f;
+    private final static int TRACK_INITCAPACITY = 1024;
+    // Steps waiting for the UI thread, far more than are made between two frames.
+    private final static int STEPRING_CAPACITY = 256;
+    // Types of the step ring entries
+    private final static int TRACK_NEWSTEP = 0;
+    private final static int TRACK_STEPUPDATE = 1;
+    private final static String STEPNUM_PREFIX = "Step Number: ";
 
     private static float Real2Map(float value) { return  value * MAP_SCALE; }
 
@@ -39,13 +65,43 @@ public class WalkingTrackView extends ImageView {
     private float m_dX;
     private float m_dY;
 
-    private Path m_walkingPath;
+    // Track points in map coordinates, x and y interleaved.
+    private float [] m_trackPoints;
+    private int m_trackCount;
+    // Offscreen track layer, valid for the scale and translation it was rendered with.
+    private Bitmap m_trackLayer;
+    private Canvas m_layerCanvas;
+    private boolean m_layerValid;
+    private float m_layerScale;
+    private float m_layerDX;
+    private float m_layerDY;
+    // Track points already rendered into the layer, and the last one actually drawn.
+    private int m_layerCount;
+    private float m_layerLastX;
+    private float m_layerLastY;
+    // Line segments handed to drawLines(), four floats each.
+    private float [] m_segments;
+    private boolean m_gestureActive;
     private int m_footColorIndex;
     private PointF m_footLocation;
     private PointF m_lastLocation;
     private int m_stepNum;
     private WalkingViewHandler m_wvHandler;
 
+    // Last posted foot location as two float bit patterns, so the UI thread reads a consistent pair.
+    private volatile long m_postedFoot;
+    // Posted steps, the step count in the timestamp slot.
+    private final SpscSampleRing m_stepRing;
+    private final SpscSampleRing.Consumer m_stepConsumer;
+    private final Choreographer m_choreographer;
+    private final Choreographer.FrameCallback m_frameCallback;
+    private boolean m_framePending;
+    // Step number text, rebuilt in place when the number changes.
+    private final char [] m_stepText;
+    private int m_stepTextLength;
+    private int m_stepTextNum;
+    private final Rect m_textBound;
+
     private enum Action_Mode {
         INIT, DRAG, ZOOM
     }
@@ -102,7 +158,8 @@ public class WalkingTrackView extends ImageView {
                     break;
 
             }
-            WalkingTrackView.this.updateCanvasParameters(m_lastScale * m_scale, m_dLastX + m_dX, m_dLastY + m_dY);
+            WalkingTrackView.this.updateCanvasParameters(m_lastScale * m_scale, m_dLastX + m_dX, m_dLastY + m_dY,
+                    m_motionMode != Action_Mode.INIT);
             return true;
         }
         private float distance(MotionEvent event) {
@@ -112,13 +169,24 @@ public class WalkingTrackView extends ImageView {
         }
     }
 
-    private void updateCanvasParameters(float scale, float dX, float dY) {
+    private void updateCanvasParameters(float scale, float dX, float dY, boolean gestureActive) {
         scale = Math.max(TRACK_MINSCALE, scale);
         scale = Math.min(TRACK_MAXSCALE, scale);
         this.m_scale = scale;
         this.m_dX = dX;
         this.m_dY = dY;
-        invalidate();
+        this.m_gestureActive = gestureActive;
+        scheduleFrame();
+    }
+
+    /**
+     * Invalidate at the next display frame, however many updates come before it.
+     * */
+    private void scheduleFrame() {
+        if (!m_framePending) {
+            m_framePending = true;
+            m_choreographer.postFrameCallback(m_frameCallback);
+        }
     }
 
     public final class WalkingViewHandler extends Handler {
@@ -126,20 +194,15 @@ public class WalkingTrackView extends ImageView {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_FOOT_UPDATE: {
-                    float x = Real2Map(msg.getData().getFloat(StepCounter.FOOT_CURRENTX));
-                    float y = 0 - Real2Map(msg.getData().getFloat(StepCounter.FOOT_CURRENTY));
-//                    if (Math.abs(m_footLocation.x - x) > FLT_EPSILON
-//                            || Math.abs(m_footLocation.y - y) > FLT_EPSILON ) {
-//
-//                    }
+                    long position = m_postedFoot;
+                    float x = Real2Map(Float.intBitsToFloat((int) (position >>> 32)));
+                    float y = 0 - Real2Map(Float.intBitsToFloat((int) position));
                     updateWalkingFoot(x, y);
                     break;
                 }
                 case MSG_STEP_UPDATE: {
-                    float x = Real2Map(msg.getData().getFloat(StepCounter.FOOT_CURRENTX));
-                    float y = 0 - Real2Map(msg.getData().getFloat(StepCounter.FOOT_CURRENTY));
-                    int num = msg.getData().getInt(StepCounter.STEP_COUNT);
-                    updateWalkingTrack(x, y, num);
+                    while (m_stepRing.drain(m_stepConsumer, STEPRING_CAPACITY) > 0) {
+                    }
                     break;
                 }
                 default:
@@ -149,6 +212,40 @@ public class WalkingTrackView extends ImageView {
         }
     }
 
+    /**
+     * Move the foot, can be called from any thread. Updates posted before the UI thread
+     * handles the previous one are merged.
+     * */
+    public void postFootLocation(float x, float y) {
+        m_postedFoot = ((long) Float.floatToIntBits(x) << 32) | (Float.floatToIntBits(y) & 0xFFFFFFFFL);
+        if (!m_wvHandler.hasMessages(MSG_FOOT_UPDATE)) {
+            Message.obtain(m_wvHandler, MSG_FOOT_UPDATE).sendToTarget();
+        }
+    }
+
+    /**
+     * Add a step to the track, must always be called from the same thread.
+     * */
+    public void postStep(int stepCount, float x, float y) {
+        postTrackEntry(TRACK_NEWSTEP, stepCount, x, y);
+    }
+
+    /**
+     * Move the last step of the track, must be called from the thread calling postStep().
+     * */
+    public void postStepUpdate(int stepCount, float x, float y) {
+        postTrackEntry(TRACK_STEPUPDATE, stepCount, x, y);
+    }
+
+    private void postTrackEntry(int type, int stepCount, float x, float y) {
+        if (!m_stepRing.offer(type, stepCount, x, y, 0.f)) {
+            Log.d("trackview", "step dropped, the UI thread is behind.");
+        }
+        if (!m_wvHandler.hasMessages(MSG_STEP_UPDATE)) {
+            Message.obtain(m_wvHandler, MSG_STEP_UPDATE).sendToTarget();
+        }
+    }
+
     public WalkingViewHandler getWalkingViewHandler() {
         return m_wvHandler;
     }
@@ -176,9 +273,37 @@ public class WalkingTrackView extends ImageView {
     public WalkingTrackView(Context context, AttributeSet attrs) {
         super(context, attrs);
         initPaint();
-        m_walkingPath = new Path();
-        m_walkingPath.moveTo(0.f, 0.f);
+        m_trackPoints = new float[TRACK_INITCAPACITY * 2];
+        m_segments = new float[TRACK_INITCAPACITY * 4];
+        m_trackCount = 1;
+        m_layerValid = false;
+        m_gestureActive = false;
         m_wvHandler = new WalkingViewHandler();
+        m_stepRing = new SpscSampleRing(STEPRING_CAPACITY);
+        m_stepConsumer = new SpscSampleRing.Consumer() {
+            @Override
+            public void onSample(int type, long timeStamp, float x, float y, float z) {
+                if (type == TRACK_STEPUPDATE) {
+                    amendWalkingTrack(Real2Map(x), 0 - Real2Map(y), (int) timeStamp);
+                }
+                else {
+                    updateWalkingTrack(Real2Map(x), 0 - Real2Map(y), (int) timeStamp);
+                }
+            }
+        };
+        m_choreographer = Choreographer.getInstance();
+        m_frameCallback = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                m_framePending = false;
+                invalidate();
+            }
+        };
+        m_framePending = false;
+        m_stepText = new char[STEPNUM_PREFIX.length() + 11];
+        STEPNUM_PREFIX.getChars(0, STEPNUM_PREFIX.length(), m_stepText, 0);
+        m_stepTextNum = -1;
+        m_textBound = new Rect();
         m_footColorIndex = 0;
         m_footLocation = new PointF(0.f, 0.f);
         m_lastLocation = new PointF(0.f, 0.f);
@@ -188,8 +313,9 @@ public class WalkingTrackView extends ImageView {
     }
 
     public void initWalkingPath() {
-        m_walkingPath.rewind();
-        m_walkingPath.moveTo(0.f, 0.f);
+        // Keep the starting location.
+        m_trackCount = 1;
+        m_layerValid = false;
         m_footColorIndex = 0;
         m_footLocation = new PointF(0.f, 0.f);
         m_lastLocation = new PointF(0.f, 0.f);
@@ -199,7 +325,7 @@ public class WalkingTrackView extends ImageView {
         m_footLocation.set(x, y);
         m_footColorIndex += 1;
         m_footColorIndex %= FOOT_COLORS.length;
-        invalidate();
+        scheduleFrame();
     }
 
     public void updateWalkingTrack(float x, float y, int num) {
@@ -220,9 +346,14 @@ public class WalkingTrackView extends ImageView {
 //        }
         m_lastLocation.set(m_footLocation.x, m_footLocation.y);
         m_footLocation.set(x, y);
-        m_walkingPath.quadTo(m_lastLocation.x, m_lastLocation.y, x, y);
+        if (m_trackCount * 2 == m_trackPoints.length) {
+            m_trackPoints = Arrays.copyOf(m_trackPoints, m_trackPoints.length * 2);
+        }
+        m_trackPoints[m_trackCount * 2] = x;
+        m_trackPoints[m_trackCount * 2 + 1] = y;
+        m_trackCount = m_trackCount + 1;
         m_stepNum = num;
-        invalidate();
+        scheduleFrame();
     }
 
     protected void drawCoordinates(Canvas canvas) {
@@ -273,14 +404,39 @@ public class WalkingTrackView extends ImageView {
         m_viewPaint.setStrokeWidth(TRACK_STROKEWIDTH);
         m_viewPaint.setTextSize(INFORMATION_TEXTSIZE);
         m_viewPaint.setStyle(Paint.Style.STROKE);
-        Rect textBound = new Rect();
-        String informationStr = "Step Number: " + Integer.toString(m_stepNum);
-        m_viewPaint.getTextBounds(informationStr, 0, informationStr.length(), textBound);
+        if (m_stepTextNum != m_stepNum) {
+            updateStepText(m_stepNum);
+            m_viewPaint.getTextBounds(m_stepText, 0, m_stepTextLength, m_textBound);
+        }
         canvas.save();
-        canvas.drawText(informationStr, (width - textBound.width()) / 2, (textBound.height() + 10), m_viewPaint);
+        canvas.drawText(m_stepText, 0, m_stepTextLength, (width - m_textBound.width()) / 2,
+                (m_textBound.height() + 10), m_viewPaint);
         canvas.restore();
     }
 
+    /**
+     * Write the digits of num after the prefix of the step number text.
+     * */
+    private void updateStepText(int num) {
+        int length = STEPNUM_PREFIX.length();
+        long value = num;
+        if (value < 0) {
+            m_stepText[length] = '-';
+            length = length + 1;
+            value = -value;
+        }
+        int digitCount = 1;
+        for (long bound = 10; bound <= value; bound *= 10) {
+            digitCount = digitCount + 1;
+        }
+        for (int i = length + digitCount - 1; i >= length; i--) {
+            m_stepText[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        m_stepTextLength = length + digitCount;
+        m_stepTextNum = num;
+    }
+
     protected void drawWalkingFoot(Canvas canvas) {
         m_viewPaint.setColor(FOOT_COLORS[m_footColorIndex]);
         int width = getWidth();
@@ -295,36 +451,140 @@ public class WalkingTrackView extends ImageView {
     }
 
     @Override
-    protected void onDraw(Canvas canvas) {
-        drawCoordinates(canvas);
-        drawWalkingPath(canvas);
-        drawStepNum(canvas);
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (m_trackLayer != null) {
+            m_trackLayer.recycle();
+            m_trackLayer = null;
+        }
+        if (w > 0 && h > 0) {
+            m_trackLayer = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            m_layerCanvas = new Canvas(m_trackLayer);
+        }
+        m_layerValid = false;
+    }
+
+    /**
+     * Move the last point of the track, it is not in the layer yet.
+     * */
+    public void amendWalkingTrack(float x, float y, int num) {
+        if (m_trackCount < 2) {
+            return;
+        }
+        m_footLocation.set(x, y);
+        m_trackPoints[(m_trackCount - 1) * 2] = x;
+        m_trackPoints[(m_trackCount - 1) * 2 + 1] = y;
+        m_stepNum = num;
+        scheduleFrame();
+    }
+
+    /**
+     * Render the whole track into the layer with the current scale and translation.
+     * */
+    private void rebuildTrackLayer() {
+        m_trackLayer.eraseColor(Color.TRANSPARENT);
+        m_layerScale = m_scale;
+        m_layerDX = m_dX;
+        m_layerDY = m_dY;
+        m_layerCount = 1;
+        m_layerLastX = m_trackPoints[0];
+        m_layerLastY = m_trackPoints[1];
+        m_layerValid = true;
+        appendTrackLayer();
+    }
+
+    /**
+     * Render the track points added since the last call into the layer, all but the last one.
+     * */
+    private void appendTrackLayer() {
+        int count = m_trackCount - 1;
+        if (m_layerCount >= count) {
+            return;
+        }
+        float centerX = getWidth() / 2 + m_layerDX;
+        float centerY = getHeight() / 2 + m_layerDY;
+        float minDistance = LOD_MINPIXELS / m_layerScale;
+        if ((count - m_layerCount) * 4 > m_segments.length) {
+            m_segments = new float[(count - m_layerCount) * 8];
+        }
+        int segmentCount = 0;
+        for (int i = m_layerCount; i < count; i++) {
+            float x = m_trackPoints[i * 2];
+            float y = m_trackPoints[i * 2 + 1];
+            // The last point is always drawn, so the track joins the live segment.
+            if (i < count - 1 && Math.abs(x - m_layerLastX) < minDistance && Math.abs(y - m_layerLastY) < minDistance) {
+                continue;
+            }
+            m_segments[segmentCount * 4] = centerX + m_layerLastX * m_layerScale;
+            m_segments[segmentCount * 4 + 1] = centerY + m_layerLastY * m_layerScale;
+            m_segments[segmentCount * 4 + 2] = centerX + x * m_layerScale;
+            m_segments[segmentCount * 4 + 3] = centerY + y * m_layerScale;
+            segmentCount = segmentCount + 1;
+            m_layerLastX = x;
+            m_layerLastY = y;
+        }
+        m_layerCount = count;
+        m_viewPaint.setColor(Color.RED);
+        m_viewPaint.setStrokeWidth(TRACK_STROKEWIDTH * m_layerScale);
+        m_viewPaint.setStyle(Paint.Style.STROKE);
+        m_viewPaint.setAntiAlias(true);
+        m_layerCanvas.drawLines(m_segments, 0, segmentCount * 4, m_viewPaint);
+    }
 
+    /**
+     * Draw the track layer, transformed to the current scale and translation when a gesture is
+     * in progress.
+     * */
+    protected void drawTrackLayer(Canvas canvas) {
+        if (m_trackLayer == null) {
+            return;
+        }
+        if (!m_layerValid || (!m_gestureActive
+                && (m_layerScale != m_scale || m_layerDX != m_dX || m_layerDY != m_dY))) {
+            rebuildTrackLayer();
+        }
+        else {
+            appendTrackLayer();
+        }
         int width = getWidth();
         int height = getHeight();
+        if (m_layerScale == m_scale && m_layerDX == m_dX && m_layerDY == m_dY) {
+            canvas.drawBitmap(m_trackLayer, 0, 0, null);
+        }
+        else {
+            canvas.save();
+            canvas.translate(width / 2 + m_dX, height / 2 + m_dY);
+            canvas.scale(m_scale / m_layerScale, m_scale / m_layerScale);
+            canvas.translate(-(width / 2 + m_layerDX), -(height / 2 + m_layerDY));
+            canvas.drawBitmap(m_trackLayer, 0, 0, null);
+            canvas.restore();
+        }
+        // Live segments from the end of the layer to the last step.
         m_viewPaint.setColor(Color.RED);
         m_viewPaint.setStrokeWidth(TRACK_STROKEWIDTH);
         m_viewPaint.setStyle(Paint.Style.STROKE);
-        // Draw anti-aliased line
         m_viewPaint.setAntiAlias(true);
         canvas.save();
-        // Change the coordinate to our painting coordinate and do the translation
         canvas.translate(width / 2 + m_dX, height / 2 + m_dY);
         canvas.scale(m_scale, m_scale);
-        canvas.drawPath(m_walkingPath, m_viewPaint);
-        canvas.drawCircle(m_footLocation.x, m_footLocation.y, FOOT_SIZES[0] / m_scale, m_viewPaint);
+        float lastX = m_layerLastX;
+        float lastY = m_layerLastY;
+        for (int i = m_layerCount; i < m_trackCount; i++) {
+            float x = m_trackPoints[i * 2];
+            float y = m_trackPoints[i * 2 + 1];
+            canvas.drawLine(lastX, lastY, x, y, m_viewPaint);
+            lastX = x;
+            lastY = y;
+        }
         canvas.restore();
+    }
 
-
-        //drawStepNum(canvas);
-        //drawWalkingFoot(canvas);
-//        int width = getWidth();
-//        int height = getHeight();
-//        canvas.save();
-//        canvas.translate(m_dX, m_dY);
-//        canvas.scale(m_scale, m_scale);
-//        canvas.drawRect(5, 5, width - 5, height - 5, m_viewPaint);
-//        canvas.restore();
+    @Override
+    protected void onDraw(Canvas canvas) {
+        drawCoordinates(canvas);
+        drawTrackLayer(canvas);
+        drawWalkingPath(canvas);
+        drawStepNum(canvas);
         super.onDraw(canvas);
     }
 
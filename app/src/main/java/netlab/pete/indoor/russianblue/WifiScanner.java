@@ -6,117 +6,176 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.util.ArrayList;
-import java.util.Calendar;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.List;
 
 /**
  * Created by wenping on 2016/10/27.
+ * <p>
+ * Scans are triggered on a background handler thread at the interval of a {@link ScanSchedule},
+ * short while walking and backing off when standing still. Scan results are received on the same
+ * thread and stored in a {@link WifiScanStore}, and handed to the step engine of the session for the
+ * WiFi fusion. Register the scanner as step listener of the
+ * StepCounter so the schedule knows about the walking activity.
+ * <p>
+ * A scan is stamped with the latest ScanResult.timestamp of its access points, when the scan
+ * actually saw them, mapped by the {@link SessionClock} shared with the sensors. The schedule runs
+ * on the same clock as the step timestamps.
  */
 
-public class WifiScanner {
+public class WifiScanner implements StepDetector.OnStepListener {
     public static final String SENSOR_ID = "wifi";
+    // Time for the WiFi to come up when it had to be enabled.
+    private final static long WIFI_ENABLEDELAY = 100;
 
     private final Context m_appContext;
     private final WifiManager m_wifiManager;
     private boolean m_wifiState;
+    private final WifiScanStore m_scanStore;
+    private final ScanSchedule m_schedule;
+    private SessionClock m_clock;
+    // Step engine of the session receiving the scans, null for none
+    private volatile StepCounter m_stepCounter;
+    private HandlerThread m_scanThread;
+    private volatile Handler m_scanHandler;
     private BroadcastReceiver m_wifiScanReceiver;
-    private ArrayList<String> m_wifiRSSList;
+
+    // Runs on the scan thread: start a scan and plan the next one.
+    private final Runnable m_scanTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!m_wifiManager.startScan()) {
+                Log.d(SENSOR_ID, "WiFi scan request refused.");
+            }
+            long delay = m_schedule.onScan(now());
+            Handler handler = m_scanHandler;
+            if (handler != null) {
+                handler.postDelayed(this, delay);
+            }
+        }
+    };
+
+    // Runs on the scan thread when walking resumes, scans now if the schedule had backed off.
+    private final Runnable m_resumeTask = new Runnable() {
+        @Override
+        public void run() {
+            Handler handler = m_scanHandler;
+            if (handler != null && m_schedule.isScanOverdue(now())) {
+                handler.removeCallbacks(m_scanTask);
+                m_scanTask.run();
+            }
+        }
+    };
 
     public WifiScanner(Context context, WifiManager wifiManager) {
         m_appContext = context;
         m_wifiManager = wifiManager;
         m_wifiScanReceiver = null;
-        m_wifiRSSList = new ArrayList<String>();;
+        m_scanStore = new WifiScanStore();
+        m_schedule = new ScanSchedule();
     }
+
     /**
-     * Please notify multi-thread security.
+     * Hand the scans to the step engine of a session for the WiFi fusion, null to stop.
      * */
+    public void setStepCounter(StepCounter stepCounter) {
+        m_stepCounter = stepCounter;
+    }
+
     public void resetDataSpace() {
-        synchronized (this) {
-            m_wifiRSSList.clear();
-        }
+        m_scanStore.clear();
     }
+
+    private long now() {
+        return m_clock.toWallMillis(SystemClock.elapsedRealtimeNanos());
+    }
+
     /**
-     *  This should be called in non-UI thread and this method will block its owner thread.
+     * Start the scan thread, returns without waiting for the first scan.
+     * @param clock Time base of the session, shared with the other recorded streams
      * */
-    public void startScan() {
+    public void startScan(SessionClock clock) {
+        m_clock = clock;
         // Save the WiFi state
         m_wifiState = m_wifiManager.isWifiEnabled();
+        long firstDelay = 0;
         if (!m_wifiState) {
             m_wifiManager.setWifiEnabled(true);
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
-                ex.printStackTrace();
-                Log.d(SENSOR_ID, "WiFi scanner thread failed.");
-            }
+            firstDelay = WIFI_ENABLEDELAY;
         }
 
         resetDataSpace();
+        m_schedule.reset();
+        m_scanThread = new HandlerThread(SENSOR_ID);
+        m_scanThread.start();
+        m_scanHandler = new Handler(m_scanThread.getLooper());
 
-        // Define broadcast receiver and register this receiver according to intent filter
+        // Scan results are handled on the scan thread, not on the main thread.
         m_wifiScanReceiver =  new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
                 List<ScanResult> result = m_wifiManager.getScanResults();
-                Calendar calendar = Calendar.getInstance();
-                StringBuilder sb = new StringBuilder();
-                sb.append(calendar.getTimeInMillis());
-                for(ScanResult record : result) {
-                    sb.append(", ");
-                    sb.append(record.BSSID + ":" + record.level);
+                long lastSeen = 0;
+                for (int i = 0; i < result.size(); i++) {
+                    lastSeen = Math.max(lastSeen, result.get(i).timestamp);
+                }
+                // Drivers not filling the timestamp get the receipt time.
+                long timeStamp = lastSeen > 0 ? m_clock.microsToWallMillis(lastSeen) : now();
+                m_scanStore.beginScan(timeStamp);
+                for (int i = 0; i < result.size(); i++) {
+                    ScanResult record = result.get(i);
+                    m_scanStore.addAccessPoint(record.BSSID, record.level);
+                }
+                m_scanStore.endScan();
+                StepCounter stepCounter = m_stepCounter;
+                if (stepCounter != null) {
+                    stepCounter.addWifiScan(timeStamp, result);
                 }
-                sb.append('\n');
-                m_wifiRSSList.add(sb.toString());
-                // Restart scanning.
-                m_wifiManager.startScan();
             }
         };
         IntentFilter wifiFilter = new IntentFilter();
         wifiFilter.addAction(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
-        m_appContext.registerReceiver(m_wifiScanReceiver, wifiFilter);
-        // Don't forget to start the first scan trigger.
-        m_wifiManager.startScan();
+        m_appContext.registerReceiver(m_wifiScanReceiver, wifiFilter, null, m_scanHandler);
+        m_scanHandler.postDelayed(m_scanTask, firstDelay);
     }
+
     public void stopScan() {
         m_appContext.unregisterReceiver(m_wifiScanReceiver);
+        m_scanHandler.removeCallbacksAndMessages(null);
+        m_scanHandler = null;
+        m_scanThread.quit();
         // Restore the WiFi state
         m_wifiManager.setWifiEnabled(m_wifiState);
     }
 
+    @Override
+    public void onStep(int stepCount, long timeStamp, float peakValue) {
+        boolean wasMoving = m_schedule.isMoving(timeStamp);
+        m_schedule.onStep(stepCount, timeStamp, peakValue);
+        Handler handler = m_scanHandler;
+        if (!wasMoving && handler != null) {
+            handler.post(m_resumeTask);
+        }
+    }
+
+    @Override
+    public void onStepUpdated(int stepCount, long timeStamp, float peakValue) {
+    }
+
     /**
-     * Save WiFi signals' values to external storage file, before calling this method,
-     * we should promise the existence of parent directories.
+     * Write the scans recorded since the last drain and release them.
      * Notice: This should be called in non-UI thread.
-     * @param fileName The absolute file path of storage target
+     * @param writer The target of the text lines, null for none
+     * @param trace The session trace, null for none
+     * @return The number of drained scans
      * */
-    public boolean toExternalStorage(String fileName) {
-        boolean saveFlag = true;
-        if (m_wifiRSSList.size() > 0) {
-            try {
-                File wifiFile = new File(fileName);
-                if (!wifiFile.exists()) {
-                    wifiFile.createNewFile();
-                }
-                FileWriter fw = new FileWriter(wifiFile);
-                for (String wifiRecord : m_wifiRSSList) {
-                    fw.append(wifiRecord);
-                }
-                fw.flush();
-                fw.close();
-            }
-            catch (Exception ex) {
-                saveFlag = false;
-                ex.printStackTrace();
-                Log.d(SENSOR_ID, "Exception throwed from save wifi signals values method");
-            }
-        }
-        return saveFlag;
+    public int drainTo(Writer writer, TraceWriter trace) throws IOException {
+        return m_scanStore.drainTo(writer, trace);
     }
 }
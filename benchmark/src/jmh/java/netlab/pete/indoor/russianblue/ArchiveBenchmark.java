@@ -0,0 +1,126 @@
+package netlab.pete.indoor.russianblue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a ten second window of the sensor streams of a session: a range query on the archive
+ * directory against a scan of the whole trace. The archive is shared by the benchmark threads,
+ * run with -t to measure concurrent readers.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArchiveBenchmark {
+    private final static long WINDOW = 10 * 1000;   // ms
+    private final static int [] SENSOR_STREAMS = {TraceFormat.STREAM_ACCE, TraceFormat.STREAM_GYRO,
+            TraceFormat.STREAM_MAGN};
+
+    @Param({"10", "60", "480"})
+    public int minutes;
+
+    private File m_traceFile;
+    private TraceArchive m_archive;
+    private long m_startTime;
+    private long m_duration;
+
+    /**
+     * Window start of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Window {
+        private final Random m_random = new Random(42);
+
+        long next(ArchiveBenchmark benchmark) {
+            return benchmark.m_startTime + (long) (m_random.nextDouble() * (benchmark.m_duration - WINDOW));
+        }
+    }
+
+    /**
+     * Sums the values in the window, so the scan cannot be optimized away.
+     */
+    private static class WindowSum implements TraceReader.Visitor {
+        private long m_from;
+        private long m_to;
+        private double m_sum;
+
+        @Override
+        public void onSample(int streamType, long timeStamp, float[] values) {
+            if (timeStamp >= m_from && timeStamp <= m_to) {
+                m_sum += values[0];
+            }
+        }
+
+        @Override
+        public void onWifiScan(long timeStamp, int apCount, int[] bssidIds, int[] levels) {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        SampleStreams streams = SampleStreams.create(minutes);
+        m_traceFile = File.createTempFile("russianblue", TraceFormat.FILE_SUFFIX);
+        TraceWriter writer = new TraceWriter(m_traceFile);
+        float [] values = new float[3];
+        for (int i = 0; i < streams.count; i++) {
+            System.arraycopy(streams.values, i * 3, values, 0, 3);
+            writer.writeSample(streams.types[i], streams.timeStamps[i], values);
+        }
+        writer.close();
+        m_archive = new TraceArchive(m_traceFile);
+        m_startTime = streams.timeStamps[0];
+        m_duration = Math.max(streams.getDuration(), WINDOW);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        m_archive.close();
+        m_traceFile.delete();
+    }
+
+    @Benchmark
+    public double rangeQuery(Window window) throws IOException {
+        long from = window.next(this);
+        TraceArchive.Query query = m_archive.query(SENSOR_STREAMS, from, from + WINDOW);
+        double sum = 0;
+        while (query.next()) {
+            sum += query.getValues()[0];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double fullScan(Window window) throws IOException {
+        WindowSum visitor = new WindowSum();
+        visitor.m_from = window.next(this);
+        visitor.m_to = visitor.m_from + WINDOW;
+        TraceReader reader = new TraceReader(m_traceFile);
+        try {
+            reader.accept(visitor);
+        }
+        finally {
+            reader.close();
+        }
+        return visitor.m_sum;
+    }
+}
@@ -0,0 +1,133 @@
+package netlab.pete.indoor.russianblue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per sample cost of the writers that replaced toExternalStorage(): the text lines the LogFlusher
+ * drains from the sample stores every second, and the binary trace encoding.
+ * Each call exports one flush period of samples, results are divided down to one sample.
+ */
+
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExportBenchmark {
+    // Samples per LogFlusher period at 150 samples/s.
+    private final static int FLUSH_SAMPLES = 150;
+
+    @Param({"1", "60", "480"})
+    public int minutes;
+
+    private SampleStreams m_streams;
+    private int m_cursor;
+    private SensorSampleStore [] m_stores;
+    private float [] m_event;
+    private CountingWriter m_textWriter;
+    private File m_traceFile;
+    private TraceWriter m_traceWriter;
+
+    /**
+     * Counts the characters and drops them, to measure the formatting without the storage.
+     */
+    static class CountingWriter extends Writer {
+        long m_count;
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            m_count += length;
+        }
+
+        @Override
+        public void write(String text, int offset, int length) {
+            m_count += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        m_streams = SampleStreams.create(minutes);
+        m_cursor = 0;
+        m_stores = new SensorSampleStore[3];
+        for (int i = 0; i < m_stores.length; i++) {
+            m_stores[i] = new SensorSampleStore();
+        }
+        m_event = new float[3];
+        m_textWriter = new CountingWriter();
+    }
+
+    // A new trace per iteration, so the file does not grow with the measurement time.
+    @Setup(Level.Iteration)
+    public void openTrace() throws IOException {
+        m_traceFile = File.createTempFile("russianblue", TraceFormat.FILE_SUFFIX);
+        m_traceWriter = new TraceWriter(m_traceFile);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeTrace() throws IOException {
+        m_traceWriter.close();
+        m_traceFile.delete();
+    }
+
+    private int next() {
+        int index = m_cursor;
+        m_cursor = index + 1 == m_streams.count ? 0 : index + 1;
+        return index;
+    }
+
+    /**
+     * Fill the stores with one flush period of samples and drain them as text lines.
+     * */
+    @Benchmark
+    @OperationsPerInvocation(FLUSH_SAMPLES)
+    public long textExport() throws IOException {
+        for (int i = 0; i < FLUSH_SAMPLES; i++) {
+            int index = next();
+            System.arraycopy(m_streams.values, index * 3, m_event, 0, 3);
+            m_stores[m_streams.types[index]].append(m_streams.timeStamps[index], m_event);
+        }
+        for (SensorSampleStore store : m_stores) {
+            store.drainTo(m_textWriter);
+        }
+        return m_textWriter.m_count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FLUSH_SAMPLES)
+    public long traceExport() throws IOException {
+        for (int i = 0; i < FLUSH_SAMPLES; i++) {
+            int index = next();
+            System.arraycopy(m_streams.values, index * 3, m_event, 0, 3);
+            m_traceWriter.writeSample(m_streams.types[index], m_streams.timeStamps[index], m_event);
+        }
+        return m_cursor;
+    }
+}
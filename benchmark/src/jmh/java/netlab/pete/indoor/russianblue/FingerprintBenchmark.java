@@ -0,0 +1,106 @@
+package netlab.pete.indoor.russianblue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * k-NN lookup latency against synthetic radio maps: access points on a grid over a square
+ * building, log-distance path loss with noise, the strongest access points of each point kept
+ * as a phone scan would.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FingerprintBenchmark {
+    private final static int SCAN_COUNT = 256;
+    private final static int SCAN_APCOUNT = 20;
+    private final static float AP_SPACING = 15.f;
+
+    @Param({"10000", "100000"})
+    public int pointCount;
+
+    private FingerprintMap m_map;
+    private FingerprintMap.Query m_query;
+    private BssidDictionary m_scanDictionary;
+    private int [][] m_scanBssids;
+    private int [][] m_scanLevels;
+    private int m_cursor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(13);
+        // About one reference point per square meter.
+        float side = (float) Math.sqrt(pointCount);
+        int apSide = Math.max(2, (int) (side / AP_SPACING) + 1);
+        m_scanDictionary = new BssidDictionary();
+        for (int i = 0; i < apSide * apSide; i++) {
+            m_scanDictionary.intern(String.format("02:00:00:%02x:%02x:%02x", i >> 16, (i >> 8) & 0xff, i & 0xff));
+        }
+        int [] bssids = new int[SCAN_APCOUNT];
+        int [] levels = new int[SCAN_APCOUNT];
+        FingerprintMap.Builder builder = new FingerprintMap.Builder();
+        for (int i = 0; i < pointCount; i++) {
+            float x = random.nextFloat() * side;
+            float y = random.nextFloat() * side;
+            int count = scan(random, apSide, x, y, bssids, levels);
+            builder.addReferencePoint(x, y, count, bssids, levels, m_scanDictionary);
+        }
+        m_map = builder.build();
+        m_query = m_map.new Query();
+        m_scanBssids = new int[SCAN_COUNT][SCAN_APCOUNT];
+        m_scanLevels = new int[SCAN_COUNT][SCAN_APCOUNT];
+        for (int i = 0; i < SCAN_COUNT; i++) {
+            scan(random, apSide, random.nextFloat() * side, random.nextFloat() * side, m_scanBssids[i], m_scanLevels[i]);
+        }
+        m_cursor = 0;
+    }
+
+    /**
+     * The SCAN_APCOUNT access points nearest to (x, y), with their noisy levels.
+     * */
+    private static int scan(Random random, int apSide, float x, float y, int [] bssids, int [] levels) {
+        int centerX = Math.round(x / AP_SPACING);
+        int centerY = Math.round(y / AP_SPACING);
+        int count = 0;
+        for (int radius = 0; count < SCAN_APCOUNT && radius < apSide; radius++) {
+            for (int i = centerX - radius; i <= centerX + radius && count < SCAN_APCOUNT; i++) {
+                for (int j = centerY - radius; j <= centerY + radius && count < SCAN_APCOUNT; j++) {
+                    if (i < 0 || j < 0 || i >= apSide || j >= apSide
+                            || Math.max(Math.abs(i - centerX), Math.abs(j - centerY)) != radius) {
+                        continue;
+                    }
+                    double distance = Math.max(1.0, Math.hypot(i * AP_SPACING - x, j * AP_SPACING - y));
+                    bssids[count] = i * apSide + j;
+                    levels[count] = (int) Math.max(-99, -40 - 30 * Math.log10(distance) + 4 * random.nextGaussian());
+                    count = count + 1;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public float locate() {
+        int index = m_cursor;
+        m_cursor = (index + 1) % SCAN_COUNT;
+        m_query.locate(SCAN_APCOUNT, m_scanBssids[index], m_scanLevels[index], m_scanDictionary);
+        return m_query.getX();
+    }
+}
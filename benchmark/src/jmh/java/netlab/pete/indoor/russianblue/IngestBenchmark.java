@@ -0,0 +1,154 @@
+package netlab.pete.indoor.russianblue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per event cost of the sensor thread: what SensorCollector.onSensorChanged() does with a sample
+ * (timestamp conversion, append to the sample store, hand-off to the step engine ring),
+ * and the SPSC ring alone with a producer and a consumer thread.
+ */
+
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestBenchmark {
+    // Samples per LogFlusher period at 150 samples/s.
+    private final static int FLUSH_SAMPLES = 150;
+
+    @State(Scope.Thread)
+    public static class SensorThread {
+        @Param({"1", "60", "480"})
+        public int minutes;
+
+        SampleStreams m_streams;
+        SensorSampleStore [] m_stores;
+        SpscSampleRing m_ring;
+        // SensorEvent.timestamp of each sample, in ns since boot
+        long [] m_eventTimes;
+        float [] m_event;
+        long m_timeOffset;
+        int m_cursor;
+        int m_sinceFlush;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            m_streams = SampleStreams.create(minutes);
+            m_stores = new SensorSampleStore[3];
+            for (int i = 0; i < m_stores.length; i++) {
+                m_stores[i] = new SensorSampleStore();
+            }
+            m_ring = new SpscSampleRing(4096);
+            m_event = new float[3];
+            m_timeOffset = System.currentTimeMillis() * 1000000L - System.nanoTime();
+            m_eventTimes = new long[m_streams.count];
+            for (int i = 0; i < m_streams.count; i++) {
+                m_eventTimes[i] = m_streams.timeStamps[i] * 1000000L - m_timeOffset;
+            }
+            m_cursor = 0;
+            m_sinceFlush = 0;
+        }
+
+        /**
+         * @return The index of the next event, wrapping at the end of the session.
+         * */
+        int next() {
+            int index = m_cursor;
+            m_cursor = index + 1 == m_streams.count ? 0 : index + 1;
+            return index;
+        }
+    }
+
+    private final static SpscSampleRing.Consumer DISCARD = new SpscSampleRing.Consumer() {
+        @Override
+        public void onSample(int type, long timeStamp, float x, float y, float z) {
+        }
+    };
+
+    /**
+     * One onSensorChanged() call. The store is drained and the ring emptied as often as the
+     * LogFlusher and the step engine would, outside of the event but inside the measurement.
+     * */
+    @Benchmark
+    public boolean onSensorChanged(SensorThread state) throws IOException {
+        int index = state.next();
+        SampleStreams streams = state.m_streams;
+        int type = streams.types[index];
+        long timeStamp = (state.m_eventTimes[index] + state.m_timeOffset) / 1000000L;
+        float [] event = state.m_event;
+        System.arraycopy(streams.values, index * 3, event, 0, 3);
+        state.m_stores[type].append(timeStamp, event);
+        boolean offered = state.m_ring.offer(type, timeStamp, event[0], event[1], event[2]);
+        state.m_sinceFlush = state.m_sinceFlush + 1;
+        if (state.m_sinceFlush == FLUSH_SAMPLES) {
+            state.m_sinceFlush = 0;
+            for (SensorSampleStore store : state.m_stores) {
+                store.drainTo(null);
+            }
+            state.m_ring.drain(DISCARD, FLUSH_SAMPLES);
+        }
+        return offered;
+    }
+
+    @State(Scope.Group)
+    public static class Ring {
+        SpscSampleRing m_ring;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            m_ring = new SpscSampleRing(4096);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class RingConsumer implements SpscSampleRing.Consumer {
+        Blackhole m_blackhole;
+
+        @Setup(Level.Trial)
+        public void setup(Blackhole blackhole) {
+            m_blackhole = blackhole;
+        }
+
+        @Override
+        public void onSample(int type, long timeStamp, float x, float y, float z) {
+            m_blackhole.consume(timeStamp);
+            m_blackhole.consume(x + y + z);
+        }
+    }
+
+    @Benchmark
+    @Group("spscRing")
+    @GroupThreads(1)
+    public boolean ringOffer(Ring ring, SensorThread state) {
+        int index = state.next();
+        SampleStreams streams = state.m_streams;
+        int base = index * 3;
+        return ring.m_ring.offer(streams.types[index], streams.timeStamps[index],
+                streams.values[base], streams.values[base + 1], streams.values[base + 2]);
+    }
+
+    @Benchmark
+    @Group("spscRing")
+    @GroupThreads(1)
+    public int ringDrain(Ring ring, RingConsumer consumer) {
+        return ring.m_ring.drain(consumer, 256);
+    }
+}
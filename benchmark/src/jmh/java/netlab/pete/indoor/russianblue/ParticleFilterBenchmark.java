@@ -0,0 +1,75 @@
+package netlab.pete.indoor.russianblue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one step (predict) and of one WiFi fix (reweight, and resample when needed),
+ * on the calling thread or split over a fork-join pool.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParticleFilterBenchmark {
+    @Param({"1000", "10000"})
+    public int particleCount;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private ForkJoinPool m_pool;
+    private ParticleFilter m_filter;
+    private int m_stepCount;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        m_pool = parallel ? new ForkJoinPool() : null;
+        m_filter = new ParticleFilter(particleCount, 5, m_pool);
+        m_filter.reset(0.f, 0.f, 1.f);
+        m_stepCount = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (m_pool != null) {
+            m_pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public float step() {
+        m_filter.predict(0.65f, 0.1f);
+        return m_filter.getX();
+    }
+
+    /**
+     * A step, and a fix every 4 steps as a 2 s scan interval gives at walking cadence.
+     * */
+    @Benchmark
+    public float stepAndFix() {
+        m_filter.predict(0.65f, 0.1f);
+        m_stepCount = m_stepCount + 1;
+        if ((m_stepCount & 3) == 0) {
+            m_filter.correct(m_filter.getX() + 1.f, m_filter.getY() - 1.f, 4.f);
+        }
+        return m_filter.getX();
+    }
+}
@@ -0,0 +1,163 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Interleaved sensor samples in timestamp order, the way onSensorChanged() sees them, held in
+ * primitive arrays so feeding them to a benchmark costs nothing. Either synthetic walking at the
+ * SENSOR_DELAY_GAME rate, or the acce, gyro and magn logs of a recorded session repeated up to
+ * the requested length.
+ */
+
+public class SampleStreams {
+    public final static String SESSION_PROPERTY = "russianblue.session";
+    // SENSOR_DELAY_GAME, 50 Hz for each of the three sensors.
+    public final static long SAMPLE_PERIOD = 20;
+    public final static float STEP_FREQUENCY = 1.8f;
+    private final static long START_TIME = 1477540000000L;
+    private final static int [] SENSOR_STREAMS = {TraceFormat.STREAM_ACCE, TraceFormat.STREAM_GYRO,
+            TraceFormat.STREAM_MAGN};
+
+    public final int count;
+    public final int [] types;
+    public final long [] timeStamps;
+    // Three values per sample
+    public final float [] values;
+
+    private SampleStreams(int count) {
+        this.count = count;
+        types = new int[count];
+        timeStamps = new long[count];
+        values = new float[count * 3];
+    }
+
+    public long getDuration() {
+        return count == 0 ? 0 : timeStamps[count - 1] - timeStamps[0];
+    }
+
+    /**
+     * @return A recorded session if the russianblue.session property is set, synthetic walking otherwise.
+     * */
+    public static SampleStreams create(int minutes) throws IOException {
+        String session = System.getProperty(SESSION_PROPERTY);
+        if (session != null && !session.isEmpty()) {
+            return load(session, minutes);
+        }
+        return synthesize(minutes, 42);
+    }
+
+    /**
+     * Walking along a slowly turning path: a vertical bounce at the step frequency,
+     * a yaw rate on the gyroscope and the matching rotation of the magnetic field.
+     * */
+    public static SampleStreams synthesize(int minutes, long seed) {
+        int periods = (int) (minutes * 60 * 1000L / SAMPLE_PERIOD);
+        SampleStreams streams = new SampleStreams(periods * SENSOR_STREAMS.length);
+        Random random = new Random(seed);
+        int index = 0;
+        for (int i = 0; i < periods; i++) {
+            long timeStamp = START_TIME + i * SAMPLE_PERIOD;
+            double t = i * SAMPLE_PERIOD / 1000.0;
+            double heading = 0.3 * Math.sin(2 * Math.PI * t / 60.0);
+            for (int type : SENSOR_STREAMS) {
+                streams.types[index] = type;
+                // The sensors report a few ms apart.
+                streams.timeStamps[index] = timeStamp + type * 3;
+                int base = index * 3;
+                switch (type) {
+                    case TraceFormat.STREAM_ACCE:
+                        streams.values[base] = (float) (0.3 * random.nextGaussian());
+                        streams.values[base + 1] = (float) (0.3 * random.nextGaussian());
+                        streams.values[base + 2] = (float) (9.81 + 3.0 * Math.sin(2 * Math.PI * STEP_FREQUENCY * t)
+                                + 0.2 * random.nextGaussian());
+                        break;
+                    case TraceFormat.STREAM_GYRO:
+                        streams.values[base] = (float) (0.01 * random.nextGaussian());
+                        streams.values[base + 1] = (float) (0.01 * random.nextGaussian());
+                        streams.values[base + 2] = (float) (-0.3 * 2 * Math.PI / 60.0 * Math.cos(2 * Math.PI * t / 60.0));
+                        break;
+                    default:
+                        streams.values[base] = (float) (20.0 * Math.sin(-heading) + random.nextGaussian());
+                        streams.values[base + 1] = (float) (20.0 * Math.cos(-heading) + random.nextGaussian());
+                        streams.values[base + 2] = -40.f;
+                        break;
+                }
+                index = index + 1;
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * Merge the sensor logs of a recorded session, repeated with shifted timestamps
+     * until it lasts the requested number of minutes.
+     * */
+    public static SampleStreams load(String prefix, int minutes) throws IOException {
+        int total = 0;
+        long [][] timeStamps = new long[SENSOR_STREAMS.length][];
+        float [][] values = new float[SENSOR_STREAMS.length][];
+        int [] counts = new int[SENSOR_STREAMS.length];
+        for (int i = 0; i < SENSOR_STREAMS.length; i++) {
+            timeStamps[i] = new long[1024];
+            values[i] = new float[1024 * 3];
+            TextRecordParser parser = new TextRecordParser();
+            for (File segment : TraceConverter.listSegments(prefix, SENSOR_STREAMS[i])) {
+                BufferedReader reader = new BufferedReader(new FileReader(segment));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!parser.parseSample(line) || parser.valueCount < 3) {
+                            continue;
+                        }
+                        if (counts[i] == timeStamps[i].length) {
+                            timeStamps[i] = Arrays.copyOf(timeStamps[i], counts[i] * 2);
+                            values[i] = Arrays.copyOf(values[i], counts[i] * 6);
+                        }
+                        timeStamps[i][counts[i]] = parser.timeStamp;
+                        System.arraycopy(parser.values, 0, values[i], counts[i] * 3, 3);
+                        counts[i] = counts[i] + 1;
+                    }
+                }
+                finally {
+                    reader.close();
+                }
+            }
+            total = total + counts[i];
+        }
+        if (total == 0) {
+            throw new IOException("No sensor samples in " + prefix);
+        }
+        // Merge the recorded streams once, then repeat the merged session.
+        SampleStreams session = new SampleStreams(total);
+        int [] positions = new int[SENSOR_STREAMS.length];
+        for (int index = 0; index < total; index++) {
+            int next = -1;
+            for (int i = 0; i < SENSOR_STREAMS.length; i++) {
+                if (positions[i] < counts[i]
+                        && (next < 0 || timeStamps[i][positions[i]] < timeStamps[next][positions[next]])) {
+                    next = i;
+                }
+            }
+            session.types[index] = SENSOR_STREAMS[next];
+            session.timeStamps[index] = timeStamps[next][positions[next]];
+            System.arraycopy(values[next], positions[next] * 3, session.values, index * 3, 3);
+            positions[next] = positions[next] + 1;
+        }
+        long duration = Math.max(session.getDuration() + SAMPLE_PERIOD, SAMPLE_PERIOD);
+        long target = minutes * 60 * 1000L;
+        int repeats = (int) Math.max(1, (target + duration - 1) / duration);
+        SampleStreams streams = new SampleStreams((int) Math.min(Integer.MAX_VALUE / 3, (long) total * repeats));
+        for (int index = 0; index < streams.count; index++) {
+            int source = index % total;
+            streams.types[index] = session.types[source];
+            streams.timeStamps[index] = session.timeStamps[source] + (index / total) * duration;
+            System.arraycopy(session.values, source * 3, streams.values, index * 3, 3);
+        }
+        return streams;
+    }
+}
@@ -0,0 +1,168 @@
+package netlab.pete.indoor.russianblue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per event cost of the step engine stages: the accelerometer filter and step detection
+ * (exploreOneStep before), the heading fusion, the heading lookup of each step
+ * (getOrientation before), and the whole PdrPipeline.
+ * Every benchmark call consumes the next sample of the session, which restarts once done.
+ */
+
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StepDetectionBenchmark {
+    private final static int LOOKUP_COUNT = 4096;
+
+    @Param({"1", "60", "480"})
+    public int minutes;
+
+    private SampleStreams m_streams;
+    private int m_cursor;
+
+    private SlidingWindowFilter m_filter;
+    private StepDetector m_stepDetector;
+    private HeadingFusion m_headingFusion;
+    private PdrPipeline m_pipeline;
+
+    private HeadingSeries m_headingSeries;
+    private long [] m_lookupTimes;
+    private int m_lookupCursor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        m_streams = SampleStreams.create(minutes);
+        m_cursor = 0;
+        m_filter = new SlidingWindowFilter();
+        m_stepDetector = new StepDetector();
+        m_headingFusion = new HeadingFusion();
+        m_pipeline = new PdrPipeline(0.65f);
+
+        // The retained headings of the last HeadingSeries.DEFAULT_CAPACITY direction updates.
+        m_headingSeries = new HeadingSeries();
+        HeadingFusion fusion = new HeadingFusion();
+        long first = 0, last = 0;
+        for (int i = 0; i < m_streams.count; i++) {
+            if (feedFusion(fusion, i) && fusion.hasHeading()) {
+                if (m_headingSeries.size() == 0) {
+                    first = m_streams.timeStamps[i];
+                }
+                last = m_streams.timeStamps[i];
+                m_headingSeries.add(last, fusion.getHeading());
+            }
+        }
+        // Step times lag the samples a little and are increasing, with a few random lookups.
+        Random random = new Random(7);
+        m_lookupTimes = new long[LOOKUP_COUNT];
+        long span = Math.max(1, last - first);
+        long start = Math.max(first, last - span / 2);
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            m_lookupTimes[i] = i % 16 == 15 ? first + (long) (random.nextDouble() * span)
+                    : start + (last - start) * i / LOOKUP_COUNT;
+        }
+        m_lookupCursor = 0;
+    }
+
+    private int next() {
+        int index = m_cursor;
+        if (index + 1 == m_streams.count) {
+            m_cursor = 0;
+            m_filter.reset();
+            m_stepDetector.reset();
+            m_headingFusion.reset();
+            m_pipeline.reset();
+        }
+        else {
+            m_cursor = index + 1;
+        }
+        return index;
+    }
+
+    private boolean feedFusion(HeadingFusion fusion, int index) {
+        long timeStamp = m_streams.timeStamps[index] * 1000000L;
+        int base = index * 3;
+        float [] values = m_streams.values;
+        switch (m_streams.types[index]) {
+            case TraceFormat.STREAM_ACCE:
+                fusion.onAcceValue(timeStamp, values[base], values[base + 1], values[base + 2]);
+                return false;
+            case TraceFormat.STREAM_GYRO:
+                fusion.onGyroValue(timeStamp, values[base], values[base + 1], values[base + 2]);
+                return true;
+            default:
+                fusion.onMagnValue(timeStamp, values[base], values[base + 1], values[base + 2]);
+                return true;
+        }
+    }
+
+    /**
+     * Magnitude, sliding window filter and peak/valley detection of one sample,
+     * gyroscope and magnetometer samples are skipped.
+     * */
+    @Benchmark
+    public int filterAndDetect() {
+        int index = next();
+        if (m_streams.types[index] != TraceFormat.STREAM_ACCE) {
+            return 0;
+        }
+        int base = index * 3;
+        float [] values = m_streams.values;
+        float x = values[base], y = values[base + 1], z = values[base + 2];
+        if (m_filter.filter(m_streams.timeStamps[index], (float) Math.sqrt(x * x + y * y + z * z))) {
+            m_stepDetector.feed(m_filter.getTimeStamp(), m_filter.getValue());
+        }
+        return m_stepDetector.getStepCount();
+    }
+
+    @Benchmark
+    public float headingFusion() {
+        feedFusion(m_headingFusion, next());
+        return m_headingFusion.getHeading();
+    }
+
+    @Benchmark
+    public float headingLookup() {
+        int index = m_lookupCursor;
+        m_lookupCursor = (index + 1) & (LOOKUP_COUNT - 1);
+        return m_headingSeries.getHeading(m_lookupTimes[index]);
+    }
+
+    @Benchmark
+    public float pdrPipeline() {
+        int index = next();
+        int base = index * 3;
+        float [] values = m_streams.values;
+        long timeStamp = m_streams.timeStamps[index];
+        switch (m_streams.types[index]) {
+            case TraceFormat.STREAM_ACCE:
+                m_pipeline.onAcceValue(timeStamp, values[base], values[base + 1], values[base + 2]);
+                break;
+            case TraceFormat.STREAM_GYRO:
+                m_pipeline.onGyroValue(timeStamp, values[base], values[base + 1], values[base + 2]);
+                break;
+            default:
+                m_pipeline.onMagnValue(timeStamp, values[base], values[base + 1], values[base + 2]);
+                break;
+        }
+        return m_pipeline.getCurrentX();
+    }
+}
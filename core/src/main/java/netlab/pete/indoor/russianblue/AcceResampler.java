@@ -0,0 +1,113 @@
+package netlab.pete.indoor.russianblue;
+
+/**
+ * Resampling of the acceleration magnitude onto a fixed-rate time grid, so the filter and the
+ * step detector see the same sample rate whatever rate the device delivers, from 50 to 200 Hz
+ * and more. A grid point is the mean of the raw samples of the period ending at it, so faster
+ * sensors average their noise rather than have it aliased, and is linearly interpolated between
+ * the neighbour samples when the period has none. The grid points are the multiples of the period,
+ * which also lines up the streams of different devices.
+ * A gap longer than MAX_GAP is not interpolated, the grid restarts after it. Nothing is allocated
+ * per sample, the grid samples of one input go to a preallocated buffer.
+ */
+
+public class AcceResampler {
+    // 50 Hz, the SENSOR_DELAY_GAME rate the step detection was tuned at.
+    public final static long DEFAULT_PERIOD = 20;   // ms
+    // Longest interval between two raw samples that is interpolated.
+    public final static long MAX_GAP = 500;         // ms
+
+    private final long m_period;
+    private final long [] m_timeStamps;
+    private final float [] m_values;
+    private int m_count;
+
+    private boolean m_hasPrevious;
+    private long m_prevTimeStamp;
+    private float m_prevValue;
+    private long m_nextGridTime;
+    // Raw samples of the period ending at m_nextGridTime
+    private float m_periodSum;
+    private int m_periodCount;
+
+    public AcceResampler() {
+        this(DEFAULT_PERIOD);
+    }
+
+    public AcceResampler(long period) {
+        if (period < 1) {
+            throw new IllegalArgumentException("Period must be positive: " + period);
+        }
+        m_period = period;
+        int capacity = (int) (MAX_GAP / period) + 1;
+        m_timeStamps = new long[capacity];
+        m_values = new float[capacity];
+        reset();
+    }
+
+    public long getPeriod() {
+        return m_period;
+    }
+
+    public void reset() {
+        m_hasPrevious = false;
+        m_count = 0;
+        m_periodSum = 0.f;
+        m_periodCount = 0;
+    }
+
+    /**
+     * Push one raw sample, samples must come in time order. A grid point is complete, and
+     * returned, once a sample after it has been pushed.
+     * @return The number of completed grid samples, available from
+     * {@link #getTimeStamp(int)} and {@link #getValue(int)} until the next call
+     * */
+    public int resample(long timeStamp, float value) {
+        m_count = 0;
+        if (!m_hasPrevious || timeStamp - m_prevTimeStamp > MAX_GAP) {
+            // First grid point at or after this sample.
+            m_nextGridTime = ((timeStamp + m_period - 1) / m_period) * m_period;
+            m_hasPrevious = true;
+            m_periodSum = 0.f;
+            m_periodCount = 0;
+        }
+        else if (timeStamp <= m_prevTimeStamp) {
+            // Same millisecond as the previous sample, or out of order: average it with the period.
+            if (timeStamp == m_prevTimeStamp) {
+                m_periodSum += value;
+                m_periodCount = m_periodCount + 1;
+            }
+            return 0;
+        }
+        while (m_nextGridTime < timeStamp) {
+            float gridValue;
+            if (m_periodCount > 0) {
+                gridValue = m_periodSum / m_periodCount;
+            }
+            else {
+                float ratio = (float) (m_nextGridTime - m_prevTimeStamp) / (timeStamp - m_prevTimeStamp);
+                gridValue = m_prevValue + (value - m_prevValue) * ratio;
+            }
+            m_timeStamps[m_count] = m_nextGridTime;
+            m_values[m_count] = gridValue;
+            m_count = m_count + 1;
+            m_nextGridTime = m_nextGridTime + m_period;
+            m_periodSum = 0.f;
+            m_periodCount = 0;
+        }
+        // A sample on the grid point closes its period, it is emitted with the next sample.
+        m_periodSum += value;
+        m_periodCount = m_periodCount + 1;
+        m_prevTimeStamp = timeStamp;
+        m_prevValue = value;
+        return m_count;
+    }
+
+    public long getTimeStamp(int index) {
+        return m_timeStamps[index];
+    }
+
+    public float getValue(int index) {
+        return m_values[index];
+    }
+}
@@ -0,0 +1,64 @@
+package netlab.pete.indoor.russianblue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Interns BSSID strings to dense integer ids, starting from 0 in order of first appearance.
+ * Not thread safe.
+ */
+
+public class BssidDictionary {
+    private final HashMap<String, Integer> m_ids;
+    private final ArrayList<String> m_bssids;
+
+    public BssidDictionary() {
+        m_ids = new HashMap<>();
+        m_bssids = new ArrayList<>();
+    }
+
+    /**
+     * @return The id of the BSSID, a new id is assigned for an unseen BSSID.
+     * */
+    public int intern(String bssid) {
+        Integer id = m_ids.get(bssid);
+        if (id == null) {
+            id = m_bssids.size();
+            m_ids.put(bssid, id);
+            m_bssids.add(bssid);
+        }
+        return id;
+    }
+
+    /**
+     * @return The id of the BSSID, or -1 if it has never been interned.
+     * */
+    public int find(String bssid) {
+        Integer id = m_ids.get(bssid);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Register a BSSID under a known id, used when a dictionary is read back from a trace.
+     * */
+    public void put(int id, String bssid) {
+        while (m_bssids.size() <= id) {
+            m_bssids.add(null);
+        }
+        m_bssids.set(id, bssid);
+        m_ids.put(bssid, id);
+    }
+
+    public String getBssid(int id) {
+        return m_bssids.get(id);
+    }
+
+    public int size() {
+        return m_bssids.size();
+    }
+
+    public void clear() {
+        m_ids.clear();
+        m_bssids.clear();
+    }
+}
@@ -0,0 +1,462 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * WiFi radio map: reference points with a position and the RSSI of the access points heard there.
+ * <p>
+ * BSSIDs are interned to dense ids. The RSSI vectors are stored row by row in primitive arrays
+ * (compressed sparse rows, sorted by BSSID id), and an inverted index lists for every BSSID the
+ * reference points hearing it. A lookup only visits the posting lists of the access points in
+ * the query scan, instead of comparing against every reference point.
+ * <p>
+ * The distance between a scan and a reference point is the euclidean distance of their RSSI over
+ * the union of their access points, a missing access point counting as MISSING_LEVEL. With
+ * s = level - MISSING_LEVEL it expands to |q|^2 + |r|^2 - 2 q.r, where only the dot product
+ * needs the common access points. Positions are the weighted mean of the k nearest points.
+ * <p>
+ * Only the reference points sharing at least one access point with the scan are candidates. A
+ * point sharing none is at sqrt(|q|^2 + |r|^2) and can be nearer than the candidates when its
+ * norm is small, it is still never returned: a lookup hearing nothing of the map fails instead of
+ * falling back on the quietest reference points.
+ * <p>
+ * A map is immutable once built and can be shared between threads, each thread using its own
+ * {@link Query}.
+ */
+
+public class FingerprintMap {
+    public final static int MAGIC = 0x52424650;    // "RBFP"
+    public final static short VERSION = 1;
+    public final static String FILE_SUFFIX = ".rbf";
+    // Level of an access point which is not heard, in dBm.
+    public final static int MISSING_LEVEL = -100;
+    public final static int DEFAULT_NEIGHBOURCOUNT = 4;
+
+    private final BssidDictionary m_dictionary;
+    private final int m_pointCount;
+    private final float [] m_x;
+    private final float [] m_y;
+    // Row i spans [m_rowStart[i], m_rowStart[i + 1]) of m_rowBssids and m_rowLevels.
+    private final int [] m_rowStart;
+    private final int [] m_rowBssids;
+    private final byte [] m_rowLevels;
+    // Sum of the squared shifted levels of each reference point
+    private final float [] m_norms;
+    // Posting list of BSSID b spans [m_postingStart[b], m_postingStart[b + 1]).
+    private final int [] m_postingStart;
+    private final int [] m_postingPoints;
+    private final byte [] m_postingLevels;
+
+    private FingerprintMap(BssidDictionary dictionary, int pointCount, float [] x, float [] y,
+                           int [] rowStart, int [] rowBssids, byte [] rowLevels) {
+        m_dictionary = dictionary;
+        m_pointCount = pointCount;
+        m_x = x;
+        m_y = y;
+        m_rowStart = rowStart;
+        m_rowBssids = rowBssids;
+        m_rowLevels = rowLevels;
+
+        int bssidCount = dictionary.size();
+        int entryCount = rowStart[pointCount];
+        m_norms = new float[pointCount];
+        m_postingStart = new int[bssidCount + 1];
+        for (int i = 0; i < entryCount; i++) {
+            m_postingStart[rowBssids[i] + 1]++;
+        }
+        for (int b = 0; b < bssidCount; b++) {
+            m_postingStart[b + 1] += m_postingStart[b];
+        }
+        // Counting sort of the entries by BSSID, points stay in increasing order in each list.
+        m_postingPoints = new int[entryCount];
+        m_postingLevels = new byte[entryCount];
+        int [] fill = Arrays.copyOf(m_postingStart, bssidCount);
+        for (int point = 0; point < pointCount; point++) {
+            float norm = 0;
+            for (int i = rowStart[point]; i < rowStart[point + 1]; i++) {
+                int position = fill[rowBssids[i]]++;
+                m_postingPoints[position] = point;
+                m_postingLevels[position] = rowLevels[i];
+                float shifted = rowLevels[i] - MISSING_LEVEL;
+                norm += shifted * shifted;
+            }
+            m_norms[point] = norm;
+        }
+    }
+
+    public BssidDictionary getBssidDictionary() {
+        return m_dictionary;
+    }
+
+    public int getPointCount() {
+        return m_pointCount;
+    }
+
+    public float getX(int point) {
+        return m_x[point];
+    }
+
+    public float getY(int point) {
+        return m_y[point];
+    }
+
+    /**
+     * Collects reference points, then builds the immutable map.
+     * Not thread safe, builders filled on several threads are combined with merge().
+     */
+    public static class Builder {
+        private final BssidDictionary m_dictionary;
+        private int m_pointCount;
+        private float [] m_x;
+        private float [] m_y;
+        private int [] m_rowStart;
+        private int [] m_rowBssids;
+        private byte [] m_rowLevels;
+        // Scratch for sorting one scan by BSSID id
+        private long [] m_sortKeys;
+
+        public Builder() {
+            m_dictionary = new BssidDictionary();
+            m_pointCount = 0;
+            m_x = new float[256];
+            m_y = new float[256];
+            m_rowStart = new int[257];
+            m_rowBssids = new int[4096];
+            m_rowLevels = new byte[4096];
+            m_sortKeys = new long[64];
+        }
+
+        public int getPointCount() {
+            return m_pointCount;
+        }
+
+        /**
+         * Add a scan heard at (x, y).
+         * @param bssidIds Ids of the BSSIDs in the dictionary of the scan
+         * @param dictionary Dictionary of the scan
+         * */
+        public void addReferencePoint(float x, float y, int apCount, final int [] bssidIds,
+                                      final int [] levels, BssidDictionary dictionary) {
+            if (apCount == 0) {
+                return;
+            }
+            if (m_sortKeys.length < apCount) {
+                m_sortKeys = new long[apCount * 2];
+            }
+            int count = 0;
+            for (int i = 0; i < apCount; i++) {
+                int id = m_dictionary.intern(dictionary.getBssid(bssidIds[i]));
+                int level = Math.max(MISSING_LEVEL, Math.min(0, levels[i]));
+                m_sortKeys[count++] = ((long) id << 32) | (level & 0xffffffffL);
+            }
+            addRow(x, y, count);
+        }
+
+        private void addRow(float x, float y, int count) {
+            Arrays.sort(m_sortKeys, 0, count);
+            if (m_pointCount == m_x.length) {
+                m_x = Arrays.copyOf(m_x, m_pointCount * 2);
+                m_y = Arrays.copyOf(m_y, m_pointCount * 2);
+                m_rowStart = Arrays.copyOf(m_rowStart, m_pointCount * 2 + 1);
+            }
+            int start = m_rowStart[m_pointCount];
+            if (m_rowBssids.length < start + count) {
+                int capacity = Math.max(m_rowBssids.length * 2, start + count);
+                m_rowBssids = Arrays.copyOf(m_rowBssids, capacity);
+                m_rowLevels = Arrays.copyOf(m_rowLevels, capacity);
+            }
+            int end = start;
+            for (int i = 0; i < count; i++) {
+                int id = (int) (m_sortKeys[i] >>> 32);
+                // A BSSID reported twice in a scan keeps its first level.
+                if (end > start && m_rowBssids[end - 1] == id) {
+                    continue;
+                }
+                m_rowBssids[end] = id;
+                m_rowLevels[end] = (byte) (int) m_sortKeys[i];
+                end = end + 1;
+            }
+            m_x[m_pointCount] = x;
+            m_y[m_pointCount] = y;
+            m_pointCount = m_pointCount + 1;
+            m_rowStart[m_pointCount] = end;
+        }
+
+        /**
+         * Append the reference points of another builder, the other builder is left unchanged.
+         * */
+        public void merge(Builder other) {
+            int [] ids = new int[other.m_dictionary.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = m_dictionary.intern(other.m_dictionary.getBssid(i));
+            }
+            for (int point = 0; point < other.m_pointCount; point++) {
+                int start = other.m_rowStart[point];
+                int count = other.m_rowStart[point + 1] - start;
+                if (m_sortKeys.length < count) {
+                    m_sortKeys = new long[count * 2];
+                }
+                for (int i = 0; i < count; i++) {
+                    m_sortKeys[i] = ((long) ids[other.m_rowBssids[start + i]] << 32)
+                            | (other.m_rowLevels[start + i] & 0xffffffffL);
+                }
+                addRow(other.m_x[point], other.m_y[point], count);
+            }
+        }
+
+        public FingerprintMap build() {
+            BssidDictionary dictionary = new BssidDictionary();
+            for (int i = 0; i < m_dictionary.size(); i++) {
+                dictionary.put(i, m_dictionary.getBssid(i));
+            }
+            int entryCount = m_rowStart[m_pointCount];
+            return new FingerprintMap(dictionary, m_pointCount,
+                    Arrays.copyOf(m_x, m_pointCount), Arrays.copyOf(m_y, m_pointCount),
+                    Arrays.copyOf(m_rowStart, m_pointCount + 1),
+                    Arrays.copyOf(m_rowBssids, entryCount), Arrays.copyOf(m_rowLevels, entryCount));
+        }
+    }
+
+    /**
+     * Weighted k-NN lookup with preallocated scratch state, one per thread.
+     */
+    public class Query {
+        private final int m_neighbourCount;
+        // Dot product with the scan per reference point, valid for the touched points only
+        private final float [] m_dots;
+        private final boolean [] m_touched;
+        private final int [] m_touchedPoints;
+        private int m_touchedCount;
+        private int [] m_scanBssids;
+        private float [] m_scanShifted;
+        private final int [] m_nearest;
+        private final float [] m_nearestDistances;
+        private int m_nearestCount;
+        private float m_locatedX;
+        private float m_locatedY;
+
+        public Query() {
+            this(DEFAULT_NEIGHBOURCOUNT);
+        }
+
+        public Query(int neighbourCount) {
+            m_neighbourCount = neighbourCount;
+            m_dots = new float[m_pointCount];
+            m_touched = new boolean[m_pointCount];
+            m_touchedPoints = new int[m_pointCount];
+            m_scanBssids = new int[64];
+            m_scanShifted = new float[64];
+            m_nearest = new int[neighbourCount];
+            m_nearestDistances = new float[neighbourCount];
+        }
+
+        public float getX() {
+            return m_locatedX;
+        }
+
+        public float getY() {
+            return m_locatedY;
+        }
+
+        /**
+         * @return The number of reference points used by the last lookup.
+         * */
+        public int getNeighbourCount() {
+            return m_nearestCount;
+        }
+
+        public int getNeighbour(int index) {
+            return m_nearest[index];
+        }
+
+        /**
+         * @return The RSSI distance to a neighbour of the last lookup, in dB.
+         * */
+        public float getNeighbourDistance(int index) {
+            return m_nearestDistances[index];
+        }
+
+        /**
+         * Locate a scan whose BSSIDs are ids of another dictionary.
+         * @return False if no reference point hears any of the access points
+         * */
+        public boolean locate(int apCount, final int [] bssidIds, final int [] levels, BssidDictionary dictionary) {
+            ensureScanCapacity(apCount);
+            int count = 0;
+            for (int i = 0; i < apCount; i++) {
+                int id = m_dictionary.find(dictionary.getBssid(bssidIds[i]));
+                if (id >= 0) {
+                    m_scanBssids[count] = id;
+                    m_scanShifted[count] = Math.max(MISSING_LEVEL, Math.min(0, levels[i])) - MISSING_LEVEL;
+                    count = count + 1;
+                }
+            }
+            float norm = 0;
+            for (int i = 0; i < apCount; i++) {
+                float shifted = Math.max(MISSING_LEVEL, Math.min(0, levels[i])) - MISSING_LEVEL;
+                norm += shifted * shifted;
+            }
+            return locate(count, norm);
+        }
+
+        /**
+         * Locate a scan whose BSSIDs are ids of this map, as {@link BssidDictionary#find(String)} of
+         * {@link #getBssidDictionary()} gives them, -1 for an access point the map does not know.
+         * @return False if no reference point hears any of the access points
+         * */
+        public boolean locate(int apCount, final int [] bssidIds, final int [] levels) {
+            ensureScanCapacity(apCount);
+            int count = 0;
+            float norm = 0;
+            for (int i = 0; i < apCount; i++) {
+                float shifted = Math.max(MISSING_LEVEL, Math.min(0, levels[i])) - MISSING_LEVEL;
+                norm += shifted * shifted;
+                if (bssidIds[i] >= 0) {
+                    m_scanBssids[count] = bssidIds[i];
+                    m_scanShifted[count] = shifted;
+                    count = count + 1;
+                }
+            }
+            return locate(count, norm);
+        }
+
+        private void ensureScanCapacity(int apCount) {
+            if (m_scanBssids.length < apCount) {
+                m_scanBssids = new int[apCount * 2];
+                m_scanShifted = new float[apCount * 2];
+            }
+        }
+
+        /**
+         * @param count Access points of the scan known to the map, in m_scanBssids and m_scanShifted
+         * @param norm Squared norm of the whole scan, unknown access points included
+         * */
+        private boolean locate(int count, float norm) {
+            m_nearestCount = 0;
+            m_touchedCount = 0;
+            for (int i = 0; i < count; i++) {
+                int bssid = m_scanBssids[i];
+                float shifted = m_scanShifted[i];
+                for (int p = m_postingStart[bssid]; p < m_postingStart[bssid + 1]; p++) {
+                    int point = m_postingPoints[p];
+                    if (!m_touched[point]) {
+                        m_touched[point] = true;
+                        m_dots[point] = 0;
+                        m_touchedPoints[m_touchedCount++] = point;
+                    }
+                    m_dots[point] += shifted * (m_postingLevels[p] - MISSING_LEVEL);
+                }
+            }
+            // Keep the k smallest distances in increasing order.
+            for (int i = 0; i < m_touchedCount; i++) {
+                int point = m_touchedPoints[i];
+                m_touched[point] = false;
+                float squared = Math.max(0.f, norm + m_norms[point] - 2 * m_dots[point]);
+                if (m_nearestCount == m_neighbourCount && squared >= m_nearestDistances[m_nearestCount - 1]) {
+                    continue;
+                }
+                int position = m_nearestCount < m_neighbourCount ? m_nearestCount++ : m_nearestCount - 1;
+                while (position > 0 && m_nearestDistances[position - 1] > squared) {
+                    m_nearestDistances[position] = m_nearestDistances[position - 1];
+                    m_nearest[position] = m_nearest[position - 1];
+                    position = position - 1;
+                }
+                m_nearestDistances[position] = squared;
+                m_nearest[position] = point;
+            }
+            if (m_nearestCount == 0) {
+                return false;
+            }
+            // Inverse distance weights, an exact match takes it all.
+            double sumX = 0, sumY = 0, sumWeight = 0;
+            for (int i = 0; i < m_nearestCount; i++) {
+                m_nearestDistances[i] = (float) Math.sqrt(m_nearestDistances[i]);
+                double weight = 1.0 / (m_nearestDistances[i] + 1e-3);
+                sumX += weight * m_x[m_nearest[i]];
+                sumY += weight * m_y[m_nearest[i]];
+                sumWeight += weight;
+            }
+            m_locatedX = (float) (sumX / sumWeight);
+            m_locatedY = (float) (sumY / sumWeight);
+            return true;
+        }
+    }
+
+    public void save(File file) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeShort(VERSION);
+            int bssidCount = m_dictionary.size();
+            output.writeInt(bssidCount);
+            for (int i = 0; i < bssidCount; i++) {
+                output.writeUTF(m_dictionary.getBssid(i));
+            }
+            output.writeInt(m_pointCount);
+            for (int point = 0; point < m_pointCount; point++) {
+                output.writeFloat(m_x[point]);
+                output.writeFloat(m_y[point]);
+                int start = m_rowStart[point];
+                int end = m_rowStart[point + 1];
+                output.writeShort(end - start);
+                for (int i = start; i < end; i++) {
+                    output.writeInt(m_rowBssids[i]);
+                    output.writeByte(m_rowLevels[i]);
+                }
+            }
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    public static FingerprintMap load(File file) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC || input.readShort() != VERSION) {
+                throw new IOException("Not a fingerprint map: " + file);
+            }
+            BssidDictionary dictionary = new BssidDictionary();
+            int bssidCount = input.readInt();
+            for (int i = 0; i < bssidCount; i++) {
+                dictionary.put(i, input.readUTF());
+            }
+            int pointCount = input.readInt();
+            float [] x = new float[pointCount];
+            float [] y = new float[pointCount];
+            int [] rowStart = new int[pointCount + 1];
+            int [] rowBssids = new int[Math.max(16, pointCount * 8)];
+            byte [] rowLevels = new byte[rowBssids.length];
+            for (int point = 0; point < pointCount; point++) {
+                x[point] = input.readFloat();
+                y[point] = input.readFloat();
+                int count = input.readShort();
+                int start = rowStart[point];
+                if (rowBssids.length < start + count) {
+                    int capacity = Math.max(rowBssids.length * 2, start + count);
+                    rowBssids = Arrays.copyOf(rowBssids, capacity);
+                    rowLevels = Arrays.copyOf(rowLevels, capacity);
+                }
+                for (int i = start; i < start + count; i++) {
+                    rowBssids[i] = input.readInt();
+                    rowLevels[i] = input.readByte();
+                }
+                rowStart[point + 1] = start + count;
+            }
+            int entryCount = rowStart[pointCount];
+            return new FingerprintMap(dictionary, pointCount, x, y, rowStart,
+                    Arrays.copyOf(rowBssids, entryCount), Arrays.copyOf(rowLevels, entryCount));
+        }
+        finally {
+            input.close();
+        }
+    }
+}
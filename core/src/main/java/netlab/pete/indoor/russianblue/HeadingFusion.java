@@ -0,0 +1,176 @@
+package netlab.pete.indoor.russianblue;
+
+/**
+ * Complementary filter for the heading. Gyroscope rates around the gravity axis are integrated
+ * between magnetometer updates, and each tilt-compensated magnetometer azimuth pulls the heading
+ * back with a gain set by the time constant, so short magnetic disturbances near steel structures
+ * are smoothed out while the gyroscope drift is still corrected.
+ * Without a gyroscope the heading follows the magnetometer azimuth.
+ * <p>
+ * The azimuth is computed the same way as SensorManager.getRotationMatrix() and getOrientation(),
+ * in plain Java so recorded traces can be replayed off the device. State is a handful of scalars,
+ * every update is O(1) and allocates nothing. Not thread safe.
+ */
+
+public class HeadingFusion {
+    // Time constant of the magnetometer correction, in seconds.
+    public final static float DEFAULT_TIMECONSTANT = 2.f;
+    // Low-pass factor for the gravity estimate from the accelerometer.
+    private final static float GRAVITY_SMOOTHING = 0.8f;
+    // Gyroscope gaps longer than this are not integrated.
+    private final static long GYRO_MAXGAP = 200 * 1000 * 1000;  // ns
+    private final static double TWO_PI = 2 * Math.PI;
+
+    private final float m_timeConstant;
+
+    private float m_gravityX, m_gravityY, m_gravityZ;
+    private boolean m_hasGravity;
+    private float m_magnX, m_magnY, m_magnZ;
+
+    private long m_lastGyroTime;
+    private boolean m_hasGyro;
+    private long m_lastCorrectionTime;
+
+    private double m_heading;
+    private boolean m_hasHeading;
+    private float m_magnAzimut;
+
+    public HeadingFusion() {
+        this(DEFAULT_TIMECONSTANT);
+    }
+
+    /**
+     * @param timeConstant Seconds for the heading to converge to a steady magnetometer azimuth,
+     *                     larger values trust the gyroscope more
+     * */
+    public HeadingFusion(float timeConstant) {
+        m_timeConstant = timeConstant;
+        reset();
+    }
+
+    public void reset() {
+        m_hasGravity = false;
+        m_hasGyro = false;
+        m_hasHeading = false;
+        m_heading = 0;
+        m_magnAzimut = 0;
+    }
+
+    public boolean hasHeading() {
+        return m_hasHeading;
+    }
+
+    /**
+     * @return The fused heading in radians, in [-PI, PI], clockwise from the magnetic north.
+     * */
+    public float getHeading() {
+        return (float) m_heading;
+    }
+
+    /**
+     * @return The last azimuth computed from the accelerometer and the magnetometer alone.
+     * */
+    public float getMagnAzimut() {
+        return m_magnAzimut;
+    }
+
+    /**
+     * @param timeStamp Sample time in ns
+     * */
+    public void onAcceValue(long timeStamp, float x, float y, float z) {
+        if (!m_hasGravity) {
+            m_gravityX = x;
+            m_gravityY = y;
+            m_gravityZ = z;
+            m_hasGravity = true;
+            return;
+        }
+        m_gravityX = GRAVITY_SMOOTHING * m_gravityX + (1 - GRAVITY_SMOOTHING) * x;
+        m_gravityY = GRAVITY_SMOOTHING * m_gravityY + (1 - GRAVITY_SMOOTHING) * y;
+        m_gravityZ = GRAVITY_SMOOTHING * m_gravityZ + (1 - GRAVITY_SMOOTHING) * z;
+    }
+
+    /**
+     * @param timeStamp Sample time in ns
+     * */
+    public void onGyroValue(long timeStamp, float x, float y, float z) {
+        if (!m_hasGyro) {
+            m_hasGyro = true;
+            m_lastGyroTime = timeStamp;
+            return;
+        }
+        long interval = timeStamp - m_lastGyroTime;
+        m_lastGyroTime = timeStamp;
+        if (!m_hasHeading || !m_hasGravity || interval <= 0 || interval > GYRO_MAXGAP) {
+            return;
+        }
+        double gravityNorm = Math.sqrt(m_gravityX * m_gravityX + m_gravityY * m_gravityY + m_gravityZ * m_gravityZ);
+        if (gravityNorm < 0.1) {
+            return;
+        }
+        // The rotation around the upward axis is counter-clockwise positive, the azimuth is clockwise.
+        double yawRate = -(x * m_gravityX + y * m_gravityY + z * m_gravityZ) / gravityNorm;
+        m_heading = wrap(m_heading + yawRate * interval * 1e-9);
+    }
+
+    /**
+     * @param timeStamp Sample time in ns
+     * */
+    public void onMagnValue(long timeStamp, float x, float y, float z) {
+        m_magnX = x;
+        m_magnY = y;
+        m_magnZ = z;
+        if (!m_hasGravity || !computeMagnAzimut()) {
+            return;
+        }
+        if (!m_hasHeading || !m_hasGyro) {
+            m_heading = m_magnAzimut;
+            m_hasHeading = true;
+        }
+        else {
+            double interval = (timeStamp - m_lastCorrectionTime) * 1e-9;
+            double gain = interval <= 0 ? 0 : interval / (m_timeConstant + interval);
+            m_heading = wrap(m_heading + gain * wrap(m_magnAzimut - m_heading));
+        }
+        m_lastCorrectionTime = timeStamp;
+    }
+
+    /**
+     * Tilt-compensated azimuth, see SensorManager.getRotationMatrix().
+     * @return False when the device is in free fall or close to the magnetic pole
+     * */
+    private boolean computeMagnAzimut() {
+        float ax = m_gravityX, ay = m_gravityY, az = m_gravityZ;
+        float ex = m_magnX, ey = m_magnY, ez = m_magnZ;
+        float normA = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+        if (normA < 0.1f * 9.81f) {
+            return false;
+        }
+        // H = E x A points east, M = A x H points north.
+        float hx = ey * az - ez * ay;
+        float hy = ez * ax - ex * az;
+        float hz = ex * ay - ey * ax;
+        float normH = (float) Math.sqrt(hx * hx + hy * hy + hz * hz);
+        if (normH < 0.1f) {
+            return false;
+        }
+        float invH = 1.0f / normH;
+        hy *= invH;
+        float invA = 1.0f / normA;
+        ax *= invA;
+        az *= invA;
+        float my = az * (hx * invH) - ax * (hz * invH);
+        m_magnAzimut = (float) Math.atan2(hy, my);
+        return true;
+    }
+
+    private static double wrap(double angle) {
+        while (angle > Math.PI) {
+            angle -= TWO_PI;
+        }
+        while (angle < -Math.PI) {
+            angle += TWO_PI;
+        }
+        return angle;
+    }
+}
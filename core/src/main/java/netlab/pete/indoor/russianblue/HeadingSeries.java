@@ -0,0 +1,123 @@
+package netlab.pete.indoor.russianblue;
+
+/**
+ * Time-indexed series of heading (azimuth in radians) with bounded retention.
+ * Samples live in a primitive ring, the oldest ones are overwritten once it is full.
+ * Lookups by timestamp start from a cursor, which makes the usual increasing queries
+ * amortized O(1), and fall back to a binary search otherwise. Interpolation is done on the
+ * unit circle, so it stays correct across the +/-PI wraparound.
+ * Samples must be added in timestamp order. Not thread safe.
+ */
+
+public class HeadingSeries {
+    // About 160 seconds of fused headings, PdrPipeline adds one every HEADING_MININTERVAL at most.
+    public final static int DEFAULT_CAPACITY = 8192;
+
+    private final int m_capacity;
+    private final long [] m_timeStamps;
+    private final float [] m_azimuts;
+    // Ring position of the oldest sample
+    private int m_start;
+    private int m_count;
+    // Logical index of the first sample later than the last query
+    private int m_cursor;
+
+    public HeadingSeries() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public HeadingSeries(int capacity) {
+        m_capacity = capacity;
+        m_timeStamps = new long[capacity];
+        m_azimuts = new float[capacity];
+        clear();
+    }
+
+    public void clear() {
+        m_start = 0;
+        m_count = 0;
+        m_cursor = 0;
+    }
+
+    public int size() {
+        return m_count;
+    }
+
+    public void add(long timeStamp, float azimut) {
+        if (m_count == m_capacity) {
+            // Overwrite the oldest sample, logical indices shift down by one.
+            m_timeStamps[m_start] = timeStamp;
+            m_azimuts[m_start] = azimut;
+            m_start = (m_start + 1) % m_capacity;
+            m_cursor = Math.max(0, m_cursor - 1);
+        }
+        else {
+            int position = (m_start + m_count) % m_capacity;
+            m_timeStamps[position] = timeStamp;
+            m_azimuts[position] = azimut;
+            m_count = m_count + 1;
+        }
+    }
+
+    private long timeAt(int index) {
+        return m_timeStamps[(m_start + index) % m_capacity];
+    }
+
+    private float azimutAt(int index) {
+        return m_azimuts[(m_start + index) % m_capacity];
+    }
+
+    /**
+     * @return The logical index of the first sample later than timeStamp, m_count if there is none.
+     * */
+    private int upperBound(long timeStamp) {
+        int cursor = m_cursor;
+        if ((cursor == 0 || timeAt(cursor - 1) <= timeStamp)
+                && (cursor == m_count || timeAt(cursor) > timeStamp)) {
+            return cursor;
+        }
+        // Usually a step or two ahead of the last query.
+        if (cursor < m_count && timeAt(cursor) <= timeStamp
+                && (cursor + 1 == m_count || timeAt(cursor + 1) > timeStamp)) {
+            return cursor + 1;
+        }
+        int low = 0;
+        int high = m_count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timeAt(middle) <= timeStamp) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The heading at timeStamp interpolated between its two neighbours, the first or
+     * last heading outside the retained range, or NaN if the series is empty.
+     * */
+    public float getHeading(long timeStamp) {
+        if (m_count == 0) {
+            return Float.NaN;
+        }
+        int next = upperBound(timeStamp);
+        m_cursor = next;
+        if (next == 0) {
+            return azimutAt(0);
+        }
+        if (next == m_count) {
+            return azimutAt(m_count - 1);
+        }
+        long preTime = timeAt(next - 1);
+        long nextTime = timeAt(next);
+        float preAzimut = azimutAt(next - 1);
+        float nextAzimut = azimutAt(next);
+        double weight = nextTime == preTime ? 0.5 : (double) (timeStamp - preTime) / (nextTime - preTime);
+        double sin = (1 - weight) * Math.sin(preAzimut) + weight * Math.sin(nextAzimut);
+        double cos = (1 - weight) * Math.cos(preAzimut) + weight * Math.cos(nextAzimut);
+        return (float) Math.atan2(sin, cos);
+    }
+}
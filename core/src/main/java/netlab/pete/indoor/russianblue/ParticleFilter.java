@@ -0,0 +1,352 @@
+package netlab.pete.indoor.russianblue;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Particle filter over the walking position. Each detected step moves every particle by a noisy
+ * step length along a noisy heading, each particle also carries its own slowly drifting heading
+ * offset, bounded to OFFSET_LIMIT, to absorb the compass bias. Each WiFi fix reweights the particles with a gaussian
+ * likelihood, and the particles are resampled (systematic resampling) once the effective sample
+ * size falls under half of the particle count.
+ * <p>
+ * The state lives in structure-of-arrays primitive buffers allocated once, and nothing is
+ * allocated per step or per fix. With a fork-join pool the predict and reweight passes are split
+ * into preallocated chunk tasks, each with its own random generator, reused through reinitialize().
+ * Calls must come from one thread.
+ */
+
+public class ParticleFilter {
+    public final static float DEFAULT_STEPLENGTHSIGMA = 0.1f;   // m
+    public final static float DEFAULT_HEADINGSIGMA = 0.15f;     // rad
+    // Random walk of the heading offset of a particle at each step, in radians.
+    public final static float DEFAULT_OFFSETSIGMA = 0.02f;
+    // Bound of the heading offset of a particle, where the series of predict() stays accurate.
+    private final static float OFFSET_LIMIT = 0.8f;
+    // Standard deviation of the sum of four uniforms is 1 / sqrt(3).
+    private final static float IRWINHALL_SCALE = (float) Math.sqrt(3);
+    // Below this many particles per chunk, splitting costs more than it saves.
+    private final static int CHUNK_MINPARTICLES = 2048;
+
+    private final int m_particleCount;
+    private float [] m_liveX;
+    private float [] m_liveY;
+    private float [] m_liveOffsets;
+    private final float [] m_weights;
+    // Resampling targets, swapped with the live buffers
+    private float [] m_resampledX;
+    private float [] m_resampledY;
+    private float [] m_resampledOffsets;
+
+    private float m_stepLengthSigma;
+    private float m_headingSigma;
+    private float m_offsetSigma;
+
+    private final ForkJoinPool m_pool;
+    private final Chunk [] m_chunks;
+    private final RecursiveAction m_root;
+    private final long m_seed;
+    private boolean m_initialized;
+    private float m_estimateX;
+    private float m_estimateY;
+
+    // Pass the chunks run and its parameters, set before the pool is invoked.
+    private final static int PASS_PREDICT = 0;
+    private final static int PASS_REWEIGHT = 1;
+    private int m_pass;
+    private float m_passLength;
+    private float m_passHeading;
+    private float m_passX;
+    private float m_passY;
+    private float m_passInvVariance;
+
+    public ParticleFilter(int particleCount, long seed) {
+        this(particleCount, seed, null);
+    }
+
+    /**
+     * @param pool Pool running the update in chunks, null to run on the calling thread
+     * */
+    public ParticleFilter(int particleCount, long seed, ForkJoinPool pool) {
+        m_particleCount = particleCount;
+        m_liveX = new float[particleCount];
+        m_liveY = new float[particleCount];
+        m_liveOffsets = new float[particleCount];
+        m_resampledX = new float[particleCount];
+        m_resampledY = new float[particleCount];
+        m_resampledOffsets = new float[particleCount];
+        m_weights = new float[particleCount];
+        m_stepLengthSigma = DEFAULT_STEPLENGTHSIGMA;
+        m_headingSigma = DEFAULT_HEADINGSIGMA;
+        m_offsetSigma = DEFAULT_OFFSETSIGMA;
+        m_seed = seed;
+
+        int chunkCount = 1;
+        if (pool != null) {
+            chunkCount = Math.max(1, Math.min(pool.getParallelism(), particleCount / CHUNK_MINPARTICLES));
+        }
+        m_pool = chunkCount > 1 ? pool : null;
+        m_chunks = new Chunk[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            m_chunks[i] = new Chunk(particleCount * i / chunkCount, particleCount * (i + 1) / chunkCount,
+                    seed + 0x9E3779B97F4A7C15L * (i + 1));
+        }
+        m_root = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(m_chunks);
+            }
+        };
+        m_initialized = false;
+    }
+
+    public void setNoise(float stepLengthSigma, float headingSigma, float offsetSigma) {
+        m_stepLengthSigma = stepLengthSigma;
+        m_headingSigma = headingSigma;
+        m_offsetSigma = offsetSigma;
+    }
+
+    public int getParticleCount() {
+        return m_particleCount;
+    }
+
+    public boolean isInitialized() {
+        return m_initialized;
+    }
+
+    public float getX() {
+        return m_estimateX;
+    }
+
+    public float getY() {
+        return m_estimateY;
+    }
+
+    /**
+     * @return The effective sample size, 1 / sum of the squared weights, the particle count with
+     * uniform weights. Resampling happens when a fix brings it under half of the particle count.
+     * */
+    public float getEffectiveSampleSize() {
+        if (!m_initialized) {
+            return m_particleCount;
+        }
+        double squareSum = 0;
+        for (int i = 0; i < m_particleCount; i++) {
+            squareSum += m_weights[i] * m_weights[i];
+        }
+        return (float) (1.0 / squareSum);
+    }
+
+    /**
+     * Spread the particles around (x, y) with uniform weights.
+     * */
+    public void reset(float x, float y, float sigma) {
+        Chunk chunk = m_chunks[0];
+        chunk.m_random = m_seed == 0 ? 1 : m_seed;
+        for (int i = 0; i < m_particleCount; i++) {
+            m_liveX[i] = x + sigma * chunk.nextGaussian();
+            m_liveY[i] = y + sigma * chunk.nextGaussian();
+            m_liveOffsets[i] = 0.f;
+            m_weights[i] = 1.f / m_particleCount;
+        }
+        m_estimateX = x;
+        m_estimateY = y;
+        m_initialized = true;
+    }
+
+    /**
+     * Move the particles by one step.
+     * @param heading Step heading in radians, clockwise from the north
+     * */
+    public void predict(float stepLength, float heading) {
+        if (!m_initialized) {
+            reset(0.f, 0.f, 0.f);
+        }
+        m_pass = PASS_PREDICT;
+        m_passLength = stepLength;
+        m_passHeading = heading;
+        run();
+        updateEstimate();
+    }
+
+    /**
+     * Move every particle by the same offset.
+     * */
+    public void translate(float dx, float dy) {
+        if (!m_initialized) {
+            return;
+        }
+        for (int i = 0; i < m_particleCount; i++) {
+            m_liveX[i] += dx;
+            m_liveY[i] += dy;
+        }
+        m_estimateX += dx;
+        m_estimateY += dy;
+    }
+
+    /**
+     * Reweight the particles with a position fix.
+     * @param sigma Standard deviation of the fix, in meters
+     * */
+    public void correct(float x, float y, float sigma) {
+        if (!m_initialized) {
+            reset(x, y, sigma);
+            return;
+        }
+        m_pass = PASS_REWEIGHT;
+        m_passX = x;
+        m_passY = y;
+        m_passInvVariance = 1.f / (2 * sigma * sigma);
+        run();
+        double sum = 0;
+        for (Chunk chunk : m_chunks) {
+            sum += chunk.m_weightSum;
+        }
+        if (!(sum > 1e-30)) {
+            // The fix is far from every particle, start over around it.
+            reset(x, y, sigma);
+            return;
+        }
+        double squareSum = 0;
+        float scale = (float) (1.0 / sum);
+        for (int i = 0; i < m_particleCount; i++) {
+            float weight = m_weights[i] * scale;
+            m_weights[i] = weight;
+            squareSum += weight * weight;
+        }
+        if (1.0 / squareSum < m_particleCount / 2) {
+            resample();
+        }
+        updateEstimate();
+    }
+
+    private void run() {
+        if (m_pool == null) {
+            m_chunks[0].compute();
+            return;
+        }
+        for (Chunk chunk : m_chunks) {
+            chunk.reinitialize();
+        }
+        m_root.reinitialize();
+        m_pool.invoke(m_root);
+    }
+
+    /**
+     * Systematic resampling: one random offset, then particles are picked at regular
+     * intervals of the cumulative weights.
+     * */
+    private void resample() {
+        Chunk chunk = m_chunks[0];
+        double interval = 1.0 / m_particleCount;
+        double position = chunk.nextFloat() * interval;
+        double cumulative = m_weights[0];
+        int source = 0;
+        for (int i = 0; i < m_particleCount; i++) {
+            while (position > cumulative && source < m_particleCount - 1) {
+                source = source + 1;
+                cumulative += m_weights[source];
+            }
+            m_resampledX[i] = m_liveX[source];
+            m_resampledY[i] = m_liveY[source];
+            m_resampledOffsets[i] = m_liveOffsets[source];
+            position += interval;
+        }
+        float [] swap = m_liveX;
+        m_liveX = m_resampledX;
+        m_resampledX = swap;
+        swap = m_liveY;
+        m_liveY = m_resampledY;
+        m_resampledY = swap;
+        swap = m_liveOffsets;
+        m_liveOffsets = m_resampledOffsets;
+        m_resampledOffsets = swap;
+        for (int i = 0; i < m_particleCount; i++) {
+            m_weights[i] = (float) interval;
+        }
+    }
+
+    private void updateEstimate() {
+        double sumX = 0, sumY = 0;
+        for (int i = 0; i < m_particleCount; i++) {
+            sumX += m_weights[i] * m_liveX[i];
+            sumY += m_weights[i] * m_liveY[i];
+        }
+        m_estimateX = (float) sumX;
+        m_estimateY = (float) sumY;
+    }
+
+    /**
+     * A fixed range of particles with its own xorshift generator.
+     */
+    private class Chunk extends RecursiveAction {
+        private final static long serialVersionUID = 1L;
+
+        private final int m_start;
+        private final int m_end;
+        private long m_random;
+        private double m_weightSum;
+
+        Chunk(int start, int end, long seed) {
+            m_start = start;
+            m_end = end;
+            m_random = seed == 0 ? 1 : seed;
+        }
+
+        float nextFloat() {
+            m_random ^= m_random << 13;
+            m_random ^= m_random >>> 7;
+            m_random ^= m_random << 17;
+            return (m_random >>> 40) * (1.f / (1 << 24));
+        }
+
+        /**
+         * Approximate standard normal value, the centered sum of four 16 bit uniforms of one
+         * generator step (Irwin-Hall). Tails are cut at 3.5 sigma, which is fine for process noise.
+         * */
+        float nextGaussian() {
+            m_random ^= m_random << 13;
+            m_random ^= m_random >>> 7;
+            m_random ^= m_random << 17;
+            long bits = m_random;
+            int sum = (int) (bits & 0xffff) + (int) ((bits >>> 16) & 0xffff)
+                    + (int) ((bits >>> 32) & 0xffff) + (int) (bits >>> 48);
+            return (sum * (1.f / 65536) - 2.f) * IRWINHALL_SCALE;
+        }
+
+        @Override
+        protected void compute() {
+            float [] x = m_liveX;
+            float [] y = m_liveY;
+            float [] offsets = m_liveOffsets;
+            if (m_pass == PASS_PREDICT) {
+                // sin(h + d) and cos(h + d) from the step heading h and a series in the small
+                // per-particle deviation d, instead of two trigonometric calls per particle.
+                float sinHeading = (float) Math.sin(m_passHeading);
+                float cosHeading = (float) Math.cos(m_passHeading);
+                for (int i = m_start; i < m_end; i++) {
+                    float offset = offsets[i] + m_offsetSigma * nextGaussian();
+                    offset = Math.max(-OFFSET_LIMIT, Math.min(OFFSET_LIMIT, offset));
+                    offsets[i] = offset;
+                    float length = m_passLength + m_stepLengthSigma * nextGaussian();
+                    float d = offset + m_headingSigma * nextGaussian();
+                    float d2 = d * d;
+                    float sinD = d * (1.f - d2 / 6.f * (1.f - d2 / 20.f));
+                    float cosD = 1.f - d2 / 2.f * (1.f - d2 / 12.f * (1.f - d2 / 30.f));
+                    x[i] += length * (sinHeading * cosD + cosHeading * sinD);
+                    y[i] += length * (cosHeading * cosD - sinHeading * sinD);
+                }
+                return;
+            }
+            double sum = 0;
+            for (int i = m_start; i < m_end; i++) {
+                float dx = x[i] - m_passX;
+                float dy = y[i] - m_passY;
+                float weight = m_weights[i] * (float) Math.exp(-(dx * dx + dy * dy) * m_passInvVariance);
+                m_weights[i] = weight;
+                sum += weight;
+            }
+            m_weightSum = sum;
+        }
+    }
+}
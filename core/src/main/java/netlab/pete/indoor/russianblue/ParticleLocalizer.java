@@ -0,0 +1,113 @@
+package netlab.pete.indoor.russianblue;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Fuses the dead reckoning steps of a {@link PdrPipeline} with WiFi fixes from a
+ * {@link FingerprintMap} in a {@link ParticleFilter}. Register it as position listener of the
+ * pipeline and give it the WiFi scans, in time order, from the thread running the pipeline.
+ * Its own position listeners receive the fused position after every step.
+ * The offline replay gives it the scans of a trace, the step engine on the device the scans of the
+ * scan thread, handed over with their BSSIDs already looked up in the map.
+ */
+
+public class ParticleLocalizer implements PdrPipeline.OnPositionListener, TraceReplayer.OnWifiScanListener {
+    public final static int DEFAULT_PARTICLECOUNT = 2000;
+    // Standard deviation of a WiFi fix, in meters.
+    public final static float DEFAULT_FIXSIGMA = 4.f;
+
+    private final PdrPipeline m_pipeline;
+    private final FingerprintMap m_map;
+    private final ParticleFilter m_filter;
+    private final FingerprintMap.Query m_query;
+    private final ArrayList<PdrPipeline.OnPositionListener> m_positionListeners;
+    private float m_fixSigma;
+    private int m_fixCount;
+    // Dead reckoning position of the last step
+    private float m_stepX;
+    private float m_stepY;
+
+    public ParticleLocalizer(PdrPipeline pipeline, FingerprintMap map, int particleCount, ForkJoinPool pool) {
+        m_pipeline = pipeline;
+        m_map = map;
+        m_filter = new ParticleFilter(particleCount, 1, pool);
+        m_query = map.new Query();
+        m_positionListeners = new ArrayList<>();
+        m_fixSigma = DEFAULT_FIXSIGMA;
+        m_fixCount = 0;
+    }
+
+    public void setFixSigma(float sigma) {
+        m_fixSigma = sigma;
+    }
+
+    public void addPositionListener(PdrPipeline.OnPositionListener listener) {
+        m_positionListeners.add(listener);
+    }
+
+    public void removePositionListener(PdrPipeline.OnPositionListener listener) {
+        m_positionListeners.remove(listener);
+    }
+
+    public FingerprintMap getMap() {
+        return m_map;
+    }
+
+    public float getX() {
+        return m_filter.getX();
+    }
+
+    public float getY() {
+        return m_filter.getY();
+    }
+
+    /**
+     * @return The number of WiFi scans located in the map.
+     * */
+    public int getFixCount() {
+        return m_fixCount;
+    }
+
+    @Override
+    public void onPosition(int stepCount, long timeStamp, float x, float y, float heading) {
+        m_filter.predict(m_pipeline.getLastStepLength(), heading);
+        m_stepX = x;
+        m_stepY = y;
+        for (int i = 0; i < m_positionListeners.size(); i++) {
+            m_positionListeners.get(i).onPosition(stepCount, timeStamp, m_filter.getX(), m_filter.getY(), heading);
+        }
+    }
+
+    @Override
+    public void onPositionUpdated(int stepCount, long timeStamp, float x, float y, float heading) {
+        // The particles already carry the noise of the step, only its correction is applied.
+        m_filter.translate(x - m_stepX, y - m_stepY);
+        m_stepX = x;
+        m_stepY = y;
+        for (int i = 0; i < m_positionListeners.size(); i++) {
+            m_positionListeners.get(i).onPositionUpdated(stepCount, timeStamp, m_filter.getX(), m_filter.getY(), heading);
+        }
+    }
+
+    @Override
+    public void onWifiScan(long timeStamp, int apCount, int [] bssidIds, int [] levels, BssidDictionary dictionary) {
+        if (m_query.locate(apCount, bssidIds, levels, dictionary)) {
+            correct();
+        }
+    }
+
+    /**
+     * Fuse a WiFi scan whose BSSIDs are ids of the map, -1 for those it does not know.
+     * */
+    public void onWifiScan(long timeStamp, int apCount, int [] bssidIds, int [] levels) {
+        if (m_query.locate(apCount, bssidIds, levels)) {
+            correct();
+        }
+    }
+
+    private void correct() {
+        m_fixCount = m_fixCount + 1;
+        m_filter.correct(m_query.getX(), m_query.getY(), m_fixSigma);
+    }
+}
@@ -0,0 +1,289 @@
+package netlab.pete.indoor.russianblue;
+
+import java.util.ArrayList;
+
+/**
+ * Pedestrian dead reckoning pipeline, free of any Android dependency so the same code runs
+ * on the device and in offline replays: raw accelerometer magnitudes are resampled to a fixed
+ * rate, go through the sliding window filter into the step detector, so the detection does not
+ * depend on the device sample rate, gyroscope and magnetometer samples go into the heading
+ * fusion, and every detected step advances the position by the step length along the
+ * heading at the step time. The step length is fixed, or estimated for each step by a
+ * {@link StepLengthModel}.
+ * Timestamps are wall time in ms. All calls must come from one thread.
+ */
+
+public class PdrPipeline implements StepDetector.OnStepListener {
+    // Minimum interval between two fused headings added to the heading series, in ms.
+    public final static long HEADING_MININTERVAL = 20;
+
+    public interface OnPositionListener {
+        /**
+         * A step moved the position.
+         * @param heading The heading used for this step, in radians
+         * */
+        void onPosition(int stepCount, long timeStamp, float x, float y, float heading);
+
+        /**
+         * The last step has been moved to a higher peak, its time, heading and length changed.
+         * @param x The corrected position, replacing the one of the last onPosition()
+         * */
+        void onPositionUpdated(int stepCount, long timeStamp, float x, float y, float heading);
+    }
+
+    /**
+     * Receives the intermediate streams, for debugging and recording.
+     */
+    public interface OnDerivedSampleListener {
+        void onFilteredValue(long timeStamp, float value);
+        void onDirectionValue(long timeStamp, float azimut);
+    }
+
+    private AcceResampler m_acceResampler;
+    private SlidingWindowFilter m_acceFilter;
+    private final StepDetector m_stepDetector;
+    private final HeadingFusion m_headingFusion;
+    private final HeadingSeries m_headingSeries;
+    private final ArrayList<OnPositionListener> m_positionListeners;
+    private OnDerivedSampleListener m_derivedSampleListener;
+
+    private float m_stepLength;
+    private StepLengthModel m_stepLengthModel;
+    private float m_lastStepLength;
+    private float m_currentX;
+    private float m_currentY;
+    // Position before the last step, the start of a corrected last step.
+    private float m_lastStartX;
+    private float m_lastStartY;
+    private double m_distance;
+    private boolean m_headingDirty;
+    private long m_lastHeadingTime;
+
+    public PdrPipeline(float stepLength) {
+        this(stepLength, new SlidingWindowFilter(), new StepDetector(), new HeadingFusion());
+    }
+
+    /**
+     * @param acceFilter Filter of the resampled magnitudes, its window size counts periods of
+     *                   AcceResampler.DEFAULT_PERIOD
+     * */
+    public PdrPipeline(float stepLength, SlidingWindowFilter acceFilter,
+                       StepDetector stepDetector, HeadingFusion headingFusion) {
+        m_stepLength = stepLength;
+        m_stepLengthModel = null;
+        m_acceResampler = new AcceResampler();
+        m_acceFilter = acceFilter;
+        m_stepDetector = stepDetector;
+        m_headingFusion = headingFusion;
+        m_headingSeries = new HeadingSeries();
+        m_positionListeners = new ArrayList<>();
+        m_derivedSampleListener = null;
+        m_stepDetector.addListener(this);
+        reset();
+    }
+
+    public void reset() {
+        if (m_acceResampler != null) {
+            m_acceResampler.reset();
+        }
+        m_acceFilter.reset();
+        if (m_stepLengthModel != null) {
+            m_stepLengthModel.reset();
+        }
+        m_stepDetector.reset();
+        m_headingFusion.reset();
+        m_headingSeries.clear();
+        m_currentX = 0.f;
+        m_currentY = 0.f;
+        m_lastStartX = 0.f;
+        m_lastStartY = 0.f;
+        m_distance = 0;
+        m_lastStepLength = m_stepLength;
+        m_headingDirty = false;
+        m_lastHeadingTime = -HEADING_MININTERVAL;
+    }
+
+    public void setAcceFilter(SlidingWindowFilter acceFilter) {
+        m_acceFilter = acceFilter;
+    }
+
+    /**
+     * @param acceResampler Resampling stage in front of the filter, null to filter the raw samples
+     * */
+    public void setAcceResampler(AcceResampler acceResampler) {
+        m_acceResampler = acceResampler;
+    }
+
+    public void setStepLength(float stepLength) {
+        m_stepLength = stepLength;
+    }
+
+    public float getStepLength() {
+        return m_stepLength;
+    }
+
+    /**
+     * @param stepLengthModel Estimates the length of each step, null for the fixed step length
+     * */
+    public void setStepLengthModel(StepLengthModel stepLengthModel) {
+        m_stepLengthModel = stepLengthModel;
+    }
+
+    public StepLengthModel getStepLengthModel() {
+        return m_stepLengthModel;
+    }
+
+    /**
+     * @return The length of the last step in meters, the fixed step length before the first step.
+     * */
+    public float getLastStepLength() {
+        return m_lastStepLength;
+    }
+
+    public void addStepListener(StepDetector.OnStepListener listener) {
+        m_stepDetector.addListener(listener);
+    }
+
+    public void removeStepListener(StepDetector.OnStepListener listener) {
+        m_stepDetector.removeListener(listener);
+    }
+
+    public void addPositionListener(OnPositionListener listener) {
+        m_positionListeners.add(listener);
+    }
+
+    public void removePositionListener(OnPositionListener listener) {
+        m_positionListeners.remove(listener);
+    }
+
+    public void setDerivedSampleListener(OnDerivedSampleListener listener) {
+        m_derivedSampleListener = listener;
+    }
+
+    public int getStepCount() {
+        return m_stepDetector.getStepCount();
+    }
+
+    public float getCurrentX() {
+        return m_currentX;
+    }
+
+    public float getCurrentY() {
+        return m_currentY;
+    }
+
+    /**
+     * @return The walked distance in meters.
+     * */
+    public double getDistance() {
+        return m_distance;
+    }
+
+    public void onAcceValue(long timeStamp, float x, float y, float z) {
+        m_headingFusion.onAcceValue(timeStamp * 1000000L, x, y, z);
+        float magnitude = (float)Math.sqrt(x * x + y * y + z * z);
+        if (m_acceResampler == null) {
+            filterMagnitude(timeStamp, magnitude);
+            return;
+        }
+        int count = m_acceResampler.resample(timeStamp, magnitude);
+        for (int i = 0; i < count; i++) {
+            filterMagnitude(m_acceResampler.getTimeStamp(i), m_acceResampler.getValue(i));
+        }
+    }
+
+    private void filterMagnitude(long timeStamp, float magnitude) {
+        // Sliding window algorithm to filter the accelerometer data.
+        if (!m_acceFilter.filter(timeStamp, magnitude)) {
+            return;
+        }
+        if (m_stepLengthModel != null) {
+            m_stepLengthModel.onFilteredValue(m_acceFilter.getTimeStamp(), m_acceFilter.getValue());
+        }
+        if (m_derivedSampleListener != null) {
+            m_derivedSampleListener.onFilteredValue(m_acceFilter.getTimeStamp(), m_acceFilter.getValue());
+        }
+        // Peak/valley detection runs inline, steps are reported as soon as their peak is passed.
+        m_stepDetector.feed(m_acceFilter.getTimeStamp(), m_acceFilter.getValue());
+    }
+
+    public void onGyroValue(long timeStamp, float x, float y, float z) {
+        m_headingFusion.onGyroValue(timeStamp * 1000000L, x, y, z);
+        m_headingDirty = true;
+        updateHeading(timeStamp);
+    }
+
+    public void onMagnValue(long timeStamp, float x, float y, float z) {
+        m_headingFusion.onMagnValue(timeStamp * 1000000L, x, y, z);
+        m_headingDirty = true;
+        updateHeading(timeStamp);
+    }
+
+    /**
+     * Add a heading computed outside of the pipeline.
+     * */
+    public void onDirectionValue(long timeStamp, float azimut) {
+        m_headingSeries.add(timeStamp, azimut);
+        if (m_derivedSampleListener != null) {
+            m_derivedSampleListener.onDirectionValue(timeStamp, azimut);
+        }
+    }
+
+    /**
+     * Add the fused heading if it changed and the last one is older than HEADING_MININTERVAL.
+     * */
+    private void updateHeading(long timeStamp) {
+        if (!m_headingFusion.hasHeading() || !m_headingDirty
+                || timeStamp - m_lastHeadingTime < HEADING_MININTERVAL) {
+            return;
+        }
+        m_headingDirty = false;
+        m_lastHeadingTime = timeStamp;
+        onDirectionValue(timeStamp, m_headingFusion.getHeading());
+    }
+
+    @Override
+    public void onStep(int stepCount, long timeStamp, float peakValue) {
+        // Get orientation for this step
+        float azimut = getOrientation(timeStamp);
+        float stepLength = m_stepLength;
+        if (m_stepLengthModel != null) {
+            stepLength = m_stepLengthModel.onStep(timeStamp, peakValue);
+        }
+        m_lastStepLength = stepLength;
+        m_lastStartX = m_currentX;
+        m_lastStartY = m_currentY;
+        m_currentX = m_currentX + stepLength * (float)Math.sin(azimut);
+        m_currentY = m_currentY + stepLength * (float)Math.cos(azimut);
+        m_distance = m_distance + stepLength;
+        for (int i = 0; i < m_positionListeners.size(); i++) {
+            m_positionListeners.get(i).onPosition(stepCount, timeStamp, m_currentX, m_currentY, azimut);
+        }
+    }
+
+    @Override
+    public void onStepUpdated(int stepCount, long timeStamp, float peakValue) {
+        // Redo the last step from where it started, with the heading at the new peak.
+        float azimut = getOrientation(timeStamp);
+        float stepLength = m_lastStepLength;
+        if (m_stepLengthModel != null) {
+            stepLength = m_stepLengthModel.onStepUpdated(timeStamp, peakValue);
+        }
+        m_distance = m_distance - m_lastStepLength + stepLength;
+        m_lastStepLength = stepLength;
+        m_currentX = m_lastStartX + stepLength * (float)Math.sin(azimut);
+        m_currentY = m_lastStartY + stepLength * (float)Math.cos(azimut);
+        for (int i = 0; i < m_positionListeners.size(); i++) {
+            m_positionListeners.get(i).onPositionUpdated(stepCount, timeStamp, m_currentX, m_currentY, azimut);
+        }
+    }
+
+    private float getOrientation(long timeStamp) {
+        float azimut = m_headingSeries.getHeading(timeStamp);
+        if (Float.isNaN(azimut)) {
+            // No orientation yet, the magnetometer has not reported.
+            return 0.f;
+        }
+        return azimut;
+    }
+}
@@ -0,0 +1,144 @@
+package netlab.pete.indoor.russianblue;
+
+/**
+ * Merges several sensor streams, each in timestamp order, into one stream in timestamp order.
+ * A batched sensor hub delivers the events of a batch grouped by sensor, or interleaved in no
+ * particular order across sensors, while the pipeline needs them by time. Each stream keeps its
+ * pending samples in a preallocated ring, and a sample is released once every enabled stream has
+ * reached its time, so no later sample of another stream can come before it.
+ * <p>
+ * A stream which goes quiet would hold the others back: samples older than the newest one by more
+ * than the maximum lag, or overflowing the ring of their stream, are released anyway.
+ * Not synchronized, all calls must come from one thread.
+ */
+
+public class SampleMerger {
+    public final static int VALUE_COUNT = SpscSampleRing.VALUE_COUNT;
+
+    private final int m_streamCount;
+    private final int m_capacity;
+    private final long m_maxLag;
+    // Stream s holds its pending samples in [s * m_capacity, (s + 1) * m_capacity), as a ring.
+    private final long [] m_timeStamps;
+    private final float [] m_values;
+    private final int [] m_heads;
+    private final int [] m_counts;
+    private final boolean [] m_enabled;
+    // Time of the last sample added to each stream
+    private final long [] m_lastTimeStamps;
+    private long m_newestTimeStamp;
+
+    /**
+     * @param streamCount Number of streams, the stream types are 0 ... streamCount - 1
+     * @param capacity Pending samples kept per stream
+     * @param maxLag Longest a sample waits for the other streams, in ms
+     * */
+    public SampleMerger(int streamCount, int capacity, long maxLag) {
+        m_streamCount = streamCount;
+        m_capacity = capacity;
+        m_maxLag = maxLag;
+        m_timeStamps = new long[streamCount * capacity];
+        m_values = new float[streamCount * capacity * VALUE_COUNT];
+        m_heads = new int[streamCount];
+        m_counts = new int[streamCount];
+        m_enabled = new boolean[streamCount];
+        m_lastTimeStamps = new long[streamCount];
+        clear();
+    }
+
+    /**
+     * Drop the pending samples, the enabled streams are kept.
+     * */
+    public void clear() {
+        for (int s = 0; s < m_streamCount; s++) {
+            m_heads[s] = 0;
+            m_counts[s] = 0;
+            m_lastTimeStamps[s] = Long.MIN_VALUE;
+        }
+        m_newestTimeStamp = Long.MIN_VALUE;
+    }
+
+    /**
+     * Wait for the samples of a stream before releasing the others, should be called before the
+     * first sample. A stream sending a sample is enabled by it.
+     * */
+    public void enableStream(int streamType) {
+        m_enabled[streamType] = true;
+    }
+
+    /**
+     * @return The number of samples waiting for the other streams.
+     * */
+    public int size() {
+        int size = 0;
+        for (int s = 0; s < m_streamCount; s++) {
+            size += m_counts[s];
+        }
+        return size;
+    }
+
+    /**
+     * Add a sample, then release the samples whose time every stream has reached.
+     * @param consumer Receives the released samples, in timestamp order
+     * */
+    public void add(int streamType, long timeStamp, float x, float y, float z, SpscSampleRing.Consumer consumer) {
+        m_enabled[streamType] = true;
+        if (m_counts[streamType] == m_capacity) {
+            // Release up to the oldest sample of the full stream.
+            releaseUntil(m_timeStamps[streamType * m_capacity + m_heads[streamType]], consumer);
+        }
+        int slot = streamType * m_capacity + (m_heads[streamType] + m_counts[streamType]) % m_capacity;
+        m_timeStamps[slot] = timeStamp;
+        m_values[slot * VALUE_COUNT] = x;
+        m_values[slot * VALUE_COUNT + 1] = y;
+        m_values[slot * VALUE_COUNT + 2] = z;
+        m_counts[streamType] = m_counts[streamType] + 1;
+        m_lastTimeStamps[streamType] = timeStamp;
+        if (timeStamp > m_newestTimeStamp) {
+            m_newestTimeStamp = timeStamp;
+        }
+        // The earliest time the enabled streams have all reached, no earlier than the lag allows.
+        long watermark = Long.MAX_VALUE;
+        for (int s = 0; s < m_streamCount; s++) {
+            if (m_enabled[s] && m_lastTimeStamps[s] < watermark) {
+                watermark = m_lastTimeStamps[s];
+            }
+        }
+        watermark = Math.max(watermark, m_newestTimeStamp - m_maxLag);
+        releaseUntil(watermark, consumer);
+    }
+
+    /**
+     * Release every pending sample, as when the streams end.
+     * */
+    public void flush(SpscSampleRing.Consumer consumer) {
+        releaseUntil(Long.MAX_VALUE, consumer);
+    }
+
+    /**
+     * Release the pending samples up to a time, the lower stream type first on equal times.
+     * */
+    private void releaseUntil(long timeStamp, SpscSampleRing.Consumer consumer) {
+        while (true) {
+            int next = -1;
+            long nextTime = timeStamp;
+            for (int s = 0; s < m_streamCount; s++) {
+                if (m_counts[s] > 0) {
+                    long headTime = m_timeStamps[s * m_capacity + m_heads[s]];
+                    if (headTime < nextTime || (headTime == nextTime && next < 0)) {
+                        next = s;
+                        nextTime = headTime;
+                    }
+                }
+            }
+            if (next < 0) {
+                return;
+            }
+            int slot = next * m_capacity + m_heads[next];
+            m_heads[next] = (m_heads[next] + 1) % m_capacity;
+            m_counts[next] = m_counts[next] - 1;
+            consumer.onSample(next, m_timeStamps[slot], m_values[slot * VALUE_COUNT],
+                    m_values[slot * VALUE_COUNT + 1], m_values[slot * VALUE_COUNT + 2]);
+        }
+    }
+}
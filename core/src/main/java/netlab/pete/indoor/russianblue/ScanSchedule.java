@@ -0,0 +1,75 @@
+package netlab.pete.indoor.russianblue;
+
+/**
+ * Interval between WiFi scans, adapted to the walking activity. While steps are being detected
+ * the scans run every MOVING_INTERVAL, so the fixes follow the walker. Once no step has been seen
+ * for STATIONARY_TIMEOUT the interval doubles after each scan up to STATIONARY_MAXINTERVAL,
+ * and the first step after a pause asks for a scan right away.
+ * Steps are reported from the step engine thread, the intervals are read on the scan thread.
+ */
+
+public class ScanSchedule implements StepDetector.OnStepListener {
+    public final static long MOVING_INTERVAL = 2000;            // ms
+    public final static long STATIONARY_TIMEOUT = 5000;        // ms
+    public final static long STATIONARY_MAXINTERVAL = 60000;    // ms
+
+    private final long m_movingInterval;
+    private final long m_stationaryMaxInterval;
+    // Wall time of the last step in ms, written by the step engine thread
+    private volatile long m_lastStepTime;
+    // Scan thread side
+    private long m_interval;
+    private long m_lastScanTime;
+
+    public ScanSchedule() {
+        this(MOVING_INTERVAL, STATIONARY_MAXINTERVAL);
+    }
+
+    public ScanSchedule(long movingInterval, long stationaryMaxInterval) {
+        m_movingInterval = movingInterval;
+        m_stationaryMaxInterval = stationaryMaxInterval;
+        reset();
+    }
+
+    public void reset() {
+        m_lastStepTime = Long.MIN_VALUE / 2;
+        m_interval = m_movingInterval;
+        m_lastScanTime = Long.MIN_VALUE / 2;
+    }
+
+    public boolean isMoving(long now) {
+        return now - m_lastStepTime < STATIONARY_TIMEOUT;
+    }
+
+    /**
+     * A scan has been started at now.
+     * @return The delay before the next scan, in ms
+     * */
+    public long onScan(long now) {
+        m_lastScanTime = now;
+        if (isMoving(now)) {
+            m_interval = m_movingInterval;
+        }
+        else {
+            m_interval = Math.min(m_stationaryMaxInterval, m_interval * 2);
+        }
+        return m_interval;
+    }
+
+    /**
+     * @return True if the walker started moving again while the scans are backed off,
+     * and the last scan is older than the moving interval
+     * */
+    public boolean isScanOverdue(long now) {
+        return m_interval > m_movingInterval && isMoving(now) && now - m_lastScanTime >= m_movingInterval;
+    }
+
+    @Override
+    public void onStep(int stepCount, long timeStamp, float peakValue) {
+        m_lastStepTime = timeStamp;
+    }
+
+    @Override
+    public void onStepUpdated(int stepCount, long timeStamp, float peakValue) {
+    }
+}
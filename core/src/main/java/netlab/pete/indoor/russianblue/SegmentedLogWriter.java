@@ -0,0 +1,85 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Buffered text writer for one recording stream which rotates its target file by size or by time.
+ * The first segment is named "prefix_id.txt" as before, the following ones "prefix_id_N.txt".
+ * Rotation only happens at the end of a line, so every segment holds whole records.
+ */
+
+public class SegmentedLogWriter extends Writer {
+    public final static long DEFAULT_SEGMENT_MAXBYTES = 16 * 1024 * 1024;
+    public final static long DEFAULT_SEGMENT_MAXDURATION = 10 * 60 * 1000;   // ms
+    private final static int WRITER_BUFFERSIZE = 32 * 1024;
+
+    private final String m_filePrefix;
+    private final long m_maxBytes;
+    private final long m_maxDuration;
+    private BufferedWriter m_writer;
+    private int m_segmentIndex;
+    private long m_segmentBytes;
+    private long m_segmentStartTime;
+
+    /**
+     * @param filePrefix The absolute path of the segments without the ".txt" suffix
+     * */
+    public SegmentedLogWriter(String filePrefix) throws IOException {
+        this(filePrefix, DEFAULT_SEGMENT_MAXBYTES, DEFAULT_SEGMENT_MAXDURATION);
+    }
+
+    public SegmentedLogWriter(String filePrefix, long maxBytes, long maxDuration) throws IOException {
+        m_filePrefix = filePrefix;
+        m_maxBytes = maxBytes;
+        m_maxDuration = maxDuration;
+        m_segmentIndex = 0;
+        openSegment();
+    }
+
+    public int getSegmentCount() {
+        return m_segmentIndex + 1;
+    }
+
+    private void openSegment() throws IOException {
+        String fileName = m_filePrefix;
+        if (m_segmentIndex > 0) {
+            fileName = fileName + "_" + m_segmentIndex;
+        }
+        File segmentFile = new File(fileName + ".txt");
+        if (!segmentFile.exists()) {
+            segmentFile.createNewFile();
+        }
+        m_writer = new BufferedWriter(new FileWriter(segmentFile), WRITER_BUFFERSIZE);
+        m_segmentBytes = 0;
+        m_segmentStartTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        m_writer.write(cbuf, off, len);
+        // Records are plain ASCII, so one char is one byte.
+        m_segmentBytes += len;
+        if (len > 0 && cbuf[off + len - 1] == '\n') {
+            if (m_segmentBytes >= m_maxBytes
+                    || System.currentTimeMillis() - m_segmentStartTime >= m_maxDuration) {
+                m_writer.close();
+                m_segmentIndex = m_segmentIndex + 1;
+                openSegment();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        m_writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_writer.close();
+    }
+}
@@ -0,0 +1,155 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+
+/**
+ * Columnar store of three-axis sensor samples. Timestamps and axis values are kept in
+ * primitive arrays, grouped into fixed-size chunks, so appending a sample does not
+ * allocate anything except one new chunk every CHUNK_SIZE samples.
+ * The store is a queue between one producer (the sensor thread) and one consumer
+ * (the log flusher), drained chunks are released so memory stays bounded while recording.
+ * Text formatting and trace encoding are deferred to {@link #drainTo(Writer, TraceWriter, int)}.
+ */
+
+public class SensorSampleStore {
+    // Samples per chunk, about 20 seconds of SENSOR_DELAY_GAME data for one sensor.
+    public final static int CHUNK_SIZE = 1024;
+    public final static int AXIS_COUNT = 3;
+
+    private final static class Chunk {
+        private final long [] m_timeStamps = new long[CHUNK_SIZE];
+        private final float [] m_values = new float[CHUNK_SIZE * AXIS_COUNT];
+    }
+
+    // Chunks not fully drained yet, guarded by itself.
+    private final ArrayDeque<Chunk> m_chunks;
+    // Producer side
+    private Chunk m_writeChunk;
+    private int m_writeOffset;
+    // Number of samples appended since the last clear, the volatile write publishes the sample values.
+    private volatile long m_writeCount;
+    // Consumer side
+    private long m_readCount;
+    private final StringBuilder m_strBuf;
+    private char [] m_charBuf;
+
+    public SensorSampleStore() {
+        m_chunks = new ArrayDeque<>();
+        m_strBuf = new StringBuilder(64);
+        m_charBuf = new char[64];
+        clear();
+    }
+
+    /**
+     * Append one sample, only the first AXIS_COUNT values are kept.
+     * Only one thread may append.
+     * */
+    public void append(long timeStamp, final float [] values) {
+        if (m_writeOffset == CHUNK_SIZE) {
+            m_writeChunk = new Chunk();
+            synchronized (m_chunks) {
+                m_chunks.addLast(m_writeChunk);
+            }
+            m_writeOffset = 0;
+        }
+        m_writeChunk.m_timeStamps[m_writeOffset] = timeStamp;
+        int base = m_writeOffset * AXIS_COUNT;
+        int axisCount = Math.min(AXIS_COUNT, values.length);
+        for (int i = 0; i < axisCount; i++) {
+            m_writeChunk.m_values[base + i] = values[i];
+        }
+        m_writeOffset = m_writeOffset + 1;
+        m_writeCount = m_writeCount + 1;
+    }
+
+    /**
+     * @return The number of samples appended since the last clear, drained ones included.
+     * */
+    public long size() {
+        return m_writeCount;
+    }
+
+    /**
+     * @return The number of samples waiting to be drained.
+     * */
+    public long pendingSize() {
+        return m_writeCount - m_readCount;
+    }
+
+    /**
+     * Drop all samples. Should not be called while the producer or the consumer is running.
+     * */
+    public void clear() {
+        synchronized (m_chunks) {
+            m_chunks.clear();
+        }
+        m_writeChunk = null;
+        m_writeOffset = CHUNK_SIZE;
+        m_readCount = 0;
+        m_writeCount = 0;
+    }
+
+    /**
+     * Write the pending samples as "timestamp, x, y, z" lines and release them.
+     * Each line is handed to the writer with a single write call.
+     * Only one thread may drain.
+     * @param writer The target of the text lines, null to just discard the samples
+     * @return The number of drained samples
+     * */
+    public int drainTo(Writer writer) throws IOException {
+        return drainTo(writer, null, 0);
+    }
+
+    /**
+     * Write the pending samples to the text lines and to a trace, then release them.
+     * Only one thread may drain.
+     * @param writer The target of the text lines, null for none
+     * @param trace The trace receiving the samples as records of streamType, null for none
+     * @param streamType TraceFormat.STREAM_* type of the samples in the trace
+     * @return The number of drained samples
+     * */
+    public int drainTo(Writer writer, TraceWriter trace, int streamType) throws IOException {
+        long available = m_writeCount;
+        int drained = 0;
+        Chunk chunk = null;
+        while (m_readCount < available) {
+            int offset = (int) (m_readCount % CHUNK_SIZE);
+            if (chunk == null) {
+                synchronized (m_chunks) {
+                    chunk = m_chunks.peekFirst();
+                }
+            }
+            if (writer != null) {
+                m_strBuf.setLength(0);
+                m_strBuf.append(chunk.m_timeStamps[offset]);
+                for (int axis = 0; axis < AXIS_COUNT; axis++) {
+                    m_strBuf.append(", ");
+                    m_strBuf.append(chunk.m_values[offset * AXIS_COUNT + axis]);
+                }
+                m_strBuf.append('\n');
+                int length = m_strBuf.length();
+                if (length > m_charBuf.length) {
+                    m_charBuf = new char[length];
+                }
+                m_strBuf.getChars(0, length, m_charBuf, 0);
+                writer.write(m_charBuf, 0, length);
+            }
+            if (trace != null) {
+                trace.writeSample(streamType, chunk.m_timeStamps[offset], chunk.m_values[offset * AXIS_COUNT],
+                        chunk.m_values[offset * AXIS_COUNT + 1], chunk.m_values[offset * AXIS_COUNT + 2]);
+            }
+            m_readCount = m_readCount + 1;
+            drained = drained + 1;
+            if (offset == CHUNK_SIZE - 1) {
+                // The chunk is fully drained
+                synchronized (m_chunks) {
+                    m_chunks.pollFirst();
+                }
+                chunk = null;
+            }
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,46 @@
+package netlab.pete.indoor.russianblue;
+
+/**
+ * Time base of one recording session. The sensor events and the WiFi scan results carry
+ * nanosecond and microsecond timestamps of the monotonic clock since boot; they are mapped to
+ * wall time with one offset taken when the session starts, so no stream picks up the jitter of the
+ * callback that delivered it. The result is truncated to the millisecond the logs, the traces and
+ * the pipeline use: an interval between two samples is off by less than 1 ms, and the error does
+ * not add up over a session since every timestamp is converted on its own.
+ */
+
+public class SessionClock {
+    private final long m_startMillis;
+    // Offset from the monotonic clock to wall time, in ns.
+    private final long m_offsetNanos;
+
+    /**
+     * @param wallMillis Wall time at the session start, such as System.currentTimeMillis()
+     * @param elapsedNanos Monotonic time since boot at the same instant, such as SystemClock.elapsedRealtimeNanos()
+     * */
+    public SessionClock(long wallMillis, long elapsedNanos) {
+        m_startMillis = wallMillis;
+        m_offsetNanos = wallMillis * 1000000L - elapsedNanos;
+    }
+
+    /**
+     * @return Wall time of the session start in ms.
+     * */
+    public long getStartMillis() {
+        return m_startMillis;
+    }
+
+    /**
+     * Wall time in ms of a monotonic timestamp, such as SensorEvent.timestamp.
+     * */
+    public long toWallMillis(long elapsedNanos) {
+        return (elapsedNanos + m_offsetNanos) / 1000000L;
+    }
+
+    /**
+     * Wall time in ms of a monotonic timestamp in microseconds, such as ScanResult.timestamp.
+     * */
+    public long microsToWallMillis(long elapsedMicros) {
+        return toWallMillis(elapsedMicros * 1000L);
+    }
+}
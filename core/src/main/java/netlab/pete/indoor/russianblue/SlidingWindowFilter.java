@@ -0,0 +1,101 @@
+package netlab.pete.indoor.russianblue;
+
+/**
+ * Moving average over the last windowSize acceleration magnitudes, amplified around gravity
+ * so the range between the bottom and the top of a step is larger.
+ * The window is a primitive ring buffer with a running sum, so each sample costs O(1)
+ * and allocates nothing. Fed by an {@link AcceResampler}, the window is best given as a
+ * duration with {@link #forDuration(long, long, float, float)}.
+ */
+
+public class SlidingWindowFilter {
+    public final static int DEFAULT_WINDOWSIZE = 7;
+    // The default window at the default resampling period.
+    public final static long DEFAULT_WINDOWDURATION = DEFAULT_WINDOWSIZE * AcceResampler.DEFAULT_PERIOD;    // ms
+    public final static float DEFAULT_GRAVITY = 9.45f;
+    public final static float DEFAULT_GAIN = 2.5f;
+
+    private final int m_windowSize;
+    private final float m_gravity;
+    private final float m_gain;
+    private final float [] m_values;
+    private final long [] m_timeStamps;
+    // Position of the next sample in the ring
+    private int m_head;
+    private int m_count;
+    private double m_sum;
+
+    private long m_filteredTimeStamp;
+    private float m_filteredValue;
+
+    public SlidingWindowFilter() {
+        this(DEFAULT_WINDOWSIZE, DEFAULT_GRAVITY, DEFAULT_GAIN);
+    }
+
+    public SlidingWindowFilter(int windowSize, float gravity, float gain) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+        }
+        m_windowSize = windowSize;
+        m_gravity = gravity;
+        m_gain = gain;
+        m_values = new float[windowSize];
+        m_timeStamps = new long[windowSize];
+        reset();
+    }
+
+    /**
+     * Filter averaging over a duration rather than a number of samples.
+     * @param windowDuration Averaged duration in ms
+     * @param samplePeriod Period of the filtered samples in ms, such as the resampling period
+     * */
+    public static SlidingWindowFilter forDuration(long windowDuration, long samplePeriod, float gravity, float gain) {
+        int windowSize = (int) Math.max(1, (windowDuration + samplePeriod / 2) / samplePeriod);
+        return new SlidingWindowFilter(windowSize, gravity, gain);
+    }
+
+    public int getWindowSize() {
+        return m_windowSize;
+    }
+
+    public void reset() {
+        m_head = 0;
+        m_count = 0;
+        m_sum = 0;
+    }
+
+    /**
+     * Push one raw sample.
+     * @return True if the window is full, the output is then available from
+     * {@link #getTimeStamp()} and {@link #getValue()}
+     * */
+    public boolean filter(long timeStamp, float value) {
+        if (m_count == m_windowSize) {
+            m_sum -= m_values[m_head];
+        }
+        else {
+            m_count = m_count + 1;
+        }
+        m_values[m_head] = value;
+        m_timeStamps[m_head] = timeStamp;
+        m_sum += value;
+        int newest = m_head;
+        m_head = (m_head + 1) % m_windowSize;
+        if (m_count < m_windowSize) {
+            return false;
+        }
+        float avgValue = (float) (m_sum / m_windowSize);
+        m_filteredValue = (avgValue - m_gravity) * m_gain + m_gravity;
+        // The output is stamped with the time of the sample in the middle of the window.
+        m_filteredTimeStamp = m_timeStamps[(newest - m_windowSize / 2 + m_windowSize) % m_windowSize];
+        return true;
+    }
+
+    public long getTimeStamp() {
+        return m_filteredTimeStamp;
+    }
+
+    public float getValue() {
+        return m_filteredValue;
+    }
+}
@@ -0,0 +1,174 @@
+package netlab.pete.indoor.russianblue;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring of sensor samples.
+ * Each slot holds a sample type, a timestamp and up to three values in preallocated primitive
+ * arrays. The producer and consumer sequences sit on their own cache lines, and each side only
+ * reads the other's sequence when its cached copy says the ring is full or empty.
+ * offer() never blocks nor allocates: when the ring is full the sample is dropped and counted.
+ */
+
+public class SpscSampleRing {
+    public final static int VALUE_COUNT = 3;
+
+    /**
+     * Receives the drained samples on the consumer thread.
+     */
+    public interface Consumer {
+        void onSample(int type, long timeStamp, float x, float y, float z);
+    }
+
+    // Padding keeps a sequence alone on its 64 byte cache line, superclass fields are laid out first.
+    static class LhsPadding {
+        long p01, p02, p03, p04, p05, p06, p07;
+    }
+    static class SequenceValue extends LhsPadding {
+        volatile long m_value;
+    }
+    final static class Sequence extends SequenceValue {
+        long p09, p10, p11, p12, p13, p14, p15;
+        private final static AtomicLongFieldUpdater<SequenceValue> UPDATER =
+                AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "m_value");
+
+        long get() {
+            return m_value;
+        }
+        // Ordered store, cheaper than a volatile write, still publishes the earlier slot writes.
+        void lazySet(long value) {
+            UPDATER.lazySet(this, value);
+        }
+    }
+
+    private final int m_capacity;
+    private final int m_mask;
+    private final int [] m_types;
+    private final long [] m_timeStamps;
+    private final float [] m_values;
+
+    // Next sequence to write, written by the producer only.
+    private final Sequence m_tail = new Sequence();
+    // Next sequence to read, written by the consumer only.
+    private final Sequence m_head = new Sequence();
+    private final Sequence m_dropCount = new Sequence();
+    // Producer side copy of m_head, consumer side copy of m_tail
+    private long m_cachedHead;
+    private long m_cachedTail;
+
+    private volatile Thread m_waitingConsumer;
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two
+     * */
+    public SpscSampleRing(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        m_capacity = size;
+        m_mask = size - 1;
+        m_types = new int[size];
+        m_timeStamps = new long[size];
+        m_values = new float[size * VALUE_COUNT];
+    }
+
+    public int getCapacity() {
+        return m_capacity;
+    }
+
+    /**
+     * Producer side. Publish one sample.
+     * @return False if the ring was full and the sample has been dropped
+     * */
+    public boolean offer(int type, long timeStamp, float x, float y, float z) {
+        long tail = m_tail.get();
+        if (tail - m_cachedHead >= m_capacity) {
+            m_cachedHead = m_head.get();
+            if (tail - m_cachedHead >= m_capacity) {
+                m_dropCount.lazySet(m_dropCount.get() + 1);
+                return false;
+            }
+        }
+        int slot = (int) tail & m_mask;
+        m_types[slot] = type;
+        m_timeStamps[slot] = timeStamp;
+        int base = slot * VALUE_COUNT;
+        m_values[base] = x;
+        m_values[base + 1] = y;
+        m_values[base + 2] = z;
+        m_tail.lazySet(tail + 1);
+        Thread waiting = m_waitingConsumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+        return true;
+    }
+
+    /**
+     * Consumer side. Hand at most maxCount samples to the consumer, in publishing order.
+     * @return The number of drained samples
+     * */
+    public int drain(Consumer consumer, int maxCount) {
+        long head = m_head.get();
+        if (head >= m_cachedTail) {
+            m_cachedTail = m_tail.get();
+        }
+        int count = (int) Math.min(maxCount, m_cachedTail - head);
+        for (int i = 0; i < count; i++) {
+            int slot = (int) (head + i) & m_mask;
+            int base = slot * VALUE_COUNT;
+            consumer.onSample(m_types[slot], m_timeStamps[slot],
+                    m_values[base], m_values[base + 1], m_values[base + 2]);
+        }
+        if (count > 0) {
+            // Release the slots to the producer only after they have been read.
+            m_head.lazySet(head + count);
+        }
+        return count;
+    }
+
+    /**
+     * Consumer side. Park the calling thread until a sample is published, the timeout expires
+     * or the thread is unparked. The producer publishes with an ordered store, so in rare cases
+     * the wake-up is missed and the wait lasts until the timeout.
+     * */
+    public void await(long timeoutNanos) {
+        m_waitingConsumer = Thread.currentThread();
+        // Check again after announcing ourselves, or a sample offered in between would be missed.
+        if (isEmpty()) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+        m_waitingConsumer = null;
+    }
+
+    public boolean isEmpty() {
+        return m_tail.get() == m_head.get();
+    }
+
+    /**
+     * @return The number of samples waiting for the consumer, a measure of the backpressure.
+     * */
+    public int size() {
+        return (int) (m_tail.get() - m_head.get());
+    }
+
+    /**
+     * @return The number of samples dropped because the ring was full.
+     * */
+    public long getDropCount() {
+        return m_dropCount.get();
+    }
+
+    /**
+     * Forget all samples and counters, neither side may be running.
+     * */
+    public void clear() {
+        m_tail.lazySet(0);
+        m_head.lazySet(0);
+        m_dropCount.lazySet(0);
+        m_cachedHead = 0;
+        m_cachedTail = 0;
+    }
+}
@@ -0,0 +1,113 @@
+package netlab.pete.indoor.russianblue;
+
+import java.util.ArrayList;
+
+/**
+ * Incremental peak/valley state machine over the filtered acceleration stream.
+ * A peak is the last sample of a rise, it is counted as a step when it is above the
+ * threshold and at least minPeriod after the last step. A higher peak within minPeriod
+ * replaces the last step instead. Listeners are notified on the thread calling feed().
+ */
+
+public class StepDetector {
+    public final static float DEFAULT_THRESHOLD = 10.5f;
+    public final static long DEFAULT_MINPERIOD = 300;  // ms
+
+    public interface OnStepListener {
+        /**
+         * A new step has been detected.
+         * @param stepCount The number of steps including this one
+         * */
+        void onStep(int stepCount, long timeStamp, float peakValue);
+
+        /**
+         * The last step has been moved to a higher peak found within the minimum period.
+         * */
+        void onStepUpdated(int stepCount, long timeStamp, float peakValue);
+    }
+
+    private final float m_threshold;
+    private final long m_minPeriod;
+    private final ArrayList<OnStepListener> m_listeners;
+
+    private boolean m_hasPrevious;
+    private boolean m_rising;
+    private long m_prevTimeStamp;
+    private float m_prevValue;
+
+    private int m_stepCount;
+    private long m_lastStepTimeStamp;
+    private float m_lastPeakValue;
+
+    public StepDetector() {
+        this(DEFAULT_THRESHOLD, DEFAULT_MINPERIOD);
+    }
+
+    public StepDetector(float threshold, long minPeriod) {
+        m_threshold = threshold;
+        m_minPeriod = minPeriod;
+        m_listeners = new ArrayList<>();
+        reset();
+    }
+
+    public void addListener(OnStepListener listener) {
+        m_listeners.add(listener);
+    }
+
+    public void removeListener(OnStepListener listener) {
+        m_listeners.remove(listener);
+    }
+
+    public void reset() {
+        m_hasPrevious = false;
+        m_rising = false;
+        m_stepCount = 0;
+    }
+
+    public int getStepCount() {
+        return m_stepCount;
+    }
+
+    /**
+     * Push one filtered sample.
+     * */
+    public void feed(long timeStamp, float value) {
+        if (!m_hasPrevious) {
+            m_hasPrevious = true;
+        }
+        else if (value > m_prevValue) {
+            m_rising = true;
+        }
+        else if (value < m_prevValue && m_rising) {
+            // The previous sample ends a rise.
+            m_rising = false;
+            onPeak(m_prevTimeStamp, m_prevValue);
+        }
+        // Equal values extend the current rise or fall.
+        m_prevTimeStamp = timeStamp;
+        m_prevValue = value;
+    }
+
+    private void onPeak(long timeStamp, float value) {
+        // Just the lower peak in the through
+        if (value <= m_threshold) {
+            return;
+        }
+        // Step counter algorithm: threshold value and time frequency
+        if (m_stepCount == 0 || timeStamp - m_lastStepTimeStamp >= m_minPeriod) {
+            m_stepCount = m_stepCount + 1;
+            m_lastStepTimeStamp = timeStamp;
+            m_lastPeakValue = value;
+            for (int i = 0; i < m_listeners.size(); i++) {
+                m_listeners.get(i).onStep(m_stepCount, timeStamp, value);
+            }
+        }
+        else if (value >= m_lastPeakValue) {
+            m_lastStepTimeStamp = timeStamp;
+            m_lastPeakValue = value;
+            for (int i = 0; i < m_listeners.size(); i++) {
+                m_listeners.get(i).onStepUpdated(m_stepCount, timeStamp, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package netlab.pete.indoor.russianblue;
+
+/**
+ * Step length from the acceleration amplitude and the cadence of each step, a Weinberg model
+ * (length proportional to the fourth root of the peak to valley amplitude) with a step frequency
+ * term:
+ * <pre>
+ * length = p0 + p1 * (amplitude^(1/4) - AMPLITUDE_REF) + p2 * (frequency - FREQUENCY_REF)
+ * </pre>
+ * The initial parameters give the fixed step length at the reference amplitude and a plain
+ * Weinberg slope. A session walked over a known distance calibrates the parameters with one
+ * recursive least squares update on the mean step features of the session, which are summed as
+ * the steps come, so calibration costs constant memory whatever the session length. The covariance
+ * of the parameters is kept with them, so each session refines the previous ones.
+ * Steps are fed from the pipeline thread, calibration must happen between sessions.
+ */
+
+public class StepLengthModel {
+    public final static int PARAMETER_COUNT = 3;
+    // Fourth root of a typical peak to valley amplitude of the filtered magnitude, 3.5 m/s2.
+    public final static float AMPLITUDE_REF = 1.37f;
+    public final static float FREQUENCY_REF = 1.8f;     // Hz
+    // Steps further apart are the first of a walk, their frequency is not known.
+    private final static long STEP_MAXINTERVAL = 2000;  // ms
+    private final static float MIN_STEPLENGTH = 0.2f;   // m
+    private final static float MAX_STEPLENGTH = 1.5f;   // m
+    // Prior standard deviations of the parameters and of the mean step length of a calibration.
+    private final static double [] PRIOR_SIGMAS = {0.1, 0.3, 0.15};
+    private final static double CALIBRATION_SIGMA = 0.01;   // m
+
+    private final double [] m_parameters;
+    // Covariance of the parameters, row major
+    private final double [] m_covariance;
+    private int m_calibrationCount;
+
+    // Session state, on the pipeline thread
+    private float m_valley;
+    private long m_lastStepTime;
+    private boolean m_hasLastStep;
+    private long m_prevStepTime;
+    private boolean m_hasPrevStep;
+    // Valley and features of the last step, replaced when it is updated
+    private float m_lastValley;
+    private double m_lastAmplitudeFeature;
+    private double m_lastFrequencyFeature;
+    private final double [] m_featureSums;
+    private int m_stepCount;
+
+    /**
+     * Model starting as a plain Weinberg estimate.
+     * @param stepLength Step length at the reference amplitude, in meters
+     * */
+    public StepLengthModel(float stepLength) {
+        m_parameters = new double[PARAMETER_COUNT];
+        m_covariance = new double[PARAMETER_COUNT * PARAMETER_COUNT];
+        m_featureSums = new double[PARAMETER_COUNT];
+        m_parameters[0] = stepLength;
+        m_parameters[1] = stepLength / AMPLITUDE_REF;
+        m_parameters[2] = 0;
+        for (int i = 0; i < PARAMETER_COUNT; i++) {
+            m_covariance[i * PARAMETER_COUNT + i] = PRIOR_SIGMAS[i] * PRIOR_SIGMAS[i];
+        }
+        m_calibrationCount = 0;
+        reset();
+    }
+
+    /**
+     * Start a session, the parameters are kept.
+     * */
+    public void reset() {
+        m_valley = Float.MAX_VALUE;
+        m_hasLastStep = false;
+        m_hasPrevStep = false;
+        m_stepCount = 0;
+        for (int i = 0; i < PARAMETER_COUNT; i++) {
+            m_featureSums[i] = 0;
+        }
+    }
+
+    /**
+     * Track the valley between two steps.
+     * */
+    public void onFilteredValue(long timeStamp, float value) {
+        if (value < m_valley) {
+            m_valley = value;
+        }
+    }
+
+    /**
+     * Estimate the length of a new step and add it to the calibration of the session.
+     * @param peakValue Filtered acceleration at the step peak
+     * */
+    public float onStep(long timeStamp, float peakValue) {
+        m_hasPrevStep = m_hasLastStep;
+        m_prevStepTime = m_lastStepTime;
+        m_hasLastStep = true;
+        m_lastStepTime = timeStamp;
+        m_lastValley = m_valley;
+        m_valley = Float.MAX_VALUE;
+        m_stepCount = m_stepCount + 1;
+        m_featureSums[0] += 1;
+        return estimateLastStep(peakValue);
+    }
+
+    /**
+     * The last step moved to a higher peak, estimate it again and replace it in the calibration.
+     * */
+    public float onStepUpdated(long timeStamp, float peakValue) {
+        if (!m_hasLastStep) {
+            return onStep(timeStamp, peakValue);
+        }
+        m_lastStepTime = timeStamp;
+        // The dip between the two peaks is not the valley of the next step.
+        m_valley = Float.MAX_VALUE;
+        m_featureSums[1] -= m_lastAmplitudeFeature;
+        m_featureSums[2] -= m_lastFrequencyFeature;
+        return estimateLastStep(peakValue);
+    }
+
+    private float estimateLastStep(float peakValue) {
+        float amplitude = m_lastValley < peakValue ? peakValue - m_lastValley : 0.f;
+        float frequency = FREQUENCY_REF;
+        long interval = m_lastStepTime - m_prevStepTime;
+        if (m_hasPrevStep && interval > 0 && interval < STEP_MAXINTERVAL) {
+            frequency = 1000.f / interval;
+        }
+        m_lastAmplitudeFeature = Math.sqrt(Math.sqrt(amplitude)) - AMPLITUDE_REF;
+        m_lastFrequencyFeature = frequency - FREQUENCY_REF;
+        m_featureSums[1] += m_lastAmplitudeFeature;
+        m_featureSums[2] += m_lastFrequencyFeature;
+        double length = m_parameters[0] + m_parameters[1] * m_lastAmplitudeFeature
+                + m_parameters[2] * m_lastFrequencyFeature;
+        return (float) Math.max(MIN_STEPLENGTH, Math.min(MAX_STEPLENGTH, length));
+    }
+
+    /**
+     * @return The number of steps of the current session.
+     * */
+    public int getStepCount() {
+        return m_stepCount;
+    }
+
+    /**
+     * Fit the parameters to the steps of the current session, walked over a known distance.
+     * @return False if the session has no step
+     * */
+    public boolean calibrate(double distance) {
+        if (m_stepCount == 0) {
+            return false;
+        }
+        // One observation: the mean step features against the mean step length.
+        double [] x = new double[PARAMETER_COUNT];
+        for (int i = 0; i < PARAMETER_COUNT; i++) {
+            x[i] = m_featureSums[i] / m_stepCount;
+        }
+        double y = distance / m_stepCount;
+        double [] px = new double[PARAMETER_COUNT];
+        double variance = CALIBRATION_SIGMA * CALIBRATION_SIGMA;
+        double prediction = 0;
+        for (int i = 0; i < PARAMETER_COUNT; i++) {
+            for (int j = 0; j < PARAMETER_COUNT; j++) {
+                px[i] += m_covariance[i * PARAMETER_COUNT + j] * x[j];
+            }
+            variance += x[i] * px[i];
+            prediction += x[i] * m_parameters[i];
+        }
+        for (int i = 0; i < PARAMETER_COUNT; i++) {
+            m_parameters[i] += px[i] / variance * (y - prediction);
+        }
+        // P = P - P x x' P / (r + x' P x), P is symmetric.
+        for (int i = 0; i < PARAMETER_COUNT; i++) {
+            for (int j = 0; j < PARAMETER_COUNT; j++) {
+                m_covariance[i * PARAMETER_COUNT + j] -= px[i] * px[j] / variance;
+            }
+        }
+        m_calibrationCount = m_calibrationCount + 1;
+        return true;
+    }
+
+    public int getCalibrationCount() {
+        return m_calibrationCount;
+    }
+
+    /**
+     * @return The parameters then the covariance, row major, then the calibration count,
+     * the state restored by {@link #setState(double[])}
+     * */
+    public double [] getState() {
+        double [] state = new double[PARAMETER_COUNT + PARAMETER_COUNT * PARAMETER_COUNT + 1];
+        System.arraycopy(m_parameters, 0, state, 0, PARAMETER_COUNT);
+        System.arraycopy(m_covariance, 0, state, PARAMETER_COUNT, m_covariance.length);
+        state[state.length - 1] = m_calibrationCount;
+        return state;
+    }
+
+    public void setState(double [] state) {
+        if (state.length != PARAMETER_COUNT + PARAMETER_COUNT * PARAMETER_COUNT + 1) {
+            throw new IllegalArgumentException("Bad step length model state size: " + state.length);
+        }
+        System.arraycopy(state, 0, m_parameters, 0, PARAMETER_COUNT);
+        System.arraycopy(state, PARAMETER_COUNT, m_covariance, 0, m_covariance.length);
+        m_calibrationCount = (int) state[state.length - 1];
+    }
+
+    public String toString() {
+        return "length " + String.format("%.3f", m_parameters[0]) + " + " + String.format("%.3f", m_parameters[1])
+                + " * (amplitude^1/4 - " + AMPLITUDE_REF + ") + " + String.format("%.3f", m_parameters[2])
+                + " * (frequency - " + FREQUENCY_REF + "), " + m_calibrationCount + " calibrations";
+    }
+}
@@ -0,0 +1,101 @@
+package netlab.pete.indoor.russianblue;
+
+import java.util.Arrays;
+
+/**
+ * Trajectory as an indexed log of steps, in primitive arrays: the time, end position, heading and
+ * length of each step. A step can be amended after it was logged, as when the step detector moves
+ * the last step to a higher peak. Amending the last step is O(1), amending an older one moves the
+ * later end positions by the same offset, so it costs the number of later steps.
+ * Not synchronized, all calls must come from one thread.
+ */
+
+public class StepLog {
+    private final static int INIT_CAPACITY = 1024;
+
+    private long [] m_timeStamps;
+    private float [] m_x;
+    private float [] m_y;
+    private float [] m_headings;
+    private float [] m_lengths;
+    private int m_count;
+
+    public StepLog() {
+        m_timeStamps = new long[INIT_CAPACITY];
+        m_x = new float[INIT_CAPACITY];
+        m_y = new float[INIT_CAPACITY];
+        m_headings = new float[INIT_CAPACITY];
+        m_lengths = new float[INIT_CAPACITY];
+        m_count = 0;
+    }
+
+    public void clear() {
+        m_count = 0;
+    }
+
+    public int size() {
+        return m_count;
+    }
+
+    /**
+     * @return The index of the new step.
+     * */
+    public int append(long timeStamp, float x, float y, float heading, float length) {
+        if (m_count == m_timeStamps.length) {
+            int capacity = m_count * 2;
+            m_timeStamps = Arrays.copyOf(m_timeStamps, capacity);
+            m_x = Arrays.copyOf(m_x, capacity);
+            m_y = Arrays.copyOf(m_y, capacity);
+            m_headings = Arrays.copyOf(m_headings, capacity);
+            m_lengths = Arrays.copyOf(m_lengths, capacity);
+        }
+        int index = m_count;
+        set(index, timeStamp, x, y, heading, length);
+        m_count = index + 1;
+        return index;
+    }
+
+    /**
+     * Replace a logged step, the later steps keep their displacement.
+     * */
+    public void amend(int index, long timeStamp, float x, float y, float heading, float length) {
+        if (index < 0 || index >= m_count) {
+            throw new IndexOutOfBoundsException("Step " + index + " of " + m_count);
+        }
+        float dx = x - m_x[index];
+        float dy = y - m_y[index];
+        set(index, timeStamp, x, y, heading, length);
+        for (int i = index + 1; i < m_count; i++) {
+            m_x[i] += dx;
+            m_y[i] += dy;
+        }
+    }
+
+    private void set(int index, long timeStamp, float x, float y, float heading, float length) {
+        m_timeStamps[index] = timeStamp;
+        m_x[index] = x;
+        m_y[index] = y;
+        m_headings[index] = heading;
+        m_lengths[index] = length;
+    }
+
+    public long getTimeStamp(int index) {
+        return m_timeStamps[index];
+    }
+
+    public float getX(int index) {
+        return m_x[index];
+    }
+
+    public float getY(int index) {
+        return m_y[index];
+    }
+
+    public float getHeading(int index) {
+        return m_headings[index];
+    }
+
+    public float getLength(int index) {
+        return m_lengths[index];
+    }
+}
@@ -0,0 +1,95 @@
+package netlab.pete.indoor.russianblue;
+
+/**
+ * Parses the lines of the text logs: "timestamp, v1, v2, ..." for sensor values and
+ * "timestamp, BSSID:level, ..." for WiFi scans. The parsed record is kept in the public
+ * fields until the next call, whose arrays are reused.
+ */
+
+public class TextRecordParser {
+    public long timeStamp;
+    // Sensor values
+    public final float [] values;
+    public int valueCount;
+    // WiFi scan
+    public int apCount;
+    public int [] bssidIds;
+    public int [] levels;
+
+    public TextRecordParser() {
+        values = new float[SensorSampleStore.AXIS_COUNT];
+        bssidIds = new int[64];
+        levels = new int[64];
+    }
+
+    /**
+     * @return False if the line is not a sensor record
+     * */
+    public boolean parseSample(String line) {
+        valueCount = 0;
+        int start = 0;
+        int length = line.length();
+        try {
+            int end = nextSeparator(line, start);
+            timeStamp = Long.parseLong(line.substring(start, end).trim());
+            start = end + 1;
+            while (start < length && valueCount < values.length) {
+                end = nextSeparator(line, start);
+                String field = line.substring(start, end).trim();
+                if (field.length() > 0) {
+                    values[valueCount] = Float.parseFloat(field);
+                    valueCount = valueCount + 1;
+                }
+                start = end + 1;
+            }
+        }
+        catch (NumberFormatException ex) {
+            return false;
+        }
+        return valueCount > 0;
+    }
+
+    /**
+     * @param dictionary Interns the BSSIDs of the scan
+     * @return False if the line is not a WiFi record
+     * */
+    public boolean parseWifiScan(String line, BssidDictionary dictionary) {
+        apCount = 0;
+        int start = 0;
+        int length = line.length();
+        try {
+            int end = nextSeparator(line, start);
+            timeStamp = Long.parseLong(line.substring(start, end).trim());
+            start = end + 1;
+            while (start < length) {
+                end = nextSeparator(line, start);
+                String field = line.substring(start, end).trim();
+                // The BSSID itself is separated by colons, the level follows the last one.
+                int colon = field.lastIndexOf(':');
+                if (colon > 0) {
+                    if (apCount == bssidIds.length) {
+                        int [] ids = new int[apCount * 2];
+                        int [] rss = new int[apCount * 2];
+                        System.arraycopy(bssidIds, 0, ids, 0, apCount);
+                        System.arraycopy(levels, 0, rss, 0, apCount);
+                        bssidIds = ids;
+                        levels = rss;
+                    }
+                    levels[apCount] = Integer.parseInt(field.substring(colon + 1));
+                    bssidIds[apCount] = dictionary.intern(field.substring(0, colon));
+                    apCount = apCount + 1;
+                }
+                start = end + 1;
+            }
+        }
+        catch (NumberFormatException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    private static int nextSeparator(String line, int start) {
+        int end = line.indexOf(',', start);
+        return end < 0 ? line.length() : end;
+    }
+}
@@ -0,0 +1,517 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Random access by time range to a binary trace (see {@link TraceFormat}) holding a whole session.
+ * <p>
+ * The block directory is loaded once, from the end of the trace, or from the block headers when
+ * the trace was not closed. A range of one stream is found by a binary search of its blocks, and
+ * only the blocks overlapping the range are decoded, straight from the mapping.
+ * The file is mapped read-only once, in windows of MAP_WINDOWSIZE bytes which overlap by the
+ * largest block, so every block lies inside one window whatever its position.
+ * <p>
+ * The archive does not change once opened: any number of threads can run queries on it at the
+ * same time, each query reads through its own views of the shared windows.
+ * <pre>
+ * TraceArchive archive = new TraceArchive(file);
+ * TraceArchive.Query query = archive.query(streamTypes, from, to);
+ * while (query.next()) {
+ *     query.getStreamType(), query.getTimeStamp(), query.getValues() ...
+ * }
+ * archive.close();
+ * </pre>
+ * Usage: TraceArchive &lt;trace.rbt&gt; [&lt;from&gt; &lt;to&gt; [stream id]...]
+ */
+
+public class TraceArchive implements Closeable {
+    public final static long MAP_WINDOWSIZE = TraceReader.MAP_WINDOWSIZE;
+    private final static int MAX_BLOCKSIZE = TraceFormat.BLOCK_HEADERSIZE + TraceFormat.BLOCK_CAPACITY;
+    private final static int DIRECTORY_INITCAPACITY = 256;
+
+    private final RandomAccessFile m_file;
+    private final MappedByteBuffer [] m_windows;
+    private final boolean m_indexed;
+    private final BssidDictionary m_dictionary;
+
+    // Block directory of each stream, in file order, which is the time order of a recorded stream
+    private final int [] m_blockCounts;
+    private final long [][] m_blockPositions;
+    private final int [][] m_blockRecordCounts;
+    private final long [][] m_blockFirstTimeStamps;
+    private final long [][] m_blockLastTimeStamps;
+
+    public TraceArchive(File file) throws IOException {
+        m_file = new RandomAccessFile(file, "r");
+        m_blockCounts = new int[TraceFormat.STREAM_COUNT];
+        m_blockPositions = new long[TraceFormat.STREAM_COUNT][];
+        m_blockRecordCounts = new int[TraceFormat.STREAM_COUNT][];
+        m_blockFirstTimeStamps = new long[TraceFormat.STREAM_COUNT][];
+        m_blockLastTimeStamps = new long[TraceFormat.STREAM_COUNT][];
+        for (int i = 0; i < TraceFormat.STREAM_COUNT; i++) {
+            m_blockPositions[i] = new long[DIRECTORY_INITCAPACITY];
+            m_blockRecordCounts[i] = new int[DIRECTORY_INITCAPACITY];
+            m_blockFirstTimeStamps[i] = new long[DIRECTORY_INITCAPACITY];
+            m_blockLastTimeStamps[i] = new long[DIRECTORY_INITCAPACITY];
+        }
+        m_dictionary = new BssidDictionary();
+        try {
+            FileChannel channel = m_file.getChannel();
+            long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(TraceFormat.FILE_HEADERSIZE);
+            if (fileSize < TraceFormat.FILE_HEADERSIZE || !readFully(channel, header, 0)
+                    || header.getInt(0) != TraceFormat.MAGIC || header.getShort(4) > TraceFormat.VERSION) {
+                throw new IOException("Unsupported trace file: " + file);
+            }
+            long dataEnd = readDirectory(channel, fileSize);
+            m_indexed = dataEnd >= 0;
+            if (!m_indexed) {
+                dataEnd = scanBlocks(channel, fileSize);
+            }
+            int windowCount = (int) Math.max(1, (dataEnd + MAP_WINDOWSIZE - 1) / MAP_WINDOWSIZE);
+            m_windows = new MappedByteBuffer[windowCount];
+            for (int i = 0; i < windowCount; i++) {
+                long start = i * MAP_WINDOWSIZE;
+                long size = Math.max(0, Math.min(MAP_WINDOWSIZE + MAX_BLOCKSIZE, dataEnd - start));
+                m_windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+            readDictionary();
+        }
+        catch (IOException ex) {
+            m_file.close();
+            throw ex;
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position + buffer.position());
+            if (count < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Load the directory written when the trace was closed.
+     * @return The position of the directory block, the end of the data blocks, or -1 without directory
+     * */
+    private long readDirectory(FileChannel channel, long fileSize) throws IOException {
+        long footerPosition = fileSize - TraceFormat.FOOTER_SIZE;
+        if (footerPosition < TraceFormat.FILE_HEADERSIZE + TraceFormat.BLOCK_HEADERSIZE) {
+            return -1;
+        }
+        ByteBuffer footer = ByteBuffer.allocate(TraceFormat.FOOTER_SIZE);
+        readFully(channel, footer, footerPosition);
+        long directoryPosition = footer.getLong(0);
+        if (footer.getInt(8) != TraceFormat.DIRECTORY_MAGIC || directoryPosition < TraceFormat.FILE_HEADERSIZE
+                || directoryPosition > footerPosition - TraceFormat.BLOCK_HEADERSIZE) {
+            return -1;
+        }
+        ByteBuffer header = ByteBuffer.allocate(TraceFormat.BLOCK_HEADERSIZE);
+        readFully(channel, header, directoryPosition);
+        int entryCount = header.getInt(1);
+        if (header.get(0) != TraceFormat.STREAM_DIRECTORY || entryCount < 0
+                || header.getInt(21) != (long) entryCount * TraceFormat.DIRECTORY_ENTRYSIZE
+                || directoryPosition + TraceFormat.BLOCK_HEADERSIZE + header.getInt(21) != footerPosition) {
+            return -1;
+        }
+        ByteBuffer entries = channel.map(FileChannel.MapMode.READ_ONLY,
+                directoryPosition + TraceFormat.BLOCK_HEADERSIZE, header.getInt(21));
+        for (int i = 0; i < entryCount; i++) {
+            int streamType = entries.get();
+            int recordCount = entries.getInt();
+            long firstTimeStamp = entries.getLong();
+            long lastTimeStamp = entries.getLong();
+            long position = entries.getLong();
+            if (position < TraceFormat.FILE_HEADERSIZE || position > directoryPosition - TraceFormat.BLOCK_HEADERSIZE) {
+                throw new IOException("Bad trace directory entry " + i + ", position " + position);
+            }
+            addBlock(streamType, position, recordCount, firstTimeStamp, lastTimeStamp);
+        }
+        return directoryPosition;
+    }
+
+    /**
+     * Find the blocks from their headers, for a trace without directory. A block cut short by a
+     * crash ends the trace.
+     * @return The end of the last complete block
+     * */
+    private long scanBlocks(FileChannel channel, long fileSize) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(TraceFormat.BLOCK_HEADERSIZE);
+        long position = TraceFormat.FILE_HEADERSIZE;
+        while (position + TraceFormat.BLOCK_HEADERSIZE <= fileSize) {
+            readFully(channel, header, position);
+            int payloadLength = header.getInt(21);
+            long end = position + TraceFormat.BLOCK_HEADERSIZE + payloadLength;
+            if (payloadLength < 0 || end > fileSize) {
+                break;
+            }
+            addBlock(header.get(0), position, header.getInt(1), header.getLong(5), header.getLong(13));
+            position = end;
+        }
+        return position;
+    }
+
+    private void addBlock(int streamType, long position, int recordCount, long firstTimeStamp, long lastTimeStamp) {
+        // Blocks of stream types from newer writers are ignored.
+        if (streamType < 0 || streamType >= TraceFormat.STREAM_COUNT) {
+            return;
+        }
+        int count = m_blockCounts[streamType];
+        if (count == m_blockPositions[streamType].length) {
+            m_blockPositions[streamType] = Arrays.copyOf(m_blockPositions[streamType], count * 2);
+            m_blockRecordCounts[streamType] = Arrays.copyOf(m_blockRecordCounts[streamType], count * 2);
+            m_blockFirstTimeStamps[streamType] = Arrays.copyOf(m_blockFirstTimeStamps[streamType], count * 2);
+            m_blockLastTimeStamps[streamType] = Arrays.copyOf(m_blockLastTimeStamps[streamType], count * 2);
+        }
+        // The search key is the latest timestamp so far, so a record stamped a little late in the
+        // previous block does not break the binary search.
+        if (count > 0) {
+            lastTimeStamp = Math.max(lastTimeStamp, m_blockLastTimeStamps[streamType][count - 1]);
+        }
+        m_blockPositions[streamType][count] = position;
+        m_blockRecordCounts[streamType][count] = recordCount;
+        m_blockFirstTimeStamps[streamType][count] = firstTimeStamp;
+        m_blockLastTimeStamps[streamType][count] = lastTimeStamp;
+        m_blockCounts[streamType] = count + 1;
+    }
+
+    private void readDictionary() throws IOException {
+        int streamType = TraceFormat.STREAM_BSSID;
+        for (int block = 0; block < m_blockCounts[streamType]; block++) {
+            ByteBuffer buffer = openBlock(m_blockPositions[streamType][block]);
+            for (int i = 0; i < m_blockRecordCounts[streamType][block]; i++) {
+                int id = TraceReader.getVarInt(buffer);
+                int length = TraceReader.getVarInt(buffer);
+                char [] chars = new char[length];
+                for (int c = 0; c < length; c++) {
+                    chars[c] = (char) (buffer.get() & 0xFF);
+                }
+                m_dictionary.put(id, new String(chars));
+            }
+        }
+    }
+
+    /**
+     * @return A view of the mapping positioned on the payload of the block, owned by the caller
+     * */
+    private ByteBuffer openBlock(long position) throws IOException {
+        int window = (int) (position / MAP_WINDOWSIZE);
+        int offset = (int) (position - window * MAP_WINDOWSIZE);
+        ByteBuffer buffer = m_windows[window].duplicate();
+        if (offset + TraceFormat.BLOCK_HEADERSIZE > buffer.limit()) {
+            throw new IOException("Truncated trace block at " + position);
+        }
+        int payloadLength = buffer.getInt(offset + 21);
+        int end = offset + TraceFormat.BLOCK_HEADERSIZE + payloadLength;
+        if (payloadLength < 0 || payloadLength > TraceFormat.BLOCK_CAPACITY || end > buffer.limit()) {
+            throw new IOException("Bad trace block at " + position + ", payload " + payloadLength);
+        }
+        buffer.limit(end);
+        buffer.position(offset + TraceFormat.BLOCK_HEADERSIZE);
+        return buffer;
+    }
+
+    /**
+     * @return Whether the trace was closed with its directory, false when its blocks were scanned.
+     * */
+    public boolean isIndexed() {
+        return m_indexed;
+    }
+
+    /**
+     * @return The BSSIDs of the WiFi records, must not be modified.
+     * */
+    public BssidDictionary getBssidDictionary() {
+        return m_dictionary;
+    }
+
+    public int getBlockCount(int streamType) {
+        return m_blockCounts[streamType];
+    }
+
+    public long getRecordCount(int streamType) {
+        long count = 0;
+        for (int i = 0; i < m_blockCounts[streamType]; i++) {
+            count += m_blockRecordCounts[streamType][i];
+        }
+        return count;
+    }
+
+    /**
+     * @return The first timestamp of the stream, Long.MAX_VALUE if it is empty
+     * */
+    public long getFirstTimeStamp(int streamType) {
+        return m_blockCounts[streamType] == 0 ? Long.MAX_VALUE : m_blockFirstTimeStamps[streamType][0];
+    }
+
+    /**
+     * @return The last timestamp of the stream, Long.MIN_VALUE if it is empty
+     * */
+    public long getLastTimeStamp(int streamType) {
+        int count = m_blockCounts[streamType];
+        return count == 0 ? Long.MIN_VALUE : m_blockLastTimeStamps[streamType][count - 1];
+    }
+
+    /**
+     * @return The index of the first block of the stream ending at or after the timestamp.
+     * */
+    private int findBlock(int streamType, long timeStamp) {
+        long [] lastTimeStamps = m_blockLastTimeStamps[streamType];
+        int low = 0;
+        int high = m_blockCounts[streamType];
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lastTimeStamps[middle] < timeStamp) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Records of several streams in [from, to], merged in timestamp order. Records with the same
+     * timestamp come in the order of the given stream types.
+     * @param streamTypes TraceFormat.STREAM_* types of sample or WiFi streams
+     * */
+    public Query query(int [] streamTypes, long from, long to) throws IOException {
+        return new Query(streamTypes, from, to);
+    }
+
+    /**
+     * One range query, used by a single thread. The arrays of the current record are reused
+     * and only valid until the next call of next().
+     */
+    public final class Query {
+        private final StreamCursor [] m_cursors;
+        private final long m_to;
+        private StreamCursor m_current;
+
+        private Query(int [] streamTypes, long from, long to) throws IOException {
+            m_cursors = new StreamCursor[streamTypes.length];
+            m_to = to;
+            for (int i = 0; i < streamTypes.length; i++) {
+                int streamType = streamTypes[i];
+                if (streamType != TraceFormat.STREAM_WIFI && !TraceFormat.isSampleStream(streamType)) {
+                    throw new IllegalArgumentException("Not a record stream: " + streamType);
+                }
+                m_cursors[i] = new StreamCursor(streamType, findBlock(streamType, from));
+                // Skip the records of the first block before the range.
+                do {
+                    m_cursors[i].advance(to);
+                } while (m_cursors[i].m_hasRecord && m_cursors[i].m_timeStamp < from);
+            }
+            m_current = null;
+        }
+
+        /**
+         * Move to the earliest pending record of the range.
+         * @return False when the range is exhausted
+         * */
+        public boolean next() throws IOException {
+            if (m_current != null) {
+                m_current.advance(m_to);
+            }
+            StreamCursor next = null;
+            for (StreamCursor cursor : m_cursors) {
+                if (cursor.m_hasRecord && (next == null || cursor.m_timeStamp < next.m_timeStamp)) {
+                    next = cursor;
+                }
+            }
+            m_current = next;
+            return next != null;
+        }
+
+        public int getStreamType() {
+            return m_current.m_streamType;
+        }
+
+        public long getTimeStamp() {
+            return m_current.m_timeStamp;
+        }
+
+        /**
+         * @return The values of a sample record, STREAM_VALUECOUNTS of the stream are valid.
+         * */
+        public float [] getValues() {
+            return m_current.m_values;
+        }
+
+        public int getApCount() {
+            return m_current.m_apCount;
+        }
+
+        /**
+         * @return The BSSID ids of a WiFi record, see {@link TraceArchive#getBssidDictionary()}
+         * */
+        public int [] getBssidIds() {
+            return m_current.m_bssidIds;
+        }
+
+        public int [] getLevels() {
+            return m_current.m_levels;
+        }
+    }
+
+    /**
+     * Decodes the records of one stream block by block, one record ahead.
+     */
+    private final class StreamCursor {
+        private final int m_streamType;
+        private final int m_valueCount;
+        private int m_blockIndex;
+        private ByteBuffer m_buffer;
+        private int m_remaining;
+
+        private boolean m_hasRecord;
+        private long m_timeStamp;
+        private final float [] m_values;
+        private int m_apCount;
+        private int [] m_bssidIds;
+        private int [] m_levels;
+
+        StreamCursor(int streamType, int blockIndex) {
+            m_streamType = streamType;
+            m_valueCount = TraceFormat.STREAM_VALUECOUNTS[streamType];
+            m_blockIndex = blockIndex - 1;
+            m_remaining = 0;
+            m_values = new float[SensorSampleStore.AXIS_COUNT];
+            m_bssidIds = new int[64];
+            m_levels = new int[64];
+        }
+
+        void advance(long to) throws IOException {
+            m_hasRecord = false;
+            while (m_remaining == 0) {
+                m_blockIndex = m_blockIndex + 1;
+                if (m_blockIndex >= m_blockCounts[m_streamType]
+                        || m_blockFirstTimeStamps[m_streamType][m_blockIndex] > to) {
+                    m_remaining = 0;
+                    return;
+                }
+                m_buffer = openBlock(m_blockPositions[m_streamType][m_blockIndex]);
+                m_remaining = m_blockRecordCounts[m_streamType][m_blockIndex];
+                m_timeStamp = m_blockFirstTimeStamps[m_streamType][m_blockIndex];
+            }
+            m_timeStamp += TraceReader.unzigzag(TraceReader.getVarLong(m_buffer));
+            if (m_streamType == TraceFormat.STREAM_WIFI) {
+                m_apCount = TraceReader.getVarInt(m_buffer);
+                if (m_apCount > m_bssidIds.length) {
+                    m_bssidIds = new int[m_apCount];
+                    m_levels = new int[m_apCount];
+                }
+                for (int ap = 0; ap < m_apCount; ap++) {
+                    m_bssidIds[ap] = TraceReader.getVarInt(m_buffer);
+                    m_levels[ap] = TraceReader.unzigzag(TraceReader.getVarInt(m_buffer));
+                }
+            }
+            else {
+                for (int v = 0; v < m_valueCount; v++) {
+                    m_values[v] = m_buffer.getFloat();
+                }
+            }
+            m_remaining = m_remaining - 1;
+            m_hasRecord = m_timeStamp <= to;
+            if (!m_hasRecord) {
+                // Past the range, the stream is done.
+                m_blockIndex = m_blockCounts[m_streamType];
+                m_remaining = 0;
+            }
+        }
+    }
+
+    /**
+     * The mapping stays valid until it is garbage collected, the windows are only dropped here.
+     * */
+    @Override
+    public void close() throws IOException {
+        m_file.close();
+    }
+
+    private static int findStream(String streamId) {
+        for (int i = 0; i < TraceFormat.STREAM_COUNT; i++) {
+            if (TraceFormat.STREAM_IDS[i].equals(streamId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static void main(String [] args) throws IOException {
+        if (args.length != 1 && args.length < 3) {
+            System.err.println("Usage: TraceArchive <trace" + TraceFormat.FILE_SUFFIX + "> [<from> <to> [stream id]...]");
+            System.exit(1);
+        }
+        TraceArchive archive = new TraceArchive(new File(args[0]));
+        try {
+            if (args.length == 1) {
+                System.out.println(args[0] + (archive.isIndexed() ? ", indexed" : ", not indexed"));
+                for (int i = 0; i < TraceFormat.STREAM_COUNT; i++) {
+                    if (archive.getBlockCount(i) > 0) {
+                        System.out.println(TraceFormat.STREAM_IDS[i] + ": " + archive.getRecordCount(i) + " records in "
+                                + archive.getBlockCount(i) + " blocks, " + archive.getFirstTimeStamp(i)
+                                + " - " + archive.getLastTimeStamp(i));
+                    }
+                }
+                return;
+            }
+            int [] streamTypes;
+            if (args.length == 3) {
+                streamTypes = new int[] {TraceFormat.STREAM_ACCE, TraceFormat.STREAM_GYRO, TraceFormat.STREAM_MAGN,
+                        TraceFormat.STREAM_WIFI, TraceFormat.STREAM_FILTEREDACCE, TraceFormat.STREAM_DIRECTION,
+                        TraceFormat.STREAM_STEP};
+            }
+            else {
+                streamTypes = new int[args.length - 3];
+                for (int i = 3; i < args.length; i++) {
+                    streamTypes[i - 3] = findStream(args[i]);
+                    if (streamTypes[i - 3] < 0 || streamTypes[i - 3] == TraceFormat.STREAM_BSSID) {
+                        System.err.println("Unknown stream: " + args[i]);
+                        System.exit(1);
+                    }
+                }
+            }
+            Query query = archive.query(streamTypes, Long.parseLong(args[1]), Long.parseLong(args[2]));
+            StringBuilder strBuf = new StringBuilder(256);
+            while (query.next()) {
+                int streamType = query.getStreamType();
+                strBuf.setLength(0);
+                strBuf.append(TraceFormat.STREAM_IDS[streamType]);
+                strBuf.append(", ");
+                strBuf.append(query.getTimeStamp());
+                if (streamType == TraceFormat.STREAM_WIFI) {
+                    for (int i = 0; i < query.getApCount(); i++) {
+                        strBuf.append(", ");
+                        strBuf.append(archive.getBssidDictionary().getBssid(query.getBssidIds()[i]));
+                        strBuf.append(':');
+                        strBuf.append(query.getLevels()[i]);
+                    }
+                }
+                else {
+                    for (int i = 0; i < TraceFormat.STREAM_VALUECOUNTS[streamType]; i++) {
+                        strBuf.append(", ");
+                        strBuf.append(query.getValues()[i]);
+                    }
+                }
+                System.out.println(strBuf);
+            }
+        }
+        finally {
+            archive.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Converts a recorded session between the text logs and the binary trace format.
+ * <p>
+ * The text session is named by its prefix, such as "/sdcard/RussianBlue/20161027120000":
+ * "prefix_acce.txt", "prefix_gyro.txt", "prefix_magn.txt", "prefix_wifi.txt" and their
+ * rotated segments "prefix_acce_1.txt" ..., the StepCounter debug files
+ * "prefixdebug_filtered.txt", "prefixdebug_orientation.txt", and "prefix_step.txt".
+ * <p>
+ * Usage: TraceConverter txt2bin &lt;prefix&gt; &lt;trace.rbt&gt;
+ *        TraceConverter bin2txt &lt;trace.rbt&gt; &lt;prefix&gt;
+ */
+
+public class TraceConverter {
+
+    /**
+     * @return The text file names of a stream in a session, without the segment part.
+     * */
+    public static String getTextFileName(String prefix, int streamType) {
+        switch (streamType) {
+            case TraceFormat.STREAM_FILTEREDACCE:
+                return prefix + "debug_filtered";
+            case TraceFormat.STREAM_DIRECTION:
+                return prefix + "debug_orientation";
+            default:
+                return prefix + "_" + TraceFormat.STREAM_IDS[streamType];
+        }
+    }
+
+    /**
+     * @return The segment files of a stream which exist, in recording order.
+     * */
+    public static File [] listSegments(String prefix, int streamType) {
+        String name = getTextFileName(prefix, streamType);
+        int count = 0;
+        while (segmentFile(name, count).exists()) {
+            count = count + 1;
+        }
+        File [] segments = new File[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = segmentFile(name, i);
+        }
+        return segments;
+    }
+
+    private static File segmentFile(String name, int index) {
+        return new File(index == 0 ? name + ".txt" : name + "_" + index + ".txt");
+    }
+
+    public static void textToTrace(String prefix, File traceFile) throws IOException {
+        TraceWriter writer = new TraceWriter(traceFile);
+        try {
+            TextRecordParser parser = new TextRecordParser();
+            for (int streamType = 0; streamType < TraceFormat.STREAM_COUNT; streamType++) {
+                if (streamType == TraceFormat.STREAM_BSSID) {
+                    continue;
+                }
+                for (File segment : listSegments(prefix, streamType)) {
+                    BufferedReader reader = new BufferedReader(new FileReader(segment));
+                    try {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (streamType == TraceFormat.STREAM_WIFI) {
+                                if (parser.parseWifiScan(line, writer.getBssidDictionary())) {
+                                    writer.writeWifiScan(parser.timeStamp, parser.apCount,
+                                            parser.bssidIds, parser.levels);
+                                }
+                            }
+                            else if (parser.parseSample(line)
+                                    && parser.valueCount >= TraceFormat.STREAM_VALUECOUNTS[streamType]) {
+                                writer.writeSample(streamType, parser.timeStamp, parser.values);
+                            }
+                        }
+                    }
+                    finally {
+                        reader.close();
+                    }
+                }
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    public static void traceToText(File traceFile, String prefix) throws IOException {
+        final TraceReader reader = new TraceReader(traceFile);
+        final Writer [] writers = new Writer[TraceFormat.STREAM_COUNT];
+        final String filePrefix = prefix;
+        final StringBuilder strBuf = new StringBuilder(256);
+        try {
+            final IOException [] failure = new IOException[1];
+            reader.accept(new TraceReader.Visitor() {
+                private Writer getWriter(int streamType) throws IOException {
+                    if (writers[streamType] == null) {
+                        writers[streamType] = new BufferedWriter(new FileWriter(
+                                getTextFileName(filePrefix, streamType) + ".txt"));
+                    }
+                    return writers[streamType];
+                }
+
+                @Override
+                public void onSample(int streamType, long timeStamp, float[] values) {
+                    strBuf.setLength(0);
+                    strBuf.append(timeStamp);
+                    for (int i = 0; i < TraceFormat.STREAM_VALUECOUNTS[streamType]; i++) {
+                        strBuf.append(", ");
+                        strBuf.append(values[i]);
+                    }
+                    strBuf.append('\n');
+                    write(streamType);
+                }
+
+                @Override
+                public void onWifiScan(long timeStamp, int apCount, int[] bssidIds, int[] levels) {
+                    BssidDictionary dictionary = reader.getBssidDictionary();
+                    strBuf.setLength(0);
+                    strBuf.append(timeStamp);
+                    for (int i = 0; i < apCount; i++) {
+                        strBuf.append(", ");
+                        strBuf.append(dictionary.getBssid(bssidIds[i]));
+                        strBuf.append(':');
+                        strBuf.append(levels[i]);
+                    }
+                    strBuf.append('\n');
+                    write(TraceFormat.STREAM_WIFI);
+                }
+
+                private void write(int streamType) {
+                    if (failure[0] != null) {
+                        return;
+                    }
+                    try {
+                        getWriter(streamType).append(strBuf);
+                    } catch (IOException ex) {
+                        failure[0] = ex;
+                    }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        finally {
+            for (Writer writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+            reader.close();
+        }
+    }
+
+    public static void main(String [] args) throws IOException {
+        if (args.length == 3 && "txt2bin".equals(args[0])) {
+            textToTrace(args[1], new File(args[2]));
+        }
+        else if (args.length == 3 && "bin2txt".equals(args[0])) {
+            traceToText(new File(args[1]), args[2]);
+        }
+        else {
+            System.err.println("Usage: TraceConverter txt2bin <prefix> <trace" + TraceFormat.FILE_SUFFIX + ">");
+            System.err.println("       TraceConverter bin2txt <trace" + TraceFormat.FILE_SUFFIX + "> <prefix>");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package netlab.pete.indoor.russianblue;
+
+/**
+ * Constants of the binary recording format (".rbt").
+ * <p>
+ * File layout: a file header (magic, version, flags) followed by blocks. Each block holds
+ * records of one stream: a block header (stream type, record count, first and last timestamp,
+ * payload length) and the payload. Timestamps inside a payload are zigzag varint deltas to the
+ * previous record, starting from the first timestamp of the block. Sensor values are raw floats.
+ * WiFi records refer to BSSIDs by dictionary id, the dictionary entries are stored in
+ * STREAM_BSSID blocks which always precede the first WiFi block using them.
+ * <p>
+ * A closed trace ends with a block directory, so a time range is found without reading the blocks:
+ * a STREAM_DIRECTORY block holding one entry per data block (stream type, record count, first
+ * and last timestamp, file position) in file order, then a footer with the position of that
+ * block and DIRECTORY_MAGIC. A trace cut short by a crash has no directory, its blocks are found
+ * from their headers. The directory block type is unknown to sample readers and the footer is
+ * shorter than a block header, so a plain scan of the blocks skips both.
+ * All multi-byte fixed width values are big-endian.
+ */
+
+public final class TraceFormat {
+    public final static int MAGIC = 0x52425452;    // "RBTR"
+    public final static short VERSION = 1;
+    public final static String FILE_SUFFIX = ".rbt";
+
+    public final static int FILE_HEADERSIZE = 8;   // magic, version, flags
+    public final static int BLOCK_HEADERSIZE = 25;  // type, count, first, last, payload length
+    // Payload bytes a writer buffers per stream before it emits a block.
+    public final static int BLOCK_CAPACITY = 64 * 1024;
+
+    // Stream types, the first three follow SensorCollector.SENSORTYPE_SEQUENCE.
+    public final static byte STREAM_ACCE = 0;
+    public final static byte STREAM_GYRO = 1;
+    public final static byte STREAM_MAGN = 2;
+    public final static byte STREAM_WIFI = 3;
+    public final static byte STREAM_FILTEREDACCE = 4;
+    public final static byte STREAM_DIRECTION = 5;
+    public final static byte STREAM_STEP = 6;
+    public final static byte STREAM_BSSID = 7;
+    public final static int STREAM_COUNT = 8;
+    // Block directory, written once when the trace is closed.
+    public final static byte STREAM_DIRECTORY = 8;
+
+    public final static int DIRECTORY_MAGIC = 0x52424458;    // "RBDX"
+    public final static int DIRECTORY_ENTRYSIZE = 29;   // type, count, first, last, position
+    public final static int FOOTER_SIZE = 12;   // directory block position, magic
+
+    public final static String [] STREAM_IDS = {"acce", "gyro", "magn", "wifi",
+            "filtered", "orientation", "step", "bssid"};
+    // Float values per record of the sample streams, 0 for WiFi and dictionary records.
+    public final static int [] STREAM_VALUECOUNTS = {3, 3, 3, 0, 1, 1, 1, 0};
+
+    private TraceFormat() {
+    }
+
+    public static boolean isSampleStream(int streamType) {
+        return streamType >= 0 && streamType < STREAM_COUNT && STREAM_VALUECOUNTS[streamType] > 0;
+    }
+}
@@ -0,0 +1,152 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Iterates over the records of several streams of a recorded session in timestamp order.
+ * Every stream is read segment by segment one record ahead, so memory does not depend on the
+ * session length. Records with the same timestamp come in the order of the given stream types.
+ * <pre>
+ * TraceMerger merger = new TraceMerger(prefix, streamTypes);
+ * while (merger.next()) {
+ *     TextRecordParser record = merger.getRecord();
+ *     ...
+ * }
+ * merger.close();
+ * </pre>
+ */
+
+public class TraceMerger implements Closeable {
+    /**
+     * Reads the segments of one stream of a session in order, one record ahead.
+     */
+    private static class StreamCursor {
+        private final int m_streamType;
+        private final File [] m_segments;
+        private final BssidDictionary m_dictionary;
+        private final TextRecordParser m_parser;
+        private int m_segmentIndex;
+        private BufferedReader m_reader;
+        private boolean m_hasRecord;
+
+        StreamCursor(String prefix, int streamType, BssidDictionary dictionary) throws IOException {
+            m_streamType = streamType;
+            m_segments = TraceConverter.listSegments(prefix, streamType);
+            m_dictionary = dictionary;
+            m_parser = new TextRecordParser();
+            m_segmentIndex = -1;
+            m_reader = null;
+            advance();
+        }
+
+        void advance() throws IOException {
+            m_hasRecord = false;
+            while (!m_hasRecord) {
+                String line = m_reader == null ? null : m_reader.readLine();
+                if (line == null) {
+                    close();
+                    m_segmentIndex = m_segmentIndex + 1;
+                    if (m_segmentIndex >= m_segments.length) {
+                        return;
+                    }
+                    m_reader = new BufferedReader(new FileReader(m_segments[m_segmentIndex]));
+                    continue;
+                }
+                if (m_streamType == TraceFormat.STREAM_WIFI) {
+                    m_hasRecord = m_parser.parseWifiScan(line, m_dictionary);
+                }
+                else {
+                    m_hasRecord = m_parser.parseSample(line) && m_parser.valueCount >= SensorSampleStore.AXIS_COUNT;
+                }
+            }
+        }
+
+        void close() throws IOException {
+            if (m_reader != null) {
+                m_reader.close();
+                m_reader = null;
+            }
+        }
+    }
+
+    private final BssidDictionary m_dictionary;
+    private final StreamCursor [] m_cursors;
+    private StreamCursor m_current;
+
+    /**
+     * @param prefix Session path without the stream part, such as "/sdcard/RussianBlue/20161027120000"
+     * @param streamTypes TraceFormat.STREAM_* types to merge, missing streams are empty
+     * */
+    public TraceMerger(String prefix, int [] streamTypes) throws IOException {
+        m_dictionary = new BssidDictionary();
+        m_cursors = new StreamCursor[streamTypes.length];
+        m_current = null;
+        try {
+            for (int i = 0; i < streamTypes.length; i++) {
+                m_cursors[i] = new StreamCursor(prefix, streamTypes[i], m_dictionary);
+            }
+        }
+        catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Move to the earliest pending record of all streams.
+     * @return False when every stream is exhausted
+     * */
+    public boolean next() throws IOException {
+        if (m_current != null) {
+            m_current.advance();
+        }
+        // Each stream is in time order, pick the earliest pending record.
+        StreamCursor next = null;
+        for (StreamCursor cursor : m_cursors) {
+            if (cursor.m_hasRecord && (next == null || cursor.m_parser.timeStamp < next.m_parser.timeStamp)) {
+                next = cursor;
+            }
+        }
+        m_current = next;
+        return next != null;
+    }
+
+    /**
+     * @return The TraceFormat.STREAM_* type of the current record.
+     * */
+    public int getStreamType() {
+        return m_current.m_streamType;
+    }
+
+    /**
+     * @return The current record, only valid until the next call of next().
+     * */
+    public TextRecordParser getRecord() {
+        return m_current.m_parser;
+    }
+
+    public long getTimeStamp() {
+        return m_current.m_parser.timeStamp;
+    }
+
+    /**
+     * @return The dictionary of the BSSID ids of the WiFi records.
+     * */
+    public BssidDictionary getDictionary() {
+        return m_dictionary;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (StreamCursor cursor : m_cursors) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        m_current = null;
+    }
+}
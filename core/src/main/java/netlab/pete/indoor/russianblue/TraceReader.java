@@ -0,0 +1,196 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a binary trace (see {@link TraceFormat}) through read-only memory mappings.
+ * The file is mapped in windows of at most MAP_WINDOWSIZE bytes, so traces larger than the
+ * 2 GB limit of a single mapping can be scanned, and nothing but the current record is
+ * copied onto the heap.
+ */
+
+public class TraceReader implements Closeable {
+    public final static long MAP_WINDOWSIZE = 256L * 1024 * 1024;
+
+    /**
+     * Receives the records of a trace in file order. The arrays are reused between calls.
+     */
+    public interface Visitor {
+        void onSample(int streamType, long timeStamp, float [] values);
+        void onWifiScan(long timeStamp, int apCount, int [] bssidIds, int [] levels);
+    }
+
+    private final RandomAccessFile m_file;
+    private final FileChannel m_channel;
+    private final long m_fileSize;
+    private final short m_version;
+    private final BssidDictionary m_dictionary;
+
+    private MappedByteBuffer m_window;
+    private long m_windowStart;
+
+    private final float [] m_values;
+    private int [] m_bssidIds;
+    private int [] m_levels;
+
+    public TraceReader(File file) throws IOException {
+        m_file = new RandomAccessFile(file, "r");
+        m_channel = m_file.getChannel();
+        m_fileSize = m_channel.size();
+        m_dictionary = new BssidDictionary();
+        m_values = new float[SensorSampleStore.AXIS_COUNT];
+        m_bssidIds = new int[64];
+        m_levels = new int[64];
+        if (m_fileSize < TraceFormat.FILE_HEADERSIZE) {
+            close();
+            throw new IOException("Not a trace file: " + file);
+        }
+        map(0, TraceFormat.FILE_HEADERSIZE);
+        int magic = m_window.getInt(0);
+        m_version = m_window.getShort(4);
+        if (magic != TraceFormat.MAGIC || m_version > TraceFormat.VERSION) {
+            close();
+            throw new IOException("Unsupported trace file: " + file + ", version " + m_version);
+        }
+    }
+
+    public short getVersion() {
+        return m_version;
+    }
+
+    /**
+     * @return The BSSIDs read so far, complete once {@link #accept(Visitor)} returns.
+     * */
+    public BssidDictionary getBssidDictionary() {
+        return m_dictionary;
+    }
+
+    /**
+     * Make sure [position, position + length) is inside the current window.
+     * @return The offset of position inside the window
+     * */
+    private int map(long position, long length) throws IOException {
+        if (m_window == null || position < m_windowStart
+                || position + length > m_windowStart + m_window.capacity()) {
+            long size = Math.min(Math.max(MAP_WINDOWSIZE, length), m_fileSize - position);
+            m_window = m_channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            m_windowStart = position;
+        }
+        return (int) (position - m_windowStart);
+    }
+
+    /**
+     * Scan the whole trace.
+     * */
+    public void accept(Visitor visitor) throws IOException {
+        accept(visitor, TraceFormat.FILE_HEADERSIZE, m_fileSize);
+    }
+
+    /**
+     * Scan the blocks starting in [start, end), start must be the position of a block.
+     * The scan ends cleanly at a last block cut short, as a trace written until a crash has one.
+     * */
+    public void accept(Visitor visitor, long start, long end) throws IOException {
+        long position = start;
+        while (position + TraceFormat.BLOCK_HEADERSIZE <= end) {
+            int offset = map(position, TraceFormat.BLOCK_HEADERSIZE);
+            int streamType = m_window.get(offset);
+            int recordCount = m_window.getInt(offset + 1);
+            long timeStamp = m_window.getLong(offset + 5);
+            int payloadLength = m_window.getInt(offset + 21);
+            long payloadPosition = position + TraceFormat.BLOCK_HEADERSIZE;
+            if (payloadLength < 0 || payloadPosition + payloadLength > m_fileSize) {
+                // A block cut short by a crash, the data ends with the previous block.
+                return;
+            }
+            offset = map(position, TraceFormat.BLOCK_HEADERSIZE + payloadLength);
+            m_window.position(offset + TraceFormat.BLOCK_HEADERSIZE);
+            readBlock(visitor, streamType, recordCount, timeStamp);
+            position = payloadPosition + payloadLength;
+        }
+    }
+
+    private void readBlock(Visitor visitor, int streamType, int recordCount, long timeStamp) throws IOException {
+        if (streamType == TraceFormat.STREAM_BSSID) {
+            for (int i = 0; i < recordCount; i++) {
+                int id = getVarInt(m_window);
+                int length = getVarInt(m_window);
+                char [] chars = new char[length];
+                for (int c = 0; c < length; c++) {
+                    chars[c] = (char) (m_window.get() & 0xFF);
+                }
+                m_dictionary.put(id, new String(chars));
+            }
+        }
+        else if (streamType == TraceFormat.STREAM_WIFI) {
+            for (int i = 0; i < recordCount; i++) {
+                timeStamp += unzigzag(getVarLong(m_window));
+                int apCount = getVarInt(m_window);
+                if (apCount > m_bssidIds.length) {
+                    m_bssidIds = new int[apCount];
+                    m_levels = new int[apCount];
+                }
+                for (int ap = 0; ap < apCount; ap++) {
+                    m_bssidIds[ap] = getVarInt(m_window);
+                    m_levels[ap] = unzigzag(getVarInt(m_window));
+                }
+                visitor.onWifiScan(timeStamp, apCount, m_bssidIds, m_levels);
+            }
+        }
+        else if (TraceFormat.isSampleStream(streamType)) {
+            int valueCount = TraceFormat.STREAM_VALUECOUNTS[streamType];
+            for (int i = 0; i < recordCount; i++) {
+                timeStamp += unzigzag(getVarLong(m_window));
+                for (int v = 0; v < valueCount; v++) {
+                    m_values[v] = m_window.getFloat();
+                }
+                visitor.onSample(streamType, timeStamp, m_values);
+            }
+        }
+        // Blocks of unknown stream types from newer writers are skipped by the caller.
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static int getVarInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_window = null;
+        m_file.close();
+    }
+}
@@ -0,0 +1,185 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Headless replay of recorded sessions through {@link PdrPipeline}, on a plain JVM and as fast
+ * as the files can be read. The acce, gyro, magn and wifi text logs of a session are streamed
+ * and merged by timestamp through a {@link TraceMerger}, so memory does not depend on the session length.
+ * The command line replayer of the tools module runs it over directories of sessions.
+ */
+
+public class TraceReplayer {
+    public final static float DEFAULT_STEPLENGTH = 0.65f;
+    public final static String TRAJECTORY_SUFFIX = "_trajectory.txt";
+    // Sessions are named by the RecordingService date format, yyyyMMddHHmmss.
+    private final static String SESSION_PATTERN = "\\d{14}_acce\\.txt";
+    private final static int [] REPLAY_STREAMS = {TraceFormat.STREAM_ACCE, TraceFormat.STREAM_GYRO,
+            TraceFormat.STREAM_MAGN, TraceFormat.STREAM_WIFI};
+
+    public interface OnWifiScanListener {
+        void onWifiScan(long timeStamp, int apCount, int [] bssidIds, int [] levels, BssidDictionary dictionary);
+    }
+
+    public static class Result {
+        public String session;
+        public int stepCount;
+        public double distance;
+        public float currentX;
+        public float currentY;
+        public long sampleCount;
+        // First and last sensor sample time, 0 without samples
+        public long startTime;
+        public long endTime;
+        public int wifiScanCount;
+        // Fused end position and located scans, with a fingerprint map only
+        public float fusedX;
+        public float fusedY;
+        public int wifiFixCount;
+        public long elapsedNanos;
+
+        public String toString() {
+            return session + ", steps " + stepCount + ", distance " + String.format("%.2f", distance)
+                    + " m, end (" + String.format("%.2f", currentX) + ", " + String.format("%.2f", currentY)
+                    + "), samples " + sampleCount + ", wifi scans " + wifiScanCount
+                    + (wifiFixCount > 0 ? ", fused end (" + String.format("%.2f", fusedX) + ", "
+                    + String.format("%.2f", fusedY) + ") from " + wifiFixCount + " fixes" : "")
+                    + ", " + String.format("%.1f", elapsedNanos / 1e6) + " ms";
+        }
+    }
+
+    /**
+     * Replay one session.
+     * @param prefix Session path without the stream part, such as "/sdcard/RussianBlue/20161027120000"
+     * @param pipeline A reset pipeline
+     * @param wifiListener Receives the WiFi scans in time order with the sensor samples, may be null
+     * */
+    public static Result replay(String prefix, PdrPipeline pipeline, OnWifiScanListener wifiListener) throws IOException {
+        long startTime = System.nanoTime();
+        Result result = new Result();
+        result.session = prefix;
+        TraceMerger merger = new TraceMerger(prefix, REPLAY_STREAMS);
+        try {
+            BssidDictionary dictionary = merger.getDictionary();
+            while (merger.next()) {
+                TextRecordParser record = merger.getRecord();
+                switch (merger.getStreamType()) {
+                    case TraceFormat.STREAM_ACCE:
+                        pipeline.onAcceValue(record.timeStamp, record.values[0], record.values[1], record.values[2]);
+                        break;
+                    case TraceFormat.STREAM_GYRO:
+                        pipeline.onGyroValue(record.timeStamp, record.values[0], record.values[1], record.values[2]);
+                        break;
+                    case TraceFormat.STREAM_MAGN:
+                        pipeline.onMagnValue(record.timeStamp, record.values[0], record.values[1], record.values[2]);
+                        break;
+                    default:
+                        result.wifiScanCount = result.wifiScanCount + 1;
+                        if (wifiListener != null) {
+                            wifiListener.onWifiScan(record.timeStamp, record.apCount, record.bssidIds,
+                                    record.levels, dictionary);
+                        }
+                        break;
+                }
+                if (merger.getStreamType() != TraceFormat.STREAM_WIFI) {
+                    if (result.sampleCount == 0) {
+                        result.startTime = record.timeStamp;
+                    }
+                    result.endTime = record.timeStamp;
+                    result.sampleCount = result.sampleCount + 1;
+                }
+            }
+        }
+        finally {
+            merger.close();
+        }
+        result.stepCount = pipeline.getStepCount();
+        result.distance = pipeline.getDistance();
+        result.currentX = pipeline.getCurrentX();
+        result.currentY = pipeline.getCurrentY();
+        result.elapsedNanos = System.nanoTime() - startTime;
+        return result;
+    }
+
+    /**
+     * Replay one session with a new pipeline, optionally writing "timestamp, step, x, y, heading" lines.
+     * @param map Fingerprint map to fuse WiFi fixes with the steps, may be null
+     * */
+    public static Result replay(String prefix, float stepLength, boolean saveTrajectory,
+                                FingerprintMap map, int particleCount) throws IOException {
+        final PdrPipeline pipeline = new PdrPipeline(stepLength);
+        ParticleLocalizer localizer = null;
+        if (map != null) {
+            localizer = new ParticleLocalizer(pipeline, map, particleCount, null);
+            pipeline.addPositionListener(localizer);
+        }
+        if (!saveTrajectory) {
+            return setFusedPosition(replay(prefix, pipeline, localizer), localizer);
+        }
+        // Steps can still be corrected after they are reported, the trajectory is written at the end.
+        final StepLog trajectory = new StepLog();
+        PdrPipeline.OnPositionListener trajectoryListener = new PdrPipeline.OnPositionListener() {
+            @Override
+            public void onPosition(int stepCount, long timeStamp, float x, float y, float heading) {
+                trajectory.append(timeStamp, x, y, heading, pipeline.getLastStepLength());
+            }
+
+            @Override
+            public void onPositionUpdated(int stepCount, long timeStamp, float x, float y, float heading) {
+                trajectory.amend(trajectory.size() - 1, timeStamp, x, y, heading, pipeline.getLastStepLength());
+            }
+        };
+        if (localizer != null) {
+            localizer.addPositionListener(trajectoryListener);
+        }
+        else {
+            pipeline.addPositionListener(trajectoryListener);
+        }
+        Result result = replay(prefix, pipeline, localizer);
+        BufferedWriter writer = new BufferedWriter(new FileWriter(prefix + TRAJECTORY_SUFFIX));
+        try {
+            for (int i = 0; i < trajectory.size(); i++) {
+                writer.write(trajectory.getTimeStamp(i) + ", " + (i + 1) + ", " + trajectory.getX(i) + ", "
+                        + trajectory.getY(i) + ", " + trajectory.getHeading(i) + "\n");
+            }
+        }
+        finally {
+            writer.close();
+        }
+        return setFusedPosition(result, localizer);
+    }
+
+    private static Result setFusedPosition(Result result, ParticleLocalizer localizer) {
+        if (localizer != null) {
+            result.fusedX = localizer.getX();
+            result.fusedY = localizer.getY();
+            result.wifiFixCount = localizer.getFixCount();
+        }
+        return result;
+    }
+
+    /**
+     * @return The session prefixes found in the directory, in name order.
+     * */
+    public static List<String> discoverSessions(File directory) {
+        ArrayList<String> sessions = new ArrayList<>();
+        String [] names = directory.list();
+        if (names == null) {
+            return sessions;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            if (name.matches(SESSION_PATTERN)) {
+                String prefix = name.substring(0, name.length() - "_acce.txt".length());
+                sessions.add(new File(directory, prefix).getPath());
+            }
+        }
+        return sessions;
+    }
+}
@@ -0,0 +1,300 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes a binary trace (see {@link TraceFormat}). Records are buffered per stream in reusable
+ * ByteBuffers and emitted as one block when the buffer is full, or on {@link #flush()}.
+ * Every block is entered in a directory kept in primitive arrays, {@link #close()} writes it at the
+ * end of the trace.
+ * Not thread safe, one writer thread per trace.
+ */
+
+public class TraceWriter implements Closeable {
+    // Largest encoded size of a timestamp delta and of a 32 bit varint.
+    private final static int VARLONG_MAXSIZE = 10;
+    private final static int VARINT_MAXSIZE = 5;
+    private final static int DIRECTORY_INITCAPACITY = 256;
+
+    private final static class StreamBuffer {
+        private final ByteBuffer m_payload = ByteBuffer.allocate(TraceFormat.BLOCK_CAPACITY);
+        private int m_recordCount;
+        private long m_firstTimeStamp;
+        private long m_lastTimeStamp;
+    }
+
+    private final FileChannel m_channel;
+    private final StreamBuffer [] m_streams;
+    private final ByteBuffer m_blockHeader;
+    private final BssidDictionary m_dictionary;
+    // Dictionary ids below this one have been written to the trace.
+    private int m_writtenBssidCount;
+    private long m_position;
+
+    // Block directory, in file order
+    private byte [] m_blockTypes;
+    private int [] m_blockRecordCounts;
+    private long [] m_blockFirstTimeStamps;
+    private long [] m_blockLastTimeStamps;
+    private long [] m_blockPositions;
+    private int m_blockCount;
+
+    public TraceWriter(File file) throws IOException {
+        m_channel = new FileOutputStream(file).getChannel();
+        m_streams = new StreamBuffer[TraceFormat.STREAM_COUNT];
+        for (int i = 0; i < TraceFormat.STREAM_COUNT; i++) {
+            m_streams[i] = new StreamBuffer();
+        }
+        m_blockHeader = ByteBuffer.allocate(TraceFormat.BLOCK_HEADERSIZE);
+        m_dictionary = new BssidDictionary();
+        m_writtenBssidCount = 0;
+        m_position = 0;
+        m_blockTypes = new byte[DIRECTORY_INITCAPACITY];
+        m_blockRecordCounts = new int[DIRECTORY_INITCAPACITY];
+        m_blockFirstTimeStamps = new long[DIRECTORY_INITCAPACITY];
+        m_blockLastTimeStamps = new long[DIRECTORY_INITCAPACITY];
+        m_blockPositions = new long[DIRECTORY_INITCAPACITY];
+        m_blockCount = 0;
+
+        ByteBuffer fileHeader = ByteBuffer.allocate(TraceFormat.FILE_HEADERSIZE);
+        fileHeader.putInt(TraceFormat.MAGIC);
+        fileHeader.putShort(TraceFormat.VERSION);
+        fileHeader.putShort((short) 0);
+        fileHeader.flip();
+        writeFully(fileHeader);
+    }
+
+    public BssidDictionary getBssidDictionary() {
+        return m_dictionary;
+    }
+
+    /**
+     * Append one record of a sample stream, the stream's value count is read from values.
+     * */
+    public void writeSample(int streamType, long timeStamp, final float [] values) throws IOException {
+        int valueCount = TraceFormat.STREAM_VALUECOUNTS[streamType];
+        StreamBuffer stream = prepare(streamType, timeStamp, VARLONG_MAXSIZE + valueCount * 4);
+        for (int i = 0; i < valueCount; i++) {
+            stream.m_payload.putFloat(values[i]);
+        }
+    }
+
+    /**
+     * Append one record of a three-axis stream, without an array of values.
+     * */
+    public void writeSample(int streamType, long timeStamp, float x, float y, float z) throws IOException {
+        StreamBuffer stream = prepare(streamType, timeStamp, VARLONG_MAXSIZE + 3 * 4);
+        stream.m_payload.putFloat(x);
+        stream.m_payload.putFloat(y);
+        stream.m_payload.putFloat(z);
+    }
+
+    /**
+     * Append one record of a single valued stream, such as filtered acceleration or direction.
+     * */
+    public void writeSample(int streamType, long timeStamp, float value) throws IOException {
+        StreamBuffer stream = prepare(streamType, timeStamp, VARLONG_MAXSIZE + 4);
+        stream.m_payload.putFloat(value);
+    }
+
+    /**
+     * Append one WiFi scan.
+     * @param bssidIds Ids from {@link #getBssidDictionary()}
+     * @param levels RSS levels in dBm
+     * */
+    public void writeWifiScan(long timeStamp, int apCount, final int [] bssidIds, final int [] levels) throws IOException {
+        int recordSize = VARLONG_MAXSIZE + VARINT_MAXSIZE + apCount * 2 * VARINT_MAXSIZE;
+        if (recordSize > TraceFormat.BLOCK_CAPACITY) {
+            throw new IOException("WiFi scan with " + apCount + " access points does not fit in a block");
+        }
+        StreamBuffer stream = prepare(TraceFormat.STREAM_WIFI, timeStamp, recordSize);
+        putVarInt(stream.m_payload, apCount);
+        for (int i = 0; i < apCount; i++) {
+            putVarInt(stream.m_payload, bssidIds[i]);
+            putVarInt(stream.m_payload, zigzag(levels[i]));
+        }
+    }
+
+    /**
+     * Reserve room for one record and write its timestamp delta.
+     * */
+    private StreamBuffer prepare(int streamType, long timeStamp, int recordSize) throws IOException {
+        StreamBuffer stream = m_streams[streamType];
+        if (stream.m_payload.remaining() < recordSize) {
+            flushStream(streamType);
+        }
+        if (stream.m_recordCount == 0) {
+            stream.m_firstTimeStamp = timeStamp;
+            stream.m_lastTimeStamp = timeStamp;
+        }
+        putVarLong(stream.m_payload, zigzag(timeStamp - stream.m_lastTimeStamp));
+        stream.m_lastTimeStamp = timeStamp;
+        stream.m_recordCount = stream.m_recordCount + 1;
+        return stream;
+    }
+
+    private void flushStream(int streamType) throws IOException {
+        StreamBuffer stream = m_streams[streamType];
+        if (stream.m_recordCount == 0) {
+            return;
+        }
+        if (streamType == TraceFormat.STREAM_WIFI) {
+            // Readers must know every BSSID before the scans referring to it.
+            flushDictionary();
+        }
+        writeBlock(streamType, stream);
+    }
+
+    private void flushDictionary() throws IOException {
+        StreamBuffer stream = m_streams[TraceFormat.STREAM_BSSID];
+        while (m_writtenBssidCount < m_dictionary.size()) {
+            String bssid = m_dictionary.getBssid(m_writtenBssidCount);
+            int length = bssid.length();
+            if (stream.m_payload.remaining() < 2 * VARINT_MAXSIZE + length) {
+                writeBlock(TraceFormat.STREAM_BSSID, stream);
+            }
+            putVarInt(stream.m_payload, m_writtenBssidCount);
+            putVarInt(stream.m_payload, length);
+            // BSSIDs are plain ASCII
+            for (int i = 0; i < length; i++) {
+                stream.m_payload.put((byte) bssid.charAt(i));
+            }
+            stream.m_recordCount = stream.m_recordCount + 1;
+            m_writtenBssidCount = m_writtenBssidCount + 1;
+        }
+        if (stream.m_recordCount > 0) {
+            writeBlock(TraceFormat.STREAM_BSSID, stream);
+        }
+    }
+
+    private void writeBlock(int streamType, StreamBuffer stream) throws IOException {
+        stream.m_payload.flip();
+        m_blockHeader.clear();
+        m_blockHeader.put((byte) streamType);
+        m_blockHeader.putInt(stream.m_recordCount);
+        m_blockHeader.putLong(stream.m_firstTimeStamp);
+        m_blockHeader.putLong(stream.m_lastTimeStamp);
+        m_blockHeader.putInt(stream.m_payload.remaining());
+        m_blockHeader.flip();
+        addDirectoryEntry(streamType, stream);
+        writeFully(m_blockHeader);
+        writeFully(stream.m_payload);
+        stream.m_payload.clear();
+        stream.m_recordCount = 0;
+    }
+
+    private void addDirectoryEntry(int streamType, StreamBuffer stream) {
+        if (m_blockCount == m_blockTypes.length) {
+            int capacity = m_blockCount * 2;
+            m_blockTypes = Arrays.copyOf(m_blockTypes, capacity);
+            m_blockRecordCounts = Arrays.copyOf(m_blockRecordCounts, capacity);
+            m_blockFirstTimeStamps = Arrays.copyOf(m_blockFirstTimeStamps, capacity);
+            m_blockLastTimeStamps = Arrays.copyOf(m_blockLastTimeStamps, capacity);
+            m_blockPositions = Arrays.copyOf(m_blockPositions, capacity);
+        }
+        m_blockTypes[m_blockCount] = (byte) streamType;
+        m_blockRecordCounts[m_blockCount] = stream.m_recordCount;
+        m_blockFirstTimeStamps[m_blockCount] = stream.m_firstTimeStamp;
+        m_blockLastTimeStamps[m_blockCount] = stream.m_lastTimeStamp;
+        m_blockPositions[m_blockCount] = m_position;
+        m_blockCount = m_blockCount + 1;
+    }
+
+    /**
+     * Write the block directory and the footer pointing to it, after the last block.
+     * */
+    private void writeDirectory() throws IOException {
+        long firstTimeStamp = Long.MAX_VALUE;
+        long lastTimeStamp = Long.MIN_VALUE;
+        ByteBuffer payload = ByteBuffer.allocate(m_blockCount * TraceFormat.DIRECTORY_ENTRYSIZE);
+        for (int i = 0; i < m_blockCount; i++) {
+            payload.put(m_blockTypes[i]);
+            payload.putInt(m_blockRecordCounts[i]);
+            payload.putLong(m_blockFirstTimeStamps[i]);
+            payload.putLong(m_blockLastTimeStamps[i]);
+            payload.putLong(m_blockPositions[i]);
+            if (m_blockTypes[i] != TraceFormat.STREAM_BSSID) {
+                firstTimeStamp = Math.min(firstTimeStamp, m_blockFirstTimeStamps[i]);
+                lastTimeStamp = Math.max(lastTimeStamp, m_blockLastTimeStamps[i]);
+            }
+        }
+        payload.flip();
+        if (firstTimeStamp > lastTimeStamp) {
+            firstTimeStamp = 0;
+            lastTimeStamp = 0;
+        }
+        long directoryPosition = m_position;
+        m_blockHeader.clear();
+        m_blockHeader.put(TraceFormat.STREAM_DIRECTORY);
+        m_blockHeader.putInt(m_blockCount);
+        m_blockHeader.putLong(firstTimeStamp);
+        m_blockHeader.putLong(lastTimeStamp);
+        m_blockHeader.putInt(payload.remaining());
+        m_blockHeader.flip();
+        writeFully(m_blockHeader);
+        writeFully(payload);
+        ByteBuffer footer = ByteBuffer.allocate(TraceFormat.FOOTER_SIZE);
+        footer.putLong(directoryPosition);
+        footer.putInt(TraceFormat.DIRECTORY_MAGIC);
+        footer.flip();
+        writeFully(footer);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            m_position += m_channel.write(buffer);
+        }
+    }
+
+    /**
+     * Emit all buffered records as blocks. The directory is only written by close().
+     * */
+    public void flush() throws IOException {
+        for (int i = 0; i < TraceFormat.STREAM_COUNT; i++) {
+            if (i != TraceFormat.STREAM_BSSID) {
+                flushStream(i);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            writeDirectory();
+        }
+        finally {
+            m_channel.close();
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
@@ -0,0 +1,216 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Queue of WiFi scans between the thread handling the scan results and the log flusher.
+ * BSSIDs are interned to ids and scans are kept in primitive arrays: a timestamp and an end offset
+ * per scan, a BSSID id and a level per access point. Two sets of arrays are swapped on each
+ * drain, so the flusher formats the text lines outside of the lock and nothing is allocated once
+ * the arrays have grown to the usual scan size.
+ */
+
+public class WifiScanStore {
+    private final static int INIT_SCANCAPACITY = 16;
+    private final static int INIT_APCAPACITY = 512;
+
+    private static class Scans {
+        long [] m_timeStamps = new long[INIT_SCANCAPACITY];
+        // Scan i spans [m_ends[i - 1], m_ends[i]) of the access point arrays.
+        int [] m_ends = new int[INIT_SCANCAPACITY];
+        int m_scanCount;
+        int [] m_bssidIds = new int[INIT_APCAPACITY];
+        int [] m_levels = new int[INIT_APCAPACITY];
+        int m_apCount;
+
+        void clear() {
+            m_scanCount = 0;
+            m_apCount = 0;
+        }
+    }
+
+    // Producer side, guarded by this
+    private final BssidDictionary m_dictionary;
+    private Scans m_writeScans;
+    private boolean m_scanOpen;
+    private long m_scanTotal;
+    // Consumer side
+    private Scans m_readScans;
+    private final ArrayList<String> m_drainBssids;
+    // Id in the trace dictionary of each drained BSSID id, and one scan in trace ids
+    private int [] m_traceIds;
+    private int m_traceIdCount;
+    private int [] m_scanBssidIds;
+    private int [] m_scanLevels;
+    private final StringBuilder m_strBuf;
+    private char [] m_charBuf;
+
+    public WifiScanStore() {
+        m_dictionary = new BssidDictionary();
+        m_writeScans = new Scans();
+        m_readScans = new Scans();
+        m_drainBssids = new ArrayList<>();
+        m_traceIds = new int[INIT_APCAPACITY];
+        m_traceIdCount = 0;
+        m_scanBssidIds = new int[64];
+        m_scanLevels = new int[64];
+        m_strBuf = new StringBuilder(1024);
+        m_charBuf = new char[1024];
+        m_scanOpen = false;
+        m_scanTotal = 0;
+    }
+
+    /**
+     * Start a scan, followed by addAccessPoint() calls and endScan().
+     * */
+    public synchronized void beginScan(long timeStamp) {
+        Scans scans = m_writeScans;
+        if (scans.m_scanCount == scans.m_timeStamps.length) {
+            scans.m_timeStamps = Arrays.copyOf(scans.m_timeStamps, scans.m_scanCount * 2);
+            scans.m_ends = Arrays.copyOf(scans.m_ends, scans.m_scanCount * 2);
+        }
+        scans.m_timeStamps[scans.m_scanCount] = timeStamp;
+        m_scanOpen = true;
+    }
+
+    public synchronized void addAccessPoint(String bssid, int level) {
+        if (!m_scanOpen) {
+            return;
+        }
+        Scans scans = m_writeScans;
+        if (scans.m_apCount == scans.m_bssidIds.length) {
+            scans.m_bssidIds = Arrays.copyOf(scans.m_bssidIds, scans.m_apCount * 2);
+            scans.m_levels = Arrays.copyOf(scans.m_levels, scans.m_apCount * 2);
+        }
+        scans.m_bssidIds[scans.m_apCount] = m_dictionary.intern(bssid);
+        scans.m_levels[scans.m_apCount] = level;
+        scans.m_apCount = scans.m_apCount + 1;
+    }
+
+    public synchronized void endScan() {
+        if (!m_scanOpen) {
+            return;
+        }
+        Scans scans = m_writeScans;
+        scans.m_ends[scans.m_scanCount] = scans.m_apCount;
+        scans.m_scanCount = scans.m_scanCount + 1;
+        m_scanOpen = false;
+        m_scanTotal = m_scanTotal + 1;
+    }
+
+    /**
+     * @return The number of scans stored since the last clear, drained ones included.
+     * */
+    public synchronized long size() {
+        return m_scanTotal;
+    }
+
+    /**
+     * Drop the pending scans, the BSSID ids are kept.
+     * */
+    public synchronized void clear() {
+        m_writeScans.clear();
+        m_scanOpen = false;
+        m_scanTotal = 0;
+    }
+
+    /**
+     * Write the pending scans as "timestamp, BSSID:level, ..." lines and release them.
+     * Only one thread may drain.
+     * @param writer The target of the text lines, null to just discard the scans
+     * @return The number of drained scans
+     * */
+    public int drainTo(Writer writer) throws IOException {
+        return drainTo(writer, null);
+    }
+
+    /**
+     * Write the pending scans to the text lines and to a trace, then release them.
+     * Only one thread may drain, and always to the same trace.
+     * @param writer The target of the text lines, null for none
+     * @param trace The trace receiving the scans, its dictionary interns their BSSIDs, null for none
+     * @return The number of drained scans
+     * */
+    public int drainTo(Writer writer, TraceWriter trace) throws IOException {
+        Scans scans = m_readScans;
+        synchronized (this) {
+            if (m_writeScans.m_scanCount == 0) {
+                return 0;
+            }
+            // An open scan moves to the other buffer with its access points.
+            int openStart = m_writeScans.m_ends[m_writeScans.m_scanCount - 1];
+            scans.clear();
+            if (m_scanOpen) {
+                int openCount = m_writeScans.m_apCount - openStart;
+                if (scans.m_bssidIds.length < openCount) {
+                    scans.m_bssidIds = new int[openCount * 2];
+                    scans.m_levels = new int[openCount * 2];
+                }
+                System.arraycopy(m_writeScans.m_bssidIds, openStart, scans.m_bssidIds, 0, openCount);
+                System.arraycopy(m_writeScans.m_levels, openStart, scans.m_levels, 0, openCount);
+                scans.m_timeStamps[0] = m_writeScans.m_timeStamps[m_writeScans.m_scanCount];
+                scans.m_apCount = openCount;
+                m_writeScans.m_apCount = openStart;
+            }
+            m_readScans = m_writeScans;
+            m_writeScans = scans;
+            scans = m_readScans;
+            // The dictionary only grows, copy the BSSIDs interned since the last drain.
+            for (int id = m_drainBssids.size(); id < m_dictionary.size(); id++) {
+                m_drainBssids.add(m_dictionary.getBssid(id));
+            }
+        }
+        if (writer != null) {
+            int start = 0;
+            for (int i = 0; i < scans.m_scanCount; i++) {
+                m_strBuf.setLength(0);
+                m_strBuf.append(scans.m_timeStamps[i]);
+                for (int ap = start; ap < scans.m_ends[i]; ap++) {
+                    m_strBuf.append(", ");
+                    m_strBuf.append(m_drainBssids.get(scans.m_bssidIds[ap]));
+                    m_strBuf.append(':');
+                    m_strBuf.append(scans.m_levels[ap]);
+                }
+                m_strBuf.append('\n');
+                int length = m_strBuf.length();
+                if (length > m_charBuf.length) {
+                    m_charBuf = new char[length * 2];
+                }
+                m_strBuf.getChars(0, length, m_charBuf, 0);
+                writer.write(m_charBuf, 0, length);
+                start = scans.m_ends[i];
+            }
+        }
+        if (trace != null) {
+            writeScans(scans, trace);
+        }
+        return scans.m_scanCount;
+    }
+
+    private void writeScans(Scans scans, TraceWriter trace) throws IOException {
+        if (m_traceIds.length < m_drainBssids.size()) {
+            m_traceIds = Arrays.copyOf(m_traceIds, m_drainBssids.size() * 2);
+        }
+        for (int id = m_traceIdCount; id < m_drainBssids.size(); id++) {
+            m_traceIds[id] = trace.getBssidDictionary().intern(m_drainBssids.get(id));
+        }
+        m_traceIdCount = m_drainBssids.size();
+        int start = 0;
+        for (int i = 0; i < scans.m_scanCount; i++) {
+            int apCount = scans.m_ends[i] - start;
+            if (m_scanBssidIds.length < apCount) {
+                m_scanBssidIds = new int[apCount * 2];
+                m_scanLevels = new int[apCount * 2];
+            }
+            for (int ap = 0; ap < apCount; ap++) {
+                m_scanBssidIds[ap] = m_traceIds[scans.m_bssidIds[start + ap]];
+                m_scanLevels[ap] = scans.m_levels[start + ap];
+            }
+            trace.writeWifiScan(scans.m_timeStamps[i], apCount, m_scanBssidIds, m_scanLevels);
+            start = scans.m_ends[i];
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Grid alignment, period averaging, interpolation and gap handling.
+ */
+
+public class AcceResamplerTest {
+    private final static long PERIOD = AcceResampler.DEFAULT_PERIOD;
+
+    @Test
+    public void gridIsAlignedOnMultiplesOfThePeriod() {
+        AcceResampler resampler = new AcceResampler();
+        long expected = -1;
+        long t = 1013;
+        int total = 0;
+        while (t < 5000) {
+            int count = resampler.resample(t, 9.8f);
+            for (int i = 0; i < count; i++) {
+                long gridTime = resampler.getTimeStamp(i);
+                assertEquals(0, gridTime % PERIOD);
+                if (expected < 0) {
+                    // First grid point at or after the first sample.
+                    assertEquals(1020, gridTime);
+                }
+                else {
+                    assertEquals(expected, gridTime);
+                }
+                expected = gridTime + PERIOD;
+                assertEquals(9.8f, resampler.getValue(i), 1e-6f);
+                total = total + 1;
+            }
+            // Jittered 3 to 16 ms intervals.
+            t += 3 + (t * 7) % 14;
+        }
+        assertTrue(total > 190);
+        assertTrue(expected >= 4980 && expected <= 5000);
+    }
+
+    @Test
+    public void averagesTheSamplesOfAPeriod() {
+        AcceResampler resampler = new AcceResampler();
+        assertEquals(0, resampler.resample(1005, 1.f));
+        assertEquals(0, resampler.resample(1010, 2.f));
+        assertEquals(0, resampler.resample(1015, 3.f));
+        // On the grid point, it closes the period ending at 1020.
+        assertEquals(0, resampler.resample(1020, 4.f));
+        assertEquals(1, resampler.resample(1025, 5.f));
+        assertEquals(1020, resampler.getTimeStamp(0));
+        assertEquals(2.5f, resampler.getValue(0), 1e-6f);
+        // A sample in the same millisecond joins the period.
+        assertEquals(0, resampler.resample(1025, 7.f));
+        assertEquals(1, resampler.resample(1041, 0.f));
+        assertEquals(1040, resampler.getTimeStamp(0));
+        assertEquals(6.f, resampler.getValue(0), 1e-6f);
+    }
+
+    @Test
+    public void interpolatesPeriodsWithoutSamples() {
+        AcceResampler resampler = new AcceResampler();
+        // A linear signal sampled every 100 ms, the grid points in between lie on the line.
+        resampler.resample(1000, 10.f);
+        for (long t = 1100; t <= 2000; t += 100) {
+            int count = resampler.resample(t, t / 100.f);
+            assertEquals(5, count);
+            for (int i = 0; i < count; i++) {
+                long gridTime = resampler.getTimeStamp(i);
+                assertEquals(t - 100 + i * PERIOD, gridTime);
+                assertEquals(gridTime / 100.f, resampler.getValue(i), 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    public void restartsTheGridAfterAGap() {
+        AcceResampler resampler = new AcceResampler();
+        resampler.resample(1000, 1.f);
+        assertEquals(1, resampler.resample(1020, 2.f));
+        // Nothing is interpolated over a gap longer than MAX_GAP.
+        assertEquals(0, resampler.resample(1020 + AcceResampler.MAX_GAP + 7, 3.f));
+        assertEquals(1, resampler.resample(1560, 4.f));
+        assertEquals(1540, resampler.getTimeStamp(0));
+        assertEquals(3.f, resampler.getValue(0), 1e-6f);
+    }
+
+    @Test
+    public void otherPeriods() {
+        AcceResampler resampler = new AcceResampler(5);
+        assertEquals(0, resampler.resample(1001, 0.f));
+        assertEquals(3, resampler.resample(1016, 15.f));
+        assertEquals(1005, resampler.getTimeStamp(0));
+        assertEquals(1010, resampler.getTimeStamp(1));
+        assertEquals(1015, resampler.getTimeStamp(2));
+        assertEquals(14.f, resampler.getValue(2), 1e-4f);
+    }
+}
@@ -0,0 +1,303 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * k-NN lookups against a brute force search, and the save and load round trip.
+ */
+
+public class FingerprintMapTest {
+    private final static int GRID = 12;
+    private final static float SPACING = 2.f;   // m
+    private final static int AP_COUNT = 9;
+    private final static float EPSILON = 1e-3f;
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    // Dictionary of the scans, its ids differ from the ids of the map.
+    private BssidDictionary m_scanDictionary;
+    private int [] m_apIds;
+    private FingerprintMap m_map;
+
+    private static String bssid(int ap) {
+        return String.format("02:00:00:00:00:%02x", ap);
+    }
+
+    private static float apX(int ap) {
+        return (ap % 3) * GRID * SPACING / 2;
+    }
+
+    private static float apY(int ap) {
+        return (ap / 3) * GRID * SPACING / 2;
+    }
+
+    /**
+     * Log distance path loss, access points further than 15 m are not heard.
+     * @return The level in dBm, or 0 if not heard
+     * */
+    private static int level(int ap, float x, float y) {
+        double distance = Math.hypot(x - apX(ap), y - apY(ap));
+        if (distance > 15.) {
+            return 0;
+        }
+        return (int) Math.round(-40 - 25 * Math.log10(Math.max(1., distance)));
+    }
+
+    /**
+     * @return The number of access points heard at (x, y), in bssidIds and levels
+     * */
+    private int scan(float x, float y, int [] bssidIds, int [] levels) {
+        int count = 0;
+        for (int ap = 0; ap < AP_COUNT; ap++) {
+            int level = level(ap, x, y);
+            if (level != 0) {
+                bssidIds[count] = m_apIds[ap];
+                levels[count] = level;
+                count = count + 1;
+            }
+        }
+        return count;
+    }
+
+    @Before
+    public void buildMap() {
+        m_scanDictionary = new BssidDictionary();
+        m_apIds = new int[AP_COUNT];
+        // Interned in reverse, so that scan ids and map ids do not match.
+        for (int ap = AP_COUNT - 1; ap >= 0; ap--) {
+            m_apIds[ap] = m_scanDictionary.intern(bssid(ap));
+        }
+        FingerprintMap.Builder builder = new FingerprintMap.Builder();
+        int [] bssidIds = new int[AP_COUNT];
+        int [] levels = new int[AP_COUNT];
+        for (int i = 0; i < GRID; i++) {
+            for (int j = 0; j < GRID; j++) {
+                float x = i * SPACING;
+                float y = j * SPACING;
+                builder.addReferencePoint(x, y, scan(x, y, bssidIds, levels), bssidIds, levels, m_scanDictionary);
+            }
+        }
+        m_map = builder.build();
+    }
+
+    /**
+     * Squared distance over the union of the access points, as the class comment defines it.
+     * */
+    private float bruteForceDistance(int point, float x, float y) {
+        float squared = 0;
+        for (int ap = 0; ap < AP_COUNT; ap++) {
+            int scanLevel = level(ap, x, y);
+            int pointLevel = level(ap, m_map.getX(point), m_map.getY(point));
+            float a = (scanLevel == 0 ? FingerprintMap.MISSING_LEVEL : scanLevel) - FingerprintMap.MISSING_LEVEL;
+            float b = (pointLevel == 0 ? FingerprintMap.MISSING_LEVEL : pointLevel) - FingerprintMap.MISSING_LEVEL;
+            squared += (a - b) * (a - b);
+        }
+        return squared;
+    }
+
+    private boolean sharesAnAccessPoint(int point, float x, float y) {
+        for (int ap = 0; ap < AP_COUNT; ap++) {
+            if (level(ap, x, y) != 0 && level(ap, m_map.getX(point), m_map.getY(point)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void referencePointLocatesItself() {
+        assertEquals(GRID * GRID, m_map.getPointCount());
+        assertEquals(AP_COUNT, m_map.getBssidDictionary().size());
+        FingerprintMap.Query query = m_map.new Query();
+        int [] bssidIds = new int[AP_COUNT];
+        int [] levels = new int[AP_COUNT];
+        for (int point = 0; point < m_map.getPointCount(); point += 7) {
+            float x = m_map.getX(point);
+            float y = m_map.getY(point);
+            assertTrue(query.locate(scan(x, y, bssidIds, levels), bssidIds, levels, m_scanDictionary));
+            // An exact match takes nearly all the weight.
+            assertEquals(0.f, query.getNeighbourDistance(0), 0.f);
+            assertEquals(x, query.getX(), 0.05f);
+            assertEquals(y, query.getY(), 0.05f);
+        }
+    }
+
+    @Test
+    public void neighboursMatchABruteForceSearch() {
+        Random random = new Random(13);
+        FingerprintMap.Query query = m_map.new Query(5);
+        int [] bssidIds = new int[AP_COUNT];
+        int [] levels = new int[AP_COUNT];
+        for (int n = 0; n < 200; n++) {
+            float x = random.nextFloat() * (GRID - 1) * SPACING;
+            float y = random.nextFloat() * (GRID - 1) * SPACING;
+            assertTrue(query.locate(scan(x, y, bssidIds, levels), bssidIds, levels, m_scanDictionary));
+            assertEquals(5, query.getNeighbourCount());
+            // Sorted, and no candidate left out is nearer than the last neighbour.
+            float last = query.getNeighbourDistance(4);
+            for (int i = 1; i < 5; i++) {
+                assertTrue(query.getNeighbourDistance(i - 1) <= query.getNeighbourDistance(i));
+            }
+            double sumX = 0, sumY = 0, sumWeight = 0;
+            for (int i = 0; i < 5; i++) {
+                int point = query.getNeighbour(i);
+                float distance = (float) Math.sqrt(bruteForceDistance(point, x, y));
+                assertEquals(distance, query.getNeighbourDistance(i), EPSILON);
+                double weight = 1.0 / (distance + 1e-3);
+                sumX += weight * m_map.getX(point);
+                sumY += weight * m_map.getY(point);
+                sumWeight += weight;
+            }
+            for (int point = 0; point < m_map.getPointCount(); point++) {
+                if (sharesAnAccessPoint(point, x, y)) {
+                    assertTrue(Math.sqrt(bruteForceDistance(point, x, y)) >= last - EPSILON
+                            || isNeighbour(query, point));
+                }
+            }
+            assertEquals(sumX / sumWeight, query.getX(), EPSILON);
+            assertEquals(sumY / sumWeight, query.getY(), EPSILON);
+        }
+    }
+
+    private static boolean isNeighbour(FingerprintMap.Query query, int point) {
+        for (int i = 0; i < query.getNeighbourCount(); i++) {
+            if (query.getNeighbour(i) == point) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void mapIdsLocateAsOtherDictionaryIds() {
+        Random random = new Random(17);
+        FingerprintMap.Query query = m_map.new Query();
+        FingerprintMap.Query mapQuery = m_map.new Query();
+        BssidDictionary mapDictionary = m_map.getBssidDictionary();
+        int [] bssidIds = new int[AP_COUNT + 1];
+        int [] levels = new int[AP_COUNT + 1];
+        int [] mapIds = new int[AP_COUNT + 1];
+        for (int n = 0; n < 50; n++) {
+            float x = random.nextFloat() * (GRID - 1) * SPACING;
+            float y = random.nextFloat() * (GRID - 1) * SPACING;
+            int count = scan(x, y, bssidIds, levels);
+            // An access point the map does not know still counts in the distances.
+            bssidIds[count] = m_scanDictionary.intern("0a:00:00:00:00:01");
+            levels[count] = -55;
+            count = count + 1;
+            for (int i = 0; i < count; i++) {
+                mapIds[i] = mapDictionary.find(m_scanDictionary.getBssid(bssidIds[i]));
+            }
+            assertEquals(-1, mapIds[count - 1]);
+            assertTrue(query.locate(count, bssidIds, levels, m_scanDictionary));
+            assertTrue(mapQuery.locate(count, mapIds, levels));
+            assertEquals(query.getNeighbourCount(), mapQuery.getNeighbourCount());
+            for (int i = 0; i < query.getNeighbourCount(); i++) {
+                assertEquals(query.getNeighbourDistance(i), mapQuery.getNeighbourDistance(i), 0.f);
+            }
+            assertEquals(query.getX(), mapQuery.getX(), 0.f);
+            assertEquals(query.getY(), mapQuery.getY(), 0.f);
+        }
+    }
+
+    @Test
+    public void unknownAccessPointsFailTheLookup() {
+        FingerprintMap.Query query = m_map.new Query();
+        BssidDictionary dictionary = new BssidDictionary();
+        int [] bssidIds = {dictionary.intern("0a:00:00:00:00:01"), dictionary.intern("0a:00:00:00:00:02")};
+        assertFalse(query.locate(2, bssidIds, new int[] {-50, -60}, dictionary));
+        assertEquals(0, query.getNeighbourCount());
+        assertFalse(query.locate(0, bssidIds, new int[0], dictionary));
+        assertFalse(query.locate(2, new int[] {-1, -1}, new int[] {-50, -60}));
+    }
+
+    @Test
+    public void savedMapLoadsBackTheSame() throws IOException {
+        File file = m_folder.newFile("map" + FingerprintMap.FILE_SUFFIX);
+        m_map.save(file);
+        FingerprintMap loaded = FingerprintMap.load(file);
+        assertEquals(m_map.getPointCount(), loaded.getPointCount());
+        for (int i = 0; i < m_map.getBssidDictionary().size(); i++) {
+            assertEquals(m_map.getBssidDictionary().getBssid(i), loaded.getBssidDictionary().getBssid(i));
+        }
+        for (int point = 0; point < m_map.getPointCount(); point++) {
+            assertEquals(m_map.getX(point), loaded.getX(point), 0.f);
+            assertEquals(m_map.getY(point), loaded.getY(point), 0.f);
+        }
+        Random random = new Random(29);
+        FingerprintMap.Query expected = m_map.new Query();
+        FingerprintMap.Query actual = loaded.new Query();
+        int [] bssidIds = new int[AP_COUNT];
+        int [] levels = new int[AP_COUNT];
+        for (int n = 0; n < 50; n++) {
+            float x = random.nextFloat() * (GRID - 1) * SPACING;
+            float y = random.nextFloat() * (GRID - 1) * SPACING;
+            int count = scan(x, y, bssidIds, levels);
+            assertTrue(expected.locate(count, bssidIds, levels, m_scanDictionary));
+            assertTrue(actual.locate(count, bssidIds, levels, m_scanDictionary));
+            assertEquals(expected.getNeighbourCount(), actual.getNeighbourCount());
+            for (int i = 0; i < expected.getNeighbourCount(); i++) {
+                assertEquals(expected.getNeighbour(i), actual.getNeighbour(i));
+            }
+            assertEquals(expected.getX(), actual.getX(), 0.f);
+            assertEquals(expected.getY(), actual.getY(), 0.f);
+        }
+    }
+
+    @Test
+    public void notAFingerprintMap() throws IOException {
+        File file = m_folder.newFile("other" + FingerprintMap.FILE_SUFFIX);
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        }
+        finally {
+            output.close();
+        }
+        try {
+            FingerprintMap.load(file);
+            fail();
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Not a fingerprint map"));
+        }
+    }
+
+    @Test
+    public void mergedBuildersMakeTheSameMap() {
+        FingerprintMap.Builder first = new FingerprintMap.Builder();
+        FingerprintMap.Builder second = new FingerprintMap.Builder();
+        int [] bssidIds = new int[AP_COUNT];
+        int [] levels = new int[AP_COUNT];
+        for (int point = 0; point < m_map.getPointCount(); point++) {
+            float x = m_map.getX(point);
+            float y = m_map.getY(point);
+            FingerprintMap.Builder builder = point < m_map.getPointCount() / 2 ? first : second;
+            builder.addReferencePoint(x, y, scan(x, y, bssidIds, levels), bssidIds, levels, m_scanDictionary);
+        }
+        first.merge(second);
+        FingerprintMap merged = first.build();
+        assertEquals(m_map.getPointCount(), merged.getPointCount());
+        FingerprintMap.Query expected = m_map.new Query();
+        FingerprintMap.Query actual = merged.new Query();
+        int count = scan(7.3f, 11.9f, bssidIds, levels);
+        assertTrue(expected.locate(count, bssidIds, levels, m_scanDictionary));
+        assertTrue(actual.locate(count, bssidIds, levels, m_scanDictionary));
+        assertEquals(expected.getX(), actual.getX(), EPSILON);
+        assertEquals(expected.getY(), actual.getY(), EPSILON);
+    }
+}
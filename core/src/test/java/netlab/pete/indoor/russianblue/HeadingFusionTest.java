@@ -0,0 +1,128 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Magnetometer azimuth with and without tilt, gyroscope integration and the complementary correction.
+ */
+
+public class HeadingFusionTest {
+    private final static float GRAVITY = 9.81f;
+    private final static long MS = 1000 * 1000;   // ns
+    private final static double EPSILON = 1e-3;
+
+    /**
+     * Earth field in device coordinates for a flat device whose y axis points at the azimuth.
+     * */
+    private static float [] field(double azimut) {
+        return new float[] {(float) (-20 * Math.sin(azimut)), (float) (20 * Math.cos(azimut)), -40.f};
+    }
+
+    /**
+     * Rotates a device vector around the device x axis.
+     * */
+    private static float [] tilt(float [] v, double angle) {
+        return new float[] {v[0], (float) (v[1] * Math.cos(angle) - v[2] * Math.sin(angle)),
+                (float) (v[1] * Math.sin(angle) + v[2] * Math.cos(angle))};
+    }
+
+    private static void magn(HeadingFusion fusion, long timeStamp, float [] e) {
+        fusion.onMagnValue(timeStamp, e[0], e[1], e[2]);
+    }
+
+    @Test
+    public void followsTheMagnetometerWithoutGyroscope() {
+        for (double azimut = -3.; azimut < 3.1; azimut += 0.5) {
+            HeadingFusion fusion = new HeadingFusion();
+            assertFalse(fusion.hasHeading());
+            fusion.onAcceValue(0, 0.f, 0.f, GRAVITY);
+            magn(fusion, MS, field(azimut));
+            assertTrue(fusion.hasHeading());
+            assertEquals(azimut, fusion.getHeading(), EPSILON);
+            assertEquals(azimut, fusion.getMagnAzimut(), EPSILON);
+        }
+    }
+
+    @Test
+    public void compensatesTheTilt() {
+        double azimut = 1.2;
+        for (double angle = -1.; angle <= 1.; angle += 0.25) {
+            HeadingFusion fusion = new HeadingFusion();
+            float [] gravity = tilt(new float[] {0.f, 0.f, GRAVITY}, angle);
+            fusion.onAcceValue(0, gravity[0], gravity[1], gravity[2]);
+            magn(fusion, MS, tilt(field(azimut), angle));
+            assertEquals("tilt " + angle, azimut, fusion.getMagnAzimut(), EPSILON);
+        }
+    }
+
+    @Test
+    public void noHeadingInFreeFall() {
+        HeadingFusion fusion = new HeadingFusion();
+        fusion.onAcceValue(0, 0.f, 0.f, 0.1f);
+        magn(fusion, MS, field(0.));
+        assertFalse(fusion.hasHeading());
+    }
+
+    @Test
+    public void integratesTheGyroscopeAroundGravity() {
+        HeadingFusion fusion = new HeadingFusion();
+        fusion.onAcceValue(0, 0.f, 0.f, GRAVITY);
+        fusion.onGyroValue(0, 0.f, 0.f, 0.f);
+        magn(fusion, 0, field(0.));
+        // Turning clockwise at 0.5 rad/s for one second, the rate is negative around the upward axis.
+        for (long t = 10 * MS; t <= 1000 * MS; t += 10 * MS) {
+            fusion.onGyroValue(t, 0.f, 0.f, -0.5f);
+        }
+        assertEquals(0.5, fusion.getHeading(), EPSILON);
+        // Rates around the horizontal axes do not turn the heading.
+        for (long t = 1010 * MS; t <= 2000 * MS; t += 10 * MS) {
+            fusion.onGyroValue(t, 0.3f, -0.4f, 0.f);
+        }
+        assertEquals(0.5, fusion.getHeading(), EPSILON);
+        // A gap in the gyroscope stream is not integrated.
+        fusion.onGyroValue(2500 * MS, 0.f, 0.f, -10.f);
+        assertEquals(0.5, fusion.getHeading(), EPSILON);
+    }
+
+    @Test
+    public void wrapsAroundPi() {
+        HeadingFusion fusion = new HeadingFusion();
+        fusion.onAcceValue(0, 0.f, 0.f, GRAVITY);
+        fusion.onGyroValue(0, 0.f, 0.f, 0.f);
+        magn(fusion, 0, field(3.));
+        for (long t = 10 * MS; t <= 1000 * MS; t += 10 * MS) {
+            fusion.onGyroValue(t, 0.f, 0.f, -0.5f);
+        }
+        assertEquals(3.5 - 2 * Math.PI, fusion.getHeading(), EPSILON);
+    }
+
+    @Test
+    public void magnetometerPullsTheHeadingBack() {
+        HeadingFusion fusion = new HeadingFusion(2.f);
+        fusion.onAcceValue(0, 0.f, 0.f, GRAVITY);
+        fusion.onGyroValue(0, 0.f, 0.f, 0.f);
+        magn(fusion, 0, field(0.));
+        for (long t = 10 * MS; t <= 1000 * MS; t += 10 * MS) {
+            fusion.onGyroValue(t, 0.f, 0.f, -0.5f);
+        }
+        // One correction moves the heading by a gain growing with the time since the last one.
+        magn(fusion, 1100 * MS, field(0.5 + Math.PI / 2));
+        assertEquals(0.5 + 1.1 / 3.1 * Math.PI / 2, fusion.getHeading(), EPSILON);
+        magn(fusion, 1200 * MS, field(0.5 + Math.PI / 2));
+        double heading = fusion.getHeading();
+        // A short disturbance 100 ms after a correction only moves it by 0.1 / 2.1 of the difference.
+        magn(fusion, 1300 * MS, field(heading + 1.));
+        assertEquals(heading + 0.1 / 2.1, fusion.getHeading(), EPSILON);
+        // A steady azimuth is converged to with the time constant.
+        heading = fusion.getHeading();
+        for (long t = 1400 * MS; t <= 11300 * MS; t += 100 * MS) {
+            magn(fusion, t, field(0.));
+        }
+        assertEquals(heading * Math.pow(2. / 2.1, 100), fusion.getHeading(), EPSILON);
+        assertTrue(Math.abs(fusion.getHeading()) < 0.01);
+    }
+}
@@ -0,0 +1,80 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Interpolation across the +/-PI wraparound and lookups in a ring that wrapped around.
+ */
+
+public class HeadingSeriesTest {
+    private final static float EPSILON = 1e-3f;
+
+    @Test
+    public void emptySeriesHasNoHeading() {
+        assertTrue(Float.isNaN(new HeadingSeries().getHeading(0)));
+    }
+
+    @Test
+    public void interpolatesBetweenNeighbours() {
+        HeadingSeries series = new HeadingSeries();
+        series.add(1000, 0.f);
+        series.add(1100, 1.f);
+        assertEquals(0.5f, series.getHeading(1050), EPSILON);
+        assertEquals(0.f, series.getHeading(1000), EPSILON);
+        assertEquals(1.f, series.getHeading(1100), EPSILON);
+        // Outside the series, its first or last heading.
+        assertEquals(0.f, series.getHeading(0), EPSILON);
+        assertEquals(1.f, series.getHeading(5000), EPSILON);
+    }
+
+    @Test
+    public void interpolatesAcrossPi() {
+        HeadingSeries series = new HeadingSeries();
+        series.add(1000, 3.f);
+        series.add(1100, -3.f);
+        // Half way is PI, not the 0 a linear interpolation of the two angles gives.
+        assertEquals((float) Math.PI, Math.abs(series.getHeading(1050)), EPSILON);
+        assertEquals(3.f + 0.25f * (float) (2 * Math.PI - 6), series.getHeading(1025), EPSILON);
+        assertEquals(-3.f - 0.25f * (float) (2 * Math.PI - 6), series.getHeading(1075), EPSILON);
+    }
+
+    @Test
+    public void keepsTheLatestSamplesOnceFull() {
+        HeadingSeries series = new HeadingSeries(4);
+        for (int i = 0; i < 6; i++) {
+            series.add(1000 + i * 100, i * 0.1f);
+        }
+        assertEquals(4, series.size());
+        // The first two samples were overwritten.
+        assertEquals(0.2f, series.getHeading(1000), EPSILON);
+        // Neighbours on both sides of the ring end.
+        assertEquals(0.35f, series.getHeading(1350), EPSILON);
+        assertEquals(0.45f, series.getHeading(1450), EPSILON);
+        assertEquals(0.5f, series.getHeading(1600), EPSILON);
+        // Backwards, the lookup leaves the cursor for the binary search.
+        assertEquals(0.25f, series.getHeading(1250), EPSILON);
+        series.add(1600, 0.6f);
+        assertEquals(0.55f, series.getHeading(1550), EPSILON);
+        assertEquals(0.3f, series.getHeading(1200), EPSILON);
+    }
+
+    @Test
+    public void increasingQueriesFollowTheCursor() {
+        HeadingSeries series = new HeadingSeries(64);
+        for (int i = 0; i < 200; i++) {
+            series.add(i * 10, (float) Math.sin(i * 0.05));
+        }
+        for (long t = 1360; t < 1990; t += 3) {
+            double position = t / 10.0;
+            int low = (int) position;
+            double weight = position - low;
+            double expected = Math.atan2((1 - weight) * Math.sin(Math.sin(low * 0.05))
+                            + weight * Math.sin(Math.sin((low + 1) * 0.05)),
+                    (1 - weight) * Math.cos(Math.sin(low * 0.05)) + weight * Math.cos(Math.sin((low + 1) * 0.05)));
+            assertEquals("at " + t, (float) expected, series.getHeading(t), 1e-5f);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Seeded runs of the particle filter: the motion model, the effective sample size deciding the
+ * resampling, and the chunked update of a fork-join pool against the single chunk one.
+ */
+
+public class ParticleFilterTest {
+    private final static int PARTICLE_COUNT = 20000;
+    private final static float STEP_LENGTH = 0.7f;   // m
+
+    /**
+     * A turning walk of 30 steps with a fix every 10 steps, off the estimate by a fixed offset.
+     * @return The estimate and the effective sample size after each fix
+     * */
+    private static float [] walk(ParticleFilter filter) {
+        float [] results = new float[9];
+        filter.reset(0.f, 0.f, 1.f);
+        for (int step = 1; step <= 30; step++) {
+            filter.predict(STEP_LENGTH, step * 0.05f);
+            if (step % 10 == 0) {
+                filter.correct(filter.getX() + 0.8f, filter.getY() - 0.5f, 1.5f);
+                int fix = step / 10 - 1;
+                results[fix * 3] = filter.getX();
+                results[fix * 3 + 1] = filter.getY();
+                results[fix * 3 + 2] = filter.getEffectiveSampleSize();
+            }
+        }
+        return results;
+    }
+
+    @Test
+    public void sameSeedSameRun() {
+        float [] first = walk(new ParticleFilter(PARTICLE_COUNT, 42));
+        float [] second = walk(new ParticleFilter(PARTICLE_COUNT, 42));
+        for (int i = 0; i < first.length; i++) {
+            assertEquals(first[i], second[i], 0.f);
+        }
+        assertNotEquals(first[0], walk(new ParticleFilter(PARTICLE_COUNT, 43))[0], 0.f);
+    }
+
+    @Test
+    public void noiselessStepsMoveAlongTheHeading() {
+        ParticleFilter filter = new ParticleFilter(100, 1);
+        filter.setNoise(0.f, 0.f, 0.f);
+        filter.reset(0.f, 0.f, 0.f);
+        // Clockwise from the north, y to the north.
+        filter.predict(1.f, 0.f);
+        assertEquals(0.f, filter.getX(), 1e-5f);
+        assertEquals(1.f, filter.getY(), 1e-5f);
+        filter.predict(1.f, (float) (Math.PI / 2));
+        assertEquals(1.f, filter.getX(), 1e-5f);
+        assertEquals(1.f, filter.getY(), 1e-5f);
+        filter.translate(0.5f, -0.5f);
+        assertEquals(1.5f, filter.getX(), 1e-5f);
+        assertEquals(0.5f, filter.getY(), 1e-5f);
+        assertEquals(100, filter.getEffectiveSampleSize(), 1e-3f);
+    }
+
+    @Test
+    public void broadFixOnlyReweights() {
+        ParticleFilter filter = new ParticleFilter(PARTICLE_COUNT, 5);
+        filter.reset(0.f, 0.f, 2.f);
+        // Prior variance 4 and fix variance 16: the mean moves by a fifth of the way to the fix.
+        filter.correct(1.f, 0.f, 4.f);
+        float size = filter.getEffectiveSampleSize();
+        assertTrue(size > PARTICLE_COUNT * 0.9f);
+        assertTrue(size < PARTICLE_COUNT * 0.99f);
+        assertEquals(0.2f, filter.getX(), 0.05f);
+        assertEquals(0.f, filter.getY(), 0.05f);
+    }
+
+    @Test
+    public void narrowFixResamples() {
+        ParticleFilter filter = new ParticleFilter(PARTICLE_COUNT, 5);
+        filter.reset(0.f, 0.f, 2.f);
+        // Prior variance 4 and fix variance 1: the weights leave about a quarter of the particles,
+        // under the half which triggers the resampling, and the mean moves by four fifths.
+        filter.correct(2.f, 0.f, 1.f);
+        assertEquals(PARTICLE_COUNT, filter.getEffectiveSampleSize(), PARTICLE_COUNT * 1e-3f);
+        assertEquals(1.6f, filter.getX(), 0.1f);
+        assertEquals(0.f, filter.getY(), 0.1f);
+    }
+
+    @Test
+    public void fixAwayFromEveryParticleStartsOver() {
+        ParticleFilter filter = new ParticleFilter(1000, 5);
+        filter.reset(0.f, 0.f, 0.5f);
+        filter.correct(100.f, 100.f, 1.f);
+        assertEquals(100.f, filter.getX(), 0.f);
+        assertEquals(100.f, filter.getY(), 0.f);
+        assertEquals(1000, filter.getEffectiveSampleSize(), 1e-2f);
+    }
+
+    @Test
+    public void chunkedUpdateAgreesWithOneChunk() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // 16384 particles make four chunks on four threads, each with its own generator.
+            int particleCount = 16384;
+            float [] single = walk(new ParticleFilter(particleCount, 7));
+            float [] chunked = walk(new ParticleFilter(particleCount, 7, pool));
+            // Other random draws, the same distribution.
+            assertNotEquals(single[0], chunked[0], 0.f);
+            // The seeds move the estimates by a few centimeters and the relative sample size by
+            // a few thousandths. The third fix resamples.
+            for (int fix = 0; fix < 3; fix++) {
+                assertEquals(single[fix * 3], chunked[fix * 3], 0.06f);
+                assertEquals(single[fix * 3 + 1], chunked[fix * 3 + 1], 0.06f);
+                assertEquals(single[fix * 3 + 2] / particleCount, chunked[fix * 3 + 2] / particleCount, 0.01f);
+            }
+            assertEquals(particleCount, chunked[8], particleCount * 1e-3f);
+            // Every chunk keeps its range and generator, whatever thread runs it.
+            float [] again = walk(new ParticleFilter(particleCount, 7, pool));
+            for (int i = 0; i < chunked.length; i++) {
+                assertEquals(chunked[i], again[i], 0.f);
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+}
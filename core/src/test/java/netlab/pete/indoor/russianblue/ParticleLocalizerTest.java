@@ -0,0 +1,189 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Dead reckoning with a heading bias, corrected by the WiFi fixes of a synthetic fingerprint map.
+ */
+
+public class ParticleLocalizerTest {
+    private final static float STEP_LENGTH = 0.7f;   // m
+    private final static int STEP_COUNT = 40;
+    // The dead reckoning heading is off by this much, the walk goes straight to the north.
+    private final static float HEADING_BIAS = 0.2f;    // rad
+    private final static int AP_COUNT = 8;
+
+    // Dictionary of the scans, its ids differ from the ids of the map.
+    private BssidDictionary m_scanDictionary;
+    private int [] m_apIds;
+    private FingerprintMap m_map;
+
+    private static float apX(int ap) {
+        return ap % 2 == 0 ? -6.f : 6.f;
+    }
+
+    private static float apY(int ap) {
+        return (ap / 2) * 10.f;
+    }
+
+    /**
+     * Log distance path loss, access points further than 20 m are not heard.
+     * @return The number of access points heard at (x, y), in bssidIds and levels
+     * */
+    private int scan(float x, float y, int [] bssidIds, int [] levels) {
+        int count = 0;
+        for (int ap = 0; ap < AP_COUNT; ap++) {
+            double distance = Math.hypot(x - apX(ap), y - apY(ap));
+            if (distance <= 20.) {
+                bssidIds[count] = m_apIds[ap];
+                levels[count] = (int) Math.round(-40 - 25 * Math.log10(Math.max(1., distance)));
+                count = count + 1;
+            }
+        }
+        return count;
+    }
+
+    @Before
+    public void buildMap() {
+        m_scanDictionary = new BssidDictionary();
+        m_apIds = new int[AP_COUNT];
+        for (int ap = AP_COUNT - 1; ap >= 0; ap--) {
+            m_apIds[ap] = m_scanDictionary.intern(String.format("02:00:00:00:00:%02x", ap));
+        }
+        // A corridor 10 m wide along the walk, a reference point every meter.
+        FingerprintMap.Builder builder = new FingerprintMap.Builder();
+        int [] bssidIds = new int[AP_COUNT];
+        int [] levels = new int[AP_COUNT];
+        for (int x = -5; x <= 5; x++) {
+            for (int y = 0; y <= 30; y++) {
+                builder.addReferencePoint(x, y, scan(x, y, bssidIds, levels), bssidIds, levels, m_scanDictionary);
+            }
+        }
+        m_map = builder.build();
+    }
+
+    /**
+     * Counts the fused positions and keeps the last one.
+     */
+    private static class Track implements PdrPipeline.OnPositionListener {
+        int m_count;
+        float m_x;
+        float m_y;
+
+        @Override
+        public void onPosition(int stepCount, long timeStamp, float x, float y, float heading) {
+            m_count = m_count + 1;
+            m_x = x;
+            m_y = y;
+        }
+
+        @Override
+        public void onPositionUpdated(int stepCount, long timeStamp, float x, float y, float heading) {
+            m_x = x;
+            m_y = y;
+        }
+    }
+
+    /**
+     * Walk with a scan at the true position every other step.
+     * @param mapIds Give the scans with the ids of the map instead of the scan dictionary
+     * */
+    private Track walk(ParticleLocalizer localizer, boolean mapIds) {
+        Track track = new Track();
+        localizer.addPositionListener(track);
+        localizer.setFixSigma(1.f);
+        int [] bssidIds = new int[AP_COUNT];
+        int [] levels = new int[AP_COUNT];
+        for (int step = 1; step <= STEP_COUNT; step++) {
+            long timeStamp = step * 500L;
+            float length = step * STEP_LENGTH;
+            localizer.onPosition(step, timeStamp, length * (float) Math.sin(HEADING_BIAS),
+                    length * (float) Math.cos(HEADING_BIAS), HEADING_BIAS);
+            if (step % 2 == 0) {
+                int apCount = scan(0.f, length, bssidIds, levels);
+                if (mapIds) {
+                    for (int i = 0; i < apCount; i++) {
+                        bssidIds[i] = m_map.getBssidDictionary().find(m_scanDictionary.getBssid(bssidIds[i]));
+                    }
+                    localizer.onWifiScan(timeStamp + 100, apCount, bssidIds, levels);
+                }
+                else {
+                    localizer.onWifiScan(timeStamp + 100, apCount, bssidIds, levels, m_scanDictionary);
+                }
+            }
+        }
+        return track;
+    }
+
+    @Test
+    public void fixesCorrectTheHeadingDrift() {
+        ParticleLocalizer localizer = new ParticleLocalizer(new PdrPipeline(STEP_LENGTH), m_map,
+                ParticleLocalizer.DEFAULT_PARTICLECOUNT, null);
+        Track track = walk(localizer, false);
+        assertEquals(STEP_COUNT, track.m_count);
+        assertEquals(STEP_COUNT / 2, localizer.getFixCount());
+        // The dead reckoning ends 5.5 m to the side of the walk.
+        float length = STEP_COUNT * STEP_LENGTH;
+        float driftError = (float) Math.hypot(length * Math.sin(HEADING_BIAS), length * (1 - Math.cos(HEADING_BIAS)));
+        float fusedError = (float) Math.hypot(localizer.getX(), localizer.getY() - length);
+        assertTrue(driftError > 5.f);
+        assertTrue("fused error " + fusedError, fusedError < 1.f);
+    }
+
+    @Test
+    public void sameScansSameTrack() {
+        Track first = walk(new ParticleLocalizer(new PdrPipeline(STEP_LENGTH), m_map,
+                ParticleLocalizer.DEFAULT_PARTICLECOUNT, null), false);
+        Track second = walk(new ParticleLocalizer(new PdrPipeline(STEP_LENGTH), m_map,
+                ParticleLocalizer.DEFAULT_PARTICLECOUNT, null), false);
+        assertEquals(first.m_x, second.m_x, 0.f);
+        assertEquals(first.m_y, second.m_y, 0.f);
+    }
+
+    @Test
+    public void mapIdsFuseAsOtherDictionaryIds() {
+        Track dictionaryIds = walk(new ParticleLocalizer(new PdrPipeline(STEP_LENGTH), m_map,
+                ParticleLocalizer.DEFAULT_PARTICLECOUNT, null), false);
+        Track mapIds = walk(new ParticleLocalizer(new PdrPipeline(STEP_LENGTH), m_map,
+                ParticleLocalizer.DEFAULT_PARTICLECOUNT, null), true);
+        assertEquals(dictionaryIds.m_x, mapIds.m_x, 0.f);
+        assertEquals(dictionaryIds.m_y, mapIds.m_y, 0.f);
+    }
+
+    @Test
+    public void correctedStepMovesTheFusedPosition() {
+        ParticleLocalizer localizer = new ParticleLocalizer(new PdrPipeline(STEP_LENGTH), m_map, 1000, null);
+        Track track = walk(localizer, false);
+        // The fix after the last step moved the estimate since the track received it.
+        float x = localizer.getX();
+        float y = localizer.getY();
+        float length = STEP_COUNT * STEP_LENGTH;
+        // The last step is moved 0.2 m further along the same heading.
+        localizer.onPositionUpdated(STEP_COUNT, STEP_COUNT * 500L + 50, (length + 0.2f) * (float) Math.sin(HEADING_BIAS),
+                (length + 0.2f) * (float) Math.cos(HEADING_BIAS), HEADING_BIAS);
+        assertEquals(x + 0.2f * (float) Math.sin(HEADING_BIAS), track.m_x, 1e-4f);
+        assertEquals(y + 0.2f * (float) Math.cos(HEADING_BIAS), track.m_y, 1e-4f);
+        assertEquals(STEP_COUNT, track.m_count);
+    }
+
+    @Test
+    public void chunkedFilterTracksLikeOneChunk() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            int particleCount = 16384;
+            Track single = walk(new ParticleLocalizer(new PdrPipeline(STEP_LENGTH), m_map, particleCount, null), false);
+            Track chunked = walk(new ParticleLocalizer(new PdrPipeline(STEP_LENGTH), m_map, particleCount, pool), false);
+            assertEquals(single.m_x, chunked.m_x, 0.1f);
+            assertEquals(single.m_y, chunked.m_y, 0.1f);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Batches grouped by sensor come out in timestamp order, and a quiet stream does not hold the others.
+ */
+
+public class SampleMergerTest {
+    /**
+     * Collects the released samples as "type time", checking the values follow the time.
+     */
+    private static class Released implements SpscSampleRing.Consumer {
+        final ArrayList<String> m_samples = new ArrayList<>();
+        long m_last = Long.MIN_VALUE;
+
+        @Override
+        public void onSample(int type, long timeStamp, float x, float y, float z) {
+            assertTrue(timeStamp >= m_last);
+            m_last = timeStamp;
+            assertEquals((float) timeStamp, x, 0.f);
+            assertEquals((float) type, y, 0.f);
+            assertEquals(-1.f, z, 0.f);
+            m_samples.add(type + " " + timeStamp);
+        }
+    }
+
+    private static void add(SampleMerger merger, int type, long timeStamp, Released released) {
+        merger.add(type, timeStamp, timeStamp, type, -1.f, released);
+    }
+
+    @Test
+    public void batchesGroupedBySensorComeOutInOrder() {
+        SampleMerger merger = new SampleMerger(3, 1024, 2000);
+        Released released = new Released();
+        for (int type = 0; type < 3; type++) {
+            merger.enableStream(type);
+        }
+        int total = 0;
+        // One second batches, each sensor at its own rate, delivered one sensor after the other.
+        long [] periods = {5, 4, 20};   // ms
+        for (long batch = 0; batch < 10; batch++) {
+            for (int type = 0; type < 3; type++) {
+                for (long t = batch * 1000; t < (batch + 1) * 1000; t += periods[type]) {
+                    add(merger, type, t + type, released);
+                    total = total + 1;
+                }
+            }
+            // Everything up to the oldest of the last samples of the three sensors is out.
+            assertTrue(released.m_last >= batch * 1000 + 980 - 5);
+        }
+        merger.flush(released);
+        assertEquals(total, released.m_samples.size());
+        assertEquals(0, merger.size());
+    }
+
+    @Test
+    public void equalTimesComeInStreamOrder() {
+        SampleMerger merger = new SampleMerger(3, 16, 1000);
+        Released released = new Released();
+        for (int type = 0; type < 3; type++) {
+            merger.enableStream(type);
+        }
+        add(merger, 2, 100, released);
+        add(merger, 1, 100, released);
+        add(merger, 0, 100, released);
+        // Every stream reached 100.
+        assertEquals(3, released.m_samples.size());
+        add(merger, 2, 110, released);
+        add(merger, 0, 110, released);
+        add(merger, 1, 110, released);
+        assertEquals("[0 100, 1 100, 2 100, 0 110, 1 110, 2 110]", released.m_samples.toString());
+    }
+
+    @Test
+    public void quietStreamIsNotWaitedForPastTheLag() {
+        SampleMerger merger = new SampleMerger(3, 1024, 200);
+        Released released = new Released();
+        // The magnetometer is registered but never reports.
+        merger.enableStream(2);
+        add(merger, 0, 1000, released);
+        add(merger, 1, 1000, released);
+        assertEquals(0, released.m_samples.size());
+        for (long t = 1010; t <= 1500; t += 10) {
+            add(merger, 0, t, released);
+            add(merger, 1, t, released);
+        }
+        // Held back by the lag only.
+        assertEquals(1300, released.m_last);
+        assertEquals(2 * 20, merger.size());
+    }
+
+    @Test
+    public void fullStreamReleasesItsOldest() {
+        SampleMerger merger = new SampleMerger(2, 4, 100000);
+        Released released = new Released();
+        merger.enableStream(1);
+        for (long t = 0; t < 4; t++) {
+            add(merger, 0, t, released);
+        }
+        assertEquals(0, released.m_samples.size());
+        add(merger, 0, 4, released);
+        assertEquals("[0 0]", released.m_samples.toString());
+        // A later sample of the other stream releases up to its time.
+        add(merger, 1, 2, released);
+        assertEquals("[0 0, 0 1, 0 2, 1 2]", released.m_samples.toString());
+        merger.clear();
+        assertEquals(0, merger.size());
+    }
+}
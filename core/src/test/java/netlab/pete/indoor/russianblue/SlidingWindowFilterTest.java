@@ -0,0 +1,75 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The running sum of the ring against a mean recomputed over the window for every sample.
+ */
+
+public class SlidingWindowFilterTest {
+    private final static float GRAVITY = 9.45f;
+    private final static float GAIN = 2.5f;
+
+    private static void checkAgainstNaiveMean(int windowSize, int sampleCount) {
+        SlidingWindowFilter filter = new SlidingWindowFilter(windowSize, GRAVITY, GAIN);
+        Random random = new Random(windowSize);
+        long [] timeStamps = new long[sampleCount];
+        float [] values = new float[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            timeStamps[i] = 1000 + i * 20;
+            values[i] = 9.8f + (float) random.nextGaussian() * 3.f;
+            boolean full = filter.filter(timeStamps[i], values[i]);
+            if (i < windowSize - 1) {
+                assertFalse("window of " + windowSize + " full at sample " + i, full);
+                continue;
+            }
+            assertTrue(full);
+            double sum = 0;
+            for (int j = i - windowSize + 1; j <= i; j++) {
+                sum += values[j];
+            }
+            float expected = (float) ((sum / windowSize - GRAVITY) * GAIN + GRAVITY);
+            assertEquals("sample " + i, expected, filter.getValue(), 1e-4f);
+            assertEquals("sample " + i, timeStamps[i - windowSize / 2], filter.getTimeStamp());
+        }
+    }
+
+    @Test
+    public void matchesNaiveMeanForDefaultWindow() {
+        checkAgainstNaiveMean(SlidingWindowFilter.DEFAULT_WINDOWSIZE, 10000);
+    }
+
+    @Test
+    public void matchesNaiveMeanForOtherWindows() {
+        checkAgainstNaiveMean(1, 100);
+        checkAgainstNaiveMean(2, 100);
+        checkAgainstNaiveMean(16, 1000);
+    }
+
+    @Test
+    public void resetEmptiesTheWindow() {
+        SlidingWindowFilter filter = new SlidingWindowFilter(3, GRAVITY, GAIN);
+        filter.filter(0, 100.f);
+        filter.filter(20, 100.f);
+        filter.filter(40, 100.f);
+        filter.reset();
+        assertFalse(filter.filter(60, GRAVITY));
+        assertFalse(filter.filter(80, GRAVITY));
+        assertTrue(filter.filter(100, GRAVITY));
+        assertEquals(GRAVITY, filter.getValue(), 1e-6f);
+    }
+
+    @Test
+    public void forDurationRoundsToWholeSamples() {
+        assertEquals(SlidingWindowFilter.DEFAULT_WINDOWSIZE, SlidingWindowFilter.forDuration(
+                SlidingWindowFilter.DEFAULT_WINDOWDURATION, AcceResampler.DEFAULT_PERIOD, GRAVITY, GAIN).getWindowSize());
+        assertEquals(3, SlidingWindowFilter.forDuration(50, 20, GRAVITY, GAIN).getWindowSize());
+        assertEquals(1, SlidingWindowFilter.forDuration(0, 20, GRAVITY, GAIN).getWindowSize());
+    }
+}
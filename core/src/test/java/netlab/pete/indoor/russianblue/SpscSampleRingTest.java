@@ -0,0 +1,111 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ordering, drop counting and a producer and a consumer thread running against each other.
+ */
+
+public class SpscSampleRingTest {
+    /**
+     * Checks that the samples come in publishing order, sample n carrying n in all its fields.
+     */
+    private static class SequenceCheck implements SpscSampleRing.Consumer {
+        long m_next;
+
+        @Override
+        public void onSample(int type, long timeStamp, float x, float y, float z) {
+            assertEquals(m_next, timeStamp);
+            assertEquals((int) (m_next % 3), type);
+            assertEquals((float) m_next, x, 0.f);
+            assertEquals((float) -m_next, y, 0.f);
+            assertEquals(0.5f, z, 0.f);
+            m_next = m_next + 1;
+        }
+    }
+
+    private static boolean offer(SpscSampleRing ring, long n) {
+        return ring.offer((int) (n % 3), n, n, -n, 0.5f);
+    }
+
+    @Test
+    public void capacityIsRoundedToAPowerOfTwo() {
+        assertEquals(8, new SpscSampleRing(5).getCapacity());
+        assertEquals(8, new SpscSampleRing(8).getCapacity());
+        assertEquals(1, new SpscSampleRing(1).getCapacity());
+    }
+
+    @Test
+    public void drainsInPublishingOrder() {
+        SpscSampleRing ring = new SpscSampleRing(16);
+        SequenceCheck check = new SequenceCheck();
+        assertTrue(ring.isEmpty());
+        // Several laps around the ring.
+        long n = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 11; i++) {
+                assertTrue(offer(ring, n++));
+            }
+            assertEquals(11, ring.size());
+            assertEquals(4, ring.drain(check, 4));
+            assertEquals(7, ring.drain(check, 100));
+            assertEquals(0, ring.drain(check, 100));
+            assertTrue(ring.isEmpty());
+        }
+        assertEquals(n, check.m_next);
+        assertEquals(0, ring.getDropCount());
+    }
+
+    @Test
+    public void dropsAndCountsWhenFull() {
+        SpscSampleRing ring = new SpscSampleRing(4);
+        for (long n = 0; n < 4; n++) {
+            assertTrue(offer(ring, n));
+        }
+        assertFalse(offer(ring, 4));
+        assertFalse(offer(ring, 5));
+        assertEquals(2, ring.getDropCount());
+        assertEquals(4, ring.size());
+        // The dropped samples are lost, the ring holds the first four.
+        SequenceCheck check = new SequenceCheck();
+        assertEquals(4, ring.drain(check, 10));
+        assertTrue(offer(ring, 4));
+        assertEquals(1, ring.drain(check, 10));
+        assertEquals(5, check.m_next);
+
+        ring.clear();
+        assertEquals(0, ring.getDropCount());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentProducerAndConsumer() throws InterruptedException {
+        final SpscSampleRing ring = new SpscSampleRing(64);
+        final long total = 2000000;
+        // The producer retries dropped samples, so every one of them is delivered once.
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long n = 0; n < total; n++) {
+                    while (!offer(ring, n)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        SequenceCheck check = new SequenceCheck();
+        producer.start();
+        while (check.m_next < total) {
+            if (ring.drain(check, 32) == 0) {
+                ring.await(1000 * 1000);
+            }
+        }
+        producer.join();
+        assertEquals(total, check.m_next);
+        assertTrue(ring.isEmpty());
+    }
+}
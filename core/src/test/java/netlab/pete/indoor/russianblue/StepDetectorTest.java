@@ -0,0 +1,104 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Synthetic walks with a known number of steps.
+ */
+
+public class StepDetectorTest {
+    private final static long PERIOD = 20;   // ms
+
+    /**
+     * Counts the notifications of a detector.
+     */
+    private static class StepCount implements StepDetector.OnStepListener {
+        int m_steps;
+        int m_updates;
+        long m_lastTimeStamp;
+
+        @Override
+        public void onStep(int stepCount, long timeStamp, float peakValue) {
+            m_steps = m_steps + 1;
+            assertEquals(m_steps, stepCount);
+            m_lastTimeStamp = timeStamp;
+        }
+
+        @Override
+        public void onStepUpdated(int stepCount, long timeStamp, float peakValue) {
+            m_updates = m_updates + 1;
+            assertEquals(m_steps, stepCount);
+            m_lastTimeStamp = timeStamp;
+        }
+    }
+
+    /**
+     * Filtered acceleration of a walk, one sine period per step.
+     * */
+    private static float walk(long timeStamp, long stepPeriod, float amplitude) {
+        return 9.8f + amplitude * (float) Math.sin(2 * Math.PI * timeStamp / stepPeriod);
+    }
+
+    @Test
+    public void countsOneStepPerPeriod() {
+        StepDetector detector = new StepDetector();
+        StepCount count = new StepCount();
+        detector.addListener(count);
+        // 20 steps of 500 ms, the last peak is followed by falling samples.
+        for (long t = 0; t < 10000; t += PERIOD) {
+            detector.feed(t, walk(t, 500, 3.f));
+        }
+        assertEquals(20, detector.getStepCount());
+        assertEquals(20, count.m_steps);
+        assertEquals(0, count.m_updates);
+    }
+
+    @Test
+    public void ignoresPeaksBelowThreshold() {
+        StepDetector detector = new StepDetector();
+        // Standing still, the peaks stay under DEFAULT_THRESHOLD.
+        for (long t = 0; t < 10000; t += PERIOD) {
+            detector.feed(t, walk(t, 500, 0.5f));
+        }
+        assertEquals(0, detector.getStepCount());
+    }
+
+    @Test
+    public void higherPeakWithinMinPeriodUpdatesTheStep() {
+        StepDetector detector = new StepDetector(10.5f, 300);
+        StepCount count = new StepCount();
+        detector.addListener(count);
+        float [] values = {9.8f, 11.f, 12.f, 11.f, 12.5f, 11.f, 9.8f, 9.f, 9.8f, 11.f, 13.f, 11.f, 9.8f};
+        long [] timeStamps = {0, 20, 40, 60, 80, 100, 120, 400, 420, 440, 460, 480, 500};
+        for (int i = 0; i < values.length; i++) {
+            detector.feed(timeStamps[i], values[i]);
+        }
+        // The peak at 80 ms replaces the one at 40 ms, the one at 460 ms is a new step.
+        assertEquals(2, detector.getStepCount());
+        assertEquals(2, count.m_steps);
+        assertEquals(1, count.m_updates);
+        assertEquals(460, count.m_lastTimeStamp);
+    }
+
+    @Test
+    public void countsStepsThroughTheFilterChain() {
+        AcceResampler resampler = new AcceResampler();
+        SlidingWindowFilter filter = new SlidingWindowFilter();
+        StepDetector detector = new StepDetector();
+        // Raw magnitude at an irregular 100 Hz rate, 30 steps of 600 ms.
+        long t = 3;
+        while (t < 18000) {
+            float magnitude = walk(t, 600, 4.f);
+            int count = resampler.resample(t, magnitude);
+            for (int i = 0; i < count; i++) {
+                if (filter.filter(resampler.getTimeStamp(i), resampler.getValue(i))) {
+                    detector.feed(filter.getTimeStamp(), filter.getValue());
+                }
+            }
+            t += 7 + (t % 7);
+        }
+        assertEquals(30, detector.getStepCount());
+    }
+}
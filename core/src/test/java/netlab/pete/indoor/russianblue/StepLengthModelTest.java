@@ -0,0 +1,149 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Step estimates, and the recursive least squares calibration converging to the walker.
+ */
+
+public class StepLengthModelTest {
+    private final static float EPSILON = 1e-4f;
+    // Parameters of the simulated walker
+    private final static double [] WALKER = {0.72, 0.45, 0.12};
+
+    /**
+     * @return The peak to valley amplitude whose fourth root is AMPLITUDE_REF + feature
+     * */
+    private static float amplitude(double feature) {
+        return (float) Math.pow(StepLengthModel.AMPLITUDE_REF + feature, 4);
+    }
+
+    private static double walkerLength(double amplitudeFeature, double frequencyFeature) {
+        return WALKER[0] + WALKER[1] * amplitudeFeature + WALKER[2] * frequencyFeature;
+    }
+
+    /**
+     * Walk steps of a constant amplitude and cadence, starting at time 0.
+     * @return The distance the walker covered
+     * */
+    private static double walk(StepLengthModel model, int stepCount, double amplitudeFeature, long interval) {
+        model.reset();
+        float valley = -1.f;
+        float peak = valley + amplitude(amplitudeFeature);
+        double distance = 0;
+        for (int i = 0; i < stepCount; i++) {
+            long timeStamp = i * interval;
+            model.onFilteredValue(timeStamp - interval / 2, valley);
+            model.onStep(timeStamp, peak);
+            // The first step of a walk has the reference frequency.
+            double frequency = i == 0 ? StepLengthModel.FREQUENCY_REF : 1000. / interval;
+            distance += walkerLength(amplitudeFeature, frequency - StepLengthModel.FREQUENCY_REF);
+        }
+        return distance;
+    }
+
+    @Test
+    public void startsAsTheFixedStepLength() {
+        StepLengthModel model = new StepLengthModel(0.7f);
+        model.onFilteredValue(0, -1.f);
+        assertEquals(0.7f, model.onStep(100, -1.f + amplitude(0.)), EPSILON);
+        // A stronger step is longer, the cadence does not count yet.
+        model.onFilteredValue(300, -1.f);
+        assertEquals(0.7f + 0.7f / StepLengthModel.AMPLITUDE_REF * 0.2f,
+                model.onStep(400, -1.f + amplitude(0.2)), EPSILON);
+        assertEquals(2, model.getStepCount());
+        // Clamped to a plausible length.
+        model.onFilteredValue(600, 0.f);
+        assertEquals(0.2f, model.onStep(700, 0.f), EPSILON);
+        model.onFilteredValue(900, -10.f);
+        assertEquals(1.5f, model.onStep(1000, 200.f), EPSILON);
+    }
+
+    @Test
+    public void updatedStepReplacesItsFeatures() {
+        StepLengthModel updated = new StepLengthModel(0.7f);
+        StepLengthModel direct = new StepLengthModel(0.7f);
+        updated.onFilteredValue(0, -1.f);
+        direct.onFilteredValue(0, -1.f);
+        updated.onStep(100, 0.5f);
+        // The peak moved later and higher, the step is estimated again from the same valley.
+        float length = updated.onStepUpdated(180, -1.f + amplitude(0.1));
+        assertEquals(direct.onStep(180, -1.f + amplitude(0.1)), length, 0.f);
+        assertEquals(1, updated.getStepCount());
+        // Both sessions calibrate the same.
+        assertTrue(updated.calibrate(0.8));
+        assertTrue(direct.calibrate(0.8));
+        double [] expected = direct.getState();
+        double [] actual = updated.getState();
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], 1e-9);
+        }
+    }
+
+    @Test
+    public void calibrationFitsTheSessionDistance() {
+        StepLengthModel model = new StepLengthModel(0.6f);
+        assertFalse(model.calibrate(10.));
+        double distance = walk(model, 100, 0.1, 500);
+        assertTrue(model.calibrate(distance));
+        assertEquals(1, model.getCalibrationCount());
+        // Walking the session again gives about the calibration distance.
+        double estimated = 0;
+        model.reset();
+        float peak = -1.f + amplitude(0.1);
+        for (int i = 0; i < 100; i++) {
+            model.onFilteredValue(i * 500 - 250, -1.f);
+            estimated += model.onStep(i * 500, peak);
+        }
+        assertEquals(distance, estimated, distance * 0.01);
+    }
+
+    @Test
+    public void calibrationsConvergeToTheWalker() {
+        StepLengthModel model = new StepLengthModel(0.6f);
+        double [] amplitudeFeatures = {-0.15, 0.2, 0.05, 0.3};
+        long [] intervals = {650, 450, 550, 400};   // ms
+        for (int session = 0; session < 40; session++) {
+            int setup = session % amplitudeFeatures.length;
+            double distance = walk(model, 50 + session, amplitudeFeatures[setup], intervals[setup]);
+            assertTrue(model.calibrate(distance));
+        }
+        double [] state = model.getState();
+        for (int i = 0; i < StepLengthModel.PARAMETER_COUNT; i++) {
+            assertEquals("parameter " + i, WALKER[i], state[i], 0.01);
+        }
+        assertEquals(40, model.getCalibrationCount());
+        // A cadence never calibrated is estimated by the walker model.
+        model.reset();
+        model.onFilteredValue(0, -1.f);
+        model.onStep(0, -1.f + amplitude(0.1));
+        model.onFilteredValue(250, -1.f);
+        float length = model.onStep(500, -1.f + amplitude(0.1));
+        assertEquals(walkerLength(0.1, 2. - StepLengthModel.FREQUENCY_REF), length, 0.01);
+    }
+
+    @Test
+    public void stateRoundTrip() {
+        StepLengthModel model = new StepLengthModel(0.6f);
+        model.calibrate(walk(model, 80, 0.2, 500) * 1.1);
+        StepLengthModel restored = new StepLengthModel(0.9f);
+        restored.setState(model.getState());
+        assertEquals(model.toString(), restored.toString());
+        assertEquals(1, restored.getCalibrationCount());
+        model.onFilteredValue(0, -1.f);
+        restored.onFilteredValue(0, -1.f);
+        assertEquals(model.onStep(100, 2.f), restored.onStep(100, 2.f), 0.f);
+        try {
+            restored.setState(new double[3]);
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Bad step length model state size"));
+        }
+    }
+}
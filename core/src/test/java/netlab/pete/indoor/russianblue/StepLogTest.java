@@ -0,0 +1,84 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Appending past the initial capacity, and amending the last and older steps.
+ */
+
+public class StepLogTest {
+    /**
+     * Straight walk along x, one meter per step.
+     * */
+    private static StepLog walk(int stepCount) {
+        StepLog log = new StepLog();
+        for (int i = 0; i < stepCount; i++) {
+            assertEquals(i, log.append(i * 500L, i + 1, 0.f, 0.f, 1.f));
+        }
+        return log;
+    }
+
+    @Test
+    public void growsPastItsInitialCapacity() {
+        StepLog log = walk(3000);
+        assertEquals(3000, log.size());
+        for (int i = 0; i < 3000; i += 97) {
+            assertEquals(i * 500L, log.getTimeStamp(i));
+            assertEquals(i + 1, log.getX(i), 0.f);
+            assertEquals(0.f, log.getY(i), 0.f);
+            assertEquals(1.f, log.getLength(i), 0.f);
+        }
+        log.clear();
+        assertEquals(0, log.size());
+    }
+
+    @Test
+    public void amendingTheLastStepReplacesIt() {
+        StepLog log = walk(5);
+        log.amend(4, 2100, 4.5f, 0.5f, 0.2f, 0.9f);
+        assertEquals(2100, log.getTimeStamp(4));
+        assertEquals(4.5f, log.getX(4), 0.f);
+        assertEquals(0.5f, log.getY(4), 0.f);
+        assertEquals(0.2f, log.getHeading(4), 0.f);
+        assertEquals(0.9f, log.getLength(4), 0.f);
+        assertEquals(4.f, log.getX(3), 0.f);
+    }
+
+    @Test
+    public void amendingAnOlderStepMovesTheLaterOnes() {
+        StepLog log = walk(10);
+        // Step 3 ends half a meter further and a meter to the side.
+        log.amend(3, 1600, 4.5f, 1.f, 0.3f, 1.2f);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, log.getX(i), 0.f);
+            assertEquals(0.f, log.getY(i), 0.f);
+        }
+        assertEquals(1600, log.getTimeStamp(3));
+        assertEquals(1.2f, log.getLength(3), 0.f);
+        // The later steps keep their displacement, headings, lengths and times.
+        for (int i = 4; i < 10; i++) {
+            assertEquals(i + 1.5f, log.getX(i), 1e-6f);
+            assertEquals(1.f, log.getY(i), 1e-6f);
+            assertEquals(0.f, log.getHeading(i), 0.f);
+            assertEquals(1.f, log.getLength(i), 0.f);
+            assertEquals(i * 500L, log.getTimeStamp(i));
+        }
+    }
+
+    @Test
+    public void amendingOutsideTheLogFails() {
+        StepLog log = walk(2);
+        for (int index : new int[] {-1, 2}) {
+            try {
+                log.amend(index, 0, 0.f, 0.f, 0.f, 0.f);
+                fail();
+            }
+            catch (IndexOutOfBoundsException e) {
+                assertEquals("Step " + index + " of 2", e.getMessage());
+            }
+        }
+    }
+}
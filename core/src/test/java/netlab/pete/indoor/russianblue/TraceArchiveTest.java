@@ -0,0 +1,316 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip of a synthetic session through TraceWriter, then TraceReader and TraceArchive,
+ * with several blocks per sensor stream and WiFi scans sharing their timestamps.
+ */
+
+public class TraceArchiveTest {
+    private final static long START = 1477540800000L;
+    private final static long DURATION = 60 * 1000;   // ms
+    private final static long SAMPLE_PERIOD = 5;     // ms
+    private final static long SCAN_PERIOD = 2000;    // ms
+    private final static String [] BSSIDS = {"00:11:22:33:44:55", "66:77:88:99:aa:bb", "cc:dd:ee:ff:00:11"};
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private File m_traceFile;
+    // Every record written, in timestamp order, acce before gyro before wifi at the same time.
+    private ArrayList<String> m_records;
+
+    private static float [] sensorValues(int streamType, long timeStamp) {
+        long i = (timeStamp - START) / SAMPLE_PERIOD;
+        return new float[] {i * 0.5f + streamType, -i, (i % 7) * 0.25f};
+    }
+
+    private static int [] scanLevels(long timeStamp) {
+        int i = (int) ((timeStamp - START) / SCAN_PERIOD);
+        return new int[] {-40 - i % 30, -70, -95 + i % 5};
+    }
+
+    private static String sampleRecord(int streamType, long timeStamp, float [] values) {
+        StringBuilder record = new StringBuilder();
+        record.append(TraceFormat.STREAM_IDS[streamType]).append(' ').append(timeStamp);
+        for (int i = 0; i < TraceFormat.STREAM_VALUECOUNTS[streamType]; i++) {
+            record.append(' ').append(values[i]);
+        }
+        return record.toString();
+    }
+
+    private static String scanRecord(long timeStamp, int apCount, String [] bssids, int [] levels) {
+        StringBuilder record = new StringBuilder();
+        record.append("wifi ").append(timeStamp);
+        for (int i = 0; i < apCount; i++) {
+            record.append(' ').append(bssids[i]).append(' ').append(levels[i]);
+        }
+        return record.toString();
+    }
+
+    private static long timeOf(String record) {
+        String [] fields = record.split(" ");
+        return Long.parseLong(fields[1]);
+    }
+
+    @Before
+    public void writeTrace() throws IOException {
+        m_traceFile = m_folder.newFile("session" + TraceFormat.FILE_SUFFIX);
+        m_records = new ArrayList<>();
+        TraceWriter writer = new TraceWriter(m_traceFile);
+        int [] bssidIds = new int[BSSIDS.length];
+        for (int i = 0; i < BSSIDS.length; i++) {
+            bssidIds[i] = writer.getBssidDictionary().intern(BSSIDS[i]);
+        }
+        for (long t = START; t < START + DURATION; t += SAMPLE_PERIOD) {
+            float [] acce = sensorValues(TraceFormat.STREAM_ACCE, t);
+            writer.writeSample(TraceFormat.STREAM_ACCE, t, acce);
+            m_records.add(sampleRecord(TraceFormat.STREAM_ACCE, t, acce));
+            float [] gyro = sensorValues(TraceFormat.STREAM_GYRO, t);
+            writer.writeSample(TraceFormat.STREAM_GYRO, t, gyro);
+            m_records.add(sampleRecord(TraceFormat.STREAM_GYRO, t, gyro));
+            if ((t - START) % SCAN_PERIOD == 0) {
+                int [] levels = scanLevels(t);
+                writer.writeWifiScan(t, BSSIDS.length, bssidIds, levels);
+                m_records.add(scanRecord(t, BSSIDS.length, BSSIDS, levels));
+            }
+        }
+        writer.close();
+    }
+
+    /**
+     * Collects the records of a scan as text, in file order.
+     */
+    private static class RecordList implements TraceReader.Visitor {
+        private final BssidDictionary m_dictionary;
+        final ArrayList<String> m_records = new ArrayList<>();
+
+        RecordList(BssidDictionary dictionary) {
+            m_dictionary = dictionary;
+        }
+
+        @Override
+        public void onSample(int streamType, long timeStamp, float[] values) {
+            m_records.add(sampleRecord(streamType, timeStamp, values));
+        }
+
+        @Override
+        public void onWifiScan(long timeStamp, int apCount, int[] bssidIds, int[] levels) {
+            String [] bssids = new String[apCount];
+            for (int i = 0; i < apCount; i++) {
+                bssids[i] = m_dictionary.getBssid(bssidIds[i]);
+            }
+            m_records.add(scanRecord(timeStamp, apCount, bssids, levels));
+        }
+    }
+
+    private ArrayList<String> expectedRecords(int streamType, long from, long to) {
+        String id = TraceFormat.STREAM_IDS[streamType] + " ";
+        ArrayList<String> records = new ArrayList<>();
+        for (String record : m_records) {
+            long timeStamp = timeOf(record);
+            if (record.startsWith(id) && timeStamp >= from && timeStamp <= to) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private static ArrayList<String> queryRecords(TraceArchive archive, int [] streamTypes, long from, long to)
+            throws IOException {
+        ArrayList<String> records = new ArrayList<>();
+        TraceArchive.Query query = archive.query(streamTypes, from, to);
+        while (query.next()) {
+            int streamType = query.getStreamType();
+            if (streamType == TraceFormat.STREAM_WIFI) {
+                String [] bssids = new String[query.getApCount()];
+                for (int i = 0; i < bssids.length; i++) {
+                    bssids[i] = archive.getBssidDictionary().getBssid(query.getBssidIds()[i]);
+                }
+                records.add(scanRecord(query.getTimeStamp(), query.getApCount(), bssids, query.getLevels()));
+            }
+            else {
+                records.add(sampleRecord(streamType, query.getTimeStamp(), query.getValues()));
+            }
+        }
+        return records;
+    }
+
+    @Test
+    public void readerReturnsEveryRecord() throws IOException {
+        TraceReader reader = new TraceReader(m_traceFile);
+        RecordList visitor = new RecordList(reader.getBssidDictionary());
+        try {
+            assertEquals(TraceFormat.VERSION, reader.getVersion());
+            reader.accept(visitor);
+        }
+        finally {
+            reader.close();
+        }
+        // Blocks come in file order, so compare each stream on its own.
+        for (int streamType : new int[] {TraceFormat.STREAM_ACCE, TraceFormat.STREAM_GYRO, TraceFormat.STREAM_WIFI}) {
+            ArrayList<String> actual = new ArrayList<>();
+            for (String record : visitor.m_records) {
+                if (record.startsWith(TraceFormat.STREAM_IDS[streamType] + " ")) {
+                    actual.add(record);
+                }
+            }
+            assertEquals(expectedRecords(streamType, Long.MIN_VALUE, Long.MAX_VALUE), actual);
+        }
+        assertEquals(m_records.size(), visitor.m_records.size());
+    }
+
+    @Test
+    public void archiveIndexesEveryStream() throws IOException {
+        TraceArchive archive = new TraceArchive(m_traceFile);
+        try {
+            assertTrue(archive.isIndexed());
+            long sampleCount = DURATION / SAMPLE_PERIOD;
+            assertEquals(sampleCount, archive.getRecordCount(TraceFormat.STREAM_ACCE));
+            assertEquals(sampleCount, archive.getRecordCount(TraceFormat.STREAM_GYRO));
+            assertEquals(DURATION / SCAN_PERIOD, archive.getRecordCount(TraceFormat.STREAM_WIFI));
+            assertEquals(0, archive.getRecordCount(TraceFormat.STREAM_MAGN));
+            // The sensor streams need several blocks, or the range query would not skip any.
+            assertTrue(archive.getBlockCount(TraceFormat.STREAM_ACCE) > 2);
+            assertEquals(START, archive.getFirstTimeStamp(TraceFormat.STREAM_ACCE));
+            assertEquals(START + DURATION - SAMPLE_PERIOD, archive.getLastTimeStamp(TraceFormat.STREAM_GYRO));
+            assertEquals(Long.MAX_VALUE, archive.getFirstTimeStamp(TraceFormat.STREAM_MAGN));
+        }
+        finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void rangeQueryMergesStreamsInTimeOrder() throws IOException {
+        TraceArchive archive = new TraceArchive(m_traceFile);
+        try {
+            int [] streamTypes = {TraceFormat.STREAM_ACCE, TraceFormat.STREAM_GYRO, TraceFormat.STREAM_WIFI};
+            long from = START + 20 * 1000;
+            long to = START + 31 * 1000 + 2;
+            ArrayList<String> expected = new ArrayList<>();
+            for (String record : m_records) {
+                long timeStamp = timeOf(record);
+                if (timeStamp >= from && timeStamp <= to) {
+                    expected.add(record);
+                }
+            }
+            ArrayList<String> actual = queryRecords(archive, streamTypes, from, to);
+            assertEquals(expected, actual);
+            assertEquals(from, timeOf(actual.get(0)));
+            assertEquals(START + 31 * 1000, timeOf(actual.get(actual.size() - 1)));
+
+            // One stream, and a range reaching past the end.
+            assertEquals(expectedRecords(TraceFormat.STREAM_WIFI, START + 55 * 1000, Long.MAX_VALUE),
+                    queryRecords(archive, new int[] {TraceFormat.STREAM_WIFI}, START + 55 * 1000, Long.MAX_VALUE));
+            // Between two records.
+            assertTrue(queryRecords(archive, streamTypes, START + 1, START + 4).isEmpty());
+            assertTrue(queryRecords(archive, streamTypes, START + DURATION, START + 2 * DURATION).isEmpty());
+        }
+        finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void truncatedTraceKeepsItsCompleteBlocks() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(m_traceFile, "rw");
+        try {
+            // Cuts the directory and part of the last blocks, as a crash while writing would.
+            file.setLength(file.length() * 2 / 3);
+        }
+        finally {
+            file.close();
+        }
+        TraceReader reader = new TraceReader(m_traceFile);
+        RecordList visitor = new RecordList(reader.getBssidDictionary());
+        try {
+            reader.accept(visitor);
+        }
+        finally {
+            reader.close();
+        }
+        assertFalse(visitor.m_records.isEmpty());
+        assertTrue(visitor.m_records.size() < m_records.size());
+
+        TraceArchive archive = new TraceArchive(m_traceFile);
+        try {
+            assertFalse(archive.isIndexed());
+            int [] streamTypes = {TraceFormat.STREAM_ACCE};
+            long last = archive.getLastTimeStamp(TraceFormat.STREAM_ACCE);
+            assertTrue(last < START + DURATION - SAMPLE_PERIOD);
+            // What is left of the stream is a prefix of what was written.
+            assertEquals(expectedRecords(TraceFormat.STREAM_ACCE, START, last),
+                    queryRecords(archive, streamTypes, START, Long.MAX_VALUE));
+            assertArrayEquals(sensorValues(TraceFormat.STREAM_ACCE, last),
+                    lastValues(archive, TraceFormat.STREAM_ACCE, last), 0.f);
+        }
+        finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void storesDrainBlockByBlockToTheTrace() throws IOException {
+        // The same session, drained every second from the stores as the log flusher does.
+        File traceFile = m_folder.newFile("drained" + TraceFormat.FILE_SUFFIX);
+        TraceWriter writer = new TraceWriter(traceFile);
+        SensorSampleStore acceStore = new SensorSampleStore();
+        SensorSampleStore gyroStore = new SensorSampleStore();
+        WifiScanStore scanStore = new WifiScanStore();
+        // The store interns the BSSIDs in another order than the trace dictionary.
+        writer.getBssidDictionary().intern(BSSIDS[2]);
+        for (long t = START; t < START + DURATION; t += SAMPLE_PERIOD) {
+            acceStore.append(t, sensorValues(TraceFormat.STREAM_ACCE, t));
+            gyroStore.append(t, sensorValues(TraceFormat.STREAM_GYRO, t));
+            if ((t - START) % SCAN_PERIOD == 0) {
+                int [] levels = scanLevels(t);
+                scanStore.beginScan(t);
+                for (int i = 0; i < BSSIDS.length; i++) {
+                    scanStore.addAccessPoint(BSSIDS[i], levels[i]);
+                }
+                scanStore.endScan();
+            }
+            if ((t - START) % 1000 == 1000 - SAMPLE_PERIOD) {
+                acceStore.drainTo(null, writer, TraceFormat.STREAM_ACCE);
+                gyroStore.drainTo(null, writer, TraceFormat.STREAM_GYRO);
+                scanStore.drainTo(null, writer);
+                writer.flush();
+            }
+        }
+        assertEquals(0, acceStore.pendingSize());
+        writer.close();
+
+        TraceArchive archive = new TraceArchive(traceFile);
+        try {
+            assertTrue(archive.isIndexed());
+            int [] streamTypes = {TraceFormat.STREAM_ACCE, TraceFormat.STREAM_GYRO, TraceFormat.STREAM_WIFI};
+            assertEquals(m_records, queryRecords(archive, streamTypes, Long.MIN_VALUE, Long.MAX_VALUE));
+        }
+        finally {
+            archive.close();
+        }
+    }
+
+    private static float [] lastValues(TraceArchive archive, int streamType, long timeStamp) throws IOException {
+        TraceArchive.Query query = archive.query(new int[] {streamType}, timeStamp, timeStamp);
+        assertTrue(query.next());
+        float [] values = query.getValues().clone();
+        assertFalse(query.next());
+        return values;
+    }
+}
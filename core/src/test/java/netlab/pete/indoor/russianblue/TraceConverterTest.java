@@ -0,0 +1,178 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Text logs of a session, with rotated segments and lines to skip, to a trace and back.
+ */
+
+public class TraceConverterTest {
+    private final static long START = 1477540800000L;
+    private final static String [] BSSIDS = {"00:11:22:33:44:55", "66:77:88:99:aa:bb"};
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private String m_prefix;
+    // Expected records of each stream, in recording order
+    private ArrayList<ArrayList<String>> m_records;
+
+    private static String record(long timeStamp, float [] values, int valueCount) {
+        StringBuilder record = new StringBuilder();
+        record.append(timeStamp);
+        for (int i = 0; i < valueCount; i++) {
+            record.append(' ').append(values[i]);
+        }
+        return record.toString();
+    }
+
+    private void writeSamples(Writer writer, int streamType, long from, int count) throws IOException {
+        int valueCount = TraceFormat.STREAM_VALUECOUNTS[streamType];
+        float [] values = new float[valueCount];
+        for (int i = 0; i < count; i++) {
+            long timeStamp = from + i * 5;
+            writer.write(Long.toString(timeStamp));
+            for (int j = 0; j < valueCount; j++) {
+                values[j] = i * 0.125f - j + streamType;
+                writer.write(", " + values[j]);
+            }
+            writer.write('\n');
+            m_records.get(streamType).add(record(timeStamp, values, valueCount));
+        }
+    }
+
+    @Before
+    public void writeSession() throws IOException {
+        m_prefix = new File(m_folder.getRoot(), "20161027120000").getPath();
+        m_records = new ArrayList<>();
+        for (int streamType = 0; streamType < TraceFormat.STREAM_COUNT; streamType++) {
+            m_records.add(new ArrayList<String>());
+        }
+        // The acceleration is rotated once.
+        Writer writer = new FileWriter(TraceConverter.getTextFileName(m_prefix, TraceFormat.STREAM_ACCE) + ".txt");
+        writeSamples(writer, TraceFormat.STREAM_ACCE, START, 3000);
+        writer.close();
+        writer = new FileWriter(TraceConverter.getTextFileName(m_prefix, TraceFormat.STREAM_ACCE) + "_1.txt");
+        writeSamples(writer, TraceFormat.STREAM_ACCE, START + 3000 * 5, 1000);
+        // A line cut by a crash is skipped.
+        writer.write(Long.toString(START + 4000 * 5) + ", 0.5");
+        writer.close();
+
+        writer = new FileWriter(TraceConverter.getTextFileName(m_prefix, TraceFormat.STREAM_GYRO) + ".txt");
+        writer.write("timestamp, x, y, z\n");
+        writeSamples(writer, TraceFormat.STREAM_GYRO, START, 500);
+        writer.close();
+
+        writer = new FileWriter(TraceConverter.getTextFileName(m_prefix, TraceFormat.STREAM_FILTEREDACCE) + ".txt");
+        writeSamples(writer, TraceFormat.STREAM_FILTEREDACCE, START + 20, 400);
+        writer.close();
+
+        writer = new FileWriter(TraceConverter.getTextFileName(m_prefix, TraceFormat.STREAM_STEP) + ".txt");
+        writeSamples(writer, TraceFormat.STREAM_STEP, START + 500, 10);
+        writer.close();
+
+        writer = new FileWriter(TraceConverter.getTextFileName(m_prefix, TraceFormat.STREAM_WIFI) + ".txt");
+        for (int i = 0; i < 20; i++) {
+            long timeStamp = START + i * 1000;
+            int [] levels = {-40 - i, -80 + i};
+            // The second access point is not heard in odd scans.
+            int apCount = i % 2 == 0 ? 2 : 1;
+            StringBuilder line = new StringBuilder();
+            StringBuilder expected = new StringBuilder();
+            line.append(timeStamp);
+            expected.append(timeStamp);
+            for (int j = 0; j < apCount; j++) {
+                line.append(", ").append(BSSIDS[j]).append(':').append(levels[j]);
+                expected.append(' ').append(BSSIDS[j]).append(' ').append(levels[j]);
+            }
+            writer.write(line.append('\n').toString());
+            m_records.get(TraceFormat.STREAM_WIFI).add(expected.toString());
+        }
+        writer.close();
+    }
+
+    private static ArrayList<ArrayList<String>> readTrace(File traceFile) throws IOException {
+        final TraceReader reader = new TraceReader(traceFile);
+        final ArrayList<ArrayList<String>> records = new ArrayList<>();
+        for (int streamType = 0; streamType < TraceFormat.STREAM_COUNT; streamType++) {
+            records.add(new ArrayList<String>());
+        }
+        try {
+            reader.accept(new TraceReader.Visitor() {
+                @Override
+                public void onSample(int streamType, long timeStamp, float[] values) {
+                    records.get(streamType).add(record(timeStamp, values,
+                            TraceFormat.STREAM_VALUECOUNTS[streamType]));
+                }
+
+                @Override
+                public void onWifiScan(long timeStamp, int apCount, int[] bssidIds, int[] levels) {
+                    StringBuilder record = new StringBuilder();
+                    record.append(timeStamp);
+                    for (int i = 0; i < apCount; i++) {
+                        record.append(' ').append(reader.getBssidDictionary().getBssid(bssidIds[i]))
+                                .append(' ').append(levels[i]);
+                    }
+                    records.get(TraceFormat.STREAM_WIFI).add(record.toString());
+                }
+            });
+        }
+        finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    @Test
+    public void listsTheSegmentsInOrder() {
+        File [] segments = TraceConverter.listSegments(m_prefix, TraceFormat.STREAM_ACCE);
+        assertEquals(2, segments.length);
+        assertEquals(m_prefix + "_acce.txt", segments[0].getPath());
+        assertEquals(m_prefix + "_acce_1.txt", segments[1].getPath());
+        assertEquals(1, TraceConverter.listSegments(m_prefix, TraceFormat.STREAM_FILTEREDACCE).length);
+        assertEquals(0, TraceConverter.listSegments(m_prefix, TraceFormat.STREAM_MAGN).length);
+    }
+
+    @Test
+    public void textToTraceKeepsEveryRecord() throws IOException {
+        File traceFile = m_folder.newFile("session" + TraceFormat.FILE_SUFFIX);
+        TraceConverter.textToTrace(m_prefix, traceFile);
+        ArrayList<ArrayList<String>> records = readTrace(traceFile);
+        for (int streamType = 0; streamType < TraceFormat.STREAM_COUNT; streamType++) {
+            assertEquals(TraceFormat.STREAM_IDS[streamType], m_records.get(streamType), records.get(streamType));
+        }
+        assertEquals(4000, records.get(TraceFormat.STREAM_ACCE).size());
+    }
+
+    @Test
+    public void traceToTextAndBack() throws IOException {
+        File traceFile = m_folder.newFile("session" + TraceFormat.FILE_SUFFIX);
+        TraceConverter.textToTrace(m_prefix, traceFile);
+        File directory = m_folder.newFolder("exported");
+        String prefix = new File(directory, "20161027120000").getPath();
+        TraceConverter.traceToText(traceFile, prefix);
+        // One text file per stream, without segments.
+        assertTrue(new File(prefix + "_acce.txt").exists());
+        assertTrue(new File(prefix + "debug_filtered.txt").exists());
+        assertEquals(1, TraceConverter.listSegments(prefix, TraceFormat.STREAM_ACCE).length);
+
+        File copyFile = m_folder.newFile("copy" + TraceFormat.FILE_SUFFIX);
+        TraceConverter.textToTrace(prefix, copyFile);
+        ArrayList<ArrayList<String>> records = readTrace(copyFile);
+        for (int streamType = 0; streamType < TraceFormat.STREAM_COUNT; streamType++) {
+            assertEquals(TraceFormat.STREAM_IDS[streamType], m_records.get(streamType), records.get(streamType));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package netlab.pete.indoor.russianblue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Merging the text logs of a session across streams and segments in timestamp order.
+ */
+
+public class TraceMergerTest {
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private void writeLines(String prefix, int streamType, int segment, String... lines) throws IOException {
+        String name = TraceConverter.getTextFileName(prefix, streamType);
+        Writer writer = new FileWriter(segment == 0 ? name + ".txt" : name + "_" + segment + ".txt");
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void mergesStreamsInTimeOrder() throws IOException {
+        String prefix = new File(m_folder.getRoot(), "20161027120000").getPath();
+        writeLines(prefix, TraceFormat.STREAM_ACCE, 0, "1000, 1, 2, 3", "1010, 4, 5, 6");
+        writeLines(prefix, TraceFormat.STREAM_ACCE, 1, "1020, 7, 8, 9", "1040, 1, 1, 1");
+        // A header line and a short record are skipped.
+        writeLines(prefix, TraceFormat.STREAM_GYRO, 0, "timestamp, x, y, z", "1005, 0.5, 0, 0", "1010, 0.25",
+                "1010, 0, 0.5, 0", "1030, 0, 0, 0.5");
+        writeLines(prefix, TraceFormat.STREAM_WIFI, 0, "1010, 00:11:22:33:44:55:-50, 66:77:88:99:aa:bb:-70",
+                "1050, 66:77:88:99:aa:bb:-65");
+
+        int [] streamTypes = {TraceFormat.STREAM_ACCE, TraceFormat.STREAM_GYRO, TraceFormat.STREAM_MAGN,
+                TraceFormat.STREAM_WIFI};
+        TraceMerger merger = new TraceMerger(prefix, streamTypes);
+        StringBuilder order = new StringBuilder();
+        try {
+            long last = Long.MIN_VALUE;
+            while (merger.next()) {
+                assertTrue(merger.getTimeStamp() >= last);
+                last = merger.getTimeStamp();
+                order.append(TraceFormat.STREAM_IDS[merger.getStreamType()]).append(' ').append(last).append(';');
+                if (merger.getStreamType() == TraceFormat.STREAM_ACCE && last == 1020) {
+                    assertEquals(3, merger.getRecord().valueCount);
+                    assertEquals(8.f, merger.getRecord().values[1], 0.f);
+                }
+                if (merger.getStreamType() == TraceFormat.STREAM_WIFI && last == 1050) {
+                    TextRecordParser record = merger.getRecord();
+                    assertEquals(1, record.apCount);
+                    assertEquals(-65, record.levels[0]);
+                    // Interned by the first scan.
+                    assertEquals(1, record.bssidIds[0]);
+                    assertEquals("66:77:88:99:aa:bb", merger.getDictionary().getBssid(record.bssidIds[0]));
+                }
+            }
+            assertFalse(merger.next());
+        }
+        finally {
+            merger.close();
+        }
+        // Records with the same timestamp come in the order of the stream types.
+        assertEquals("acce 1000;gyro 1005;acce 1010;gyro 1010;wifi 1010;acce 1020;gyro 1030;acce 1040;wifi 1050;",
+                order.toString());
+    }
+
+    @Test
+    public void missingSessionIsEmpty() throws IOException {
+        TraceMerger merger = new TraceMerger(new File(m_folder.getRoot(), "none").getPath(),
+                new int[] {TraceFormat.STREAM_ACCE, TraceFormat.STREAM_WIFI});
+        try {
+            assertFalse(merger.next());
+        }
+        finally {
+            merger.close();
+        }
+    }
+}
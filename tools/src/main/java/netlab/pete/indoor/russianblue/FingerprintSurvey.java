@@ -0,0 +1,145 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds a {@link FingerprintMap} from recorded sessions: every WiFi scan becomes a reference point
+ * at the dead reckoning position of the last step before it. Sessions are expected to start from
+ * the same origin, the headings already share the magnetic north. Sessions are replayed in
+ * parallel on a fork-join pool, each task filling its own builder, and the builders are merged.
+ * <p>
+ * Usage: FingerprintSurvey [-l stepLength] [-t threads] &lt;out.rbf&gt; &lt;session prefix or directory&gt;...
+ */
+
+public class FingerprintSurvey implements PdrPipeline.OnPositionListener, TraceReplayer.OnWifiScanListener {
+    private final FingerprintMap.Builder m_builder;
+    private float m_currentX;
+    private float m_currentY;
+
+    public FingerprintSurvey(FingerprintMap.Builder builder) {
+        m_builder = builder;
+        m_currentX = 0.f;
+        m_currentY = 0.f;
+    }
+
+    @Override
+    public void onPosition(int stepCount, long timeStamp, float x, float y, float heading) {
+        m_currentX = x;
+        m_currentY = y;
+    }
+
+    @Override
+    public void onPositionUpdated(int stepCount, long timeStamp, float x, float y, float heading) {
+        m_currentX = x;
+        m_currentY = y;
+    }
+
+    @Override
+    public void onWifiScan(long timeStamp, int apCount, int [] bssidIds, int [] levels, BssidDictionary dictionary) {
+        m_builder.addReferencePoint(m_currentX, m_currentY, apCount, bssidIds, levels, dictionary);
+    }
+
+    /**
+     * Add the scans of one session to the builder.
+     * */
+    public static TraceReplayer.Result survey(String prefix, float stepLength, FingerprintMap.Builder builder)
+            throws IOException {
+        PdrPipeline pipeline = new PdrPipeline(stepLength);
+        FingerprintSurvey survey = new FingerprintSurvey(builder);
+        pipeline.addPositionListener(survey);
+        return TraceReplayer.replay(prefix, pipeline, survey);
+    }
+
+    private static class SurveyTask extends RecursiveTask<FingerprintMap.Builder> {
+        private final static long serialVersionUID = 1L;
+
+        private final List<String> m_sessions;
+        private final int m_start;
+        private final int m_end;
+        private final float m_stepLength;
+
+        SurveyTask(List<String> sessions, int start, int end, float stepLength) {
+            m_sessions = sessions;
+            m_start = start;
+            m_end = end;
+            m_stepLength = stepLength;
+        }
+
+        @Override
+        protected FingerprintMap.Builder compute() {
+            if (m_end - m_start == 1) {
+                FingerprintMap.Builder builder = new FingerprintMap.Builder();
+                try {
+                    survey(m_sessions.get(m_start), m_stepLength, builder);
+                } catch (IOException ex) {
+                    System.err.println(m_sessions.get(m_start) + ": " + ex.getMessage());
+                }
+                return builder;
+            }
+            int middle = (m_start + m_end) >>> 1;
+            SurveyTask left = new SurveyTask(m_sessions, m_start, middle, m_stepLength);
+            SurveyTask right = new SurveyTask(m_sessions, middle, m_end, m_stepLength);
+            left.fork();
+            FingerprintMap.Builder rightBuilder = right.compute();
+            FingerprintMap.Builder builder = left.join();
+            builder.merge(rightBuilder);
+            return builder;
+        }
+    }
+
+    /**
+     * Build a map from sessions in parallel, reference points are in the order of the sessions.
+     * Sessions which fail to be read are reported and left out.
+     * */
+    public static FingerprintMap build(List<String> sessions, float stepLength, int threads) {
+        if (sessions.isEmpty()) {
+            return new FingerprintMap.Builder().build();
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new SurveyTask(sessions, 0, sessions.size(), stepLength)).build();
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    public static void main(String [] args) throws IOException {
+        float stepLength = TraceReplayer.DEFAULT_STEPLENGTH;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String output = null;
+        ArrayList<String> sessions = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-l".equals(args[i]) && i + 1 < args.length) {
+                stepLength = Float.parseFloat(args[++i]);
+            }
+            else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if (output == null) {
+                output = args[i];
+            }
+            else if (new File(args[i]).isDirectory()) {
+                sessions.addAll(TraceReplayer.discoverSessions(new File(args[i])));
+            }
+            else {
+                sessions.add(args[i]);
+            }
+        }
+        if (output == null || sessions.isEmpty()) {
+            System.err.println("Usage: FingerprintSurvey [-l stepLength] [-t threads] <out.rbf> <session prefix or directory>...");
+            System.exit(1);
+        }
+        long startTime = System.nanoTime();
+        FingerprintMap map = build(sessions, stepLength, threads);
+        map.save(new File(output));
+        System.out.println(sessions.size() + " sessions, " + map.getPointCount() + " reference points, "
+                + map.getBssidDictionary().size() + " BSSIDs in "
+                + String.format("%.2f", (System.nanoTime() - startTime) / 1e9) + " s");
+    }
+}
@@ -0,0 +1,459 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scores variants of the step detection and heading pipeline against annotated sessions,
+ * accuracy and cost side by side, so a tuning change can be judged and gated.
+ * <p>
+ * A session is annotated in "prefix_truth.txt" with checkpoints "timestamp, x, y[, steps]": the
+ * true position in meters at that time, in the dead reckoning frame (origin at the start, y to the
+ * magnetic north), and optionally the true step count so far. The step error is taken at the last
+ * checkpoint with a step count, the path error at every checkpoint, from the position of the last
+ * step before it. Sessions without annotation are skipped.
+ * <p>
+ * The sensor samples of a session are loaded once and every variant replays them from memory,
+ * so the CPU time and allocated bytes, read from the ThreadMXBean of the replaying thread, are those
+ * of the pipeline alone. Each variant first runs unmeasured to warm up the JIT.
+ * <p>
+ * Usage: PipelineEvaluation [-v variant]... [-w warmups] [-s maxStepError%] [-p maxPathError]
+ * [-c maxNsPerEvent] [-a maxBytesPerEvent] &lt;session prefix or directory&gt;...
+ * <br>The path gate applies to the largest error at any checkpoint.
+ * <br>A variant is "name:key=value,...", the keys are window (ms), threshold, minperiod (ms),
+ * timeconstant (s), gravity, gain, resample (0 or 1) and steplength (m). Without -v the default
+ * pipeline is evaluated. With a gate option the exit status is 2 if a variant exceeds it.
+ * <br>From the build: gradle :tools:evaluate --args="-v a:threshold=10.8 -v b:window=100 -s 5 -p 3 &lt;dir&gt;"
+ */
+
+public class PipelineEvaluation {
+    public final static String TRUTH_SUFFIX = "_truth.txt";
+    private final static int DEFAULT_WARMUPS = 2;
+    private final static int [] SENSOR_STREAMS = {TraceFormat.STREAM_ACCE, TraceFormat.STREAM_GYRO,
+            TraceFormat.STREAM_MAGN};
+
+    /**
+     * Builds the pipeline under test, a new one for each session.
+     */
+    public interface Variant {
+        String getName();
+        PdrPipeline createPipeline();
+    }
+
+    /**
+     * A variant of the default pipeline with some parameters changed.
+     */
+    public static class ParameterVariant implements Variant {
+        private final String m_name;
+        public long windowDuration = SlidingWindowFilter.DEFAULT_WINDOWDURATION;
+        public float gravity = SlidingWindowFilter.DEFAULT_GRAVITY;
+        public float gain = SlidingWindowFilter.DEFAULT_GAIN;
+        public float threshold = StepDetector.DEFAULT_THRESHOLD;
+        public long minPeriod = StepDetector.DEFAULT_MINPERIOD;
+        public float timeConstant = HeadingFusion.DEFAULT_TIMECONSTANT;
+        public boolean resample = true;
+        public float stepLength = TraceReplayer.DEFAULT_STEPLENGTH;
+
+        public ParameterVariant(String name) {
+            m_name = name;
+        }
+
+        /**
+         * @param spec "name:key=value,..." or "name"
+         * */
+        public static ParameterVariant parse(String spec) {
+            int colon = spec.indexOf(':');
+            ParameterVariant variant = new ParameterVariant(colon < 0 ? spec : spec.substring(0, colon));
+            if (colon < 0) {
+                return variant;
+            }
+            for (String parameter : spec.substring(colon + 1).split(",")) {
+                int equal = parameter.indexOf('=');
+                if (equal < 0) {
+                    throw new IllegalArgumentException("Bad variant parameter: " + parameter);
+                }
+                String key = parameter.substring(0, equal).trim();
+                String value = parameter.substring(equal + 1).trim();
+                if ("window".equals(key)) {
+                    variant.windowDuration = Long.parseLong(value);
+                }
+                else if ("threshold".equals(key)) {
+                    variant.threshold = Float.parseFloat(value);
+                }
+                else if ("minperiod".equals(key)) {
+                    variant.minPeriod = Long.parseLong(value);
+                }
+                else if ("timeconstant".equals(key)) {
+                    variant.timeConstant = Float.parseFloat(value);
+                }
+                else if ("gravity".equals(key)) {
+                    variant.gravity = Float.parseFloat(value);
+                }
+                else if ("gain".equals(key)) {
+                    variant.gain = Float.parseFloat(value);
+                }
+                else if ("resample".equals(key)) {
+                    variant.resample = !"0".equals(value);
+                }
+                else if ("steplength".equals(key)) {
+                    variant.stepLength = Float.parseFloat(value);
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown variant parameter: " + key);
+                }
+            }
+            return variant;
+        }
+
+        @Override
+        public String getName() {
+            return m_name;
+        }
+
+        @Override
+        public PdrPipeline createPipeline() {
+            PdrPipeline pipeline = new PdrPipeline(stepLength,
+                    SlidingWindowFilter.forDuration(windowDuration, AcceResampler.DEFAULT_PERIOD, gravity, gain),
+                    new StepDetector(threshold, minPeriod), new HeadingFusion(timeConstant));
+            if (!resample) {
+                pipeline.setAcceResampler(null);
+            }
+            return pipeline;
+        }
+    }
+
+    /**
+     * Annotated checkpoints of a session, in time order.
+     */
+    public static class Truth {
+        public final long [] timeStamps;
+        public final float [] x;
+        public final float [] y;
+        // True step count at each checkpoint, -1 if not annotated
+        public final int [] stepCounts;
+        public final int count;
+
+        Truth(long [] timeStamps, float [] x, float [] y, int [] stepCounts, int count) {
+            this.timeStamps = timeStamps;
+            this.x = x;
+            this.y = y;
+            this.stepCounts = stepCounts;
+            this.count = count;
+        }
+
+        /**
+         * @return The annotation of the session, null if it has none
+         * */
+        public static Truth load(String prefix) throws IOException {
+            File file = new File(prefix + TRUTH_SUFFIX);
+            if (!file.exists()) {
+                return null;
+            }
+            long [] timeStamps = new long[16];
+            float [] x = new float[16];
+            float [] y = new float[16];
+            int [] stepCounts = new int[16];
+            int count = 0;
+            TextRecordParser parser = new TextRecordParser();
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!parser.parseSample(line) || parser.valueCount < 2) {
+                        continue;
+                    }
+                    if (count == timeStamps.length) {
+                        timeStamps = Arrays.copyOf(timeStamps, count * 2);
+                        x = Arrays.copyOf(x, count * 2);
+                        y = Arrays.copyOf(y, count * 2);
+                        stepCounts = Arrays.copyOf(stepCounts, count * 2);
+                    }
+                    if (count > 0 && parser.timeStamp < timeStamps[count - 1]) {
+                        throw new IOException(file + ": checkpoints are not in time order");
+                    }
+                    timeStamps[count] = parser.timeStamp;
+                    x[count] = parser.values[0];
+                    y[count] = parser.values[1];
+                    stepCounts[count] = parser.valueCount > 2 ? Math.round(parser.values[2]) : -1;
+                    count = count + 1;
+                }
+            }
+            finally {
+                reader.close();
+            }
+            return new Truth(timeStamps, x, y, stepCounts, count);
+        }
+    }
+
+    /**
+     * The sensor samples of a session in time order, in primitive arrays.
+     */
+    static class SessionEvents {
+        int count;
+        int [] types = new int[4096];
+        long [] timeStamps = new long[4096];
+        float [] values = new float[4096 * 3];
+
+        static SessionEvents load(String prefix) throws IOException {
+            SessionEvents events = new SessionEvents();
+            TraceMerger merger = new TraceMerger(prefix, SENSOR_STREAMS);
+            try {
+                while (merger.next()) {
+                    int index = events.count;
+                    if (index == events.types.length) {
+                        events.types = Arrays.copyOf(events.types, index * 2);
+                        events.timeStamps = Arrays.copyOf(events.timeStamps, index * 2);
+                        events.values = Arrays.copyOf(events.values, index * 6);
+                    }
+                    events.types[index] = merger.getStreamType();
+                    events.timeStamps[index] = merger.getTimeStamp();
+                    System.arraycopy(merger.getRecord().values, 0, events.values, index * 3, 3);
+                    events.count = index + 1;
+                }
+            }
+            finally {
+                merger.close();
+            }
+            return events;
+        }
+    }
+
+    /**
+     * Scores of one variant, summed over the sessions.
+     */
+    public static class Score {
+        public final String variant;
+        public int sessionCount;
+        public long trueSteps;
+        public long stepErrorSum;           // absolute, over the sessions
+        public int checkpointCount;
+        public double pathErrorSum;         // m
+        public double pathErrorMax;
+        public long eventCount;
+        public long cpuNanos;
+        public long allocatedBytes;         // -1 if the JVM does not count them
+
+        public Score(String variant) {
+            this.variant = variant;
+        }
+
+        public double getStepErrorPercent() {
+            return trueSteps == 0 ? 0 : 100.0 * stepErrorSum / trueSteps;
+        }
+
+        public double getMeanPathError() {
+            return checkpointCount == 0 ? 0 : pathErrorSum / checkpointCount;
+        }
+
+        public double getNanosPerEvent() {
+            return eventCount == 0 ? 0 : (double) cpuNanos / eventCount;
+        }
+
+        public double getBytesPerEvent() {
+            return eventCount == 0 || allocatedBytes < 0 ? -1 : (double) allocatedBytes / eventCount;
+        }
+
+        public String toString() {
+            double bytes = getBytesPerEvent();
+            return String.format("%-16s %8d %10d %9.2f %9.2f %9.2f %10.1f %10s", variant, sessionCount,
+                    trueSteps, getStepErrorPercent(), getMeanPathError(), pathErrorMax, getNanosPerEvent(),
+                    bytes < 0 ? "n/a" : String.format("%.2f", bytes));
+        }
+    }
+
+    public final static String SCORE_HEADER = String.format("%-16s %8s %10s %9s %9s %9s %10s %10s", "variant",
+            "sessions", "true steps", "steps %", "path m", "max m", "ns/event", "B/event");
+
+    private final ThreadMXBean m_threadBean;
+    private final com.sun.management.ThreadMXBean m_allocationBean;
+
+    public PipelineEvaluation() {
+        m_threadBean = ManagementFactory.getThreadMXBean();
+        if (m_threadBean.isThreadCpuTimeSupported() && !m_threadBean.isThreadCpuTimeEnabled()) {
+            m_threadBean.setThreadCpuTimeEnabled(true);
+        }
+        com.sun.management.ThreadMXBean allocationBean = null;
+        if (m_threadBean instanceof com.sun.management.ThreadMXBean) {
+            allocationBean = (com.sun.management.ThreadMXBean) m_threadBean;
+            if (!allocationBean.isThreadAllocatedMemorySupported()) {
+                allocationBean = null;
+            }
+            else if (!allocationBean.isThreadAllocatedMemoryEnabled()) {
+                allocationBean.setThreadAllocatedMemoryEnabled(true);
+            }
+        }
+        m_allocationBean = allocationBean;
+    }
+
+    private long getAllocatedBytes() {
+        return m_allocationBean == null ? -1 : m_allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Replay the session with one variant and add its errors and cost to the score.
+     * */
+    public void evaluate(Variant variant, SessionEvents events, Truth truth, Score score) {
+        final PdrPipeline pipeline = variant.createPipeline();
+        final StepLog steps = new StepLog();
+        pipeline.addPositionListener(new PdrPipeline.OnPositionListener() {
+            @Override
+            public void onPosition(int stepCount, long timeStamp, float x, float y, float heading) {
+                steps.append(timeStamp, x, y, heading, pipeline.getLastStepLength());
+            }
+
+            @Override
+            public void onPositionUpdated(int stepCount, long timeStamp, float x, float y, float heading) {
+                steps.amend(steps.size() - 1, timeStamp, x, y, heading, pipeline.getLastStepLength());
+            }
+        });
+
+        long startBytes = getAllocatedBytes();
+        long startNanos = m_threadBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < events.count; i++) {
+            int base = i * 3;
+            switch (events.types[i]) {
+                case TraceFormat.STREAM_ACCE:
+                    pipeline.onAcceValue(events.timeStamps[i], events.values[base], events.values[base + 1],
+                            events.values[base + 2]);
+                    break;
+                case TraceFormat.STREAM_GYRO:
+                    pipeline.onGyroValue(events.timeStamps[i], events.values[base], events.values[base + 1],
+                            events.values[base + 2]);
+                    break;
+                default:
+                    pipeline.onMagnValue(events.timeStamps[i], events.values[base], events.values[base + 1],
+                            events.values[base + 2]);
+                    break;
+            }
+        }
+        long cpuNanos = m_threadBean.getCurrentThreadCpuTime() - startNanos;
+        long allocatedBytes = getAllocatedBytes() - startBytes;
+
+        score.sessionCount = score.sessionCount + 1;
+        score.eventCount += events.count;
+        score.cpuNanos += cpuNanos;
+        score.allocatedBytes = startBytes < 0 || score.allocatedBytes < 0 ? -1 : score.allocatedBytes + allocatedBytes;
+        // Steps logged up to each checkpoint, the log and the checkpoints are in time order.
+        int stepIndex = 0;
+        int lastStepCount = -1;
+        int detectedAtLast = 0;
+        for (int c = 0; c < truth.count; c++) {
+            while (stepIndex < steps.size() && steps.getTimeStamp(stepIndex) <= truth.timeStamps[c]) {
+                stepIndex = stepIndex + 1;
+            }
+            float x = stepIndex == 0 ? 0.f : steps.getX(stepIndex - 1);
+            float y = stepIndex == 0 ? 0.f : steps.getY(stepIndex - 1);
+            double error = Math.hypot(x - truth.x[c], y - truth.y[c]);
+            score.pathErrorSum += error;
+            score.pathErrorMax = Math.max(score.pathErrorMax, error);
+            score.checkpointCount = score.checkpointCount + 1;
+            if (truth.stepCounts[c] >= 0) {
+                lastStepCount = truth.stepCounts[c];
+                detectedAtLast = stepIndex;
+            }
+        }
+        if (lastStepCount >= 0) {
+            score.trueSteps += lastStepCount;
+            score.stepErrorSum += Math.abs(detectedAtLast - lastStepCount);
+        }
+    }
+
+    /**
+     * Score every variant over the annotated sessions, on the calling thread.
+     * @param warmups Unmeasured runs of each variant over the sessions before the measured one
+     * */
+    public List<Score> evaluateAll(List<Variant> variants, List<String> sessions, int warmups) throws IOException {
+        ArrayList<String> prefixes = new ArrayList<>();
+        ArrayList<Truth> truths = new ArrayList<>();
+        for (String session : sessions) {
+            Truth truth = Truth.load(session);
+            if (truth == null || truth.count == 0) {
+                System.err.println(session + ": no " + TRUTH_SUFFIX + " annotation, skipped");
+                continue;
+            }
+            prefixes.add(session);
+            truths.add(truth);
+        }
+        ArrayList<Score> scores = new ArrayList<>();
+        for (Variant variant : variants) {
+            scores.add(new Score(variant.getName()));
+        }
+        // One session in memory at a time, every variant runs on it.
+        for (int s = 0; s < prefixes.size(); s++) {
+            SessionEvents events = SessionEvents.load(prefixes.get(s));
+            for (int v = 0; v < variants.size(); v++) {
+                for (int w = 0; w < warmups; w++) {
+                    evaluate(variants.get(v), events, truths.get(s), new Score(variants.get(v).getName()));
+                }
+                evaluate(variants.get(v), events, truths.get(s), scores.get(v));
+            }
+        }
+        return scores;
+    }
+
+    public static void main(String [] args) throws IOException {
+        ArrayList<Variant> variants = new ArrayList<>();
+        int warmups = DEFAULT_WARMUPS;
+        double maxStepError = Double.NaN;
+        double maxPathError = Double.NaN;
+        double maxNanos = Double.NaN;
+        double maxBytes = Double.NaN;
+        ArrayList<String> sessions = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-v".equals(args[i]) && i + 1 < args.length) {
+                variants.add(ParameterVariant.parse(args[++i]));
+            }
+            else if ("-w".equals(args[i]) && i + 1 < args.length) {
+                warmups = Integer.parseInt(args[++i]);
+            }
+            else if ("-s".equals(args[i]) && i + 1 < args.length) {
+                maxStepError = Double.parseDouble(args[++i]);
+            }
+            else if ("-p".equals(args[i]) && i + 1 < args.length) {
+                maxPathError = Double.parseDouble(args[++i]);
+            }
+            else if ("-c".equals(args[i]) && i + 1 < args.length) {
+                maxNanos = Double.parseDouble(args[++i]);
+            }
+            else if ("-a".equals(args[i]) && i + 1 < args.length) {
+                maxBytes = Double.parseDouble(args[++i]);
+            }
+            else if (new File(args[i]).isDirectory()) {
+                sessions.addAll(TraceReplayer.discoverSessions(new File(args[i])));
+            }
+            else {
+                sessions.add(args[i]);
+            }
+        }
+        if (sessions.isEmpty()) {
+            System.err.println("Usage: PipelineEvaluation [-v name:key=value,...]... [-w warmups] [-s maxStepError%]"
+                    + " [-p maxPathError] [-c maxNsPerEvent] [-a maxBytesPerEvent] <session prefix or directory>...");
+            System.exit(1);
+        }
+        if (variants.isEmpty()) {
+            variants.add(new ParameterVariant("default"));
+        }
+        List<Score> scores = new PipelineEvaluation().evaluateAll(variants, sessions, warmups);
+        System.out.println(SCORE_HEADER);
+        boolean passed = true;
+        for (Score score : scores) {
+            System.out.println(score);
+            // NaN gates are off, the comparisons are false.
+            if (score.getStepErrorPercent() > maxStepError || score.pathErrorMax > maxPathError
+                    || score.getNanosPerEvent() > maxNanos || score.getBytesPerEvent() > maxBytes) {
+                System.out.println(score.variant + ": over a gate");
+                passed = false;
+            }
+        }
+        if (!passed) {
+            System.exit(2);
+        }
+    }
+}
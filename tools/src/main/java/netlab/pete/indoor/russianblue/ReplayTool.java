@@ -0,0 +1,138 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Command line replay of recorded sessions with {@link TraceReplayer}, a directory of sessions
+ * is replayed in parallel on a fork-join pool.
+ * <p>
+ * Usage: ReplayTool [-l stepLength] [-t threads] [-o] [-m map.rbf [-n particles]] &lt;session prefix or directory&gt;...
+ * <br>-o writes the trajectory of each session to "prefix_trajectory.txt".
+ * <br>-m fuses the steps with WiFi fixes from a fingerprint map in a particle filter,
+ * the trajectory is then the fused one.
+ */
+
+public class ReplayTool {
+    /**
+     * Replays a range of sessions, splitting it in halves until one session is left.
+     */
+    private static class ReplayTask extends RecursiveTask<List<TraceReplayer.Result>> {
+        private final static long serialVersionUID = 1L;
+
+        private final List<String> m_sessions;
+        private final int m_start;
+        private final int m_end;
+        private final float m_stepLength;
+        private final boolean m_saveTrajectory;
+        private final FingerprintMap m_map;
+        private final int m_particleCount;
+
+        ReplayTask(List<String> sessions, int start, int end, float stepLength, boolean saveTrajectory,
+                   FingerprintMap map, int particleCount) {
+            m_sessions = sessions;
+            m_start = start;
+            m_end = end;
+            m_stepLength = stepLength;
+            m_saveTrajectory = saveTrajectory;
+            m_map = map;
+            m_particleCount = particleCount;
+        }
+
+        @Override
+        protected List<TraceReplayer.Result> compute() {
+            ArrayList<TraceReplayer.Result> results = new ArrayList<>();
+            if (m_end - m_start == 1) {
+                try {
+                    results.add(TraceReplayer.replay(m_sessions.get(m_start), m_stepLength, m_saveTrajectory,
+                            m_map, m_particleCount));
+                } catch (IOException ex) {
+                    System.err.println(m_sessions.get(m_start) + ": " + ex.getMessage());
+                }
+                return results;
+            }
+            int middle = (m_start + m_end) >>> 1;
+            ReplayTask left = new ReplayTask(m_sessions, m_start, middle, m_stepLength, m_saveTrajectory,
+                    m_map, m_particleCount);
+            ReplayTask right = new ReplayTask(m_sessions, middle, m_end, m_stepLength, m_saveTrajectory,
+                    m_map, m_particleCount);
+            left.fork();
+            results.addAll(right.compute());
+            results.addAll(0, left.join());
+            return results;
+        }
+    }
+
+    /**
+     * Replay sessions in parallel, results are in the order of the sessions.
+     * Sessions which fail to be read are reported and left out.
+     * @param map Fingerprint map shared by the sessions, may be null
+     * */
+    public static List<TraceReplayer.Result> replayAll(List<String> sessions, float stepLength,
+                                                       boolean saveTrajectory, FingerprintMap map,
+                                                       int particleCount, int threads) {
+        if (sessions.isEmpty()) {
+            return new ArrayList<>();
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new ReplayTask(sessions, 0, sessions.size(), stepLength, saveTrajectory,
+                    map, particleCount));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    public static void main(String [] args) throws IOException {
+        float stepLength = TraceReplayer.DEFAULT_STEPLENGTH;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean saveTrajectory = false;
+        FingerprintMap map = null;
+        int particleCount = ParticleLocalizer.DEFAULT_PARTICLECOUNT;
+        ArrayList<String> sessions = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-l".equals(args[i]) && i + 1 < args.length) {
+                stepLength = Float.parseFloat(args[++i]);
+            }
+            else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if ("-o".equals(args[i])) {
+                saveTrajectory = true;
+            }
+            else if ("-m".equals(args[i]) && i + 1 < args.length) {
+                map = FingerprintMap.load(new File(args[++i]));
+            }
+            else if ("-n".equals(args[i]) && i + 1 < args.length) {
+                particleCount = Integer.parseInt(args[++i]);
+            }
+            else if (new File(args[i]).isDirectory()) {
+                sessions.addAll(TraceReplayer.discoverSessions(new File(args[i])));
+            }
+            else {
+                sessions.add(args[i]);
+            }
+        }
+        if (sessions.isEmpty()) {
+            System.err.println("Usage: ReplayTool [-l stepLength] [-t threads] [-o] [-m map.rbf [-n particles]]"
+                    + " <session prefix or directory>...");
+            System.exit(1);
+        }
+        long startTime = System.nanoTime();
+        List<TraceReplayer.Result> results = replayAll(sessions, stepLength, saveTrajectory, map,
+                particleCount, threads);
+        long samples = 0;
+        for (TraceReplayer.Result result : results) {
+            System.out.println(result);
+            samples += result.sampleCount;
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println(results.size() + " sessions, " + samples + " samples in "
+                + String.format("%.2f", seconds) + " s, " + String.format("%.0f", samples / seconds) + " samples/s");
+    }
+}
@@ -0,0 +1,312 @@
+package netlab.pete.indoor.russianblue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Summary statistics of recorded sessions: steps, distance, cadence histogram, heading drift and
+ * WiFi access point counts. Each session is replayed through {@link PdrPipeline}, the step
+ * detection and heading fusion StepCounter runs on the device, streaming its logs through
+ * {@link TraceReplayer}, so memory depends neither on the session length nor on the archive size:
+ * a session keeps a few counters, a fixed histogram and the set of BSSIDs it saw.
+ * Sessions are replayed in parallel on a fork-join pool and their summaries are merged.
+ * <p>
+ * The heading drift of a step is the angle between the fused heading used for the step and the
+ * azimuth of the magnetometer alone at that time: large values show magnetic disturbances or a
+ * drifting gyroscope.
+ * <p>
+ * Usage: SessionAnalytics [-l stepLength] [-t threads] [-q] &lt;session prefix or directory&gt;...
+ * <br>-q only prints the totals, not a line per session.
+ */
+
+public class SessionAnalytics implements PdrPipeline.OnPositionListener, TraceReplayer.OnWifiScanListener {
+    public final static int CADENCE_BINWIDTH = 10;  // steps/min
+    public final static int CADENCE_BINS = 20;      // the last bin holds 190 steps/min and more
+    // Steps further apart are the first of a walk, they have no cadence.
+    private final static long STEP_MAXINTERVAL = 2000;  // ms
+
+    public static class Summary {
+        // Session prefix, or the number of sessions of a merged summary
+        public String session;
+        public int sessionCount;
+        public long sampleCount;
+        public long duration;       // ms
+        public int stepCount;
+        public double distance;     // m
+        public long walkingTime;    // ms, sum of the step intervals within a walk
+        public final int [] cadenceHistogram = new int[CADENCE_BINS];
+        public double headingDriftSum;  // degrees
+        public double headingDriftMax;
+        public int headingDriftCount;
+        public double netTurn;      // degrees, clockwise
+        public int wifiScanCount;
+        public long apCountSum;
+        public int apCountMax;
+        public final HashSet<String> bssids = new HashSet<>();
+        public long elapsedNanos;
+
+        /**
+         * @return Steps per minute while walking, 0 without step intervals.
+         * */
+        public double getCadence() {
+            int intervals = 0;
+            for (int count : cadenceHistogram) {
+                intervals += count;
+            }
+            return walkingTime == 0 ? 0 : intervals * 60000.0 / walkingTime;
+        }
+
+        public double getMeanHeadingDrift() {
+            return headingDriftCount == 0 ? 0 : headingDriftSum / headingDriftCount;
+        }
+
+        public double getMeanApCount() {
+            return wifiScanCount == 0 ? 0 : (double) apCountSum / wifiScanCount;
+        }
+
+        public void merge(Summary other) {
+            sessionCount += other.sessionCount;
+            sampleCount += other.sampleCount;
+            duration += other.duration;
+            stepCount += other.stepCount;
+            distance += other.distance;
+            walkingTime += other.walkingTime;
+            for (int i = 0; i < CADENCE_BINS; i++) {
+                cadenceHistogram[i] += other.cadenceHistogram[i];
+            }
+            headingDriftSum += other.headingDriftSum;
+            headingDriftMax = Math.max(headingDriftMax, other.headingDriftMax);
+            headingDriftCount += other.headingDriftCount;
+            netTurn += other.netTurn;
+            wifiScanCount += other.wifiScanCount;
+            apCountSum += other.apCountSum;
+            apCountMax = Math.max(apCountMax, other.apCountMax);
+            bssids.addAll(other.bssids);
+            elapsedNanos += other.elapsedNanos;
+        }
+
+        public String toString() {
+            return session + ", steps " + stepCount + ", distance " + String.format("%.2f", distance)
+                    + " m, duration " + String.format("%.1f", duration / 1000.0) + " s, cadence "
+                    + String.format("%.1f", getCadence()) + " steps/min, heading drift mean "
+                    + String.format("%.1f", getMeanHeadingDrift()) + " max " + String.format("%.1f", headingDriftMax)
+                    + " deg, net turn " + Math.round(netTurn) + " deg, wifi scans " + wifiScanCount
+                    + ", APs per scan " + String.format("%.1f", getMeanApCount()) + " max " + apCountMax
+                    + ", BSSIDs " + bssids.size();
+        }
+    }
+
+    private final Summary m_summary;
+    private final HeadingFusion m_headingFusion;
+    // Step before the last one, the start of the interval and turn of the last step
+    private boolean m_hasPrevStep;
+    private long m_prevStepTime;
+    private float m_prevHeading;
+    // Contributions of the last step, taken back when it is updated
+    private int m_lastBin;
+    private long m_lastInterval;
+    private double m_lastTurn;
+    private double m_lastDrift;
+    private boolean m_hasLastStep;
+    private long m_lastStepTime;
+    private float m_lastHeading;
+
+    public SessionAnalytics(Summary summary, HeadingFusion headingFusion) {
+        m_summary = summary;
+        m_headingFusion = headingFusion;
+        m_hasPrevStep = false;
+        m_hasLastStep = false;
+    }
+
+    @Override
+    public void onPosition(int stepCount, long timeStamp, float x, float y, float heading) {
+        m_hasPrevStep = m_hasLastStep;
+        m_prevStepTime = m_lastStepTime;
+        m_prevHeading = m_lastHeading;
+        m_hasLastStep = true;
+        addStep(timeStamp, heading);
+    }
+
+    @Override
+    public void onPositionUpdated(int stepCount, long timeStamp, float x, float y, float heading) {
+        // The last step moved to a later peak, replace what it added.
+        if (m_lastBin >= 0) {
+            m_summary.cadenceHistogram[m_lastBin] -= 1;
+            m_summary.walkingTime -= m_lastInterval;
+        }
+        m_summary.netTurn -= m_lastTurn;
+        m_summary.headingDriftSum -= m_lastDrift;
+        m_summary.headingDriftCount = m_summary.headingDriftCount - 1;
+        addStep(timeStamp, heading);
+    }
+
+    private void addStep(long timeStamp, float heading) {
+        m_lastStepTime = timeStamp;
+        m_lastHeading = heading;
+        m_lastBin = -1;
+        m_lastInterval = 0;
+        m_lastTurn = 0;
+        if (m_hasPrevStep) {
+            m_lastTurn = Math.toDegrees(wrap(heading - m_prevHeading));
+            long interval = timeStamp - m_prevStepTime;
+            if (interval > 0 && interval <= STEP_MAXINTERVAL) {
+                m_lastBin = Math.min((int) (60000 / interval / CADENCE_BINWIDTH), CADENCE_BINS - 1);
+                m_lastInterval = interval;
+                m_summary.cadenceHistogram[m_lastBin] += 1;
+                m_summary.walkingTime += interval;
+            }
+        }
+        m_summary.netTurn += m_lastTurn;
+        m_lastDrift = Math.abs(Math.toDegrees(wrap(heading - m_headingFusion.getMagnAzimut())));
+        m_summary.headingDriftSum += m_lastDrift;
+        m_summary.headingDriftMax = Math.max(m_summary.headingDriftMax, m_lastDrift);
+        m_summary.headingDriftCount = m_summary.headingDriftCount + 1;
+    }
+
+    private static double wrap(double angle) {
+        while (angle > Math.PI) {
+            angle -= 2 * Math.PI;
+        }
+        while (angle < -Math.PI) {
+            angle += 2 * Math.PI;
+        }
+        return angle;
+    }
+
+    @Override
+    public void onWifiScan(long timeStamp, int apCount, int [] bssidIds, int [] levels, BssidDictionary dictionary) {
+        m_summary.wifiScanCount = m_summary.wifiScanCount + 1;
+        m_summary.apCountSum += apCount;
+        m_summary.apCountMax = Math.max(m_summary.apCountMax, apCount);
+        for (int i = 0; i < apCount; i++) {
+            m_summary.bssids.add(dictionary.getBssid(bssidIds[i]));
+        }
+    }
+
+    /**
+     * Replay one session and summarize it.
+     * */
+    public static Summary analyze(String prefix, float stepLength) throws IOException {
+        HeadingFusion headingFusion = new HeadingFusion();
+        PdrPipeline pipeline = new PdrPipeline(stepLength, new SlidingWindowFilter(), new StepDetector(), headingFusion);
+        Summary summary = new Summary();
+        SessionAnalytics analytics = new SessionAnalytics(summary, headingFusion);
+        pipeline.addPositionListener(analytics);
+        TraceReplayer.Result result = TraceReplayer.replay(prefix, pipeline, analytics);
+        summary.session = prefix;
+        summary.sessionCount = 1;
+        summary.sampleCount = result.sampleCount;
+        summary.duration = result.endTime - result.startTime;
+        summary.stepCount = result.stepCount;
+        summary.distance = result.distance;
+        summary.elapsedNanos = result.elapsedNanos;
+        return summary;
+    }
+
+    private static class AnalyticsTask extends RecursiveTask<List<Summary>> {
+        private final static long serialVersionUID = 1L;
+
+        private final List<String> m_sessions;
+        private final int m_start;
+        private final int m_end;
+        private final float m_stepLength;
+
+        AnalyticsTask(List<String> sessions, int start, int end, float stepLength) {
+            m_sessions = sessions;
+            m_start = start;
+            m_end = end;
+            m_stepLength = stepLength;
+        }
+
+        @Override
+        protected List<Summary> compute() {
+            ArrayList<Summary> summaries = new ArrayList<>();
+            if (m_end - m_start == 1) {
+                try {
+                    summaries.add(analyze(m_sessions.get(m_start), m_stepLength));
+                } catch (IOException ex) {
+                    System.err.println(m_sessions.get(m_start) + ": " + ex.getMessage());
+                }
+                return summaries;
+            }
+            int middle = (m_start + m_end) >>> 1;
+            AnalyticsTask left = new AnalyticsTask(m_sessions, m_start, middle, m_stepLength);
+            AnalyticsTask right = new AnalyticsTask(m_sessions, middle, m_end, m_stepLength);
+            left.fork();
+            summaries.addAll(right.compute());
+            summaries.addAll(0, left.join());
+            return summaries;
+        }
+    }
+
+    /**
+     * Summarize sessions in parallel, summaries are in the order of the sessions.
+     * Sessions which fail to be read are reported and left out.
+     * */
+    public static List<Summary> analyzeAll(List<String> sessions, float stepLength, int threads) {
+        if (sessions.isEmpty()) {
+            return new ArrayList<>();
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new AnalyticsTask(sessions, 0, sessions.size(), stepLength));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    public static void main(String [] args) throws IOException {
+        float stepLength = TraceReplayer.DEFAULT_STEPLENGTH;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean quiet = false;
+        ArrayList<String> sessions = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-l".equals(args[i]) && i + 1 < args.length) {
+                stepLength = Float.parseFloat(args[++i]);
+            }
+            else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if ("-q".equals(args[i])) {
+                quiet = true;
+            }
+            else if (new File(args[i]).isDirectory()) {
+                sessions.addAll(TraceReplayer.discoverSessions(new File(args[i])));
+            }
+            else {
+                sessions.add(args[i]);
+            }
+        }
+        if (sessions.isEmpty()) {
+            System.err.println("Usage: SessionAnalytics [-l stepLength] [-t threads] [-q] <session prefix or directory>...");
+            System.exit(1);
+        }
+        long startTime = System.nanoTime();
+        List<Summary> summaries = analyzeAll(sessions, stepLength, threads);
+        Summary total = new Summary();
+        for (Summary summary : summaries) {
+            if (!quiet) {
+                System.out.println(summary);
+            }
+            total.merge(summary);
+        }
+        total.session = total.sessionCount + " sessions";
+        System.out.println(total);
+        System.out.println("cadence histogram, steps/min:");
+        for (int i = 0; i < CADENCE_BINS; i++) {
+            if (total.cadenceHistogram[i] > 0) {
+                System.out.println("  " + (i * CADENCE_BINWIDTH) + (i == CADENCE_BINS - 1 ? "+" : "-"
+                        + ((i + 1) * CADENCE_BINWIDTH)) + ": " + total.cadenceHistogram[i]);
+            }
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println(total.sampleCount + " samples in " + String.format("%.2f", seconds) + " s, "
+                + String.format("%.0f", total.sampleCount / seconds) + " samples/s");
+    }
+}